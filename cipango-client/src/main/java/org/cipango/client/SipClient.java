@@ -17,8 +17,11 @@ package org.cipango.client;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.ServletException;
 import javax.servlet.sip.Address;
@@ -38,19 +41,34 @@ import javax.servlet.sip.ar.SipRouteModifier;
 import javax.servlet.sip.ar.SipTargetedRequestInfo;
 
 import org.cipango.server.Server;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipResponse;
 import org.cipango.server.bio.UdpConnector;
 import org.cipango.server.handler.SipContextHandlerCollection;
+import org.cipango.server.session.CallSession;
+import org.cipango.server.session.CallSessionHandler;
+import org.cipango.server.session.SipSessionHandler;
+import org.cipango.server.transaction.Transaction;
+import org.cipango.server.transaction.TransactionManager;
 import org.cipango.servlet.SipServletHolder;
 import org.cipango.sip.NameAddr;
 import org.cipango.sipapp.SipAppContext;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
 
 public class SipClient extends AbstractLifeCycle
 {
+	private static final Logger LOG = Log.getLogger(SipClient.class);
+	
 	private Server _server;
 	private SipAppContext _context;
 	
-	private List<UserAgent> _userAgents = new ArrayList<UserAgent>();
+	private Map<String, UserAgent> _userAgents = new HashMap<String, UserAgent>();
 		
 	public SipClient(String host, int port)
 	{
@@ -66,6 +84,14 @@ public class SipClient extends AbstractLifeCycle
 		SipContextHandlerCollection handler = new SipContextHandlerCollection();
 		_server.setHandler(handler);
 		
+		CallSessionHandler callSessionHandler = new CallSessionHandler();
+		EarlyNotifyHandler earlyNotifyHandler = new EarlyNotifyHandler();
+		TransactionManager transactionManager = _server.getTransactionManager();
+		callSessionHandler.setHandler(earlyNotifyHandler);
+		earlyNotifyHandler.setHandler(transactionManager);
+		transactionManager.setHandler(new SipSessionHandler());
+		handler.setHandler(callSessionHandler);
+		
 		_context = new SipAppContext();
 		_context.setConfigurationClasses(new String[0]);
 		_context.setContextPath("/");
@@ -86,6 +112,14 @@ public class SipClient extends AbstractLifeCycle
 		this(null, port);
 	}
 	
+	/**
+	 * Adds a connector, for instance a TCP connector, to the client.
+	 */
+	public void addConnector(SipConnector connector)
+	{
+		_server.getConnectorManager().addConnector(connector);
+	}
+	
 	public SipFactory getFactory()
 	{
 		return _context.getSipFactory();
@@ -117,17 +151,30 @@ public class SipClient extends AbstractLifeCycle
 	
 	public UserAgent getUserAgent(URI uri)
 	{
+		UserAgent agent;
 		synchronized (_userAgents)
 		{
-			for (UserAgent agent : _userAgents)
-			{
-				if (agent.getProfile().getURI().equals(uri))
-					return agent;
-			}
+			agent = _userAgents.get(getKey(uri));
 		}
+		if (agent != null && agent.getProfile().getURI().equals(uri))
+			return agent;
 		return null;
 	}
 	
+	/**
+	 * Agents are indexed by user and host so that they are found quickly when there are thousands
+	 * of them, as with the load generator.
+	 */
+	protected String getKey(URI uri)
+	{
+		if (uri instanceof SipURI)
+		{
+			SipURI sipUri = (SipURI) uri;
+			return sipUri.getScheme() + ":" + sipUri.getUser() + "@" + sipUri.getHost().toLowerCase();
+		}
+		return uri.toString();
+	}
+	
 	public void addAgent(UserAgent agent)
 	{
 		SipURI contact = (SipURI) getContact().clone();
@@ -137,7 +184,7 @@ public class SipClient extends AbstractLifeCycle
 		
 		synchronized(_userAgents)
 		{
-			_userAgents.add(agent);
+			_userAgents.put(getKey(agent.getProfile().getURI()), agent);
 		}
 	}
 	
@@ -154,9 +201,10 @@ public class SipClient extends AbstractLifeCycle
 		{
 			MessageHandler handler = getHandler(request);
 			if (handler != null)
+			{
 				handler.handleRequest(request);
-			
-			if (request.isInitial())
+			}
+			else if (request.isInitial())
 			{
 				Address local = request.getTo();
 				UserAgent agent = getUserAgent(local.getURI());
@@ -183,6 +231,75 @@ public class SipClient extends AbstractLifeCycle
 		}
 	}
 	
+	/**
+	 * Holds the NOTIFY requests received before the 2xx response to the SUBSCRIBE creating their
+	 * dialog, which may overtake it as allowed by RFC 6665, so that they are not rejected with a 481.
+	 * Held requests are handled once a final response has been received in the same call, or
+	 * rejected when the notifier transaction would have timed out.
+	 */
+	class EarlyNotifyHandler extends HandlerWrapper implements SipHandler
+	{
+		private Map<String, List<SipRequest>> _held = new ConcurrentHashMap<String, List<SipRequest>>();
+		
+		public void handle(SipServletMessage message) throws IOException, ServletException
+		{
+			SipMessage baseMessage = (SipMessage) message;
+			CallSession callSession = baseMessage.getCallSession();
+			
+			if (baseMessage.isRequest())
+			{
+				SipRequest request = (SipRequest) message;
+				if (request.isNotify() && !request.isInitial() && callSession.findSession(request) == null)
+				{
+					hold(callSession, request);
+					return;
+				}
+			}
+			
+			((SipHandler) getHandler()).handle(message);
+			
+			if (!baseMessage.isRequest() && ((SipResponse) message).getStatus() >= 200)
+				release(callSession.getId());
+		}
+		
+		private void hold(CallSession callSession, SipRequest request)
+		{
+			final String id = callSession.getId();
+			List<SipRequest> held = _held.get(id);
+			if (held == null)
+			{
+				held = new ArrayList<SipRequest>();
+				_held.put(id, held);
+				callSession.schedule(new Runnable()
+				{
+					public void run()
+					{
+						release(id);
+					}
+				}, 64 * Transaction.DEFAULT_T1);
+			}
+			held.add(request);
+		}
+		
+		private void release(String id)
+		{
+			List<SipRequest> held = _held.remove(id);
+			if (held == null)
+				return;
+			for (SipRequest request : held)
+			{
+				try
+				{
+					((SipHandler) getHandler()).handle(request);
+				}
+				catch (Exception e)
+				{
+					LOG.warn("Failed to handle early request " + request.getMethod(), e);
+				}
+			}
+		}
+	}
+	
 	class ApplicationRouter implements SipApplicationRouter
 	{
 		public void init() { }
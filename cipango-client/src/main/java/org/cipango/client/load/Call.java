@@ -0,0 +1,279 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.client.load;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletException;
+import javax.servlet.sip.SipApplicationSession;
+import javax.servlet.sip.SipFactory;
+import javax.servlet.sip.SipServletMessage;
+import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.SipServletResponse;
+import javax.servlet.sip.SipSession;
+import javax.servlet.sip.SipURI;
+
+import org.cipango.client.MessageHandler;
+import org.cipango.client.UserAgent;
+import org.cipango.client.load.Scenario.Action;
+import org.cipango.client.load.Scenario.Step;
+import org.cipango.sip.SipHeaders;
+import org.cipango.sip.SipMethods;
+
+/**
+ * Execution of a {@link Scenario} by a simulated user agent.
+ * <p>
+ * The call is driven by the messages received and the pauses of the scenario, it never blocks a
+ * thread. Requests received before the step waiting for them are kept until it is reached. A NOTIFY
+ * overtaking the 200 response to its SUBSCRIBE is held by the {@link org.cipango.client.SipClient}
+ * until the response has created its dialog, and then kept until the NOTIFY step is reached.
+ */
+class Call implements MessageHandler, Runnable
+{
+	private final LoadGenerator _generator;
+	private final List<Step> _steps;
+	private final UserAgent _agent;
+	private final SipURI _remote;
+
+	// time at which the call should have started, used as start of its first transaction
+	private final long _intendedTime;
+
+	private int _step;
+	private boolean _done;
+	private Future<?> _timeout;
+
+	private SipSession _session;
+	private SipServletRequest _sent;
+	private long _sentTime;
+	private boolean _pending;
+	private SipServletResponse _response;
+	private SipServletRequest _request;
+	private final List<SipServletRequest> _received = new LinkedList<SipServletRequest>();
+
+	/**
+	 * @param remote the URI initial requests are sent to, <code>null</code> for a UAS.
+	 */
+	Call(LoadGenerator generator, Scenario scenario, UserAgent agent, SipURI remote, long intendedTime)
+	{
+		_generator = generator;
+		_steps = scenario.getSteps();
+		_agent = agent;
+		_remote = remote;
+		_intendedTime = intendedTime;
+	}
+
+	public synchronized void start()
+	{
+		_timeout = _generator.schedule(new Runnable()
+		{
+			public void run()
+			{
+				timeout();
+			}
+		}, _generator.getCallTimeout());
+		execute();
+	}
+
+	/**
+	 * Starts a UAS call with the initial request received.
+	 */
+	public synchronized void start(SipServletRequest request)
+	{
+		_session = request.getSession();
+		_session.setAttribute(MessageHandler.class.getName(), this);
+		request.getApplicationSession().setExpires(1);
+		_received.add(request);
+		start();
+	}
+
+	public synchronized boolean isDone()
+	{
+		return _done;
+	}
+
+	/**
+	 * Resumes the call after a pause.
+	 */
+	public synchronized void run()
+	{
+		execute();
+	}
+
+	protected void execute()
+	{
+		try
+		{
+			while (!_done && _step < _steps.size())
+			{
+				Step step = _steps.get(_step);
+				switch (step.getAction())
+				{
+				case SEND:
+					send(step);
+					break;
+				case ACK:
+					if (_response == null || !_response.getMethod().equals(SipMethods.INVITE))
+						throw new IllegalStateException("No INVITE response to acknowledge");
+					_response.createAck().send();
+					break;
+				case RECEIVE:
+					_request = poll(step.getMethod());
+					if (_request == null)
+						return;
+					break;
+				case RESPOND:
+					if (_request == null)
+						throw new IllegalStateException("No request to respond to");
+					SipServletResponse response = _request.createResponse(step.getStatus());
+					addHeaders(response, step.getHeaders());
+					response.send();
+					break;
+				case PAUSE:
+					_step++;
+					_generator.schedule(this, step.getPause());
+					return;
+				case EXPECT:
+					return;
+				}
+				_step++;
+			}
+			if (!_done)
+				end(true, null);
+		}
+		catch (Exception e)
+		{
+			end(false, "step " + _step + " " + _steps.get(_step) + ": " + e);
+		}
+	}
+
+	protected void send(Step step) throws IOException
+	{
+		SipServletRequest request;
+		if (_session == null)
+		{
+			SipFactory factory = _agent.getFactory();
+			SipApplicationSession appSession = factory.createApplicationSession();
+			appSession.setExpires(1);
+
+			SipURI from = _agent.getProfile().getURI();
+			if (step.getMethod().equals(SipMethods.REGISTER))
+			{
+				request = factory.createRequest(appSession, step.getMethod(), from, from);
+				request.setRequestURI(_remote);
+				request.setAddressHeader(SipHeaders.CONTACT, _agent.getContact());
+			}
+			else
+			{
+				SipURI to = (SipURI) _remote.clone();
+				to.removeParameter("transport");
+				request = factory.createRequest(appSession, step.getMethod(), from, to);
+				request.setRequestURI(_remote);
+			}
+			if (_generator.getOutboundProxy() != null)
+				request.pushRoute(_generator.getOutboundProxy());
+			_session = request.getSession();
+			_session.setAttribute(MessageHandler.class.getName(), this);
+		}
+		else
+		{
+			request = _session.createRequest(step.getMethod());
+		}
+		addHeaders(request, step.getHeaders());
+
+		// The first request of a UAC call is timed from its intended start so that delays
+		// in starting calls are not hidden
+		_sentTime = _sent == null && _intendedTime != 0 ? _intendedTime : System.nanoTime();
+		_sent = request;
+		_pending = true;
+		request.send();
+	}
+
+	private void addHeaders(SipServletMessage message, Map<String, String> headers)
+	{
+		for (Map.Entry<String, String> header : headers.entrySet())
+			message.setHeader(header.getKey(), header.getValue());
+	}
+
+	private SipServletRequest poll(String method)
+	{
+		Iterator<SipServletRequest> it = _received.iterator();
+		while (it.hasNext())
+		{
+			SipServletRequest request = it.next();
+			if (request.getMethod().equals(method))
+			{
+				it.remove();
+				return request;
+			}
+		}
+		return null;
+	}
+
+	public synchronized void handleRequest(SipServletRequest request) throws IOException, ServletException
+	{
+		if (_done)
+			return;
+		_received.add(request);
+		if (_step < _steps.size() && _steps.get(_step).getAction() == Action.RECEIVE)
+			execute();
+	}
+
+	public synchronized void handleResponse(SipServletResponse response) throws IOException, ServletException
+	{
+		if (_done || !_pending || !response.getMethod().equals(_sent.getMethod()))
+			return;
+
+		int status = response.getStatus();
+		if (status >= 200)
+		{
+			_pending = false;
+			_generator.record(response.getMethod(), status, System.nanoTime() - _sentTime);
+		}
+
+		Step step = _step < _steps.size() ? _steps.get(_step) : null;
+		if (step == null || step.getAction() != Action.EXPECT)
+			return;
+
+		if (status == step.getStatus())
+		{
+			_response = response;
+			_step++;
+			execute();
+		}
+		else if (status >= 200)
+		{
+			end(false, "step " + _step + " " + step + ": received " + status + " " + response.getReasonPhrase());
+		}
+	}
+
+	protected synchronized void timeout()
+	{
+		if (!_done)
+			end(false, "step " + _step + " " + _steps.get(Math.min(_step, _steps.size() - 1)) + ": timeout");
+	}
+
+	private void end(boolean success, String reason)
+	{
+		_done = true;
+		if (_timeout != null)
+			_timeout.cancel(false);
+		_generator.callEnded(success, reason);
+	}
+}
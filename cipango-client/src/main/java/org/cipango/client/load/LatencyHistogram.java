@@ -0,0 +1,249 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.client.load;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with a fixed relative precision, in the manner of HdrHistogram.
+ * <p>
+ * Values are counted in buckets whose width doubles with each power of 2, each of them divided
+ * in {@link #SUB_BUCKETS} sub-buckets, so that any value is known within 1% whatever its
+ * magnitude, from microseconds to minutes, with a few thousands counters. Values may be recorded
+ * concurrently without locking.
+ */
+public class LatencyHistogram
+{
+	public static final int SUB_BUCKET_BITS = 7;
+	public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final long _highestTrackableValue;
+	private final AtomicLongArray _counts;
+	private final AtomicLong _totalCount = new AtomicLong();
+	private final AtomicLong _max = new AtomicLong();
+	private final AtomicLong _min = new AtomicLong(Long.MAX_VALUE);
+
+	/**
+	 * @param highestTrackableValue the highest value to record, greater values are recorded as it.
+	 */
+	public LatencyHistogram(long highestTrackableValue)
+	{
+		_highestTrackableValue = highestTrackableValue;
+		_counts = new AtomicLongArray(getIndex(highestTrackableValue) + 1);
+	}
+
+	static int getIndex(long value)
+	{
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return the lowest value counted in the same bucket as the values of the index.
+	 */
+	static long getLowestEquivalentValue(int index)
+	{
+		int shift = Math.max(0, index / SUB_BUCKETS - 1);
+		return (long) (index - shift * SUB_BUCKETS) << shift;
+	}
+
+	static long getHighestEquivalentValue(int index)
+	{
+		int shift = Math.max(0, index / SUB_BUCKETS - 1);
+		return getLowestEquivalentValue(index) + (1L << shift) - 1;
+	}
+
+	public void recordValue(long value)
+	{
+		if (value < 0)
+			value = 0;
+		else if (value > _highestTrackableValue)
+			value = _highestTrackableValue;
+
+		_counts.incrementAndGet(getIndex(value));
+		_totalCount.incrementAndGet();
+
+		long max = _max.get();
+		while (value > max && !_max.compareAndSet(max, value))
+			max = _max.get();
+		long min = _min.get();
+		while (value < min && !_min.compareAndSet(min, value))
+			min = _min.get();
+	}
+
+	public long getTotalCount()
+	{
+		return _totalCount.get();
+	}
+
+	public long getMaxValue()
+	{
+		return _totalCount.get() == 0 ? 0 : _max.get();
+	}
+
+	public long getMinValue()
+	{
+		return _totalCount.get() == 0 ? 0 : _min.get();
+	}
+
+	public long getHighestTrackableValue()
+	{
+		return _highestTrackableValue;
+	}
+
+	public double getMean()
+	{
+		long count = 0;
+		double total = 0;
+		for (int i = 0; i < _counts.length(); i++)
+		{
+			long n = _counts.get(i);
+			if (n > 0)
+			{
+				count += n;
+				total += n * (double) getMedianEquivalentValue(i);
+			}
+		}
+		return count == 0 ? 0 : total / count;
+	}
+
+	public double getStdDeviation()
+	{
+		double mean = getMean();
+		long count = 0;
+		double total = 0;
+		for (int i = 0; i < _counts.length(); i++)
+		{
+			long n = _counts.get(i);
+			if (n > 0)
+			{
+				double deviation = getMedianEquivalentValue(i) - mean;
+				count += n;
+				total += n * deviation * deviation;
+			}
+		}
+		return count == 0 ? 0 : Math.sqrt(total / count);
+	}
+
+	private long getMedianEquivalentValue(int index)
+	{
+		return (getLowestEquivalentValue(index) + getHighestEquivalentValue(index)) / 2;
+	}
+
+	/**
+	 * @return the highest value of the bucket in which the given percentile of values is reached.
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long total = _totalCount.get();
+		if (total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+		long count = 0;
+		for (int i = 0; i < _counts.length(); i++)
+		{
+			count += _counts.get(i);
+			if (count >= target)
+				return Math.min(getHighestEquivalentValue(i), getMaxValue());
+		}
+		return getMaxValue();
+	}
+
+	/**
+	 * Adds the values of another histogram with the same highest trackable value.
+	 */
+	public void add(LatencyHistogram histogram)
+	{
+		if (histogram._counts.length() != _counts.length())
+			throw new IllegalArgumentException("Incompatible histogram");
+		for (int i = 0; i < _counts.length(); i++)
+		{
+			long n = histogram._counts.get(i);
+			if (n > 0)
+				_counts.addAndGet(i, n);
+		}
+		_totalCount.addAndGet(histogram.getTotalCount());
+		if (histogram.getTotalCount() > 0)
+		{
+			long max = _max.get();
+			while (histogram.getMaxValue() > max && !_max.compareAndSet(max, histogram.getMaxValue()))
+				max = _max.get();
+			long min = _min.get();
+			while (histogram.getMinValue() < min && !_min.compareAndSet(min, histogram.getMinValue()))
+				min = _min.get();
+		}
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < _counts.length(); i++)
+			_counts.set(i, 0);
+		_totalCount.set(0);
+		_max.set(0);
+		_min.set(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Writes the percentile distribution in the format of HdrHistogram, which may be plotted with
+	 * its tools. Percentiles are reported with 5 ticks each time the distance to 100% is halved.
+	 *
+	 * @param scale the ratio of recorded values to printed values, for instance 1000 to print
+	 *        milliseconds from microseconds.
+	 */
+	public void outputPercentileDistribution(PrintWriter out, double scale)
+	{
+		out.println("       Value     Percentile TotalCount 1/(1-Percentile)");
+		out.println();
+
+		long total = _totalCount.get();
+		if (total > 0)
+		{
+			double percentile = 0;
+			double tick = 10;
+			while (true)
+			{
+				long value = getValueAtPercentile(percentile);
+				long count = getCountAtValue(value);
+				out.println(String.format("%12.3f %2.12f %10d %14.2f",
+						value / scale, percentile / 100, count, 1 / (1 - percentile / 100)));
+				if (value >= getMaxValue())
+					break;
+
+				percentile += tick;
+				if (100 - percentile <= tick * 5 / 2)
+					tick /= 2;
+			}
+			out.println(String.format("%12.3f %2.12f %10d", getMaxValue() / scale, 1.0, total));
+		}
+
+		out.println(String.format("#[Mean    = %12.3f, StdDeviation   = %12.3f]",
+				getMean() / scale, getStdDeviation() / scale));
+		out.println(String.format("#[Max     = %12.3f, Total count    = %12d]",
+				getMaxValue() / scale, total));
+		out.println(String.format("#[Buckets = %12d, SubBuckets     = %12d]",
+				_counts.length() / SUB_BUCKETS, SUB_BUCKETS));
+		out.flush();
+	}
+
+	private long getCountAtValue(long value)
+	{
+		long count = 0;
+		for (int i = 0; i < _counts.length() && getLowestEquivalentValue(i) <= value; i++)
+			count += _counts.get(i);
+		return count;
+	}
+}
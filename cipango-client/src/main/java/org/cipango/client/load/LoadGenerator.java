@@ -0,0 +1,665 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.client.load;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.SipServletResponse;
+import javax.servlet.sip.SipURI;
+
+import org.cipango.client.SipClient;
+import org.cipango.client.SipProfile;
+import org.cipango.client.UserAgent;
+import org.cipango.sip.SipMethods;
+import org.cipango.sip.SipURIImpl;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * SIP load generator playing a {@link Scenario} with thousands of simulated user agents.
+ * <p>
+ * The user agents are spread over the {@link SipClient clients} of the generator, so that they
+ * share a few sockets. With a UAC scenario, calls are started at the target rate on a fixed
+ * schedule, whatever the number of calls in progress: the generator does not slow down when the
+ * system under test does, and the first transaction of each call is timed from the time the call
+ * should have started, so that latencies are not underestimated by coordinated omission. With a
+ * UAS scenario, calls are started by the initial requests received by the user agents.
+ * <p>
+ * The latency of each transaction, from request to final response, is recorded in a
+ * {@link LatencyHistogram} per method.
+ */
+public class LoadGenerator extends AbstractLifeCycle
+{
+	private static final Logger LOG = Log.getLogger(LoadGenerator.class);
+
+	private final Scenario _scenario;
+	private final List<SipClient> _clients = new ArrayList<SipClient>();
+	private UserAgent[] _agents;
+
+	private String _userPrefix = "user";
+	private int _users = 1000;
+	private String _domain;
+	private SipURI _target;
+	private SipURI _outboundProxy;
+
+	private volatile double _rate = 10;
+	private long _maxCalls = -1;
+	private long _callTimeout = 60000;
+	private long _highestLatency = TimeUnit.MINUTES.toMicros(1);
+
+	private ScheduledThreadPoolExecutor _scheduler;
+	private Thread _generator;
+
+	private final AtomicLong _started = new AtomicLong();
+	private final AtomicLong _succeeded = new AtomicLong();
+	private final AtomicLong _failed = new AtomicLong();
+	private volatile long _statsStartTime;
+	private volatile String _lastFailure;
+	private final ConcurrentMap<String, Statistics> _statistics = new ConcurrentHashMap<String, Statistics>();
+
+	public LoadGenerator(Scenario scenario)
+	{
+		_scenario = scenario;
+	}
+
+	public Scenario getScenario()
+	{
+		return _scenario;
+	}
+
+	/**
+	 * Adds a client, that is a socket, to send and receive the messages of the user agents.
+	 * Clients are not started by the generator.
+	 */
+	public void addClient(SipClient client)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_clients.add(client);
+	}
+
+	public String getUserPrefix()
+	{
+		return _userPrefix;
+	}
+
+	/**
+	 * Sets the prefix of the user names of the simulated user agents, which are followed by their
+	 * index.
+	 */
+	public void setUserPrefix(String userPrefix)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_userPrefix = userPrefix;
+	}
+
+	public int getUsers()
+	{
+		return _users;
+	}
+
+	/**
+	 * Sets the number of simulated user agents.
+	 */
+	public void setUsers(int users)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_users = users;
+	}
+
+	/**
+	 * @return the domain of the user agents, by default the host of the target for a UAC scenario
+	 *         and the address of the first client for a UAS scenario.
+	 */
+	public String getDomain()
+	{
+		return _domain;
+	}
+
+	public void setDomain(String domain)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_domain = domain;
+	}
+
+	public SipURI getTarget()
+	{
+		return _target;
+	}
+
+	/**
+	 * Sets the URI initial requests are sent to. REGISTER requests are sent to this URI while other
+	 * requests are sent to the user of same index as the caller at the host of this URI.
+	 */
+	public void setTarget(SipURI target)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_target = target;
+	}
+
+	public SipURI getOutboundProxy()
+	{
+		return _outboundProxy;
+	}
+
+	/**
+	 * Sets the URI of the proxy initial requests are routed through, for instance
+	 * <code>sip:10.0.0.1;lr</code>.
+	 */
+	public void setOutboundProxy(SipURI outboundProxy)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_outboundProxy = outboundProxy;
+	}
+
+	/**
+	 * @return the number of calls started per second by a UAC scenario.
+	 */
+	public double getRate()
+	{
+		return _rate;
+	}
+
+	/**
+	 * Sets the number of calls started per second. The rate may be changed while running.
+	 */
+	public void setRate(double rate)
+	{
+		if (rate <= 0)
+			throw new IllegalArgumentException("rate must be positive");
+		_rate = rate;
+		if (_generator != null)
+			_generator.interrupt();
+	}
+
+	/**
+	 * @return the number of calls after which a UAC scenario stops, <code>-1</code> for no limit.
+	 */
+	public long getMaxCalls()
+	{
+		return _maxCalls;
+	}
+
+	public void setMaxCalls(long maxCalls)
+	{
+		_maxCalls = maxCalls;
+	}
+
+	/**
+	 * @return the time in ms after which a call which did not complete its scenario fails.
+	 */
+	public long getCallTimeout()
+	{
+		return _callTimeout;
+	}
+
+	public void setCallTimeout(long callTimeout)
+	{
+		_callTimeout = callTimeout;
+	}
+
+	/**
+	 * @return the highest latency in microseconds recorded by the histograms.
+	 */
+	public long getHighestLatency()
+	{
+		return _highestLatency;
+	}
+
+	public void setHighestLatency(long highestLatency)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_highestLatency = highestLatency;
+	}
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		if (_clients.isEmpty())
+			throw new IllegalStateException("No client");
+		if (!_scenario.isUas() && _target == null)
+			throw new IllegalStateException("No target");
+
+		if (_domain == null)
+		{
+			SipURI uri = _scenario.isUas() ? _clients.get(0).getContact() : _target;
+			_domain = uri.getHost() + (uri.getPort() == -1 ? "" : ":" + uri.getPort());
+		}
+
+		_agents = new UserAgent[_users];
+		for (int i = 0; i < _users; i++)
+		{
+			SipProfile profile = new SipProfile(_userPrefix + i, _domain);
+			_agents[i] = _scenario.isUas() ? new UasUserAgent(profile) : new UserAgent(profile);
+			_clients.get(i % _clients.size()).addAgent(_agents[i]);
+		}
+
+		_scheduler = new ScheduledThreadPoolExecutor(Math.max(2, Runtime.getRuntime().availableProcessors()));
+		statsReset();
+		super.doStart();
+
+		if (!_scenario.isUas())
+		{
+			_generator = new Thread(new Generator(), "load-generator");
+			_generator.setDaemon(true);
+			_generator.start();
+		}
+		LOG.info("Started {} with {} user agents", _scenario, _users);
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+		if (_generator != null)
+			_generator.interrupt();
+		_generator = null;
+		_scheduler.shutdownNow();
+	}
+
+	Future<?> schedule(Runnable task, long ms)
+	{
+		return _scheduler.schedule(task, ms, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts the call of given index, which should have started at the given time in ns.
+	 */
+	protected void startCall(long index, long intendedTime)
+	{
+		int user = (int) (index % _users);
+		SipURI remote;
+		if (_scenario.getSteps().get(0).getMethod().equals(SipMethods.REGISTER))
+		{
+			remote = _target;
+		}
+		else
+		{
+			remote = (SipURI) _target.clone();
+			remote.setUser(_userPrefix + user);
+		}
+		final Call call = new Call(this, _scenario, _agents[user], remote, intendedTime);
+		_started.incrementAndGet();
+		_scheduler.execute(new Runnable()
+		{
+			public void run()
+			{
+				call.start();
+			}
+		});
+	}
+
+	void record(String method, int status, long latency)
+	{
+		Statistics statistics = _statistics.get(method);
+		if (statistics == null)
+		{
+			statistics = new Statistics(method, _highestLatency);
+			Statistics previous = _statistics.putIfAbsent(method, statistics);
+			if (previous != null)
+				statistics = previous;
+		}
+		statistics.record(status, latency / 1000);
+	}
+
+	synchronized void callEnded(boolean success, String reason)
+	{
+		if (success)
+		{
+			_succeeded.incrementAndGet();
+		}
+		else
+		{
+			_failed.incrementAndGet();
+			_lastFailure = reason;
+			LOG.debug("Call failed at {}", reason);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the given number of calls have ended.
+	 * @return <code>true</code> if they ended before the timeout in ms.
+	 */
+	public synchronized boolean waitForCalls(long calls, long timeout) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + timeout;
+		while (getCallsEnded() < calls)
+		{
+			long wait = end - System.currentTimeMillis();
+			if (wait <= 0)
+				return false;
+			wait(wait);
+		}
+		return true;
+	}
+
+	public long getCallsStarted()
+	{
+		return _started.get();
+	}
+
+	public long getCallsSucceeded()
+	{
+		return _succeeded.get();
+	}
+
+	public long getCallsFailed()
+	{
+		return _failed.get();
+	}
+
+	/**
+	 * @return the step and reason of the last call failure.
+	 */
+	public String getLastFailure()
+	{
+		return _lastFailure;
+	}
+
+	public long getCallsEnded()
+	{
+		return _succeeded.get() + _failed.get();
+	}
+
+	public long getCallsInProgress()
+	{
+		return _started.get() - getCallsEnded();
+	}
+
+	/**
+	 * @return the statistics of the transactions of the given method or <code>null</code> if none
+	 *         has completed.
+	 */
+	public Statistics getStatistics(String method)
+	{
+		return _statistics.get(method);
+	}
+
+	/**
+	 * Resets the statistics, for instance at the end of a warm-up period. Calls in progress are still
+	 * counted when they end.
+	 */
+	public void statsReset()
+	{
+		_started.set(getCallsInProgress());
+		_succeeded.set(0);
+		_failed.set(0);
+		_lastFailure = null;
+		for (Statistics statistics : _statistics.values())
+			statistics.reset();
+		_statsStartTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return a summary of the calls and of the latency percentiles, in ms, of each transaction type.
+	 */
+	public String getReport()
+	{
+		long elapsed = Math.max(1, System.currentTimeMillis() - _statsStartTime);
+
+		StringWriter report = new StringWriter();
+		PrintWriter out = new PrintWriter(report);
+		out.println(String.format("Scenario %s: %.1f calls/s offered, %.1f calls/s completed over %.1f s",
+				_scenario.getName(), _scenario.isUas() ? 0 : _rate, getCallsEnded() * 1000.0 / elapsed, elapsed / 1000.0));
+		out.println(String.format("Calls: %d started, %d succeeded, %d failed, %d in progress",
+				getCallsStarted(), getCallsSucceeded(), getCallsFailed(), getCallsInProgress()));
+		if (_lastFailure != null)
+			out.println("Last failure at " + _lastFailure);
+		out.println(String.format("%-10s %8s %8s %10s %10s %10s %10s %10s %10s",
+				"Method", "Count", "Failed", "Mean", "50%", "90%", "99%", "99.9%", "Max"));
+		for (Statistics statistics : new TreeMap<String, Statistics>(_statistics).values())
+		{
+			LatencyHistogram histogram = statistics.getHistogram();
+			out.println(String.format("%-10s %8d %8d %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f",
+					statistics.getMethod(), histogram.getTotalCount(), statistics.getFailed(),
+					histogram.getMean() / 1000,
+					histogram.getValueAtPercentile(50) / 1000.0,
+					histogram.getValueAtPercentile(90) / 1000.0,
+					histogram.getValueAtPercentile(99) / 1000.0,
+					histogram.getValueAtPercentile(99.9) / 1000.0,
+					histogram.getMaxValue() / 1000.0));
+		}
+		out.flush();
+		return report.toString();
+	}
+
+	/**
+	 * Writes the report to <code>summary.txt</code> and the percentile distribution of each
+	 * transaction type, in ms, to <code>&lt;scenario&gt;-&lt;method&gt;.hgrm</code> in the given
+	 * directory.
+	 */
+	public void writeReport(File directory) throws IOException
+	{
+		directory.mkdirs();
+		write(new File(directory, "summary.txt"), getReport());
+		for (Statistics statistics : _statistics.values())
+		{
+			StringWriter distribution = new StringWriter();
+			statistics.getHistogram().outputPercentileDistribution(new PrintWriter(distribution), 1000);
+			write(new File(directory, _scenario.getName() + "-" + statistics.getMethod() + ".hgrm"), distribution.toString());
+		}
+	}
+
+	private void write(File file, String content) throws IOException
+	{
+		FileWriter writer = new FileWriter(file);
+		try
+		{
+			writer.write(content);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LoadGenerator[" + _scenario.getName() + "]";
+	}
+
+	/**
+	 * Latencies in microseconds of the transactions of a method.
+	 */
+	public static class Statistics
+	{
+		private final String _method;
+		private final LatencyHistogram _histogram;
+		private final AtomicLong _failed = new AtomicLong();
+
+		Statistics(String method, long highestLatency)
+		{
+			_method = method;
+			_histogram = new LatencyHistogram(highestLatency);
+		}
+
+		void record(int status, long latency)
+		{
+			_histogram.recordValue(latency);
+			if (status >= 300)
+				_failed.incrementAndGet();
+		}
+
+		void reset()
+		{
+			_histogram.reset();
+			_failed.set(0);
+		}
+
+		public String getMethod()
+		{
+			return _method;
+		}
+
+		public LatencyHistogram getHistogram()
+		{
+			return _histogram;
+		}
+
+		/**
+		 * @return the number of transactions with an error response, timeouts included.
+		 */
+		public long getFailed()
+		{
+			return _failed.get();
+		}
+	}
+
+	/**
+	 * Simulated user agent starting a UAS call for each initial request.
+	 */
+	class UasUserAgent extends UserAgent
+	{
+		public UasUserAgent(SipProfile profile)
+		{
+			super(profile);
+		}
+
+		@Override
+		public void handleInitialRequest(SipServletRequest request)
+		{
+			if (!isRunning() || !request.getMethod().equals(_scenario.getSteps().get(0).getMethod()))
+			{
+				if (!request.getMethod().equals(SipMethods.ACK))
+				{
+					try
+					{
+						request.createResponse(SipServletResponse.SC_SERVICE_UNAVAILABLE).send();
+					}
+					catch (IOException e)
+					{
+						LOG.debug(e);
+					}
+				}
+				return;
+			}
+			_started.incrementAndGet();
+			new Call(LoadGenerator.this, _scenario, this, null, 0).start(request);
+		}
+	}
+
+	/**
+	 * Starts calls on a fixed schedule. When late, calls are started at once until the schedule is
+	 * caught up rather than skipped or delayed.
+	 */
+	class Generator implements Runnable
+	{
+		public void run()
+		{
+			double rate = _rate;
+			long base = System.nanoTime();
+			long baseIndex = 0;
+			long index = 0;
+
+			while (isRunning() && (_maxCalls < 0 || index < _maxCalls))
+			{
+				try
+				{
+					if (rate != _rate)
+					{
+						base = base + (long) ((index - baseIndex) * 1e9 / rate);
+						baseIndex = index;
+						rate = _rate;
+					}
+					long intendedTime = base + (long) ((index - baseIndex) * 1e9 / rate);
+					long delay = intendedTime - System.nanoTime();
+					if (delay > 0)
+						TimeUnit.NANOSECONDS.sleep(delay);
+					startCall(index++, intendedTime);
+				}
+				catch (InterruptedException e) { continue; }
+				catch (Throwable t) { LOG.warn(t); }
+			}
+		}
+	}
+
+	/**
+	 * Plays a scenario from the command line.
+	 * Usage: <code>LoadGenerator scenario localPort target [rate [calls [users [reportDirectory]]]]</code>
+	 * where scenario is one of <code>register</code>, <code>call</code>, <code>subscribe</code> or
+	 * the UAS scenarios <code>registrar</code>, <code>answer</code> and <code>notifier</code>.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Scenario scenario;
+		if ("register".equals(args[0]))
+			scenario = Scenario.register(3600);
+		else if ("call".equals(args[0]))
+			scenario = Scenario.call(0);
+		else if ("subscribe".equals(args[0]))
+			scenario = Scenario.subscribe("presence", 60);
+		else if ("registrar".equals(args[0]))
+			scenario = Scenario.registrar();
+		else if ("answer".equals(args[0]))
+			scenario = Scenario.answer();
+		else if ("notifier".equals(args[0]))
+			scenario = Scenario.notifier("presence");
+		else
+			throw new IllegalArgumentException("Unknown scenario " + args[0]);
+
+		SipClient client = new SipClient(Integer.parseInt(args[1]));
+		client.start();
+
+		LoadGenerator generator = new LoadGenerator(scenario);
+		generator.addClient(client);
+		if (!scenario.isUas())
+			generator.setTarget(new SipURIImpl(args[2]));
+		if (args.length > 3)
+			generator.setRate(Double.parseDouble(args[3]));
+		if (args.length > 4)
+			generator.setMaxCalls(Long.parseLong(args[4]));
+		if (args.length > 5)
+			generator.setUsers(Integer.parseInt(args[5]));
+		generator.start();
+
+		long maxCalls = generator.getMaxCalls();
+		while (maxCalls < 0 || generator.getCallsEnded() < maxCalls)
+		{
+			if (maxCalls < 0)
+				Thread.sleep(5000);
+			else
+				generator.waitForCalls(maxCalls, 5000);
+			System.out.println(generator.getReport());
+		}
+		if (args.length > 6)
+			generator.writeReport(new File(args[6]));
+
+		generator.stop();
+		client.stop();
+	}
+}
@@ -0,0 +1,269 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.client.load;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cipango.sip.SipHeaders;
+import org.cipango.sip.SipMethods;
+
+/**
+ * Declarative sequence of messages exchanged by a simulated user agent, as the scenarios of SIPp.
+ * <p>
+ * A UAC scenario starts by sending a request and a UAS scenario by receiving one. Steps are
+ * executed in order: a {@link #send(String) send} or {@link #respond(int) respond} step is
+ * executed at once, while an {@link #expect(int) expect} or {@link #receive(String) receive} step
+ * waits for the message. Provisional responses are ignored unless expected. Any unexpected final
+ * response fails the call.
+ * <pre>
+ * Scenario call = new Scenario("call")
+ *     .send("INVITE").expect(200).ack()
+ *     .pause(1000)
+ *     .send("BYE").expect(200);
+ * </pre>
+ */
+public class Scenario
+{
+	public enum Action { SEND, EXPECT, ACK, RECEIVE, RESPOND, PAUSE };
+
+	public static class Step
+	{
+		private final Action _action;
+		private final String _method;
+		private final int _status;
+		private final long _pause;
+		private final Map<String, String> _headers = new LinkedHashMap<String, String>();
+
+		Step(Action action, String method, int status, long pause)
+		{
+			_action = action;
+			_method = method;
+			_status = status;
+			_pause = pause;
+		}
+
+		public Action getAction()
+		{
+			return _action;
+		}
+
+		public String getMethod()
+		{
+			return _method;
+		}
+
+		public int getStatus()
+		{
+			return _status;
+		}
+
+		public long getPause()
+		{
+			return _pause;
+		}
+
+		public Map<String, String> getHeaders()
+		{
+			return _headers;
+		}
+
+		@Override
+		public String toString()
+		{
+			switch (_action)
+			{
+			case SEND:
+			case RECEIVE:
+				return _action + " " + _method;
+			case EXPECT:
+			case RESPOND:
+				return _action + " " + _status;
+			case PAUSE:
+				return _action + " " + _pause + " ms";
+			default:
+				return _action.toString();
+			}
+		}
+	}
+
+	private final String _name;
+	private final List<Step> _steps = new ArrayList<Step>();
+
+	public Scenario(String name)
+	{
+		_name = name;
+	}
+
+	public String getName()
+	{
+		return _name;
+	}
+
+	public List<Step> getSteps()
+	{
+		return Collections.unmodifiableList(_steps);
+	}
+
+	/**
+	 * @return <code>true</code> if the scenario is played by a UAS, that is starts with a request received.
+	 */
+	public boolean isUas()
+	{
+		return !_steps.isEmpty() && _steps.get(0).getAction() == Action.RECEIVE;
+	}
+
+	private Scenario add(Step step)
+	{
+		_steps.add(step);
+		return this;
+	}
+
+	/**
+	 * Sends a request, in the dialog if any.
+	 */
+	public Scenario send(String method)
+	{
+		return add(new Step(Action.SEND, method, 0, 0));
+	}
+
+	/**
+	 * Waits for a response to the last request sent.
+	 */
+	public Scenario expect(int status)
+	{
+		return add(new Step(Action.EXPECT, null, status, 0));
+	}
+
+	/**
+	 * Acknowledges the last 2xx response received to an INVITE.
+	 */
+	public Scenario ack()
+	{
+		return add(new Step(Action.ACK, SipMethods.ACK, 0, 0));
+	}
+
+	/**
+	 * Waits for a request.
+	 */
+	public Scenario receive(String method)
+	{
+		return add(new Step(Action.RECEIVE, method, 0, 0));
+	}
+
+	/**
+	 * Responds to the last request received.
+	 */
+	public Scenario respond(int status)
+	{
+		return add(new Step(Action.RESPOND, null, status, 0));
+	}
+
+	public Scenario pause(long ms)
+	{
+		return add(new Step(Action.PAUSE, null, 0, ms));
+	}
+
+	/**
+	 * Adds a header to the message of the last send or respond step.
+	 */
+	public Scenario header(String name, String value)
+	{
+		for (int i = _steps.size(); i-- > 0;)
+		{
+			Step step = _steps.get(i);
+			if (step.getAction() == Action.SEND || step.getAction() == Action.RESPOND)
+			{
+				step.getHeaders().put(name, value);
+				return this;
+			}
+		}
+		throw new IllegalStateException("No message to add header to");
+	}
+
+	@Override
+	public String toString()
+	{
+		return _name + _steps;
+	}
+
+	/**
+	 * Registration of the simulated user agent.
+	 */
+	public static Scenario register(int expires)
+	{
+		return new Scenario("register")
+			.send(SipMethods.REGISTER).header(SipHeaders.EXPIRES, String.valueOf(expires)).expect(200);
+	}
+
+	/**
+	 * Call established and released by the UAC after the hold time.
+	 */
+	public static Scenario call(long holdTime)
+	{
+		Scenario scenario = new Scenario("call").send(SipMethods.INVITE).expect(200).ack();
+		if (holdTime > 0)
+			scenario.pause(holdTime);
+		return scenario.send(SipMethods.BYE).expect(200);
+	}
+
+	/**
+	 * Subscription which receives an initial NOTIFY.
+	 */
+	public static Scenario subscribe(String event, int expires)
+	{
+		return new Scenario("subscribe")
+			.send(SipMethods.SUBSCRIBE)
+				.header(SipHeaders.EVENT, event)
+				.header(SipHeaders.EXPIRES, String.valueOf(expires))
+			.expect(200)
+			.receive(SipMethods.NOTIFY).respond(200);
+	}
+
+	/**
+	 * UAS answering calls of the {@link #call(long)} scenario.
+	 */
+	public static Scenario answer()
+	{
+		return new Scenario("answer")
+			.receive(SipMethods.INVITE).respond(180).respond(200)
+			.receive(SipMethods.ACK)
+			.receive(SipMethods.BYE).respond(200);
+	}
+
+	/**
+	 * UAS accepting registrations.
+	 */
+	public static Scenario registrar()
+	{
+		return new Scenario("registrar").receive(SipMethods.REGISTER).respond(200);
+	}
+
+	/**
+	 * UAS accepting subscriptions of the {@link #subscribe(String, int)} scenario.
+	 */
+	public static Scenario notifier(String event)
+	{
+		return new Scenario("notifier")
+			.receive(SipMethods.SUBSCRIBE).respond(200)
+			.send(SipMethods.NOTIFY)
+				.header(SipHeaders.EVENT, event)
+				.header(SipHeaders.SUBSCRIPTION_STATE, "active;expires=60")
+			.expect(200);
+	}
+}
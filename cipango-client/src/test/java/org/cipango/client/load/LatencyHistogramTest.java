@@ -0,0 +1,82 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.client.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+	@Test
+	public void testIndex()
+	{
+		for (long value = 0; value < 10000000; value += 1 + value / 1000)
+		{
+			int index = LatencyHistogram.getIndex(value);
+			assertTrue(LatencyHistogram.getLowestEquivalentValue(index) <= value);
+			assertTrue(LatencyHistogram.getHighestEquivalentValue(index) >= value);
+			assertTrue(LatencyHistogram.getHighestEquivalentValue(index) - value <= value / 100);
+			if (index > 0)
+				assertEquals(LatencyHistogram.getLowestEquivalentValue(index), LatencyHistogram.getHighestEquivalentValue(index - 1) + 1);
+		}
+	}
+
+	@Test
+	public void testPercentiles()
+	{
+		LatencyHistogram histogram = new LatencyHistogram(3600000000L);
+		for (int i = 1; i <= 10000; i++)
+			histogram.recordValue(i * 100);
+		histogram.recordValue(7200000000L);
+
+		assertEquals(10001, histogram.getTotalCount());
+		assertEquals(100, histogram.getMinValue());
+		assertEquals(3600000000L, histogram.getMaxValue());
+		assertEquals(500000, histogram.getValueAtPercentile(50), 500000 / 100);
+		assertEquals(990000, histogram.getValueAtPercentile(99), 990000 / 100);
+		assertEquals(3600000000L, histogram.getValueAtPercentile(100));
+
+		LatencyHistogram other = new LatencyHistogram(3600000000L);
+		other.recordValue(10);
+		histogram.add(other);
+		assertEquals(10002, histogram.getTotalCount());
+		assertEquals(10, histogram.getMinValue());
+
+		histogram.reset();
+		assertEquals(0, histogram.getTotalCount());
+		assertEquals(0, histogram.getValueAtPercentile(99));
+	}
+
+	@Test
+	public void testOutput()
+	{
+		LatencyHistogram histogram = new LatencyHistogram(1000000);
+		for (int i = 1; i <= 1000; i++)
+			histogram.recordValue(i);
+
+		StringWriter writer = new StringWriter();
+		histogram.outputPercentileDistribution(new PrintWriter(writer), 1);
+		String[] lines = writer.toString().split("\n");
+		assertTrue(lines[0].trim().startsWith("Value"));
+		assertTrue(lines[2].trim().startsWith("1.000 0.000000000000"));
+		assertTrue(lines[lines.length - 4].trim().startsWith("1000.000 1.000000000000"));
+		assertTrue(lines[lines.length - 2].contains("Total count    =         1000"));
+	}
+}
@@ -0,0 +1,135 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.client.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.cipango.client.SipClient;
+import org.cipango.sip.SipMethods;
+import org.cipango.sip.SipURIImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoadGeneratorTest
+{
+	private static final int RATE = 200;
+	private static final long CALL_TIMEOUT = 5000;
+
+	private SipClient _uasClient;
+	private SipClient _uacClient;
+	private SipClient _uacClient2;
+	private LoadGenerator _uas;
+	private LoadGenerator _uac;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_uasClient = new SipClient("127.0.0.1", 15280);
+		_uasClient.start();
+		_uacClient = new SipClient("127.0.0.1", 15281);
+		_uacClient.start();
+		_uacClient2 = new SipClient("127.0.0.1", 15282);
+		_uacClient2.start();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		if (_uac != null)
+			_uac.stop();
+		if (_uas != null)
+			_uas.stop();
+		_uasClient.stop();
+		_uacClient.stop();
+		_uacClient2.stop();
+	}
+
+	private void start(Scenario uas, Scenario uac, int calls) throws Exception
+	{
+		_uas = new LoadGenerator(uas);
+		_uas.addClient(_uasClient);
+		_uas.setUsers(100);
+		_uas.setCallTimeout(CALL_TIMEOUT);
+		_uas.start();
+
+		_uac = new LoadGenerator(uac);
+		_uac.addClient(_uacClient);
+		_uac.addClient(_uacClient2);
+		_uac.setUsers(100);
+		_uac.setTarget(new SipURIImpl("sip:127.0.0.1:15280"));
+		_uac.setRate(RATE);
+		_uac.setMaxCalls(calls);
+		_uac.setCallTimeout(CALL_TIMEOUT);
+		_uac.start();
+
+		// Every call ends, successfully or not, at most the call timeout after it has started, so
+		// that the waits only time out if calls are not ended at all
+		boolean ended = _uac.waitForCalls(calls, calls * 1000 / RATE + 2 * CALL_TIMEOUT);
+		assertTrue(_uac.getReport(), ended);
+		ended = _uas.waitForCalls(_uas.getCallsStarted(), 2 * CALL_TIMEOUT);
+		assertTrue(_uas.getReport(), ended);
+		assertEquals(_uas.getReport(), calls, _uas.getCallsStarted());
+	}
+
+	@Test
+	public void testCall() throws Exception
+	{
+		start(Scenario.answer(), Scenario.call(10), 100);
+
+		assertEquals(_uac.getReport(), 100, _uac.getCallsSucceeded());
+		assertEquals(100, _uas.getCallsSucceeded());
+		assertEquals(100, _uac.getStatistics(SipMethods.INVITE).getHistogram().getTotalCount());
+		assertEquals(100, _uac.getStatistics(SipMethods.BYE).getHistogram().getTotalCount());
+		assertEquals(0, _uac.getStatistics(SipMethods.INVITE).getFailed());
+		assertNull(_uas.getStatistics(SipMethods.INVITE));
+
+		File directory = new File("target/test-load");
+		_uac.writeReport(directory);
+		assertTrue(new File(directory, "summary.txt").exists());
+		assertTrue(new File(directory, "call-INVITE.hgrm").exists());
+	}
+
+	@Test
+	public void testRegister() throws Exception
+	{
+		start(Scenario.registrar(), Scenario.register(3600), 50);
+		assertEquals(50, _uac.getCallsSucceeded());
+		assertEquals(50, _uac.getStatistics(SipMethods.REGISTER).getHistogram().getTotalCount());
+	}
+
+	@Test
+	public void testSubscribe() throws Exception
+	{
+		start(Scenario.notifier("presence"), Scenario.subscribe("presence", 60), 50);
+		assertEquals(50, _uac.getCallsSucceeded());
+		assertEquals(50, _uas.getCallsSucceeded());
+		assertEquals(50, _uas.getStatistics(SipMethods.NOTIFY).getHistogram().getTotalCount());
+	}
+
+	@Test
+	public void testUnexpectedResponse() throws Exception
+	{
+		Scenario rejecting = new Scenario("reject").receive(SipMethods.INVITE).respond(486);
+		_uac = null;
+		start(rejecting, Scenario.call(0), 10);
+		assertEquals(10, _uac.getCallsFailed());
+		assertEquals(10, _uac.getStatistics(SipMethods.INVITE).getFailed());
+	}
+}
@@ -73,6 +73,8 @@ import org.cipango.console.printer.logs.SipLogPrinter;
 import org.cipango.console.printer.statistics.DiameterStatisticsPrinter;
 import org.cipango.console.printer.statistics.HttpStatisticsPrinter;
 import org.cipango.console.printer.statistics.SipStatisticPrinter;
+import org.cipango.server.metrics.MetricsRegistry;
+import org.cipango.sipapp.SipAppContext;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 import org.w3c.dom.Node;
@@ -172,7 +174,8 @@ public class ConsoleFilter implements Filter
 		{
 			try
 			{
-				_statisticGraph = new StatisticGraph(_mbsc);
+				MetricsRegistry registry = (MetricsRegistry) _servletContext.getAttribute(SipAppContext.METRICS_REGISTRY);
+				_statisticGraph = new StatisticGraph(registry != null ? registry : MetricsRegistry.getDefault());
 				_statisticGraph.start();
 			}
 			catch (Exception e)
@@ -1,77 +1,123 @@
 package org.cipango.console;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.Date;
-import java.util.Set;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
-import javax.management.AttributeNotFoundException;
-import javax.management.InstanceNotFoundException;
-import javax.management.MBeanException;
-import javax.management.MBeanServerConnection;
-import javax.management.ObjectName;
-import javax.management.ReflectionException;
-
+import org.cipango.console.TimeSeriesStore.Type;
+import org.cipango.server.metrics.MetricsRegistry;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
-import org.jrobin.core.RrdDb;
-import org.jrobin.core.RrdDbPool;
-import org.jrobin.core.RrdDef;
-import org.jrobin.core.RrdDefTemplate;
-import org.jrobin.core.RrdException;
-import org.jrobin.core.Sample;
+import org.jrobin.data.Plottable;
 import org.jrobin.graph.RrdGraph;
 import org.jrobin.graph.RrdGraphDef;
 import org.jrobin.graph.RrdGraphDefTemplate;
 import org.xml.sax.InputSource;
 
+/**
+ * Statistics graphs.
+ * <p>
+ * Samples are read every refresh period from the server {@link MetricsRegistry} and the platform MXBeans
+ * (no JMX reflection), kept in an in-memory {@link TimeSeriesStore} and graphs are rendered from memory.
+ * The store is optionally journaled to the data file so that history survives a restart.
+ */
 public class StatisticGraph
 {
-	private static final String RDD_TEMPLATE_FILE_NAME = "rddTemplate.xml";
-	
-	private static final ObjectName OPERATING_SYSTEM = ObjectNameFactory.create("java.lang:type=OperatingSystem");
-	private static final ObjectName GARBAGE_COLLECTORS = ObjectNameFactory.create("java.lang:type=GarbageCollector,*");
-	
+	private static final String[] SOURCES =
+	{
+		"calls", "maxMemory", "totalMemory", "usedMemory", "incomingMessages", "outgoingMessages", "cpu", "timeInGc"
+	};
+
+	private static final Type[] TYPES =
+	{
+		Type.GAUGE, Type.GAUGE, Type.GAUGE, Type.GAUGE, Type.COUNTER, Type.COUNTER, Type.COUNTER, Type.COUNTER
+	};
+
+	private static final int CALLS = 0, MAX_MEMORY = 1, TOTAL_MEMORY = 2, USED_MEMORY = 3,
+		INCOMING_MESSAGES = 4, OUTGOING_MESSAGES = 5, CPU = 6, TIME_IN_GC = 7;
+
 	public enum GraphType
 	{
-		CALLS("rddCallsGraphTemplate.xml"),
-		MEMORY("rddMemoryGraphTemplate.xml"),
-		MESSAGES("rddMessagesGraphTemplate.xml"),
-		CPU("rddCpuGraphTemplate.xml");
-		
+		CALLS("rddCallsGraphTemplate.xml", new String[][]
+		{
+			{ "calls", "calls", "AVERAGE" },
+			{ "calls-max", "calls", "MAX" }
+		}),
+		MEMORY("rddMemoryGraphTemplate.xml", new String[][]
+		{
+			{ "max", "maxMemory", "AVERAGE" },
+			{ "used", "usedMemory", "AVERAGE" },
+			{ "total", "totalMemory", "AVERAGE" },
+			{ "used-max", "usedMemory", "MAX" },
+			{ "total-max", "totalMemory", "MAX" },
+			{ "available", "total,used,-" }
+		}),
+		MESSAGES("rddMessagesGraphTemplate.xml", new String[][]
+		{
+			{ "incomingMessages", "incomingMessages", "AVERAGE" },
+			{ "incoming-max", "incomingMessages", "MAX" },
+			{ "outgoingMessages", "outgoingMessages", "AVERAGE" },
+			{ "outgoing-max", "outgoingMessages", "MAX" },
+			{ "sent", "outgoingMessages,-1,*" }
+		}),
+		CPU("rddCpuGraphTemplate.xml", new String[][]
+		{
+			{ "cpu", "cpu", "AVERAGE" },
+			{ "cpu-max", "cpu", "MAX" },
+			{ "timeInGc", "timeInGc", "AVERAGE" },
+			{ "timeInGc-max", "timeInGc", "MAX" },
+			{ "timeInGcPercentage", "timeInGc,10,/" },
+			{ "timeInGcPercentageMax", "timeInGc-max,10,/" },
+			{ "cpuPercentage", "cpu,10000000,/" },
+			{ "cpuMaxPercentage", "cpu-max,10000000,/" }
+		});
+
 		private RrdGraphDefTemplate _template;
-		
-		private GraphType(String resourceName)
+
+		/**
+		 * Data sources: <code>{name, source, consolidation function}</code> for values read from
+		 * the store or <code>{name, RPN expression}</code> for computed values.
+		 */
+		private String[][] _datasources;
+
+		private GraphType(String resourceName, String[][] datasources)
 		{
 			try
 			{
 				InputStream templateGraph = getClass().getResourceAsStream(resourceName);
 				_template = new RrdGraphDefTemplate(new InputSource(templateGraph));
+				_datasources = datasources;
 			}
 			catch (Exception e)
 			{
 				throw new RuntimeException(e);
 			}
 		}
-		
+
 		public RrdGraphDefTemplate getTemplate()
 		{
 			return _template;
 		}
+
+		public String[][] getDatasources()
+		{
+			return _datasources;
+		}
 	}
-		
+
 	private long _refreshPeriod = -1; // To ensure that the stat will start if
 										// needed at startup
 
 	private StatisticGraphTask _task;
-	private RrdDbPool _rrdPool;
-	private String _rrdPath;
-	private MBeanServerConnection _connection;
+	private TimeSeriesStore _store;
+	private final MetricsRegistry _registry;
 	private String _dataFileName;
-	private ObjectName _sessionManger;
 
 	private Timer _statTimer = new Timer("Statistics timer");
 	private static Runtime __runtime = Runtime.getRuntime();
@@ -81,18 +127,18 @@ public class StatisticGraph
 	private boolean _started = false;
 	private boolean _cpuStatAvailable = false;
 
-	public StatisticGraph(MBeanServerConnection connection) throws AttributeNotFoundException,
-			InstanceNotFoundException, MBeanException, ReflectionException, IOException, RrdException
+	private final double[] _sample = new double[SOURCES.length];
+
+	public StatisticGraph(MetricsRegistry registry)
 	{
-		_connection = connection;
-		_sessionManger = (ObjectName) _connection.getAttribute(ConsoleFilter.SERVER, "sessionManager");
-		_rrdPool = RrdDbPool.getInstance();
+		_registry = registry;
+		_store = new TimeSeriesStore(SOURCES, TYPES);
 	}
 
 	/**
 	 * Sets the refresh period for statistics in seconds. If the period has changed, write
 	 * statictics immediatly and reschedule the timer with <code>statRefreshPeriod</code>.
-	 * 
+	 *
 	 * @param statRefreshPeriod The statistics refresh period in seconds or <code>-1</code> to
 	 *            disabled refresh.
 	 */
@@ -115,68 +161,42 @@ public class StatisticGraph
 			}
 		}
 	}
-	
+
 	public void reset()
 	{
-		try
-		{
-			RrdDb rrdDb = _rrdPool.requestRrdDb(_rrdPath);
-			Sample sample = rrdDb.createSample();
-			sample.setValue("calls", (Integer) _connection.getAttribute(_sessionManger, "callSessions"));
-			long totalMemory = __runtime.totalMemory();
-			sample.setValue("maxMemory", __runtime.maxMemory());
-			sample.setValue("totalMemory", totalMemory);
-			sample.setValue("usedMemory", totalMemory - __runtime.freeMemory());
-			// No values are set for incomingMessages, outgoingMessages to reset these counters.
-			sample.update();
-			_rrdPool.release(rrdDb);
-		}
-		catch (Exception e)
-		{
-			_logger.warn("Unable to set statistics", e);
-		}
+		// Counters are reset on server side, so do not compute a rate with the next sample.
+		_store.resetCounters();
 	}
 
-	@SuppressWarnings("unchecked")
 	public void updateDb()
 	{
 		try
 		{
-			RrdDb rrdDb = _rrdPool.requestRrdDb(_rrdPath);
-			Sample sample = rrdDb.createSample();
-			if (_connection.isRegistered(_sessionManger))
-				sample.setValue("calls", (Integer) _connection.getAttribute(_sessionManger, "callSessions"));
-			
-			long totalMemory = __runtime.totalMemory();
-			sample.setValue("maxMemory", __runtime.maxMemory());
-			sample.setValue("totalMemory", totalMemory);
-			sample.setValue("usedMemory", totalMemory - __runtime.freeMemory());
-			if (_connection.isRegistered(ConsoleFilter.CONNECTOR_MANAGER))
+			synchronized (_sample)
 			{
-				sample.setValue("incomingMessages",
-						(Long) _connection.getAttribute(ConsoleFilter.CONNECTOR_MANAGER, "messagesReceived"));
-				sample.setValue("outgoingMessages",
-						(Long) _connection.getAttribute(ConsoleFilter.CONNECTOR_MANAGER, "messagesSent"));
-			}
-			
-			int nbCpu = (Integer) _connection.getAttribute(OPERATING_SYSTEM, "AvailableProcessors");
-			if (_cpuStatAvailable)
-			{
-				long processCpuTime = (Long) _connection.getAttribute(OPERATING_SYSTEM, "ProcessCpuTime");
-				sample.setValue("cpu", processCpuTime / nbCpu);
-			}
-			
-			long timeInGc = 0;
-			Set<ObjectName> garbageCollections = _connection.queryNames(GARBAGE_COLLECTORS, null);
-			for (ObjectName objectName : garbageCollections)
-			{
-				timeInGc += (Long) _connection.getAttribute(objectName, "CollectionTime");
+				MetricsRegistry.Snapshot snapshot = _registry.getSnapshot();
+
+				_sample[CALLS] = snapshot.getValue("sip_call_sessions", 0);
+
+				long totalMemory = __runtime.totalMemory();
+				_sample[MAX_MEMORY] = __runtime.maxMemory();
+				_sample[TOTAL_MEMORY] = totalMemory;
+				_sample[USED_MEMORY] = totalMemory - __runtime.freeMemory();
+
+				_sample[INCOMING_MESSAGES] = snapshot.getValue("sip_messages_received_total", 0);
+				_sample[OUTGOING_MESSAGES] = snapshot.getValue("sip_messages_sent_total", 0);
+
+				int nbCpu = __runtime.availableProcessors();
+				_sample[CPU] = _cpuStatAvailable ? getProcessCpuTime() / nbCpu : Double.NaN;
+
+				long timeInGc = 0;
+				List<GarbageCollectorMXBean> garbageCollectors = ManagementFactory.getGarbageCollectorMXBeans();
+				for (GarbageCollectorMXBean garbageCollector : garbageCollectors)
+					timeInGc += garbageCollector.getCollectionTime();
+				_sample[TIME_IN_GC] = timeInGc / nbCpu;
+
+				_store.update(System.currentTimeMillis() / 1000, _sample);
 			}
-			sample.setValue("timeInGc", timeInGc / nbCpu);
-			
-			
-			sample.update();
-			_rrdPool.release(rrdDb);
 		}
 		catch (Exception e)
 		{
@@ -184,17 +204,39 @@ public class StatisticGraph
 		}
 	}
 
-	public byte[] createGraphAsPng(Date start, Date end, RrdGraphDefTemplate graphTemplate)
+	private long getProcessCpuTime()
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+	}
+
+	public byte[] createGraphAsPng(Date start, Date end, GraphType type)
 	{
 		try
 		{
-			RrdDb rrdDb = _rrdPool.requestRrdDb(_rrdPath);
-			_rrdPool.release(rrdDb);
-			graphTemplate.setVariable("start", start);
-			graphTemplate.setVariable("end", end);
-			graphTemplate.setVariable("rrd", _rrdPath);
-			// create graph finally
-			RrdGraphDef gDef = graphTemplate.getRrdGraphDef();
+			RrdGraphDefTemplate graphTemplate = type.getTemplate();
+			RrdGraphDef gDef;
+			synchronized (graphTemplate)
+			{
+				graphTemplate.setVariable("start", start);
+				graphTemplate.setVariable("end", end);
+				gDef = graphTemplate.getRrdGraphDef();
+			}
+
+			long span = (end.getTime() - start.getTime()) / 1000;
+			String[][] datasources = type.getDatasources();
+			for (int i = 0; i < datasources.length; i++)
+			{
+				String[] ds = datasources[i];
+				if (ds.length == 3)
+				{
+					int source = _store.getIndex(ds[1]);
+					gDef.datasource(ds[0], new StorePlottable(source, "MAX".equals(ds[2]), span));
+				}
+				else
+					gDef.datasource(ds[0], ds[1]);
+			}
+
 			RrdGraph graph = new RrdGraph(gDef);
 			return graph.getRrdGraphInfo().getBytes();
 		}
@@ -204,10 +246,10 @@ public class StatisticGraph
 			return null;
 		}
 	}
-	
+
 	/**
 	 * Create a graph of the last <code>time</code> seconds.
-	 * 
+	 *
 	 * @param time
 	 * @return The PNG image.
 	 */
@@ -215,14 +257,22 @@ public class StatisticGraph
 	{
 		long start = System.currentTimeMillis() - time * 1000;
 		long end = System.currentTimeMillis() - 2500; // Remove last 2,5 seconds due to bug with Jrobin LAST function
-		return createGraphAsPng(new Date(start), new Date(end), GraphType.valueOf(type.toUpperCase()).getTemplate());
+		return createGraphAsPng(new Date(start), new Date(end), GraphType.valueOf(type.toUpperCase()));
 	}
 
+	/**
+	 * Sets the file used to journal statistics. If not set, statistics are only kept in memory.
+	 */
 	public void setDataFileName(String name)
 	{
 		_dataFileName = name;
 	}
 
+	public TimeSeriesStore getStore()
+	{
+		return _store;
+	}
+
 	public void start() throws Exception
 	{
 		if (_started)
@@ -230,49 +280,28 @@ public class StatisticGraph
 		try
 		{
 			if (_dataFileName == null)
-				_dataFileName = System.getProperty("jetty.home", ".") + "/logs/statistics.rdd";
+				_dataFileName = System.getProperty("jetty.home", ".") + "/logs/statistics.dat";
 
-			File rrdFile = new File(_dataFileName);
-			_rrdPath = rrdFile.getAbsolutePath();
-
-			if (_connection.isRegistered(OPERATING_SYSTEM))
+			try
 			{
-				try
-				{
-					_connection.getAttribute(OPERATING_SYSTEM, "ProcessCpuTime");
-					_cpuStatAvailable = true;
-				} 
-				catch (Throwable e) 
-				{
-				}
+				getProcessCpuTime();
+				_cpuStatAvailable = true;
 			}
-			
-			
-			if (!rrdFile.exists())
+			catch (Throwable e)
 			{
-				InputStream templateIs = getClass().getResourceAsStream(RDD_TEMPLATE_FILE_NAME);
-
-				RrdDefTemplate defTemplate = new RrdDefTemplate(new InputSource(templateIs));
+			}
 
-				defTemplate.setVariable("path", _rrdPath);
-				defTemplate.setVariable("start", new Date(System.currentTimeMillis()));
-				RrdDef rrdDef = defTemplate.getRrdDef();
+			_store.setJournal(new File(_dataFileName).getAbsoluteFile());
+			_store.open();
 
-				RrdDb rrdDb = _rrdPool.requestRrdDb(rrdDef);
-				rrdDb.getRrdDef().getStep();
-				_rrdPool.release(rrdDb);
-			}
-			else
-				updateDb();
+			updateDb();
 
-			RrdDb rrdDb = _rrdPool.requestRrdDb(_rrdPath);
-			setRefreshPeriod(rrdDb.getRrdDef().getStep());
-			_rrdPool.release(rrdDb);
+			setRefreshPeriod(TimeSeriesStore.DEFAULT_STEPS[0]);
 			_started = true;
 		}
 		catch (Exception e)
 		{
-			_logger.warn("Unable to create RRD", e);
+			_logger.warn("Unable to create statistics store", e);
 		}
 	}
 
@@ -287,7 +316,7 @@ public class StatisticGraph
 		if (_task != null)
 			_task.cancel();
 		_refreshPeriod = -1;
-		
+		_store.close();
 	}
 
 	class StatisticGraphTask extends TimerTask
@@ -300,4 +329,24 @@ public class StatisticGraph
 
 	}
 
+	class StorePlottable extends Plottable
+	{
+		private int _source;
+		private boolean _max;
+		private long _span;
+
+		public StorePlottable(int source, boolean max, long span)
+		{
+			_source = source;
+			_max = max;
+			_span = span;
+		}
+
+		@Override
+		public double getValue(long timestamp)
+		{
+			return _store.getValue(_source, _max, timestamp, _span);
+		}
+	}
+
 }
@@ -0,0 +1,497 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.console;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * In-memory multi-resolution time series store.
+ * <p>
+ * Each archive is a fixed size ring holding, for every data source, the average and the
+ * maximum of the samples received during one step. The memory footprint is allocated once
+ * at creation and does not depend on the uptime.
+ * <p>
+ * Samples may optionally be appended to a journal file so that history survives a restart.
+ * The journal is only written every <code>journalStep</code> seconds and rolled over when
+ * it covers more than the longest archive. Samples between two journal writes are never
+ * journaled, so that up to <code>journalStep</code> seconds of samples, 60 by default, are
+ * lost on a crash or a restart and the restored history has a resolution of
+ * <code>journalStep</code> seconds.
+ */
+public class TimeSeriesStore
+{
+	private static final Logger LOG = Log.getLogger("console");
+
+	private static final int JOURNAL_MAGIC = 0x43545353; // CTSS
+
+	public enum Type
+	{
+		/** Value is stored as is. */
+		GAUGE,
+		/** Value is monotonic and the rate per second is stored. */
+		COUNTER
+	}
+
+	/** 1 second for one hour, 1 minute for one day, 1 hour for two weeks. */
+	public static final int[] DEFAULT_STEPS = { 1, 60, 3600 };
+	public static final int[] DEFAULT_ROWS = { 3600, 1440, 336 };
+
+	private final String[] _names;
+	private final Type[] _types;
+	private final Archive[] _archives;
+
+	private final double[] _lastRaw;
+	private final double[] _values;
+	private long _lastUpdate = -1;
+
+	private File _journal;
+	private DataOutputStream _journalOut;
+	private int _journalStep = 60;
+	private long _lastJournalUpdate = -1;
+	private long _journalStart = -1;
+
+	public TimeSeriesStore(String[] names, Type[] types)
+	{
+		this(names, types, DEFAULT_STEPS, DEFAULT_ROWS);
+	}
+
+	public TimeSeriesStore(String[] names, Type[] types, int[] steps, int[] rows)
+	{
+		if (names.length != types.length || steps.length != rows.length)
+			throw new IllegalArgumentException("Inconsistent store definition");
+
+		_names = names;
+		_types = types;
+		_lastRaw = new double[names.length];
+		_values = new double[names.length];
+		resetCounters();
+
+		_archives = new Archive[steps.length];
+		for (int i = 0; i < steps.length; i++)
+			_archives[i] = new Archive(steps[i], rows[i], names.length);
+	}
+
+	public int getIndex(String name)
+	{
+		for (int i = 0; i < _names.length; i++)
+			if (_names[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	public String[] getNames()
+	{
+		return _names;
+	}
+
+	/**
+	 * Adds a sample.
+	 * @param time the sample time in seconds.
+	 * @param raw the raw values, in the order of the data sources. Use <code>Double.NaN</code> for unknown values.
+	 */
+	public synchronized void update(long time, double[] raw)
+	{
+		if (time <= _lastUpdate)
+			return;
+
+		consolidate(time, raw);
+
+		if (_journalOut != null && (_lastJournalUpdate == -1 || time - _lastJournalUpdate >= _journalStep))
+		{
+			_lastJournalUpdate = time;
+			writeJournal(time, raw);
+		}
+	}
+
+	private void consolidate(long time, double[] raw)
+	{
+		for (int i = 0; i < _names.length; i++)
+		{
+			if (_types[i] == Type.COUNTER)
+			{
+				if (Double.isNaN(_lastRaw[i]) || raw[i] < _lastRaw[i] || _lastUpdate == -1)
+					_values[i] = Double.NaN;
+				else
+					_values[i] = (raw[i] - _lastRaw[i]) / (time - _lastUpdate);
+				_lastRaw[i] = raw[i];
+			}
+			else
+				_values[i] = raw[i];
+		}
+		_lastUpdate = time;
+
+		for (int i = 0; i < _archives.length; i++)
+			_archives[i].add(time, _values);
+	}
+
+	/**
+	 * Forgets the last raw value of counters, so that the next sample does not produce a rate.
+	 */
+	public synchronized void resetCounters()
+	{
+		for (int i = 0; i < _lastRaw.length; i++)
+			_lastRaw[i] = Double.NaN;
+	}
+
+	/**
+	 * Returns the consolidated value at the given time, using the finest archive covering
+	 * <code>span</code> seconds.
+	 *
+	 * @param source the data source index.
+	 * @param max <code>true</code> to get the maximum value or <code>false</code> for the average.
+	 * @param time the time in seconds.
+	 * @param span the time span in seconds that will be read.
+	 */
+	public synchronized double getValue(int source, boolean max, long time, long span)
+	{
+		return getArchive(span).getValue(source, max, time);
+	}
+
+	public synchronized long getLastUpdate()
+	{
+		return _lastUpdate;
+	}
+
+	protected Archive getArchive(long span)
+	{
+		for (int i = 0; i < _archives.length; i++)
+		{
+			if (_archives[i].getLength() >= span)
+				return _archives[i];
+		}
+		return _archives[_archives.length - 1];
+	}
+
+	// ------ journal --------
+
+	public void setJournal(File journal)
+	{
+		_journal = journal;
+	}
+
+	public File getJournal()
+	{
+		return _journal;
+	}
+
+	/**
+	 * @param journalStep the interval in seconds between samples written to the journal, which
+	 * 	is also the maximum duration of samples lost on a crash.
+	 */
+	public void setJournalStep(int journalStep)
+	{
+		_journalStep = journalStep;
+	}
+
+	public int getJournalStep()
+	{
+		return _journalStep;
+	}
+
+	/**
+	 * Replays the journal if any and opens it for appending.
+	 */
+	public synchronized void open() throws IOException
+	{
+		if (_journal == null)
+			return;
+
+		long now = System.currentTimeMillis() / 1000;
+		long retention = _archives[_archives.length - 1].getLength();
+
+		replay(getOldJournal(), now - retention);
+		_journalStart = -1;
+		boolean append = replay(_journal, now - retention);
+		resetCounters();
+
+		// Only append to a journal having the same data sources
+		if (append)
+			truncatePartialRecord();
+		openJournal(append);
+	}
+
+	public synchronized void close()
+	{
+		if (_journalOut != null)
+		{
+			try
+			{
+				_journalOut.close();
+			}
+			catch (IOException e)
+			{
+				LOG.ignore(e);
+			}
+			_journalOut = null;
+		}
+	}
+
+	private File getOldJournal()
+	{
+		return new File(_journal.getPath() + ".old");
+	}
+
+	/**
+	 * Removes the last record if it has not been fully written, e.g. on crash.
+	 */
+	private void truncatePartialRecord() throws IOException
+	{
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		writeHeader(new DataOutputStream(header));
+		long recordSize = 8 + 8 * _names.length;
+		long length = _journal.length();
+		long aligned = header.size() + ((length - header.size()) / recordSize) * recordSize;
+		if (aligned != length)
+		{
+			RandomAccessFile file = new RandomAccessFile(_journal, "rw");
+			try
+			{
+				file.setLength(aligned);
+			}
+			finally
+			{
+				file.close();
+			}
+		}
+	}
+
+	private void writeHeader(DataOutputStream out) throws IOException
+	{
+		out.writeInt(JOURNAL_MAGIC);
+		out.writeInt(_names.length);
+		for (int i = 0; i < _names.length; i++)
+			out.writeUTF(_names[i]);
+		out.flush();
+	}
+
+	private void openJournal(boolean append) throws IOException
+	{
+		if (_journal.getParentFile() != null && !_journal.getParentFile().exists())
+			_journal.getParentFile().mkdirs();
+
+		_journalOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_journal, append)));
+		if (!append)
+		{
+			writeHeader(_journalOut);
+			_journalStart = -1;
+		}
+	}
+
+	private void writeJournal(long time, double[] raw)
+	{
+		try
+		{
+			if (_journalStart == -1)
+				_journalStart = time;
+			else if (time - _journalStart > _archives[_archives.length - 1].getLength())
+				rollJournal();
+
+			_journalOut.writeLong(time);
+			for (int i = 0; i < raw.length; i++)
+				_journalOut.writeDouble(raw[i]);
+			_journalOut.flush();
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Unable to write statistics journal " + _journal, e);
+			close();
+		}
+	}
+
+	private void rollJournal() throws IOException
+	{
+		_journalOut.close();
+		File old = getOldJournal();
+		if (old.exists())
+			old.delete();
+		_journal.renameTo(old);
+		openJournal(false);
+		_journalStart = -1;
+	}
+
+	/**
+	 * @return <code>true</code> if the journal has been read and has the same data sources as this store.
+	 */
+	private boolean replay(File file, long since)
+	{
+		if (!file.exists())
+			return false;
+
+		boolean sameSources = false;
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != JOURNAL_MAGIC)
+			{
+				LOG.warn("Ignore invalid statistics journal " + file);
+				return false;
+			}
+			int nb = in.readInt();
+			int[] mapping = new int[nb];
+			sameSources = nb == _names.length;
+			for (int i = 0; i < nb; i++)
+			{
+				mapping[i] = getIndex(in.readUTF());
+				sameSources &= mapping[i] == i;
+			}
+
+			double[] raw = new double[_names.length];
+			while (true)
+			{
+				long time = in.readLong();
+				for (int i = 0; i < raw.length; i++)
+					raw[i] = Double.NaN;
+				for (int i = 0; i < nb; i++)
+				{
+					double value = in.readDouble();
+					if (mapping[i] != -1)
+						raw[mapping[i]] = value;
+				}
+				if (_journalStart == -1)
+					_journalStart = time;
+				if (time >= since && time > _lastUpdate)
+					consolidate(time, raw);
+			}
+		}
+		catch (EOFException e)
+		{
+			// end of journal
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Unable to read statistics journal " + file, e);
+			sameSources = false;
+		}
+		finally
+		{
+			if (in != null)
+				try { in.close(); } catch (IOException e) { LOG.ignore(e); }
+		}
+		return sameSources;
+	}
+
+	/**
+	 * Fixed size ring of consolidated values.
+	 */
+	static class Archive
+	{
+		private final int _step;
+		private final int _rows;
+
+		private final long[] _times;
+		private final double[][] _average;
+		private final double[][] _max;
+
+		private long _bucket = -1;
+		private final double[] _sum;
+		private final int[] _count;
+		private final double[] _bucketMax;
+
+		Archive(int step, int rows, int sources)
+		{
+			_step = step;
+			_rows = rows;
+			_times = new long[rows];
+			for (int i = 0; i < rows; i++)
+				_times[i] = -1;
+			_average = new double[sources][rows];
+			_max = new double[sources][rows];
+			_sum = new double[sources];
+			_count = new int[sources];
+			_bucketMax = new double[sources];
+		}
+
+		/**
+		 * @return the time span covered by this archive in seconds.
+		 */
+		long getLength()
+		{
+			return (long) _step * _rows;
+		}
+
+		void add(long time, double[] values)
+		{
+			long bucket = time - time % _step;
+			if (bucket != _bucket)
+			{
+				if (_bucket != -1)
+					flush();
+				_bucket = bucket;
+			}
+
+			for (int i = 0; i < values.length; i++)
+			{
+				double value = values[i];
+				if (!Double.isNaN(value))
+				{
+					_sum[i] += value;
+					if (_count[i] == 0 || value > _bucketMax[i])
+						_bucketMax[i] = value;
+					_count[i]++;
+				}
+			}
+
+			// Steps of one second do not consolidate anything so are available immediately
+			if (_step == 1)
+			{
+				flush();
+				_bucket = -1;
+			}
+		}
+
+		private void flush()
+		{
+			int row = (int) ((_bucket / _step) % _rows);
+			_times[row] = _bucket;
+			for (int i = 0; i < _sum.length; i++)
+			{
+				if (_count[i] == 0)
+				{
+					_average[i][row] = Double.NaN;
+					_max[i][row] = Double.NaN;
+				}
+				else
+				{
+					_average[i][row] = _sum[i] / _count[i];
+					_max[i][row] = _bucketMax[i];
+				}
+				_sum[i] = 0;
+				_count[i] = 0;
+			}
+		}
+
+		double getValue(int source, boolean max, long time)
+		{
+			long bucket = time - time % _step;
+			int row = (int) ((bucket / _step) % _rows);
+			if (_times[row] != bucket)
+				return Double.NaN;
+			return max ? _max[source][row] : _average[source][row];
+		}
+	}
+}
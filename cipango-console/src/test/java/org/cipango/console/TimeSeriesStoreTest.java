@@ -0,0 +1,183 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.console;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+
+import org.cipango.console.TimeSeriesStore.Type;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimeSeriesStoreTest
+{
+	private static final double DELTA = 0.0001;
+
+	private File _dir;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_dir = File.createTempFile("statistics", "");
+		_dir.delete();
+		_dir.mkdir();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		File[] files = _dir.listFiles();
+		for (int i = 0; i < files.length; i++)
+			files[i].delete();
+		_dir.delete();
+	}
+
+	/**
+	 * 1 second for 100 seconds and 10 seconds for 100 seconds.
+	 */
+	private TimeSeriesStore newStore()
+	{
+		return new TimeSeriesStore(new String[] { "calls", "messages" },
+				new Type[] { Type.GAUGE, Type.COUNTER },
+				new int[] { 1, 10 }, new int[] { 100, 10 });
+	}
+
+	@Test
+	public void testDownsampling()
+	{
+		TimeSeriesStore store = newStore();
+		for (int i = 0; i <= 20; i++)
+			store.update(1000 + i, new double[] { i, 5 * i });
+
+		assertEquals(7.0, store.getValue(0, false, 1007, 100), DELTA);
+		assertEquals(5.0, store.getValue(1, false, 1007, 100), DELTA);
+
+		// Steps of 10 seconds only hold the bucket once the next one has started
+		assertEquals(4.5, store.getValue(0, false, 1007, 101), DELTA);
+		assertEquals(9.0, store.getValue(0, true, 1007, 101), DELTA);
+		assertEquals(14.5, store.getValue(0, false, 1010, 101), DELTA);
+		assertTrue(Double.isNaN(store.getValue(0, false, 1020, 101)));
+
+		// The first sample of a counter has no rate so is not averaged
+		assertEquals(5.0, store.getValue(1, false, 1000, 101), DELTA);
+		assertEquals(5.0, store.getValue(1, true, 1000, 101), DELTA);
+	}
+
+	@Test
+	public void testRollover()
+	{
+		TimeSeriesStore store = newStore();
+		for (int i = 0; i < 150; i++)
+			store.update(1000 + i, new double[] { i, Double.NaN });
+
+		assertEquals(149.0, store.getValue(0, false, 1149, 100), DELTA);
+		assertEquals(50.0, store.getValue(0, false, 1050, 100), DELTA);
+		assertTrue(Double.isNaN(store.getValue(0, false, 1049, 100)));
+		assertTrue(Double.isNaN(store.getValue(1, false, 1100, 100)));
+
+		// The bucket of 1140 is not complete so that the row of 1040 is not overwritten yet
+		assertEquals(134.5, store.getValue(0, false, 1130, 101), DELTA);
+		assertEquals(44.5, store.getValue(0, false, 1040, 101), DELTA);
+		assertTrue(Double.isNaN(store.getValue(0, false, 1030, 101)));
+	}
+
+	@Test
+	public void testJournalRollover() throws Exception
+	{
+		File journal = new File(_dir, "statistics.journal");
+		TimeSeriesStore store = newStore();
+		store.setJournal(journal);
+		store.setJournalStep(1);
+		store.open();
+		try
+		{
+			for (int i = 0; i <= 100; i++)
+				store.update(1000 + i, new double[] { i, i });
+			assertFalse(new File(_dir, "statistics.journal.old").exists());
+
+			store.update(1101, new double[] { 101, 101 });
+			assertTrue(new File(_dir, "statistics.journal.old").exists());
+			assertTrue(journal.length() < new File(_dir, "statistics.journal.old").length());
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+
+	@Test
+	public void testReload() throws Exception
+	{
+		File journal = new File(_dir, "statistics.journal");
+		long now = System.currentTimeMillis() / 1000;
+
+		TimeSeriesStore store = newStore();
+		store.setJournal(journal);
+		store.setJournalStep(10);
+		store.open();
+		try
+		{
+			// Journal rolled over after 100 seconds so that both files are replayed
+			for (long time = now - 150; time < now; time++)
+				store.update(time, new double[] { time % 1000, 2 * time });
+		}
+		finally
+		{
+			store.close();
+		}
+		assertTrue(new File(_dir, "statistics.journal.old").exists());
+
+		store = newStore();
+		store.setJournal(journal);
+		store.open();
+		try
+		{
+			// Only journaled samples, one every 10 seconds, are restored
+			assertEquals(now - 10, store.getLastUpdate());
+			assertEquals((double) ((now - 20) % 1000), store.getValue(0, false, now - 20, 100), DELTA);
+			assertTrue(Double.isNaN(store.getValue(0, false, now - 15, 100)));
+
+			// Sample from the rolled over journal, older samples are out of the archives
+			assertEquals((double) ((now - 90) % 1000), store.getValue(0, false, now - 90, 100), DELTA);
+			assertTrue(Double.isNaN(store.getValue(0, false, now - 140, 100)));
+
+			// Rate between journaled samples
+			assertEquals(2.0, store.getValue(1, false, now - 20, 100), DELTA);
+
+			// The journal is appended to
+			store.update(now, new double[] { 0, 2 * now });
+		}
+		finally
+		{
+			store.close();
+		}
+
+		store = newStore();
+		store.setJournal(journal);
+		store.open();
+		try
+		{
+			assertEquals(now, store.getLastUpdate());
+			assertEquals(2.0, store.getValue(1, false, now, 100), DELTA);
+		}
+		finally
+		{
+			store.close();
+		}
+	}
+}
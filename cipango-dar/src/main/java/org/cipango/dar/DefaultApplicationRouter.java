@@ -20,6 +20,7 @@ import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -35,6 +36,7 @@ import javax.servlet.sip.ar.SipApplicationRoutingRegion;
 import javax.servlet.sip.ar.SipRouteModifier;
 import javax.servlet.sip.ar.SipTargetedRequestInfo;
 
+import org.eclipse.jetty.util.Scanner;
 import org.eclipse.jetty.util.component.AggregateLifeCycle;
 import org.eclipse.jetty.util.component.Dumpable;
 import org.eclipse.jetty.util.log.Log;
@@ -44,6 +46,10 @@ import org.eclipse.jetty.util.log.Logger;
  * Default Application Router. 
  * Looks for its configuration from the property javax.servlet.sip.ar.dar.configuration
  * or etc/dar.properties if not defined. 
+ * <p>
+ * The configuration is compiled into a {@link RoutingTable} which is replaced at once when the 
+ * configuration changes. If the configuration is a file, it is checked for modifications every 
+ * {@link #getReloadInterval()} seconds and reloaded when modified.
  */
 public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 {
@@ -53,9 +59,14 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 	
 	public static final String ROUTE_OUTGOING_REQUESTS = "org.cipango.dar.routeOutgoingRequests";
 	public static final String DEFAULT_CONFIGURATION = "etc/dar.properties";
+	public static final String RELOAD_INTERVAL = "org.cipango.dar.reloadInterval";
+	
+	private static final RoutingTable EMPTY_TABLE = new RoutingTable(Collections.<String, RouterInfo[]>emptyMap());
 
-	private Map<String, RouterInfo[]> _routerInfoMap;
+	private volatile RoutingTable _routingTable = EMPTY_TABLE;
 	private String _configuration;
+	private int _reloadInterval = Integer.getInteger(RELOAD_INTERVAL, 10);
+	private Scanner _scanner;
 	private SortedSet<String> _applicationNames = new TreeSet<String>();
 	
 	private boolean _routeOutgoingRequests = true;
@@ -80,6 +91,20 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		return _routeOutgoingRequests;
 	}
 	
+	/**
+	 * Sets the interval in seconds between checks of configuration file modifications. Use 
+	 * <code>0</code> to disable reloading.
+	 */
+	public void setReloadInterval(int reloadInterval)
+	{
+		_reloadInterval = reloadInterval;
+	}
+	
+	public int getReloadInterval()
+	{
+		return _reloadInterval;
+	}
+	
 	public String[] getApplicationNames()
 	{
 		return _applicationNames.toArray(new String[] {});
@@ -97,8 +122,20 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		init();
 	}
 
-	public void destroy()
+	public synchronized void destroy()
 	{
+		if (_scanner != null)
+		{
+			try
+			{
+				_scanner.stop();
+			}
+			catch (Exception e)
+			{
+				LOG.ignore(e);
+			}
+			_scanner = null;
+		}
 	}
 
 	public SipApplicationRouterInfo getNextApplication(SipServletRequest initialRequest,
@@ -107,7 +144,8 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		if (!_routeOutgoingRequests && initialRequest.getRemoteAddr() == null)
 			return null;
 		
-		if (_routerInfoMap == null || _routerInfoMap.isEmpty())
+		RoutingTable table = _routingTable;
+		if (table.isEmpty())
 		{
 			if (stateInfo != null || _applicationNames.isEmpty() || directive != SipApplicationRoutingDirective.NEW)
 				return null;
@@ -120,69 +158,40 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 					1);
 		}
 		
-		String method = initialRequest.getMethod();
-		RouterInfo[] infos = _routerInfoMap.get(method.toUpperCase());
-
-		if (infos == null)
-			return null;
-		
-		int index = 0;
-		if (stateInfo != null)
-			index = (Integer) stateInfo;
-
-		if (index >= 0 && index < infos.length)
-		{
-			RouterInfo info = infos[index];
-			
-			String identity = info.getIdentity();
-			if (identity.startsWith("DAR:"))
-			{
-				try
-				{
-					identity = initialRequest.getAddressHeader(identity.substring("DAR:".length())).getURI().toString();
-				}
-				catch (Exception e)
-				{
-					Log.debug("Failed to parse router info identity: " + info.getIdentity(), e);
-				}
-			}
-			
-			return new SipApplicationRouterInfo(info.getName(), info.getRegion(), identity, null,
-					SipRouteModifier.NO_ROUTE, index + 1);
-		}
-
-		return null;
+		return table.getNextApplication(initialRequest, stateInfo);
 	}
 	
 	public String getDefaultApplication()
 	{
-		if ((_routerInfoMap == null || _routerInfoMap.isEmpty()) && !_applicationNames.isEmpty())
+		if (_routingTable.isEmpty() && !_applicationNames.isEmpty())
 			return _applicationNames.first();
 		return null;
 	}
 
+	/**
+	 * Replaces the routing configuration. Requests being routed keep using the previous configuration.
+	 */
 	public void setRouterInfos(Map<String, RouterInfo[]> infoMap)
 	{
-		_routerInfoMap = infoMap;
+		_routingTable = infoMap == null ? EMPTY_TABLE : new RoutingTable(infoMap);
 	}
 	
 	public Map<String, RouterInfo[]> getRouterInfos()
 	{
-		return _routerInfoMap;
+		return _routingTable.getRouterInfos();
 	}
 	
 	public String getConfig()
 	{
-		if (_routerInfoMap == null)
-			return null;
+		Map<String, RouterInfo[]> routerInfoMap = getRouterInfos();
 		
 		StringBuilder sb = new StringBuilder();
-		Iterator<String> it = _routerInfoMap.keySet().iterator();
+		Iterator<String> it = routerInfoMap.keySet().iterator();
 		while (it.hasNext())
 		{
 			
 			String method = (String) it.next();
-			RouterInfo[] routerInfos = _routerInfoMap.get(method);
+			RouterInfo[] routerInfos = routerInfoMap.get(method);
 			sb.append(method).append(": ");
 			for (int i = 0; routerInfos != null && i < routerInfos.length; i++)
 			{
@@ -205,7 +214,7 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 	
 	public RouterInfo[] getRouterInfo(String key)
 	{
-		return _routerInfoMap.get(key);
+		return getRouterInfos().get(key);
 	}
 
 	public void init() 
@@ -242,8 +251,85 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		}
 		
 		
-		if ((_routerInfoMap == null || _routerInfoMap.isEmpty()) && !_applicationNames.isEmpty())
+		if (_routingTable.isEmpty() && !_applicationNames.isEmpty())
 			LOG.info("No DAR configuration. Using application: " + _applicationNames.first());
+		
+		startScanner();
+	}
+	
+	/**
+	 * Reloads the configuration. The current configuration is kept if the new one cannot be loaded.
+	 */
+	public void reload()
+	{
+		try
+		{
+			DARConfiguration config = new DARConfiguration(new URI(_configuration));
+			config.configure(this);
+			LOG.info("Reloaded DAR configuration " + _configuration);
+		}
+		catch (Exception e)
+		{
+			LOG.warn("Failed to reload DAR configuration " + _configuration + ": " + e);
+		}
+	}
+	
+	protected File getConfigurationFile()
+	{
+		try
+		{
+			URI uri = new URI(_configuration);
+			if (!uri.isAbsolute())
+				return new File(_configuration).getCanonicalFile();
+			if ("file".equals(uri.getScheme()))
+				return new File(uri);
+		}
+		catch (Exception e)
+		{
+			LOG.ignore(e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Checks the configuration file for modifications without waiting for the next scan. A modified 
+	 * file is reloaded once it has not changed between two scans.
+	 */
+	synchronized void scan()
+	{
+		if (_scanner != null)
+			_scanner.scan();
+	}
+	
+	private synchronized void startScanner()
+	{
+		if (_scanner != null || _reloadInterval <= 0)
+			return;
+		
+		File file = getConfigurationFile();
+		if (file == null || !file.isFile())
+			return;
+		
+		_scanner = new Scanner();
+		_scanner.setScanDirs(Collections.singletonList(file));
+		_scanner.setScanInterval(_reloadInterval);
+		_scanner.setReportExistingFilesOnStartup(false);
+		_scanner.addListener(new Scanner.BulkListener()
+		{
+			public void filesChanged(List<String> filenames)
+			{
+				reload();
+			}
+		});
+		try
+		{
+			_scanner.start();
+		}
+		catch (Exception e)
+		{
+			LOG.warn("Failed to watch DAR configuration " + file, e);
+			_scanner = null;
+		}
 	}
 	
 	public void init(Properties properties)
@@ -259,7 +345,8 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 	public void dump(Appendable out, String indent) throws IOException
 	{
 		out.append("DefaultApplicationRouter ");
-		if (_routerInfoMap == null || _routerInfoMap.isEmpty())
+		Map<String, RouterInfo[]> routerInfoMap = getRouterInfos();
+		if (routerInfoMap.isEmpty())
 		{
 			if (!_applicationNames.isEmpty())
 				out.append("default application: ").append(getDefaultApplication());
@@ -270,7 +357,7 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		{
 			out.append("\n");
 			List<Dumpable> l = new ArrayList<Dumpable>();
-			Iterator<String> it = _routerInfoMap.keySet().iterator();
+			Iterator<String> it = routerInfoMap.keySet().iterator();
 			while (it.hasNext())
 				l.add(new DumpableMethod(it.next()));
 			AggregateLifeCycle.dump(out,indent, l);
@@ -295,7 +382,7 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		public void dump(Appendable out, String indent) throws IOException
 		{
 			out.append(_method).append("\n");
-			AggregateLifeCycle.dump(out,indent, Arrays.asList(_routerInfoMap.get(_method)));
+			AggregateLifeCycle.dump(out,indent, Arrays.asList(getRouterInfo(_method)));
 		}
 		
 	}
@@ -0,0 +1,152 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dar;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.sip.Address;
+import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.ar.SipApplicationRouterInfo;
+import javax.servlet.sip.ar.SipRouteModifier;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Immutable routing table of the {@link DefaultApplicationRouter}, compiled from the configured
+ * {@link RouterInfo}s.
+ * <p>
+ * Hops are indexed by method and state info. The {@link SipApplicationRouterInfo} of a hop is built
+ * once, unless its subscriber identity is taken from a request header (<code>DAR:</code> identity).
+ * <p>
+ * The table is not keyed by subscriber identity or region: in the DAR configuration of JSR 289 
+ * (Appendix C), these are given by each hop to the container, not matched against the request, 
+ * and the applications of a method are invoked in order. The state info returned with an 
+ * application is the index of the next hop, so that the lookup of a hop is direct.
+ */
+public class RoutingTable
+{
+	private static final Logger LOG = Log.getLogger(RoutingTable.class);
+
+	public static final String DAR_IDENTITY = "DAR:";
+
+	private final Map<String, RouterInfo[]> _routerInfos;
+	private final Map<String, Hop[]> _hops = new HashMap<String, Hop[]>();
+
+	public RoutingTable(Map<String, RouterInfo[]> routerInfos)
+	{
+		_routerInfos = Collections.unmodifiableMap(new HashMap<String, RouterInfo[]>(routerInfos));
+
+		for (Map.Entry<String, RouterInfo[]> entry : routerInfos.entrySet())
+		{
+			RouterInfo[] infos = entry.getValue();
+			Hop[] hops = new Hop[infos.length];
+			for (int i = 0; i < infos.length; i++)
+				hops[i] = new Hop(infos[i], i + 1);
+			_hops.put(entry.getKey().toUpperCase(), hops);
+		}
+	}
+
+	public Map<String, RouterInfo[]> getRouterInfos()
+	{
+		return _routerInfos;
+	}
+
+	public boolean isEmpty()
+	{
+		return _hops.isEmpty();
+	}
+
+	/**
+	 * Returns the next application for the request, <code>null</code> if none.
+	 *
+	 * @param stateInfo the state info returned with the previous application or <code>null</code> if
+	 * 	none.
+	 */
+	public SipApplicationRouterInfo getNextApplication(SipServletRequest request, Serializable stateInfo)
+	{
+		String method = request.getMethod();
+		Hop[] hops = _hops.get(method);
+		if (hops == null)
+		{
+			hops = _hops.get(method.toUpperCase());
+			if (hops == null)
+				return null;
+		}
+
+		int index = 0;
+		if (stateInfo != null)
+			index = (Integer) stateInfo;
+
+		if (index >= 0 && index < hops.length)
+			return hops[index].getRouterInfo(request);
+
+		return null;
+	}
+
+	static class Hop
+	{
+		private final RouterInfo _info;
+		private final Integer _stateInfo;
+		private final String _header;
+		private final SipApplicationRouterInfo _routerInfo;
+
+		Hop(RouterInfo info, int stateInfo)
+		{
+			_info = info;
+			_stateInfo = stateInfo;
+
+			String identity = info.getIdentity();
+			if (identity.startsWith(DAR_IDENTITY))
+			{
+				_header = identity.substring(DAR_IDENTITY.length());
+				_routerInfo = null;
+			}
+			else
+			{
+				_header = null;
+				_routerInfo = newRouterInfo(identity);
+			}
+		}
+
+		private SipApplicationRouterInfo newRouterInfo(String identity)
+		{
+			return new SipApplicationRouterInfo(_info.getName(), _info.getRegion(), identity, null,
+					SipRouteModifier.NO_ROUTE, _stateInfo);
+		}
+
+		public SipApplicationRouterInfo getRouterInfo(SipServletRequest request)
+		{
+			if (_routerInfo != null)
+				return _routerInfo;
+
+			String identity = _info.getIdentity();
+			try
+			{
+				Address address = request.getAddressHeader(_header);
+				if (address != null)
+					identity = address.getURI().toString();
+			}
+			catch (Exception e)
+			{
+				LOG.debug("Failed to parse router info identity: " + _info.getIdentity(), e);
+			}
+			return newRouterInfo(identity);
+		}
+	}
+}
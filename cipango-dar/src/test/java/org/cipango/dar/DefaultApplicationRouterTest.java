@@ -0,0 +1,173 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dar;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.sip.Address;
+import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.URI;
+import javax.servlet.sip.ar.SipApplicationRouterInfo;
+import javax.servlet.sip.ar.SipApplicationRoutingDirective;
+import javax.servlet.sip.ar.SipApplicationRoutingRegion;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class DefaultApplicationRouterTest
+{
+	private DefaultApplicationRouter _dar;
+	private File _file;
+
+	@After
+	public void tearDown()
+	{
+		if (_dar != null)
+			_dar.destroy();
+		if (_file != null)
+			_file.delete();
+	}
+
+	private static Object proxy(Class<?> clazz, final Map<String, Object> values)
+	{
+		return Proxy.newProxyInstance(DefaultApplicationRouterTest.class.getClassLoader(),
+				new Class<?>[] { clazz },
+				new InvocationHandler()
+				{
+					public Object invoke(Object proxy, Method method, Object[] args)
+					{
+						String key = method.getName();
+						if (args != null && args.length == 1)
+							key += ":" + args[0];
+						return values.get(key);
+					}
+				});
+	}
+
+	private static Address address(String uri)
+	{
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("getURI", proxy(URI.class, values));
+		values.put("toString", uri);
+		return (Address) proxy(Address.class, values);
+	}
+
+	private static SipServletRequest request(String method)
+	{
+		Map<String, Object> values = new HashMap<String, Object>();
+		values.put("getMethod", method);
+		values.put("getRemoteAddr", "10.0.0.1");
+		values.put("getAddressHeader:From", address("sip:alice@cipango.org"));
+		values.put("getAddressHeader:To", address("sip:bob@cipango.org"));
+		return (SipServletRequest) proxy(SipServletRequest.class, values);
+	}
+
+	private SipApplicationRouterInfo next(SipServletRequest request, SipApplicationRouterInfo previous)
+	{
+		return _dar.getNextApplication(request, SipApplicationRoutingRegion.NEUTRAL_REGION,
+				SipApplicationRoutingDirective.NEW, null, previous == null ? null : previous.getStateInfo());
+	}
+
+	@Test
+	public void testRouting() throws Exception
+	{
+		_dar = new DefaultApplicationRouter();
+		new DARConfiguration(getClass().getResource("/org/cipango/dar/dar.properties")).configure(_dar);
+
+		SipServletRequest invite = request("INVITE");
+		SipApplicationRouterInfo info = next(invite, null);
+		assertEquals("OriginatingCallWaiting", info.getNextApplicationName());
+		assertEquals("sip:alice@cipango.org", info.getSubscriberURI());
+		assertEquals(SipApplicationRoutingRegion.ORIGINATING_REGION, info.getRoutingRegion());
+
+		info = next(invite, info);
+		assertEquals("CallForwarding", info.getNextApplicationName());
+		assertEquals("sip:bob@cipango.org", info.getSubscriberURI());
+
+		assertNull(next(invite, info));
+		assertNull(next(request("REGISTER"), null));
+		assertEquals("IM", next(request("message"), null).getNextApplicationName());
+	}
+
+	@Test
+	public void testPrecomputed() throws Exception
+	{
+		Map<String, RouterInfo[]> infos = new HashMap<String, RouterInfo[]>();
+		infos.put("INVITE", new RouterInfo[] {
+				new RouterInfo("app", "sip:static@cipango.org", SipApplicationRoutingRegion.NEUTRAL_REGION, "", null)
+		});
+		_dar = new DefaultApplicationRouter();
+		_dar.setRouterInfos(infos);
+
+		SipApplicationRouterInfo info = next(request("INVITE"), null);
+		assertEquals("sip:static@cipango.org", info.getSubscriberURI());
+		assertEquals(1, info.getStateInfo());
+		assertSame(info, next(request("INVITE"), null));
+	}
+
+	@Test
+	public void testReload() throws Exception
+	{
+		_file = File.createTempFile("dar", ".properties");
+		write("INVITE: (\"app1\", \"DAR:From\", \"ORIGINATING\", \"\", \"NO_ROUTE\", \"0\")");
+
+		_dar = new DefaultApplicationRouter();
+		_dar.setConfiguration(_file.toURI().toString());
+		// Scanned by the test only
+		_dar.setReloadInterval(3600);
+		_dar.init();
+
+		assertEquals("app1", next(request("INVITE"), null).getNextApplicationName());
+
+		long modified = _file.lastModified();
+		write("INVITE: (\"app2\", \"DAR:From\", \"ORIGINATING\", \"\", \"NO_ROUTE\", \"0\")");
+		_file.setLastModified(modified + 2000);
+
+		// Reloaded once the modification is stable
+		_dar.scan();
+		assertEquals("app1", next(request("INVITE"), null).getNextApplicationName());
+		_dar.scan();
+		assertEquals("app2", next(request("INVITE"), null).getNextApplicationName());
+
+		// Invalid configuration is ignored
+		write("INVITE: (\"app3\"");
+		_file.setLastModified(modified + 4000);
+		_dar.scan();
+		_dar.scan();
+		assertEquals("app2", next(request("INVITE"), null).getNextApplicationName());
+
+		// Configuration reloaded on demand
+		write("INVITE: (\"app4\", \"DAR:From\", \"ORIGINATING\", \"\", \"NO_ROUTE\", \"0\")");
+		_dar.reload();
+		assertEquals("app4", next(request("INVITE"), null).getNextApplicationName());
+	}
+
+	private void write(String config) throws Exception
+	{
+		FileWriter writer = new FileWriter(_file);
+		writer.write(config);
+		writer.close();
+	}
+}
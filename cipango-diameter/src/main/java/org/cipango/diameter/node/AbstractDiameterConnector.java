@@ -16,12 +16,11 @@ package org.cipango.diameter.node;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.cipango.diameter.log.DiameterMessageListener;
+import org.cipango.io.BufferPool;
 import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.log.Log;
@@ -55,7 +54,7 @@ public abstract class AbstractDiameterConnector extends AbstractLifeCycle implem
 	private int _port;
 	
 	private Thread[] _acceptorThread;
-	private ArrayList<Buffer> _buffers;
+	private BufferPool _bufferPool = BufferPool.getDefault();
 	private int _messageBufferSize = 8192;
 	
 	protected AtomicLong _messagesReceived = new AtomicLong();
@@ -77,11 +76,6 @@ public abstract class AbstractDiameterConnector extends AbstractLifeCycle implem
 		
 		open();
 		
-		if (_buffers != null)
-			_buffers.clear();
-		else
-			_buffers = new ArrayList<Buffer>();
-		
 		super.doStart();
 		
 		if (_listener instanceof LifeCycle)
@@ -161,42 +155,27 @@ public abstract class AbstractDiameterConnector extends AbstractLifeCycle implem
 	
 	public Buffer getBuffer(int size)
 	{
-		if (size == _messageBufferSize)
-		{
-			synchronized(_buffers)
-			{
-				if (_buffers.size() > 0)
-					return (Buffer) _buffers.remove(_buffers.size() - 1);
-			}
-			return newBuffer(size);
-		}
-		return newBuffer(size);
+		return _bufferPool.getBuffer(size);
 	}
 	
 	public void returnBuffer(Buffer buffer)
 	{
-		buffer.clear();
-		if (!buffer.isVolatile() && !buffer.isImmutable())
-        {
-			int c = buffer.capacity();
-            if (c == _messageBufferSize)
-            {
-                synchronized(_buffers)
-                {
-                	_buffers.add(buffer);
-                }
-            }
-        }
+		_bufferPool.returnBuffer(buffer);
 	}
 	
-	public int getMessageBufferSize()
+	public BufferPool getBufferPool()
 	{
-		return _messageBufferSize;
+		return _bufferPool;
+	}
+	
+	public void setBufferPool(BufferPool bufferPool)
+	{
+		_bufferPool = bufferPool;
 	}
 	
-	protected Buffer newBuffer(int size)
+	public int getMessageBufferSize()
 	{
-		return new ByteArrayBuffer(size);
+		return _messageBufferSize;
 	}
 	
 	public int getAcceptors()
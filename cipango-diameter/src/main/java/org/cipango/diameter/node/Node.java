@@ -39,6 +39,8 @@ import org.cipango.diameter.router.DefaultRouter;
 import org.cipango.diameter.router.DiameterRouter;
 import org.cipango.diameter.util.AAAUri;
 import org.cipango.server.Server;
+import org.cipango.server.metrics.Counter;
+import org.cipango.server.metrics.MetricsRegistry;
 import org.cipango.server.session.SessionManager.SessionScope;
 import org.eclipse.jetty.util.LazyList;
 import org.eclipse.jetty.util.Loader;
@@ -104,6 +106,11 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 	private DiameterRouter _router;
 	
 	protected final AtomicLong _statsStartedAt = new AtomicLong(-1L);
+	
+	private final Counter _requestsSent = MetricsRegistry.getDefault().counter(
+			"diameter_requests_sent_total", "Diameter requests sent");
+	private final Counter _messagesReceived = MetricsRegistry.getDefault().counter(
+			"diameter_messages_received_total", "Diameter messages received");
 		
 	public Node()
 	{
@@ -405,13 +412,17 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 		}
 			
 		if (peer != null)
+		{
 			peer.send(request);
+			_requestsSent.increment();
+		}
 		else
 			throw new IOException("Router found no peer and no destination host set");
 	}
 	
 	public void receive(DiameterMessage message) throws IOException
 	{
+		_messagesReceived.increment();
 		Peer peer = message.getConnection().getPeer();
 		
 		if (peer == null)
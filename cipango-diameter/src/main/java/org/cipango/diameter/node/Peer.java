@@ -30,6 +30,9 @@ import org.cipango.diameter.app.DiameterContext;
 import org.cipango.diameter.base.Common;
 import org.cipango.diameter.base.Common.DisconnectCause;
 import org.cipango.diameter.bio.DiameterSocketConnector;
+import org.cipango.server.metrics.Counter;
+import org.cipango.server.metrics.Gauge;
+import org.cipango.server.metrics.MetricsRegistry;
 import org.eclipse.jetty.util.component.AggregateLifeCycle;
 import org.eclipse.jetty.util.component.Dumpable;
 import org.eclipse.jetty.util.log.Log;
@@ -42,6 +45,12 @@ import org.eclipse.jetty.util.log.Logger;
 public class Peer implements Dumpable, PeerStateListener
 {
 	private static final Logger LOG = Log.getLogger(Peer.class);
+	
+	private static final Gauge __openPeers = MetricsRegistry.getDefault().gauge(
+			"diameter_peers_open", "Diameter peers in OPEN state");
+	private static final Counter __timeouts = MetricsRegistry.getDefault().counter(
+			"diameter_request_timeouts_total", "Diameter requests with no answer received");
+	
 	private Node _node;
 	
 	private String _host;
@@ -283,6 +292,10 @@ public class Peer implements Dumpable, PeerStateListener
 	private void setState(State state)
 	{
 		LOG.debug(this + " " + _state + " > " + state);
+		if (_state == OPEN && state != OPEN)
+			__openPeers.decrement();
+		else if (_state != OPEN && state == OPEN)
+			__openPeers.increment();
 		_state = state;
 		
 		if (_state == OPEN)
@@ -928,6 +941,7 @@ public class Peer implements Dumpable, PeerStateListener
 		public void run()
 		{
 			LOG.debug("Diameter request timeout for {}", _request);
+			__timeouts.increment();
 			if (_node.getHandler() instanceof TimeoutHandler)
 				((TimeoutHandler) _node.getHandler()).fireNoAnswerReceived(_request, _node.getRequestTimeout());
 			
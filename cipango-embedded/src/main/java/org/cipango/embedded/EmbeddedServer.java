@@ -0,0 +1,106 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.embedded;
+
+import javax.servlet.sip.SipServlet;
+
+import org.cipango.dar.DefaultApplicationRouter;
+import org.cipango.server.Server;
+import org.cipango.server.SipConnector;
+import org.cipango.server.handler.SipContextHandlerCollection;
+import org.cipango.servlet.SipServletHolder;
+import org.cipango.sipapp.SipAppContext;
+
+/**
+ * Server with a {@link DefaultApplicationRouter} on which SIP applications may be deployed
+ * from a war or directly from servlet instances.
+ * <p>
+ * Applications and connectors should be added before the server is started.
+ */
+public class EmbeddedServer
+{
+	private final Server _server = new Server();
+	private final SipContextHandlerCollection _contexts = new SipContextHandlerCollection();
+	private final DefaultApplicationRouter _router = new DefaultApplicationRouter();
+
+	public EmbeddedServer()
+	{
+		_server.setApplicationRouter(_router);
+		_server.setHandler(_contexts);
+	}
+
+	public Server getServer()
+	{
+		return _server;
+	}
+
+	public DefaultApplicationRouter getApplicationRouter()
+	{
+		return _router;
+	}
+
+	public void addConnector(SipConnector connector)
+	{
+		_server.getConnectorManager().addConnector(connector);
+	}
+
+	/**
+	 * Deploys the SIP application of the given war file or directory.
+	 */
+	public SipAppContext addSipApp(String contextPath, String war)
+	{
+		SipAppContext sipapp = new SipAppContext();
+		sipapp.setContextPath(contextPath);
+		sipapp.setWar(war);
+		_contexts.addHandler(sipapp);
+		return sipapp;
+	}
+
+	/**
+	 * Deploys a SIP application with the given servlet as main servlet. No descriptor is read,
+	 * the application may be configured with the returned context.
+	 */
+	public SipAppContext addSipServlet(String name, SipServlet servlet)
+	{
+		SipAppContext sipapp = new SipAppContext();
+		sipapp.setConfigurationClasses(new String[0]);
+		sipapp.setContextPath("/" + name);
+		sipapp.setName(name);
+
+		SipServletHolder holder = new SipServletHolder();
+		holder.setServlet(servlet);
+		holder.setName(servlet.getClass().getSimpleName());
+		sipapp.getSipServletHandler().addSipServlet(holder);
+		sipapp.getSipServletHandler().setMainServletName(holder.getName());
+
+		_contexts.addHandler(sipapp);
+		return sipapp;
+	}
+
+	public void start() throws Exception
+	{
+		_server.start();
+	}
+
+	public void stop() throws Exception
+	{
+		_server.stop();
+	}
+
+	public void join() throws InterruptedException
+	{
+		_server.join();
+	}
+}
@@ -14,19 +14,14 @@
 
 package org.cipango.embedded;
 
-import org.cipango.dar.DefaultApplicationRouter;
 import org.cipango.lab.UdpConnector;
-import org.cipango.server.Server;
-import org.cipango.server.SipConnector;
 import org.cipango.server.bio.TcpConnector;
-import org.cipango.server.handler.SipContextHandlerCollection;
-import org.cipango.sipapp.SipAppContext;
 
 public class OneSipApp 
 {
 	public static void main(String[] args) throws Exception
     {
-		Server server = new Server();
+		EmbeddedServer server = new EmbeddedServer();
 		
 		UdpConnector udp = new UdpConnector();
 		TcpConnector tcp = new TcpConnector();
@@ -35,17 +30,10 @@ public class OneSipApp
 		udp.setPort(port);
 		tcp.setPort(port);
 		
-		server.getConnectorManager().setConnectors(new SipConnector[] { udp, tcp });
+		server.addConnector(udp);
+		server.addConnector(tcp);
 		
-		SipAppContext sipapp = new SipAppContext();
-		sipapp.setContextPath("/");
-		sipapp.setWar(args[0]);
-		
-		SipContextHandlerCollection handler = new SipContextHandlerCollection();
-		handler.addHandler(sipapp);
-		
-		server.setApplicationRouter(new DefaultApplicationRouter());
-		server.setHandler(handler);
+		server.addSipApp("/", args[0]);
 		
 		server.start();
 		server.join();
@@ -0,0 +1,284 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cipango.server.metrics.Counter;
+import org.cipango.server.metrics.MetricsRegistry;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.Buffers;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+
+/**
+ * Size-classed buffer pool shared by connectors.
+ * <p>
+ * A requested size is rounded up to the smallest size class that can hold it, so that buffers
+ * can be reused whatever the exact size asked for. Each thread keeps a few buffers of each class
+ * up to {@link #MAX_THREAD_CACHED_SIZE} and only goes to the shared lock-free queues when its own
+ * cache is empty or full, so that a thread caches at most 72 KB with the default classes. Larger
+ * buffers are only pooled in the shared queues, whose retained memory is bounded by
+ * <code>maxRetained</code>: buffers returned above that limit are left to the garbage collector.
+ * Requests larger than the largest class are allocated and never pooled.
+ * <p>
+ * Buffers are heap buffers unless the pool is created as direct. Direct buffers have no backing
+ * array, so they must not be used with code relying on {@link Buffer#array()}, like the UDP
+ * connector.
+ */
+public class BufferPool implements Buffers
+{
+	public static final int[] DEFAULT_SIZES = { 2 * 1024, 16 * 1024, 64 * 1024, 400 * 1024 };
+	public static final long DEFAULT_MAX_RETAINED = 16 * 1024 * 1024;
+	public static final int DEFAULT_THREAD_CACHE_SIZE = 4;
+	public static final int MAX_THREAD_CACHED_SIZE = 16 * 1024;
+
+	private static final BufferPool __default = new BufferPool(DEFAULT_SIZES, false, DEFAULT_MAX_RETAINED,
+			MetricsRegistry.getDefault().counter("buffer_pool_hits_total", "Buffers served from the buffer pool"),
+			MetricsRegistry.getDefault().counter("buffer_pool_misses_total", "Buffers allocated by the buffer pool"));
+
+	private final int[] _sizes;
+	private final boolean _direct;
+	private final long _maxRetained;
+	private final int _threadCacheSize;
+	private final int _threadCachedClasses;
+
+	private final ConcurrentLinkedQueue<Buffer>[] _queues;
+	private final AtomicLong _retained = new AtomicLong();
+	private final ThreadLocal<Buffer[][]> _caches = new ThreadLocal<Buffer[][]>();
+
+	private final Counter _hits;
+	private final Counter _misses;
+
+	/**
+	 * Returns the pool shared by the SIP and Diameter connectors. It holds heap buffers and reports
+	 * its hits and misses to the default {@link MetricsRegistry}.
+	 */
+	public static BufferPool getDefault()
+	{
+		return __default;
+	}
+
+	public BufferPool()
+	{
+		this(DEFAULT_SIZES, false, DEFAULT_MAX_RETAINED);
+	}
+
+	/**
+	 * @param sizes the size classes, in increasing order.
+	 * @param direct <code>true</code> to allocate direct buffers.
+	 * @param maxRetained the maximum number of bytes kept by the shared queues.
+	 */
+	public BufferPool(int[] sizes, boolean direct, long maxRetained)
+	{
+		this(sizes, direct, maxRetained, new Counter("buffer_pool_hits_total", null),
+				new Counter("buffer_pool_misses_total", null));
+	}
+
+	@SuppressWarnings("unchecked")
+	private BufferPool(int[] sizes, boolean direct, long maxRetained, Counter hits, Counter misses)
+	{
+		for (int i = 1; i < sizes.length; i++)
+		{
+			if (sizes[i] <= sizes[i - 1])
+				throw new IllegalArgumentException("Size classes must be in increasing order");
+		}
+		_sizes = sizes.clone();
+		_direct = direct;
+		_maxRetained = maxRetained;
+		_threadCacheSize = DEFAULT_THREAD_CACHE_SIZE;
+		int threadCached = 0;
+		while (threadCached < sizes.length && sizes[threadCached] <= MAX_THREAD_CACHED_SIZE)
+			threadCached++;
+		_threadCachedClasses = threadCached;
+		_hits = hits;
+		_misses = misses;
+
+		_queues = new ConcurrentLinkedQueue[sizes.length];
+		for (int i = 0; i < _queues.length; i++)
+			_queues[i] = new ConcurrentLinkedQueue<Buffer>();
+	}
+
+	/**
+	 * Returns a cleared buffer with a capacity of at least <code>size</code>.
+	 */
+	public Buffer getBuffer(int size)
+	{
+		int sizeClass = getSizeClass(size);
+		if (sizeClass == -1)
+		{
+			_misses.increment();
+			return newBuffer(size);
+		}
+
+		if (sizeClass < _threadCachedClasses)
+		{
+			Buffer[] cache = getCache()[sizeClass];
+			for (int i = 0; i < cache.length; i++)
+			{
+				Buffer buffer = cache[i];
+				if (buffer != null)
+				{
+					cache[i] = null;
+					_hits.increment();
+					return buffer;
+				}
+			}
+		}
+
+		Buffer buffer = _queues[sizeClass].poll();
+		if (buffer != null)
+		{
+			_retained.addAndGet(-buffer.capacity());
+			_hits.increment();
+			return buffer;
+		}
+
+		_misses.increment();
+		return newBuffer(_sizes[sizeClass]);
+	}
+
+	/**
+	 * Gives back a buffer obtained from {@link #getBuffer(int)}. The buffer must not be used by the
+	 * caller afterwards. Buffers that do not match a size class are ignored.
+	 */
+	public void returnBuffer(Buffer buffer)
+	{
+		if (buffer.isVolatile() || buffer.isImmutable())
+			return;
+
+		int capacity = buffer.capacity();
+		int sizeClass = getSizeClass(capacity);
+		if (sizeClass == -1 || _sizes[sizeClass] != capacity || isDirect(buffer) != _direct)
+			return;
+
+		buffer.clear();
+
+		if (sizeClass < _threadCachedClasses)
+		{
+			Buffer[] cache = getCache()[sizeClass];
+			for (int i = 0; i < cache.length; i++)
+			{
+				if (cache[i] == null)
+				{
+					cache[i] = buffer;
+					return;
+				}
+			}
+		}
+
+		if (_retained.addAndGet(capacity) > _maxRetained)
+			_retained.addAndGet(-capacity);
+		else
+			_queues[sizeClass].offer(buffer);
+	}
+
+	public Buffer getBuffer()
+	{
+		return getBuffer(_sizes[0]);
+	}
+
+	public Buffer getHeader()
+	{
+		return getBuffer(_sizes[0]);
+	}
+
+	protected Buffer newBuffer(int size)
+	{
+		if (_direct)
+			return new DirectNIOBuffer(size);
+		return new ByteArrayBuffer(size);
+	}
+
+	private boolean isDirect(Buffer buffer)
+	{
+		return buffer instanceof DirectNIOBuffer;
+	}
+
+	private int getSizeClass(int size)
+	{
+		for (int i = 0; i < _sizes.length; i++)
+		{
+			if (size <= _sizes[i])
+				return i;
+		}
+		return -1;
+	}
+
+	private Buffer[][] getCache()
+	{
+		Buffer[][] cache = _caches.get();
+		if (cache == null)
+		{
+			cache = new Buffer[_threadCachedClasses][_threadCacheSize];
+			_caches.set(cache);
+		}
+		return cache;
+	}
+
+	public int[] getSizes()
+	{
+		return _sizes.clone();
+	}
+
+	public boolean isDirect()
+	{
+		return _direct;
+	}
+
+	public long getMaxRetained()
+	{
+		return _maxRetained;
+	}
+
+	/**
+	 * Returns the number of bytes currently kept by the shared queues. Buffers cached by threads,
+	 * at most {@link #DEFAULT_THREAD_CACHE_SIZE} per class up to {@link #MAX_THREAD_CACHED_SIZE},
+	 * are not included.
+	 */
+	public long getRetained()
+	{
+		return _retained.get();
+	}
+
+	public long getHits()
+	{
+		return _hits.getValue();
+	}
+
+	public long getMisses()
+	{
+		return _misses.getValue();
+	}
+
+	/**
+	 * Returns the ratio of buffers served without allocation, or <code>0</code> if no buffer has been
+	 * requested.
+	 */
+	public double getHitRatio()
+	{
+		long hits = _hits.getValue();
+		long total = hits + _misses.getValue();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BufferPool[retained=" + getRetained() + "/" + _maxRetained + ",hits=" + getHits()
+				+ ",misses=" + getMisses() + "]";
+	}
+}
@@ -0,0 +1,116 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.lb;
+
+import javax.servlet.sip.ServletParseException;
+import javax.servlet.sip.SipURI;
+
+import org.cipango.sip.SipURIImpl;
+
+/**
+ * Node of the cluster behind the {@link LoadBalancer}.
+ */
+public class Backend
+{
+	private final String _name;
+	private final SipURI _uri;
+
+	// health checks sent without response
+	private int _missed;
+	private volatile boolean _up = true;
+	private long _forwarded;
+
+	/**
+	 * @param uri the SIP URI of the node, for instance <code>sip:10.0.0.1:5060;transport=udp</code>.
+	 */
+	public Backend(String uri) throws ServletParseException
+	{
+		_uri = new SipURIImpl(uri);
+		_name = _uri.getHost() + ":" + (_uri.getPort() == -1 ? 5060 : _uri.getPort());
+	}
+
+	/**
+	 * @return the name of the node, used to place it on the hash ring.
+	 */
+	public String getName()
+	{
+		return _name;
+	}
+
+	public SipURI getUri()
+	{
+		return _uri;
+	}
+
+	/**
+	 * @param port the port or <code>-1</code> for the default port.
+	 * @return <code>true</code> if <code>host:port</code> is the address of the node.
+	 */
+	public boolean matches(String host, int port)
+	{
+		return _uri.getHost().equals(host) && (_uri.getPort() == -1 ? 5060 : _uri.getPort()) == (port == -1 ? 5060 : port);
+	}
+
+	public boolean isUp()
+	{
+		return _up;
+	}
+
+	/**
+	 * Records a health check sent to the node.
+	 * @return <code>true</code> if the node is now considered down.
+	 */
+	synchronized boolean checkSent(int maxMissed)
+	{
+		_missed++;
+		if (_up && _missed > maxMissed)
+		{
+			_up = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a response to a health check.
+	 * @return <code>true</code> if the node is now considered up.
+	 */
+	synchronized boolean checkAnswered()
+	{
+		_missed = 0;
+		if (!_up)
+		{
+			_up = true;
+			return true;
+		}
+		return false;
+	}
+
+	synchronized void forwarded()
+	{
+		_forwarded++;
+	}
+
+	public synchronized long getForwarded()
+	{
+		return _forwarded;
+	}
+
+	@Override
+	public String toString()
+	{
+		return _name + (_up ? "" : " (down)");
+	}
+}
@@ -0,0 +1,119 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.lb;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+import org.eclipse.jetty.util.StringUtil;
+
+/**
+ * Immutable consistent hash ring of backends.
+ * <p>
+ * Each backend is placed at several points of the ring, computed from its name, and a key is mapped
+ * to the backend of the first point following the hash of the key. When a backend is removed, only
+ * the keys it had are mapped to other backends, spread over all of them.
+ */
+public class HashRing
+{
+	public static final int DEFAULT_REPLICAS = 160;
+
+	private final long[] _points;
+	private final Backend[] _backends;
+
+	public HashRing(Collection<Backend> backends, int replicas)
+	{
+		long[] points = new long[backends.size() * replicas];
+		Backend[] owners = new Backend[points.length];
+
+		int n = 0;
+		for (Backend backend : backends)
+		{
+			for (int i = 0; i < replicas; i++)
+			{
+				points[n] = hash(backend.getName() + "-" + i);
+				owners[n++] = backend;
+			}
+		}
+
+		// sort the points with their owners
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		final long[] p = points;
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer i1, Integer i2)
+			{
+				long l1 = p[i1];
+				long l2 = p[i2];
+				return l1 < l2 ? -1 : l1 > l2 ? 1 : 0;
+			}
+		});
+
+		_points = new long[n];
+		_backends = new Backend[n];
+		for (int i = 0; i < n; i++)
+		{
+			_points[i] = points[order[i]];
+			_backends[i] = owners[order[i]];
+		}
+	}
+
+	public boolean isEmpty()
+	{
+		return _points.length == 0;
+	}
+
+	/**
+	 * @return the backend of the key or <code>null</code> if the ring is empty.
+	 */
+	public Backend get(String key)
+	{
+		if (_points.length == 0)
+			return null;
+		int i = Arrays.binarySearch(_points, hash(key));
+		if (i < 0)
+			i = -i - 1;
+		return _backends[i == _points.length ? 0 : i];
+	}
+
+	/**
+	 * @return the first 64 bits of the MD5 digest of the string.
+	 */
+	static long hash(String s)
+	{
+		try
+		{
+			byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes(StringUtil.__UTF8));
+			long h = 0;
+			for (int i = 0; i < 8; i++)
+				h = (h << 8) | (digest[i] & 0xff);
+			return h;
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
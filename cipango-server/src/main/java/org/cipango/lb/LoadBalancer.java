@@ -3,7 +3,7 @@
 // ------------------------------------------------------------------------
 // Licensed under the Apache License, Version 2.0 (the "License");
 // you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at 
+// You may obtain a copy of the License at
 // http://www.apache.org/licenses/LICENSE-2.0
 // Unless required by applicable law or agreed to in writing, software
 // distributed under the License is distributed on an "AS IS" BASIS,
@@ -14,68 +14,420 @@
 
 package org.cipango.lb;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import javax.servlet.ServletException;
+import javax.servlet.sip.Address;
+import javax.servlet.sip.ServletParseException;
 import javax.servlet.sip.SipServletMessage;
+import javax.servlet.sip.SipServletResponse;
+import javax.servlet.sip.SipURI;
+import javax.servlet.sip.URI;
 
+import org.cipango.server.ConnectorManager;
+import org.cipango.server.ID;
+import org.cipango.server.SipConnector;
 import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipResponse;
+import org.cipango.server.StatelessProxy;
 import org.cipango.server.bio.UdpConnector;
+import org.cipango.sip.NameAddr;
+import org.cipango.sip.SipHeaders;
+import org.cipango.sip.SipMethods;
+import org.cipango.sip.SipParams;
+import org.cipango.sip.Via;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
+/**
+ * Stateless SIP load balancer in front of a Cipango cluster.
+ * <p>
+ * Requests are forwarded to the backend given by a {@link HashRing consistent hash} of their call
+ * session ID, that is the <code>app-session-id</code> parameter of the request URI if any, or the
+ * call session ID of the Call-ID, so that all the requests of a call session reach the same node. The
+ * request URI is not modified. The load balancer adds its own Via with a branch computed from the
+ * request, as the {@link StatelessProxy} does, so that responses are routed back by removing it and
+ * that no state is kept per call.
+ * <p>
+ * Requests sent by a backend, recognized by the sent-by of their top Via, are not hashed: they are
+ * forwarded to their top Route, or to their request URI if they have none.
+ * <p>
+ * Backends are checked by sending them an OPTIONS request every check interval. A backend which did
+ * not answer the last checks is removed from the ring, so that only its calls are moved to the other
+ * backends, and is added back when it answers again.
+ */
 public class LoadBalancer extends AbstractLifeCycle implements SipHandler
 {
-	private UdpConnector connector;
-	
-	protected void doStart() throws Exception 
-	{
-		connector = new UdpConnector();
-		connector.setThreadPool(new QueuedThreadPool());
-		//connector.setHandler(this);
-		connector.start();
-	}
-	
-	public void handle(SipServletMessage message)
-	{
-		System.out.println("Got message: " + message);
-	}
-	
-	public static void main(String[] args) throws Exception 
-	{
-		LoadBalancer server = new LoadBalancer();
-		server.start();
-		byte[] b = __msg.getBytes();
-		DatagramPacket packet = new DatagramPacket(b, b.length);
-		packet.setAddress(InetAddress.getLocalHost());
-		packet.setPort(5060);
-		DatagramSocket socket = new DatagramSocket();
-		socket.send(packet);
-	}
-	
-	static String __msg = 
-        "REGISTER sip:oahu:5070 SIP/2.0\r\n"
-        + "Call-ID: c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1\r\n"
-        + "CSeq: 2 REGISTER\r\n"
-        + "From: <sip:alice@cipango.org>;tag=9Aaz+gQAAA\r\n"
-        + "To: <sip:alice@cipango.org>\r\n"
-        + "Via: SIP/2.0/UDP 127.0.0.1:6010\r\n"
-        + "Max-Forwards: 70\r\n"
-        + "User-Agent: Test Script\r\n"
-        + "Contact: \"Alice\" <sip:127.0.0.1:6010;transport=udp>\r\n"
-        + "Allow: INVITE, ACK, BYE, CANCEL, PRACK, REFER, MESSAGE, SUBSCRIBE\r\n"
-        + "MyHeader: toto\r\n"
-        + "Content-Length: 0\r\n\r\n";
-
-	public Server getServer() {
-		// TODO Auto-generated method stub
+	private static final Logger LOG = Log.getLogger(LoadBalancer.class);
+
+	public static final String CHECK_BRANCH_PREFIX = Via.MAGIC_COOKIE + "lb";
+
+	private final org.cipango.server.Server _server = new org.cipango.server.Server()
+	{
+		@Override
+		public void handle(SipServletMessage message) throws IOException, ServletException
+		{
+			LoadBalancer.this.handle(message);
+		}
+	};
+
+	private final List<Backend> _backends = new CopyOnWriteArrayList<Backend>();
+	private volatile HashRing _ring = new HashRing(new ArrayList<Backend>(), 0);
+	private int _replicas = HashRing.DEFAULT_REPLICAS;
+
+	private long _checkInterval = 5000;
+	private int _maxMissed = 2;
+	private Thread _checker;
+
+	public ConnectorManager getConnectorManager()
+	{
+		return _server.getConnectorManager();
+	}
+
+	public void setSipThreadPool(ThreadPool threadPool)
+	{
+		_server.setSipThreadPool(threadPool);
+	}
+
+	/**
+	 * Adds a backend node given by its SIP URI, for instance <code>sip:10.0.0.1:5060</code>.
+	 */
+	public void addBackend(String uri) throws ServletParseException
+	{
+		_backends.add(new Backend(uri));
+		updateRing();
+	}
+
+	public void removeBackend(String name)
+	{
+		for (Backend backend : _backends)
+		{
+			if (backend.getName().equals(name))
+				_backends.remove(backend);
+		}
+		updateRing();
+	}
+
+	public String[] getBackends()
+	{
+		List<String> backends = new ArrayList<String>();
+		for (Backend backend : _backends)
+			backends.add(backend + ": " + backend.getForwarded() + " requests");
+		return backends.toArray(new String[backends.size()]);
+	}
+
+	/**
+	 * @return the number of points of each backend on the hash ring.
+	 */
+	public int getReplicas()
+	{
+		return _replicas;
+	}
+
+	public void setReplicas(int replicas)
+	{
+		_replicas = replicas;
+		updateRing();
+	}
+
+	/**
+	 * @return the period in ms at which backends are checked, <code>0</code> if they are not.
+	 */
+	public long getCheckInterval()
+	{
+		return _checkInterval;
+	}
+
+	public void setCheckInterval(long checkInterval)
+	{
+		_checkInterval = checkInterval;
+	}
+
+	/**
+	 * @return the number of consecutive checks a backend may not answer before being removed.
+	 */
+	public int getMaxMissed()
+	{
+		return _maxMissed;
+	}
+
+	public void setMaxMissed(int maxMissed)
+	{
+		_maxMissed = maxMissed;
+	}
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		if (_server.getSipThreadPool() == null)
+			_server.setSipThreadPool(new QueuedThreadPool());
+		if (_server.getSipThreadPool() instanceof LifeCycle)
+			((LifeCycle) _server.getSipThreadPool()).start();
+
+		getConnectorManager().start();
+		super.doStart();
+
+		if (_checkInterval > 0)
+		{
+			_checker = new Thread(new Checker(), "lb-checker");
+			_checker.setDaemon(true);
+			_checker.start();
+		}
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+		if (_checker != null)
+			_checker.interrupt();
+		_checker = null;
+
+		getConnectorManager().stop();
+		if (_server.getSipThreadPool() instanceof LifeCycle)
+			((LifeCycle) _server.getSipThreadPool()).stop();
+	}
+
+	protected synchronized void updateRing()
+	{
+		List<Backend> up = new ArrayList<Backend>();
+		for (Backend backend : _backends)
+		{
+			if (backend.isUp())
+				up.add(backend);
+		}
+		_ring = new HashRing(up, _replicas);
+	}
+
+	/**
+	 * @return the key of the request on the hash ring.
+	 */
+	public String getKey(SipRequest request)
+	{
+		String appSessionId = request.getParameter(ID.APP_SESSION_ID_PARAMETER);
+		if (appSessionId != null && ID.isKey(appSessionId))
+			return appSessionId;
+		return ID.getCallSessionId(request.getCallId());
+	}
+
+	/**
+	 * @return the backend which sent the request or <code>null</code> if it does not come from a backend.
+	 */
+	public Backend getSender(SipRequest request)
+	{
+		Via via = request.getTopVia();
+		for (Backend backend : _backends)
+		{
+			if (backend.matches(via.getHost(), via.getPort()))
+				return backend;
+		}
 		return null;
 	}
 
-	public void setServer(Server server) {
-		// TODO Auto-generated method stub
-		
+	/**
+	 * @return the backend the request should be forwarded to or <code>null</code> if none is available.
+	 */
+	public Backend getBackend(SipRequest request)
+	{
+		return _ring.get(getKey(request));
+	}
+
+	public void handle(SipServletMessage message) throws IOException, ServletException
+	{
+		if (((SipMessage) message).isRequest())
+			handleRequest((SipRequest) message);
+		else
+			handleResponse((SipResponse) message);
+	}
+
+	protected void handleRequest(SipRequest request) throws IOException
+	{
+		StatelessProxy proxy = _server.getStatelessProxy();
+
+		Address route = request.getTopRoute();
+		if (route != null && getConnectorManager().isLocalUri(route.getURI()))
+			request.removeTopRoute();
+
+		if (getSender(request) != null)
+		{
+			forward(request);
+			return;
+		}
+
+		Backend backend = getBackend(request);
+		if (backend == null)
+		{
+			LOG.debug("No backend available for {}", request.getRequestLine());
+			if (!request.isAck())
+			{
+				SipResponse response = new SipResponse(request, SipServletResponse.SC_SERVICE_UNAVAILABLE, null);
+				response.to().setParameter(SipParams.TAG, ID.newTag());
+				getConnectorManager().sendResponse(response);
+			}
+			return;
+		}
+
+		String branch = proxy.getBranch(request);
+		if (!proxy.decrementMaxForwards(request))
+			return;
+		proxy.send(request, branch, backend.getUri());
+		backend.forwarded();
+	}
+
+	/**
+	 * Forwards a request sent by a backend to its top Route or request URI. If this is the load balancer
+	 * itself, the request would be hashed back to a backend, so it is answered with a 482 response.
+	 */
+	protected void forward(SipRequest request) throws IOException
+	{
+		StatelessProxy proxy = _server.getStatelessProxy();
+
+		Address route = request.getTopRoute();
+		URI uri = route != null ? route.getURI() : request.getRequestURI();
+		if (uri.isSipURI() && getConnectorManager().getLocalAddresses().isLocal(((SipURI) uri).getHost(), ((SipURI) uri).getPort()))
+		{
+			LOG.debug("Loop detected for {} from backend", request.getRequestLine());
+			if (!request.isAck())
+			{
+				SipResponse response = new SipResponse(request, SipServletResponse.SC_LOOP_DETECTED, null);
+				response.to().setParameter(SipParams.TAG, ID.newTag());
+				getConnectorManager().sendResponse(response);
+			}
+			return;
+		}
+
+		String branch = proxy.getBranch(request);
+		if (!proxy.decrementMaxForwards(request))
+			return;
+		proxy.send(request, branch);
+	}
+
+	protected void handleResponse(SipResponse response) throws IOException
+	{
+		String branch = response.getTopVia().getBranch();
+		if (branch != null && branch.startsWith(CHECK_BRANCH_PREFIX))
+		{
+			Backend backend = getCheckedBackend(branch);
+			if (backend != null && response.getStatus() != SipServletResponse.SC_SERVICE_UNAVAILABLE
+					&& response.getStatus() >= 200 && backend.checkAnswered())
+			{
+				LOG.info("Backend {} is up", backend);
+				updateRing();
+			}
+		}
+		else if (_server.getStatelessProxy().isStateless(response))
+			_server.getStatelessProxy().forwardResponse(response);
+		else
+			LOG.debug("Dropping response {} not sent by load balancer", response.getRequestLine());
+	}
+
+	private Backend getCheckedBackend(String branch)
+	{
+		int i = branch.indexOf('-', CHECK_BRANCH_PREFIX.length());
+		if (i == -1)
+			return null;
+		String name = branch.substring(CHECK_BRANCH_PREFIX.length(), i);
+		for (Backend backend : _backends)
+		{
+			if (Integer.toHexString(backend.getName().hashCode()).equals(name))
+				return backend;
+		}
+		return null;
+	}
+
+	/**
+	 * Sends an OPTIONS request to the backend, whose response is recognized by its branch.
+	 */
+	protected void check(Backend backend) throws IOException
+	{
+		SipConnector connector = getConnectorManager().getDefaultConnector();
+
+		SipRequest request = new SipRequest();
+		request.setMethod(SipMethods.OPTIONS);
+		request.setRequestURI(backend.getUri().clone());
+
+		NameAddr from = new NameAddr(connector.getSipUri().clone());
+		from.setParameter(SipParams.TAG, ID.newTag());
+		request.getFields().setAddress(SipHeaders.FROM_BUFFER, from);
+		request.getFields().setAddress(SipHeaders.TO_BUFFER, new NameAddr(backend.getUri().clone()));
+		request.getFields().setString(SipHeaders.CALL_ID_BUFFER, ID.newCallId());
+		request.getFields().setString(SipHeaders.CSEQ_BUFFER, "1 " + SipMethods.OPTIONS);
+		request.getFields().setString(SipHeaders.MAX_FORWARDS_BUFFER, "70");
+
+		String branch = CHECK_BRANCH_PREFIX + Integer.toHexString(backend.getName().hashCode()) + "-" + ID.newID(8);
+		_server.getStatelessProxy().send(request, branch, backend.getUri());
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LoadBalancer" + _backends;
+	}
+
+	class Checker implements Runnable
+	{
+		public void run()
+		{
+			while (isRunning())
+			{
+				try
+				{
+					Thread.sleep(_checkInterval);
+					for (Backend backend : _backends)
+					{
+						if (backend.checkSent(_maxMissed))
+						{
+							LOG.warn("Backend {} is down", backend);
+							updateRing();
+						}
+						try
+						{
+							check(backend);
+						}
+						catch (IOException e)
+						{
+							LOG.debug("Could not check backend " + backend, e);
+						}
+					}
+				}
+				catch (InterruptedException e) { continue; }
+				catch (Throwable t) { LOG.warn(t); }
+			}
+		}
+	}
+
+	public Server getServer()
+	{
+		return _server;
+	}
+
+	public void setServer(Server server)
+	{
+	}
+
+	/**
+	 * Starts a load balancer listening on UDP.
+	 * Usage: <code>LoadBalancer port backendUri...</code>
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		LoadBalancer loadBalancer = new LoadBalancer();
+		UdpConnector connector = new UdpConnector();
+		connector.setPort(Integer.parseInt(args[0]));
+		loadBalancer.getConnectorManager().addConnector(connector);
+		for (int i = 1; i < args.length; i++)
+			loadBalancer.addBackend(args[i]);
+		loadBalancer.start();
+		loadBalancer._server.getSipThreadPool().join();
 	}
 }
@@ -22,6 +22,8 @@ public class Events
 	public static final int STOP 						= 1;
 	public static final int DEPLOY_FAIL 				= 2;
 	public static final int CALLS_THRESHOLD_READCHED	= 3;
+	public static final int OVERLOAD					= 4;
+	public static final int OVERLOAD_CLEARED			= 5;
 
 	public static EventDispatcher getDispatcher()
 	{
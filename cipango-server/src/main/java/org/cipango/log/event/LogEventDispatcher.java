@@ -31,6 +31,7 @@ public class LogEventDispatcher implements EventDispatcher
 		switch (eventType)
 		{
 		case Events.START:
+		case Events.OVERLOAD_CLEARED:
 			_logger.info(message);
 			break;
 		default:
@@ -18,10 +18,12 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.util.Arrays;
 
+import javax.servlet.sip.SipServletResponse;
 import javax.servlet.sip.SipURI;
 
 import org.cipango.io.SipBuffer;
 import org.cipango.sip.SipHeaders;
+import org.cipango.sip.SipParams;
 import org.cipango.sip.SipParser;
 import org.cipango.sip.SipURIImpl;
 import org.eclipse.jetty.io.Buffer;
@@ -237,6 +239,22 @@ public abstract class AbstractSipConnector extends AbstractLifeCycle implements
     	if (!isRunning())
     		return;
     	
+    	if (!isAllowed(message))
+    	{
+    		// A request dropped on a reliable transport is not retransmitted, so the client would 
+    		// wait for its transaction timeout
+    		if (isReliable() && message.isRequest() && !message.isAck())
+    			reject((SipRequest) message);
+    		return;
+    	}
+    	
+    	IngressQueue queue = getIngressQueue();
+    	if (queue != null)
+    	{
+    		queue.add(message, getHandler());
+    		return;
+    	}
+    	
     	if (!getThreadPool().dispatch(new MessageTask(message)))
 		{
     		LOG.warn("No threads to dispatch message from {}:{}",
@@ -244,6 +262,73 @@ public abstract class AbstractSipConnector extends AbstractLifeCycle implements
 		}
     }
     
+    /**
+     * @return the queue of the connector manager if it dispatches to the same thread pool as this connector.
+     */
+    protected IngressQueue getIngressQueue()
+    {
+    	if (_server == null)
+    		return null;
+    	IngressQueue queue = _server.getConnectorManager().getIngressQueue();
+    	if (queue == null || !queue.isRunning() || queue.getThreadPool() == null 
+    			|| queue.getThreadPool() != getThreadPool())
+    		return null;
+    	return queue;
+    }
+    
+    protected TrafficShaper getTrafficShaper()
+    {
+    	if (_server == null)
+    		return null;
+    	TrafficShaper shaper = _server.getConnectorManager().getTrafficShaper();
+    	if (shaper == null || !shaper.isRunning())
+    		return null;
+    	return shaper;
+    }
+    
+    /**
+     * Checks a parsed message against the rate limits of the traffic shaper.
+     * Connectors checking messages before parsing them should override it.
+     */
+    protected boolean isAllowed(SipMessage message)
+    {
+    	TrafficShaper shaper = getTrafficShaper();
+    	if (shaper == null || message.getConnection() == null)
+    		return true;
+    	SipConnection connection = message.getConnection();
+    	return shaper.accept(connection.getRemoteAddress(), connection.getRemotePort(), 
+    			message.isRequest() ? message.getMethod() : null);
+    }
+    
+    /**
+     * Checks a new connection against the rate limits of the traffic shaper.
+     */
+    protected boolean isAllowed(InetAddress address, int port)
+    {
+    	TrafficShaper shaper = getTrafficShaper();
+    	return shaper == null || shaper.accept(address, port);
+    }
+    
+    /**
+     * Answers a request over the rate limits with a stateless 503 response.
+     */
+    protected void reject(SipRequest request)
+    {
+    	try
+    	{
+    		ConnectorManager manager = _server.getConnectorManager();
+    		manager.setReceived(request);
+    		SipResponse response = new SipResponse(request, SipServletResponse.SC_SERVICE_UNAVAILABLE, null);
+    		if (response.to().getParameter(SipParams.TAG) == null)
+    			response.to().setParameter(SipParams.TAG, ID.newTag());
+    		manager.sendResponse(response, request.getConnection());
+    	}
+    	catch (Exception e)
+    	{
+    		LOG.debug("Could not reject request", e);
+    	}
+    }
+    
     public void setHandler(SipHandler handler)
     {
     	_handler = handler;
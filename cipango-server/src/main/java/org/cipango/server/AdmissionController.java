@@ -0,0 +1,417 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import org.cipango.log.event.Events;
+import org.cipango.server.metrics.Counter;
+import org.cipango.server.metrics.Gauge;
+import org.cipango.server.metrics.MetricsRegistry;
+import org.cipango.server.session.SessionManager;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Limits the rate of initial requests admitted by the {@link IngressQueue} according to the load of
+ * the server.
+ * <p>
+ * On each interval, the load is evaluated from the number of call sessions compared to the
+ * {@link SessionManager#getCallsThreshold() calls threshold}, the number of queued messages, the
+ * lateness of session timers and the time spent in garbage collection. The rate limit follows an AIMD
+ * scheme: while the server is overloaded, it is decreased multiplicatively, starting from the rate
+ * admitted in the last interval, otherwise it is increased additively, until it is well above the
+ * offered rate and is removed. Initial requests above the limit are rejected with a 503 response.
+ * <p>
+ * {@link Events#OVERLOAD} and {@link Events#OVERLOAD_CLEARED} are fired when the limit is set and removed.
+ */
+public class AdmissionController extends AbstractLifeCycle
+{
+	private static final Logger LOG = Log.getLogger(AdmissionController.class);
+
+	public static final double UNLIMITED = -1;
+
+	private ConnectorManager _connectorManager;
+
+	private long _interval = 100;
+	private int _maxQueued = 1000;
+	private long _maxTimerLateness = 200;
+	private double _maxGcRatio = 0.25;
+	private double _increase = 20;
+	private double _decrease = 0.8;
+	private double _minRate = 10;
+
+	private Thread _thread;
+
+	// rate limit in requests per second and its token bucket
+	private double _limit = UNLIMITED;
+	private double _tokens;
+	private long _tokensTime;
+
+	private long _admitted;
+	private long _offered;
+	private long _rejected;
+	private long _lastUpdate;
+	private long _lastGcTime;
+	private String _reason;
+
+	private final Gauge _limitStats = new Gauge(
+			"sip_admission_limit", "Rate limit of initial requests, -1 if none");
+	private final Counter _rejectedStats = new Counter(
+			"sip_admission_rejected_total", "Initial requests rejected by admission control");
+
+	public AdmissionController()
+	{
+		_limitStats.set(-1);
+	}
+
+	public void setConnectorManager(ConnectorManager connectorManager)
+	{
+		_connectorManager = connectorManager;
+	}
+
+	/**
+	 * @return the period in ms at which the rate limit is updated.
+	 */
+	public long getInterval()
+	{
+		return _interval;
+	}
+
+	public void setInterval(long interval)
+	{
+		_interval = interval;
+	}
+
+	/**
+	 * @return the number of messages in the ingress queue above which the server is overloaded.
+	 */
+	public int getMaxQueued()
+	{
+		return _maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued)
+	{
+		_maxQueued = maxQueued;
+	}
+
+	/**
+	 * @return the lateness of session timers in ms above which the server is overloaded.
+	 */
+	public long getMaxTimerLateness()
+	{
+		return _maxTimerLateness;
+	}
+
+	public void setMaxTimerLateness(long maxTimerLateness)
+	{
+		_maxTimerLateness = maxTimerLateness;
+	}
+
+	/**
+	 * @return the part of the time spent in garbage collection above which the server is overloaded.
+	 */
+	public double getMaxGcRatio()
+	{
+		return _maxGcRatio;
+	}
+
+	public void setMaxGcRatio(double maxGcRatio)
+	{
+		_maxGcRatio = maxGcRatio;
+	}
+
+	/**
+	 * @return the number of requests per second added to the limit on each interval without overload.
+	 */
+	public double getIncrease()
+	{
+		return _increase;
+	}
+
+	public void setIncrease(double increase)
+	{
+		_increase = increase;
+	}
+
+	/**
+	 * @return the factor applied to the limit on each interval with overload.
+	 */
+	public double getDecrease()
+	{
+		return _decrease;
+	}
+
+	public void setDecrease(double decrease)
+	{
+		if (decrease <= 0 || decrease >= 1)
+			throw new IllegalArgumentException("Decrease must be between 0 and 1: " + decrease);
+		_decrease = decrease;
+	}
+
+	public double getMinRate()
+	{
+		return _minRate;
+	}
+
+	public void setMinRate(double minRate)
+	{
+		_minRate = minRate;
+	}
+
+	/**
+	 * @return the number of initial requests admitted per second or {@link #UNLIMITED}.
+	 */
+	public synchronized double getLimit()
+	{
+		return _limit;
+	}
+
+	public synchronized boolean isLimited()
+	{
+		return _limit != UNLIMITED;
+	}
+
+	/**
+	 * @return the cause of the last overload or <code>null</code> if none.
+	 */
+	public synchronized String getReason()
+	{
+		return _reason;
+	}
+
+	public synchronized long getRejected()
+	{
+		return _rejected;
+	}
+
+	public void statsReset()
+	{
+		synchronized (this)
+		{
+			_rejected = 0;
+		}
+		_rejectedStats.reset();
+	}
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		synchronized (this)
+		{
+			_limit = UNLIMITED;
+			_admitted = 0;
+			_offered = 0;
+			_lastUpdate = System.currentTimeMillis();
+			_lastGcTime = getGcTime();
+			_reason = null;
+		}
+		_limitStats.set(-1);
+		MetricsRegistry registry = getMetricsRegistry();
+		if (registry != null)
+		{
+			registry.register(_limitStats);
+			registry.register(_rejectedStats);
+		}
+		super.doStart();
+
+		_thread = new Thread(new Updater(), "admission-controller");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+		Thread thread = _thread;
+		_thread = null;
+		if (thread != null)
+			thread.interrupt();
+		MetricsRegistry registry = getMetricsRegistry();
+		if (registry != null)
+		{
+			registry.unregister(_limitStats);
+			registry.unregister(_rejectedStats);
+		}
+	}
+
+	private MetricsRegistry getMetricsRegistry()
+	{
+		return _connectorManager == null ? null : _connectorManager.getMetricsRegistry();
+	}
+
+	/**
+	 * Takes the decision to admit an initial request.
+	 * @return <code>true</code> if the request is below the rate limit.
+	 */
+	public boolean admit()
+	{
+		return admit(System.currentTimeMillis());
+	}
+
+	protected synchronized boolean admit(long now)
+	{
+		_offered++;
+		if (_limit != UNLIMITED)
+		{
+			if (now > _tokensTime)
+			{
+				double burst = Math.max(1, _limit * _interval / 1000);
+				_tokens = Math.min(burst, _tokens + (now - _tokensTime) * _limit / 1000);
+				_tokensTime = now;
+			}
+			if (_tokens < 1)
+			{
+				_rejected++;
+				_rejectedStats.increment();
+				return false;
+			}
+			_tokens -= 1;
+		}
+		_admitted++;
+		return true;
+	}
+
+	/**
+	 * Evaluates the load and updates the rate limit.
+	 */
+	protected void update(long now)
+	{
+		String reason = getOverloadReason(now);
+		String event = null;
+		double limit;
+
+		synchronized (this)
+		{
+			long elapsed = Math.max(1, now - _lastUpdate);
+			double admittedRate = _admitted * 1000.0 / elapsed;
+			double offeredRate = _offered * 1000.0 / elapsed;
+			_admitted = 0;
+			_offered = 0;
+			_lastUpdate = now;
+
+			if (reason != null)
+			{
+				if (_limit == UNLIMITED)
+				{
+					event = "Overload (" + reason + "): limiting initial requests to ";
+					_tokens = 0;
+					_tokensTime = now;
+					_limit = Math.max(_minRate, admittedRate * _decrease);
+				}
+				else
+					_limit = Math.max(_minRate, Math.min(_limit, admittedRate) * _decrease);
+				_reason = reason;
+			}
+			else if (_limit != UNLIMITED)
+			{
+				_limit += _increase;
+				if (_limit > 2 * offeredRate + _increase)
+				{
+					_limit = UNLIMITED;
+					_reason = null;
+					event = "Overload cleared: initial requests no longer limited";
+				}
+			}
+			limit = _limit;
+		}
+
+		_limitStats.set(limit == UNLIMITED ? -1 : Math.round(limit));
+		if (event != null)
+		{
+			if (limit == UNLIMITED)
+				Events.fire(Events.OVERLOAD_CLEARED, event);
+			else
+				Events.fire(Events.OVERLOAD, event + Math.round(limit) + "/s");
+		}
+		if (LOG.isDebugEnabled())
+			LOG.debug("Admission limit: {}, overload: {}", limit, reason);
+	}
+
+	/**
+	 * @return the cause of overload or <code>null</code> if the server is not overloaded.
+	 */
+	protected String getOverloadReason(long now)
+	{
+		long gcTime = getGcTime();
+		long elapsed = Math.max(1, now - _lastUpdate);
+		double gcRatio = (gcTime - _lastGcTime) / (double) elapsed;
+		_lastGcTime = gcTime;
+
+		SessionManager sessionManager = getSessionManager();
+		if (sessionManager != null)
+		{
+			int threshold = sessionManager.getCallsThreshold();
+			if (threshold > 0 && sessionManager.getCallSessions() >= threshold)
+				return "calls " + sessionManager.getCallSessions() + " >= " + threshold;
+			if (_maxTimerLateness > 0 && sessionManager.getTimerLateness() > _maxTimerLateness)
+				return "timer lateness " + sessionManager.getTimerLateness() + " ms";
+		}
+
+		IngressQueue queue = _connectorManager == null ? null : _connectorManager.getIngressQueue();
+		if (queue != null && _maxQueued > 0 && queue.getQueued() > _maxQueued)
+			return "queued " + queue.getQueued();
+
+		if (_maxGcRatio > 0 && gcRatio > _maxGcRatio)
+			return "GC " + Math.round(gcRatio * 100) + "%";
+
+		return null;
+	}
+
+	protected SessionManager getSessionManager()
+	{
+		if (_connectorManager == null || _connectorManager.getServer() == null)
+			return null;
+		return _connectorManager.getServer().getSessionManager();
+	}
+
+	/**
+	 * @return the total time in ms spent in garbage collection.
+	 */
+	protected long getGcTime()
+	{
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(0, gc.getCollectionTime());
+		return time;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "AdmissionController[limit=" + getLimit() + "]";
+	}
+
+	class Updater implements Runnable
+	{
+		public void run()
+		{
+			while (isRunning())
+			{
+				try
+				{
+					Thread.sleep(_interval);
+					update(System.currentTimeMillis());
+				}
+				catch (InterruptedException e) { continue; }
+				catch (Throwable t) { LOG.warn(t); }
+			}
+		}
+	}
+}
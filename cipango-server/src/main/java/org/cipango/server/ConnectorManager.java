@@ -17,10 +17,7 @@ package org.cipango.server;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletException;
 import javax.servlet.sip.Address;
@@ -29,11 +26,15 @@ import javax.servlet.sip.SipServletResponse;
 import javax.servlet.sip.SipURI;
 import javax.servlet.sip.URI;
 
+import org.cipango.io.BufferPool;
 import org.cipango.server.log.AccessLog;
+import org.cipango.server.metrics.Counter;
+import org.cipango.server.metrics.MetricsRegistry;
 import org.cipango.sip.NameAddr;
 import org.cipango.sip.SipGenerator;
 import org.cipango.sip.SipHeaders;
 import org.cipango.sip.Via;
+import org.cipango.util.Inet6Util;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.Buffers;
 import org.eclipse.jetty.io.ByteArrayBuffer;
@@ -56,23 +57,32 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     private Server _server;
    
     private SipConnector[] _connectors;
+    private volatile LocalAddresses _localAddresses = LocalAddresses.EMPTY;
     private int _mtu = DEFAULT_MTU;
     
     private SipGenerator _sipGenerator;
     
     private AccessLog _accessLog;
+    private IngressQueue _ingressQueue;
+    private TrafficShaper _trafficShaper;
+    private AdmissionController _admissionController;
     
-    private final AtomicLong _receivedStats = new AtomicLong();
-    private final AtomicLong _sentStats = new AtomicLong();
+    private final Counter _receivedStats = new Counter(
+    		"sip_messages_received_total", "Received SIP messages");
+    private final Counter _sentStats = new Counter(
+    		"sip_messages_sent_total", "Sent SIP messages");
+    private final Counter _parseErrorsStats = new Counter(
+    		"sip_messages_invalid_total", "Received SIP messages that failed validation");
     
     private transient long _nbParseErrors;
     
-    private ArrayList<Buffer> _buffers;
+    private BufferPool _bufferPool = BufferPool.getDefault();
     private int _messageSize = 10000;
     
     private int _largeMessageSize = MAX_MESSAGE_SIZE;
     
     private boolean _forceClientRport;
+    private boolean _loopbackEnabled = true;
         
     public void addConnector(SipConnector connector) 
     {
@@ -105,6 +115,25 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
         if (_server != null)
         	_server.getContainer().update(this, _connectors, connectors, "connectors");
         _connectors = connectors;
+        
+        if (isStarted())
+        	updateLocalAddresses();
+    }
+    
+    /**
+     * Rebuilds the index of local hosts and ports from the connectors. Done when the connectors 
+     * start or change.
+     * 
+     * @see #isLocalUri(URI)
+     */
+    public void updateLocalAddresses()
+    {
+    	_localAddresses = new LocalAddresses(_connectors);
+    }
+    
+    public LocalAddresses getLocalAddresses()
+    {
+    	return _localAddresses;
     }
     
     public void setServer(org.eclipse.jetty.server.Server server)
@@ -117,6 +146,14 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     	return _server;
     }
     
+    /**
+     * @return the metrics registry of the server, <code>null</code> if there is no server.
+     */
+    public MetricsRegistry getMetricsRegistry()
+    {
+    	return _server == null ? null : _server.getMetricsRegistry();
+    }
+    
     public Address getContact(int type)
     {
         SipConnector sc = findConnector(type, null);
@@ -129,13 +166,16 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     {
     	super.doStart();
 
-        if (_buffers != null)
-    		_buffers.clear();
-    	else
-    		_buffers = new ArrayList<Buffer>();
-        
         _sipGenerator = new SipGenerator();
         
+        MetricsRegistry registry = getMetricsRegistry();
+        if (registry != null)
+        {
+        	registry.register(_receivedStats);
+        	registry.register(_sentStats);
+        	registry.register(_parseErrorsStats);
+        }
+        
         if (_accessLog instanceof LifeCycle)
         {
         	try
@@ -148,6 +188,26 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
         	}
         }
         
+        if (_ingressQueue != null)
+        {
+        	_ingressQueue.setConnectorManager(this);
+        	_ingressQueue.start();
+        }
+        
+        if (_trafficShaper != null)
+        {
+        	_trafficShaper.setConnectorManager(this);
+        	_trafficShaper.start();
+        }
+        
+        if (_admissionController != null)
+        {
+        	if (_ingressQueue == null)
+        		LOG.warn("Admission control requires the ingress queue");
+        	_admissionController.setConnectorManager(this);
+        	_admissionController.start();
+        }
+        
         if (_connectors != null)
         {
 	        for (int i = 0; i < _connectors.length; i++)
@@ -156,6 +216,7 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
 	            connector.start();
 	        }
         }
+        updateLocalAddresses();
     }
 
     protected void doStop() throws Exception
@@ -180,6 +241,25 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
 
     	if (_accessLog instanceof LifeCycle)
     		try { ((LifeCycle) _accessLog).stop(); } catch (Throwable t) { LOG.warn(t); }
+    	
+    	if (_ingressQueue != null)
+    		try { _ingressQueue.stop(); } catch (Throwable t) { mex.add(t); }
+    	
+    	if (_trafficShaper != null)
+    		try { _trafficShaper.stop(); } catch (Throwable t) { mex.add(t); }
+    	
+    	if (_admissionController != null)
+    		try { _admissionController.stop(); } catch (Throwable t) { mex.add(t); }
+        
+        _localAddresses = LocalAddresses.EMPTY;
+        
+        MetricsRegistry registry = getMetricsRegistry();
+        if (registry != null)
+        {
+        	registry.unregister(_receivedStats);
+        	registry.unregister(_sentStats);
+        	registry.unregister(_parseErrorsStats);
+        }
         
         super.doStop();
         
@@ -199,12 +279,12 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     
     public void messageReceived()
     {
-    	_receivedStats.incrementAndGet();
+    	_receivedStats.increment();
     }
     
     public void messageSent()
     {
-        _sentStats.incrementAndGet();
+        _sentStats.increment();
     }
         
     public void handle(SipServletMessage message) throws IOException, ServletException
@@ -219,32 +299,36 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
         if (preValidateMessage((SipMessage) message))
 		{
         	if (msg.isRequest())
-            {
-                Via via = msg.getTopVia();
-                String remoteAddr = msg.getRemoteAddr();
-                
-                String host = via.getHost();
-                if (host.indexOf('[') != -1)
-                {
-                	// As there is multiple presentation of an IPv6 address, normalize it.
-                	host = InetAddress.getByName(host).getHostAddress();
-                }
-                
-                if (!host.equals(remoteAddr))
-                    via.setReceived(remoteAddr);
-
-                if (via.getRport() != null || isForceClientRport())
-                    via.setRport(Integer.toString(message.getRemotePort()));
-            }
+        		setReceived((SipRequest) msg);
 
             getServer().handle(msg);
 		}
 		else
 		{
 			_nbParseErrors++;
+			_parseErrorsStats.increment();
 		}  
     }
     
+    /**
+     * Adds the <code>received</code> and <code>rport</code> parameters to the top Via of the request,
+     * so that responses are sent back to its source.
+     */
+    public void setReceived(SipRequest request)
+    {
+        Via via = request.getTopVia();
+        String remoteAddr = request.getRemoteAddr();
+        
+        String host = via.getHost();
+        
+        // As there is multiple presentation of an IPv6 address, compare by value.
+        if (!host.equals(remoteAddr) && !Inet6Util.equals(host, remoteAddr))
+            via.setReceived(remoteAddr);
+
+        if (via.getRport() != null || isForceClientRport())
+            via.setRport(Integer.toString(request.getRemotePort()));
+    }
+    
     public boolean isLocalUri(URI uri)
     {
         if (!uri.isSipURI())
@@ -255,46 +339,7 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
         if (!sipUri.getLrParam())
             return false;
 
-        String host = sipUri.getHost();
-        
-        // Normalize IPv6 address
-		if (host.indexOf("[") != -1) 
-		{
-			try
-			{
-				host = InetAddress.getByName(host).getHostAddress();
-			}
-			catch (UnknownHostException e)
-			{
-				LOG.ignore(e);
-			}
-		}
-		
-        for (int i = 0; i < _connectors.length; i++)
-        {
-            SipConnector connector = _connectors[i];
-            
-            String connectorHost = connector.getSipUri().getHost();
-            
-            boolean samePort = connector.getPort() == sipUri.getPort() || sipUri.getPort() == -1;
-            if (samePort)
-            {
-	            if ((connectorHost.equals(host) || connector.getAddr().getHostAddress().equals(host))) 
-	            {
-	            	if (sipUri.getPort() != -1)
-	            		return true;
-	            	
-	            	// match on host address and port is not set ==> NAPTR case
-	            	if (connector.getAddr().getHostAddress().equals(host)
-	            			&& connector.getPort() != connector.getDefaultPort())
-	            	{
-	            		return false;
-	            	}
-	            	return true;
-	            }
-            }
-        }
-        return false;
+        return _localAddresses.isLocal(sipUri.getHost(), sipUri.getPort());
     }
     
     /**
@@ -304,6 +349,9 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
      */
     public SipConnection send(SipMessage message, SipConnection connection) throws IOException
     {
+    	if (connection instanceof LoopbackConnection)
+    		return loopback(message, (LoopbackConnection) connection);
+    	
     	Buffer buffer = getBuffer(_messageSize); 
     	_sipGenerator.generate(buffer, message);
     	    	
@@ -349,6 +397,99 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     	}
     }
     
+    /**
+     * Hands the message over to the inbound processing, as if it had been sent and received
+     * on the connector. The message is copied so that the received message can be modified
+     * independently, but it is neither encoded nor parsed.
+     */
+    protected SipConnection loopback(SipMessage message, LoopbackConnection connection)
+    {
+    	final SipMessage received = newLoopbackMessage(message);
+    	received.setConnection(connection);
+    	
+    	if (_accessLog != null)
+    		_accessLog.messageSent(message, connection);
+    	messageSent();
+    	
+    	// Looped back messages get the same priority and overload control as received ones
+    	IngressQueue queue = _ingressQueue;
+    	if (queue != null && queue.isRunning() && queue.getThreadPool() != null)
+    	{
+    		queue.add(received, this);
+    		return connection;
+    	}
+    	
+    	Runnable task = new Runnable()
+    	{
+    		public void run()
+    		{
+    			try
+    			{
+    				handle(received);
+    			}
+    			catch (Exception e)
+    			{
+    				LOG.warn(e);
+    			}
+    		}
+    	};
+    	
+    	if (!getServer().getSipThreadPool().dispatch(task))
+    		LOG.warn("No threads to dispatch message on {}", connection);
+    	return connection;
+    }
+    
+    private SipMessage newLoopbackMessage(SipMessage message)
+    {
+    	SipMessage received;
+    	if (message.isRequest())
+    	{
+    		SipRequest request = new SipRequest();
+    		request.setMethod(message.getMethod());
+    		request.setRequestURI(((SipRequest) message).getRequestURI().clone());
+    		received = request;
+    	}
+    	else
+    	{
+    		SipResponse response = (SipResponse) message;
+    		SipResponse copy = new SipResponse();
+    		copy.setStatus(response.getStatus(), response.getReasonPhrase());
+    		received = copy;
+    	}
+    	
+    	received.setFields(message.getFields().clone());
+    	if (received.getFields().getString(SipHeaders.CONTENT_LENGTH_BUFFER) == null)
+    		received.getFields().setString(SipHeaders.CONTENT_LENGTH_BUFFER, "0");
+    	
+    	byte[] content = message.getRawContent();
+    	if (content != null)
+    		received.setRawContent(content.clone());
+    	return received;
+    }
+    
+    /**
+     * Returns <code>true</code> if <code>address:port</code> is the address on which <code>connector</code>
+     * listens, so that messages sent to this address can be handed over without using the network.
+     * The interface addresses used for connectors listening on the wildcard address are those read 
+     * when the connectors were last updated, see {@link #updateLocalAddresses()}.
+     */
+    protected boolean isLocal(SipConnector connector, InetAddress address, int port)
+    {
+    	if (!_loopbackEnabled || port != connector.getPort())
+    		return false;
+    	
+    	InetAddress local = connector.getAddr();
+    	if (local == null)
+    		return false;
+    	if (local.equals(address))
+    		return true;
+    	
+    	if (local.isAnyLocalAddress())
+    		return address.isLoopbackAddress() || address.isAnyLocalAddress() 
+    				|| _localAddresses.isInterfaceAddress(address);
+    	return false;
+    }
+    
     public SipConnection getConnection(SipRequest request, int transport, InetAddress address, int port) throws IOException
     {   
     	SipConnector connector = findConnector(transport, address);
@@ -358,6 +499,9 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
         via.setTransport(connector.getTransport());
         via.setHost(connector.getSipUri().getHost());
         via.setPort(connector.getSipUri().getPort());
+        
+        if (isLocal(connector, address, port))
+        	return new LoopbackConnection(connector, address);
                 
         SipConnection connection = connector.getConnection(address, port);
         if (connection == null)
@@ -379,7 +523,8 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     
     public void sendResponse(SipResponse response, SipConnection connection) throws IOException
     {
-    	if (connection == null || !connection.getConnector().isReliable() || !connection.isOpen())
+    	if (connection == null || !(connection instanceof LoopbackConnection)
+    			&& (!connection.getConnector().isReliable() || !connection.isOpen()))
     	{
     		Via via = response.getTopVia();
     		
@@ -397,6 +542,8 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     			
     			if (via.getMAddr() != null)
     				address = InetAddress.getByName(via.getMAddr());
+    			else if (via.getReceived() != null)
+    				address = InetAddress.getByName(via.getReceived());
     			else
     				address = InetAddress.getByName(via.getHost());
     			
@@ -414,9 +561,12 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
 	        {
 	            port = via.getPort();
 	            if (port == -1) 
-	                port = connection.getConnector().getDefaultPort();
+	                port = connector.getDefaultPort();
 	        }
-	        connection = connector.getConnection(address, port);
+	        if (isLocal(connector, address, port))
+	        	connection = new LoopbackConnection(connector, address);
+	        else
+	        	connection = connector.getConnection(address, port);
 	        
 	        if (connection == null)
 	        	throw new IOException("Could not found any SIP connection to " 
@@ -523,30 +673,28 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     
     public Buffer getBuffer(int size) 
     {
-		if (size == _messageSize)
-		{
-			synchronized (_buffers)
-			{
-				if (_buffers.size() == 0)
-					return newBuffer(size);
-	            return (Buffer) _buffers.remove(_buffers.size() - 1);
-            }
-        }
-		else 
-			return newBuffer(size);
+		return _bufferPool.getBuffer(size);
     }
     
     public void returnBuffer(Buffer buffer)
     {
-        buffer.clear();
-        int c = buffer.capacity();
-        if (c == _messageSize)
-        {
-	        synchronized (_buffers)
-	        {
-	            _buffers.add(buffer);
-	        }
-        }
+        _bufferPool.returnBuffer(buffer);
+    }
+    
+    public BufferPool getBufferPool()
+    {
+    	return _bufferPool;
+    }
+    
+    /**
+     * Sets the pool used for outgoing messages. It must hold heap buffers as the UDP connector
+     * writes the buffer backing array.
+     */
+    public void setBufferPool(BufferPool bufferPool)
+    {
+    	if (bufferPool.isDirect())
+    		throw new IllegalArgumentException("Direct buffers are not supported");
+    	_bufferPool = bufferPool;
     }
     
     public Buffer newBuffer(int size)
@@ -590,12 +738,12 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     
     public long getMessagesReceived() 
     {
-        return _receivedStats.get();
+        return _receivedStats.getValue();
     }
     
     public long getMessagesSent() 
     {
-        return _sentStats.get();
+        return _sentStats.getValue();
     }
     
 	public long getNbParseError()
@@ -610,8 +758,15 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     
     public void statsReset() 
     {
-    	_receivedStats.set(0);
-    	_sentStats.set(0);
+    	_receivedStats.reset();
+    	_sentStats.reset();
+    	_parseErrorsStats.reset();
+    	if (_ingressQueue != null)
+    		_ingressQueue.statsReset();
+    	if (_trafficShaper != null)
+    		_trafficShaper.statsReset();
+    	if (_admissionController != null)
+    		_admissionController.statsReset();
     	
         _nbParseErrors = 0;
         for (int i = 0; _connectors != null && i <_connectors.length; i++)
@@ -706,19 +861,67 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
 		return !it.hasNext();
 	}
 
+	public IngressQueue getIngressQueue()
+	{
+		return _ingressQueue;
+	}
+
+	/**
+	 * Sets the queue of received messages, <code>null</code> (the default) to dispatch them directly to
+	 * the thread pool. The target delay and capacity of the queue should be tuned to the expected
+	 * load before enabling it, as it rejects initial requests on overload.
+	 */
+	public void setIngressQueue(IngressQueue ingressQueue)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_ingressQueue = ingressQueue;
+	}
+
+	public TrafficShaper getTrafficShaper()
+	{
+		return _trafficShaper;
+	}
+
+	/**
+	 * Sets the rate limits applied to received messages, <code>null</code> (the default) for none.
+	 */
+	public void setTrafficShaper(TrafficShaper trafficShaper)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_trafficShaper = trafficShaper;
+	}
+
+	public AdmissionController getAdmissionController()
+	{
+		return _admissionController;
+	}
+
+	/**
+	 * Sets the rate control of initial requests admitted by the ingress queue, <code>null</code> 
+	 * (the default) for none.
+	 */
+	public void setAdmissionController(AdmissionController admissionController)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_admissionController = admissionController;
+	}
+	
 	public AccessLog getAccessLog()
 	{
 		return _accessLog;
 	}
 		 
-	public Buffer getBuffer() {
-		// TODO Auto-generated method stub
-		return null;
+	public Buffer getBuffer()
+	{
+		return getBuffer(_messageSize);
 	}
 
-	public Buffer getHeader() {
-		// TODO Auto-generated method stub
-		return null;
+	public Buffer getHeader()
+	{
+		return _bufferPool.getHeader();
 	}
 
 	public int getMtu()
@@ -740,6 +943,21 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
 	{
 		_forceClientRport = forceClientRport;
 	}
+	
+	public boolean isLoopbackEnabled()
+	{
+		return _loopbackEnabled;
+	}
+	
+	/**
+	 * Sets whether messages sent to one of the connectors addresses, like requests routed by the
+	 * application router to the next application, are handed over in memory rather than sent on
+	 * the network.
+	 */
+	public void setLoopbackEnabled(boolean loopbackEnabled)
+	{
+		_loopbackEnabled = loopbackEnabled;
+	}
 
 
 }
@@ -15,13 +15,19 @@
 package org.cipango.server;
 
 import java.net.InetAddress;
+import java.security.SecureRandom;
 import java.util.Random;
 
 import org.cipango.sip.Via;
-import org.cipango.util.HexString;
 
 /**
  * All SIP-related IDs generation and parsing (call, session, transaction ...)
+ * <p>
+ * Each thread draws random bits from its own stream, so that no lock is shared between threads. 
+ * By default, a stream is a fast pseudo-random generator seeded by {@link SecureRandom}. If IDs, and 
+ * in particular tags, must not be predictable from previous ones, the secure mode, set with the 
+ * <code>org.cipango.server.ID.secure</code> system property or {@link #setSecure(boolean)}, uses a 
+ * {@link SecureRandom} per thread instead.
  */
 public abstract class ID 
 {
@@ -31,9 +37,23 @@ public abstract class ID
 	public static final String SESSION_KEY_ATTRIBUTE = "session.key";
 
 	private static String __localhost;
-	private static Random __random = new Random();
     public static final int MAX_CSEQ = (1 << 16);
 	private static String __magicCookie = "aK5q9iC";
+	
+	private static final char[] __hexChars = 
+		{ '0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f' };
+	
+	private static final SecureRandom __seeder = new SecureRandom();
+	private static volatile boolean __secure = Boolean.getBoolean("org.cipango.server.ID.secure");
+	
+	private static final ThreadLocal<Entropy> __entropy = new ThreadLocal<Entropy>()
+	{
+		@Override
+		protected Entropy initialValue()
+		{
+			return new Entropy(__secure);
+		}
+	};
     
 	static
 	{
@@ -86,10 +106,7 @@ public abstract class ID
     /** cseq */
     public static int newCSeq()
     {
-        synchronized (__random)
-        {
-            return (int) (__random.nextDouble() * MAX_CSEQ);
-        }
+    	return (int) (entropy().nextLong() >>> 48);
     }
     
     /** 
@@ -100,49 +117,109 @@ public abstract class ID
      */
     public static String newID(int length) 
     {
-    	byte[] b = new byte[length];
-    	synchronized (__random) 
+    	Entropy entropy = entropy();
+    	char[] chars = entropy.getChars(2 * length);
+    	putHex(entropy, chars, 0, 2 * length);
+    	return new String(chars, 0, 2 * length);
+    }
+    
+    /**
+     * Sets whether IDs are drawn from a {@link SecureRandom}. Threads switch to the new mode on their 
+     * next ID.
+     */
+    public static void setSecure(boolean secure)
+    {
+    	__secure = secure;
+    }
+    
+    public static boolean isSecure()
+    {
+    	return __secure;
+    }
+    
+    private static Entropy entropy()
+    {
+    	Entropy entropy = __entropy.get();
+    	if (entropy.isSecure() != __secure)
     	{
-        	__random.nextBytes(b);
-		}
-    	return HexString.toHexString(b);
+    		entropy = new Entropy(__secure);
+    		__entropy.set(entropy);
+    	}
+    	return entropy;
     }
-    	
+    
+    /**
+     * Writes <code>length</code> random hex digits in <code>chars</code> from <code>offset</code>.
+     */
+    private static void putHex(Entropy entropy, char[] chars, int offset, int length)
+    {
+    	long random = 0;
+    	for (int i = 0; i < length; i++)
+    	{
+    		if ((i & 0xf) == 0)
+    			random = entropy.nextLong();
+    		chars[offset + i] = __hexChars[(int) (random >>> 60)];
+    		random <<= 4;
+    	}
+    }
+    
+    /**
+     * Returns a new Call-ID for a call created from the call with the given Call-ID, so that both calls 
+     * have the same call session ID. 
+     * <p>
+     * The Call-ID has the form <code>magicCookie-random*callSessionId@host</code> where '@' and '%' 
+     * in the call session ID are escaped as '%' and "%%".
+     * 
+     * @see #getCallSessionId(String)
+     */
 	public static String newCallId(String callId)
     {
+		int prefix = __magicCookie.length() + 8;
+		char[] chars;
+		int offset;
+		
     	if (callId.startsWith(__magicCookie))
     	{
     		int i = callId.indexOf('*');
     		
-    		StringBuilder sb = new StringBuilder(callId.length());
-    		sb.append(__magicCookie);
-    		sb.append('-');
-    		sb.append(ID.newID(3));
-    		sb.append('*');
-    		sb.append(callId.substring(i+1));
-    		return sb.toString();
+    		chars = new char[prefix + callId.length() - i - 1];
+    		callId.getChars(i + 1, callId.length(), chars, prefix);
     	}
     	else
     	{
-    		StringBuilder sb = new StringBuilder(callId.length() + __localhost.length() + 14);
-    		sb.append(__magicCookie);
-    		sb.append('-');
-    		sb.append(ID.newID(3));
-    		sb.append('*');
+    		int length = callId.length();
+    		for (int i = 0; i < callId.length(); i++)
+    		{
+    			if (callId.charAt(i) == '%')
+    				length++;
+    		}
+    		
+    		chars = new char[prefix + length + 1 + __localhost.length()];
+    		offset = prefix;
     		for (int i = 0; i < callId.length(); i++)
     		{
     			char c = callId.charAt(i);
     			if (c == '@')
-    				sb.append('%');
+    				chars[offset++] = '%';
     			else if (c == '%')
-    				sb.append("%%");
+    			{
+    				chars[offset++] = '%';
+    				chars[offset++] = '%';
+    			}
     			else
-    				sb.append(c);
+    				chars[offset++] = c;
     		}
-    		sb.append('@');
-    		sb.append(__localhost);
-    		return sb.toString();
-    	}		
+    		chars[offset++] = '@';
+    		__localhost.getChars(0, __localhost.length(), chars, offset);
+    	}
+    	
+    	__magicCookie.getChars(0, __magicCookie.length(), chars, 0);
+    	offset = __magicCookie.length();
+    	chars[offset++] = '-';
+    	putHex(entropy(), chars, offset, 6);
+    	chars[prefix - 1] = '*';
+    	
+    	return new String(chars);
     }
 	
 	public static String getCallSessionId(String callId)
@@ -153,37 +230,31 @@ public abstract class ID
 	   	int i = callId.indexOf('*', __magicCookie.length() + 7);
 	   	int j = callId.indexOf('@', i+1);
 	   	
-	   	StringBuilder sb = null;
-	   	boolean escape = false;
+	   	int k = callId.indexOf('%', i+1);
+	   	if (k == -1 || k > j)
+	   		return callId.substring(i+1, j);
 	   	
-	   	for (int k = i+1; k < j; k++)
+	   	char[] chars = new char[j-i-1];
+	   	int length = k-i-1;
+	   	callId.getChars(i+1, k, chars, 0);
+	   	
+	   	while (k < j)
 	   	{
-	   		char c = callId.charAt(k);
+	   		char c = callId.charAt(k++);
 	   		if (c == '%')
 	   		{
-	   			if (sb == null)
+	   			if (k < j && callId.charAt(k) == '%')
 	   			{
-	   				sb = new StringBuilder(j-i);
-	   				sb.append(callId.substring(i+1, k));
+	   				chars[length++] = '%';
+	   				k++;
 	   			}
-	   			if (escape)
-	   				sb.append('%');
-	   			escape = ! escape;
+	   			else
+	   				chars[length++] = '@';
 	   		}
 	   		else
-	   		{
-	   			if (escape)
-	   			{
-	   				sb.append('@');
-	   				escape = false;
-	   			}
-	   			if (sb != null)
-	   				sb.append(c);
-	   		}
+	   			chars[length++] = c;
 	   	}
-	   	if (sb != null)
-	   		return sb.toString();
-	   	return callId.substring(i+1, j);
+	   	return new String(chars, 0, length);
 	}	
 	
 	public static String getIdFromKey(String applicationName, String sessionKey)
@@ -195,6 +266,62 @@ public abstract class ID
 	{
 		return id.startsWith("skey-");
 	}
+	
+	/**
+	 * Random bits of a thread, with a buffer to encode them.
+	 */
+	static class Entropy
+	{
+		private final Random _secureRandom;
+		private long _seed;
+		private char[] _chars = new char[16];
+		
+		Entropy(boolean secure)
+		{
+			if (secure)
+			{
+				_secureRandom = new SecureRandom();
+			}
+			else
+			{
+				_secureRandom = null;
+				synchronized (__seeder)
+				{
+					_seed = __seeder.nextLong();
+				}
+				if (_seed == 0)
+					_seed = System.nanoTime() | 1;
+			}
+		}
+		
+		public boolean isSecure()
+		{
+			return _secureRandom != null;
+		}
+		
+		/**
+		 * @return 64 random bits, from a xorshift* generator if not secure.
+		 */
+		public long nextLong()
+		{
+			if (_secureRandom != null)
+				return _secureRandom.nextLong();
+			
+			long x = _seed;
+			x ^= x >>> 12;
+			x ^= x << 25;
+			x ^= x >>> 27;
+			_seed = x;
+			return x * 2685821657736338717L;
+		}
+		
+		public char[] getChars(int length)
+		{
+			if (_chars.length < length)
+				_chars = new char[length];
+			return _chars;
+		}
+	}
    
 	public static void main(String[] args) throws Exception 
     {/*
@@ -0,0 +1,486 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.servlet.sip.SipServletResponse;
+
+import org.cipango.server.metrics.Counter;
+import org.cipango.server.metrics.Gauge;
+import org.cipango.server.metrics.MetricsRegistry;
+import org.cipango.sip.SipHeaders;
+import org.cipango.sip.SipParams;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Bounded priority queue of the messages received by the connectors, waiting for a thread of the SIP
+ * thread pool.
+ * <p>
+ * Messages are queued by priority: responses, ACK, BYE and CANCEL first, then the other requests
+ * within a dialog and last the initial requests. A task is dispatched to the thread pool for each
+ * queued message, which handles the message of highest priority when it runs, so that calls already
+ * established are not affected by a flood of new requests.
+ * <p>
+ * Initial requests are admitted according to their queuing delay, as CoDel does: when the delay of
+ * initial requests stays above the target delay for a whole interval, the server is overloaded. The
+ * queued initial requests that waited more than the target delay are then rejected, as well as new
+ * initial requests, until an initial request is handled within the target delay or no request waited
+ * too long for an interval. Requests are rejected with a stateless 503 response, with a
+ * <code>Retry-After</code> header, without creating any transaction or call session. Initial requests
+ * over the rate limit of the {@link AdmissionController} of the connector manager, if any, are
+ * rejected the same way.
+ * <p>
+ * When the queue is full, the newest initial request is rejected to make room for a message of
+ * higher priority. Otherwise the new request is rejected, or dropped if it is a response or an ACK,
+ * to be retransmitted by its sender.
+ */
+public class IngressQueue extends AbstractLifeCycle
+{
+	private static final Logger LOG = Log.getLogger(IngressQueue.class);
+
+	public static final int HIGH = 0;
+	public static final int IN_DIALOG = 1;
+	public static final int INITIAL = 2;
+
+	public static final int DEFAULT_MAX_QUEUED = 10000;
+	public static final long DEFAULT_TARGET_DELAY = 20;
+	public static final long DEFAULT_INTERVAL = 100;
+	public static final int DEFAULT_RETRY_AFTER = 5;
+
+	private ConnectorManager _connectorManager;
+	private ThreadPool _threadPool;
+
+	private int _maxQueued = DEFAULT_MAX_QUEUED;
+	private long _targetDelay = DEFAULT_TARGET_DELAY;
+	private long _interval = DEFAULT_INTERVAL;
+	private int _retryAfter = DEFAULT_RETRY_AFTER;
+
+	private final Object _lock = new Object();
+	@SuppressWarnings("unchecked")
+	private final LinkedList<Entry>[] _queues = new LinkedList[] { new LinkedList<Entry>(), new LinkedList<Entry>(), new LinkedList<Entry>() };
+	private int _size;
+	private long _firstAboveTime;
+	private volatile boolean _overloaded;
+	private volatile long _overloadedUntil;
+
+	private final Runnable _task = new Runnable()
+	{
+		public void run()
+		{
+			Entry entry = poll();
+			if (entry != null)
+				entry.handle();
+		}
+	};
+
+	private final Gauge _queuedStats = new Gauge(
+			"sip_ingress_queued", "Received SIP messages waiting for a thread");
+	private final Counter _rejectedStats = new Counter(
+			"sip_ingress_rejected_total", "Initial requests rejected with a 503 response on overload");
+	private final Counter _droppedStats = new Counter(
+			"sip_ingress_dropped_total", "Received SIP messages dropped on overload");
+
+	public ConnectorManager getConnectorManager()
+	{
+		return _connectorManager;
+	}
+
+	public void setConnectorManager(ConnectorManager connectorManager)
+	{
+		_connectorManager = connectorManager;
+	}
+
+	public ThreadPool getThreadPool()
+	{
+		return _threadPool;
+	}
+
+	public int getMaxQueued()
+	{
+		return _maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued)
+	{
+		_maxQueued = maxQueued;
+	}
+
+	/**
+	 * @return the queuing delay of initial requests above which the server may be overloaded, in milliseconds.
+	 */
+	public long getTargetDelay()
+	{
+		return _targetDelay;
+	}
+
+	public void setTargetDelay(long targetDelay)
+	{
+		_targetDelay = targetDelay;
+	}
+
+	/**
+	 * @return the time the queuing delay must stay above the target delay for the server to be overloaded,
+	 * in milliseconds.
+	 */
+	public long getInterval()
+	{
+		return _interval;
+	}
+
+	public void setInterval(long interval)
+	{
+		_interval = interval;
+	}
+
+	/**
+	 * @return the value of the <code>Retry-After</code> header of 503 responses, in seconds.
+	 */
+	public int getRetryAfter()
+	{
+		return _retryAfter;
+	}
+
+	public void setRetryAfter(int retryAfter)
+	{
+		_retryAfter = retryAfter;
+	}
+
+	public boolean isOverloaded()
+	{
+		return _overloaded && System.nanoTime() - _overloadedUntil < 0;
+	}
+
+	public int getQueued()
+	{
+		synchronized (_lock)
+		{
+			return _size;
+		}
+	}
+
+	public long getRejected()
+	{
+		return _rejectedStats.getValue();
+	}
+
+	public long getDropped()
+	{
+		return _droppedStats.getValue();
+	}
+
+	public void statsReset()
+	{
+		_rejectedStats.reset();
+		_droppedStats.reset();
+	}
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		Server server = _connectorManager.getServer();
+		_threadPool = server != null ? server.getSipThreadPool() : null;
+		MetricsRegistry registry = _connectorManager.getMetricsRegistry();
+		if (registry != null)
+		{
+			registry.register(_queuedStats);
+			registry.register(_rejectedStats);
+			registry.register(_droppedStats);
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+		synchronized (_lock)
+		{
+			for (LinkedList<Entry> queue : _queues)
+				queue.clear();
+			_size = 0;
+			_overloaded = false;
+			_firstAboveTime = 0;
+		}
+		_queuedStats.set(0);
+		MetricsRegistry registry = _connectorManager.getMetricsRegistry();
+		if (registry != null)
+		{
+			registry.unregister(_queuedStats);
+			registry.unregister(_rejectedStats);
+			registry.unregister(_droppedStats);
+		}
+	}
+
+	/**
+	 * @return the priority of the message, {@link #HIGH}, {@link #IN_DIALOG} or {@link #INITIAL}.
+	 */
+	public static int getLevel(SipMessage message)
+	{
+		if (!message.isRequest() || message.isAck() || message.isBye() || message.isCancel())
+			return HIGH;
+		try
+		{
+			if (message.to().getParameter(SipParams.TAG) != null)
+				return IN_DIALOG;
+		}
+		catch (Exception e)
+		{
+			LOG.ignore(e);
+		}
+		return INITIAL;
+	}
+
+	/**
+	 * Queues the message to be handled by the given handler or rejects it if the server is overloaded.
+	 */
+	public void add(SipMessage message, SipHandler handler)
+	{
+		Entry entry = new Entry(message, handler);
+		Entry rejected = null;
+		Entry cancelled = null;
+		boolean dispatch = false;
+
+		synchronized (_lock)
+		{
+			// Only the initial requests which would be queued take a token from the admission controller
+			if (entry._level == INITIAL && (isOverloaded() || _size >= _maxQueued || !admit()))
+				rejected = entry;
+			else if (message.isCancel() && (cancelled = removeInvite((SipRequest) message)) != null)
+				LOG.debug("Cancelled queued INVITE {}", cancelled._message.getCallId());
+			else if (_size < _maxQueued)
+			{
+				_queues[entry._level].add(entry);
+				_size++;
+				dispatch = true;
+			}
+			else if (entry._level != INITIAL && !_queues[INITIAL].isEmpty())
+			{
+				// Room is made for the new entry, whose task is the one of the rejected entry
+				rejected = _queues[INITIAL].removeLast();
+				_queues[entry._level].add(entry);
+			}
+			else
+				rejected = entry;
+		}
+
+		if (dispatch)
+		{
+			_queuedStats.increment();
+			if (!_threadPool.dispatch(_task))
+			{
+				rejected = removeLowest();
+				LOG.warn("No threads to dispatch message from {}:{}",
+						message.getRemoteAddr(), message.getRemotePort());
+			}
+		}
+
+		if (cancelled != null)
+		{
+			sendStatelessResponse((SipRequest) cancelled._message, SipServletResponse.SC_REQUEST_TERMINATED, -1);
+			sendStatelessResponse((SipRequest) message, SipServletResponse.SC_OK, -1);
+		}
+		else if (rejected != null)
+			reject(rejected);
+	}
+
+	private boolean admit()
+	{
+		AdmissionController controller = _connectorManager == null ? null : _connectorManager.getAdmissionController();
+		return controller == null || !controller.isRunning() || controller.admit();
+	}
+
+	/**
+	 * @return the message of highest priority or <code>null</code> if none. Initial requests which waited
+	 * too long while the server is overloaded are rejected.
+	 */
+	protected Entry poll()
+	{
+		while (true)
+		{
+			Entry entry = null;
+			boolean reject = false;
+			synchronized (_lock)
+			{
+				for (int i = 0; i < _queues.length && entry == null; i++)
+					entry = _queues[i].poll();
+				if (entry == null)
+					return null;
+				_size--;
+
+				if (entry._level == INITIAL)
+					reject = isAboveTarget(entry);
+				if (_queues[INITIAL].isEmpty())
+					_firstAboveTime = 0;
+			}
+			_queuedStats.decrement();
+
+			if (!reject)
+				return entry;
+			reject(entry);
+		}
+	}
+
+	/**
+	 * Updates the overload state with the queuing delay of the initial request.
+	 * @return <code>true</code> if the request should be rejected.
+	 */
+	private boolean isAboveTarget(Entry entry)
+	{
+		long now = System.nanoTime();
+		if (now - entry._time < _targetDelay * 1000000)
+		{
+			_overloaded = false;
+			_firstAboveTime = 0;
+			return false;
+		}
+
+		if (_firstAboveTime == 0)
+			_firstAboveTime = now + _interval * 1000000;
+		else if (now - _firstAboveTime >= 0)
+		{
+			if (!isOverloaded())
+				LOG.warn("Overloaded: initial requests are queued for more than {} ms", _targetDelay);
+			_overloaded = true;
+			_overloadedUntil = now + _interval * 1000000;
+		}
+		return isOverloaded();
+	}
+
+	private Entry removeLowest()
+	{
+		synchronized (_lock)
+		{
+			for (int i = _queues.length; i-- > 0;)
+			{
+				if (!_queues[i].isEmpty())
+				{
+					_size--;
+					_queuedStats.decrement();
+					return _queues[i].removeLast();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the INVITE cancelled by the given CANCEL, if it still waits in the queue.
+	 */
+	private Entry removeInvite(SipRequest cancel)
+	{
+		Iterator<Entry> it = _queues[INITIAL].iterator();
+		while (it.hasNext())
+		{
+			Entry entry = it.next();
+			SipMessage invite = entry._message;
+			try
+			{
+				if (invite.isInvite()
+						&& cancel.getCallId().equals(invite.getCallId())
+						&& cancel.getCSeq().getNumber() == invite.getCSeq().getNumber()
+						&& cancel.getTopVia().getBranch() != null
+						&& cancel.getTopVia().getBranch().equals(invite.getTopVia().getBranch()))
+				{
+					it.remove();
+					_size--;
+					_queuedStats.decrement();
+					return entry;
+				}
+			}
+			catch (Exception e)
+			{
+				LOG.ignore(e);
+			}
+		}
+		return null;
+	}
+
+	protected void reject(Entry entry)
+	{
+		SipMessage message = entry._message;
+		if (message.isRequest() && !message.isAck())
+		{
+			_rejectedStats.increment();
+			sendStatelessResponse((SipRequest) message, SipServletResponse.SC_SERVICE_UNAVAILABLE, _retryAfter);
+		}
+		else
+		{
+			_droppedStats.increment();
+			if (LOG.isDebugEnabled())
+				LOG.debug("Dropped {} from {}:{} on overload", message.getMethod(),
+						message.getRemoteAddr(), message.getRemotePort());
+		}
+	}
+
+	/**
+	 * Sends a response without creating any transaction.
+	 * @param retryAfter the value of the <code>Retry-After</code> header or <code>-1</code> if none.
+	 */
+	protected void sendStatelessResponse(SipRequest request, int status, int retryAfter)
+	{
+		try
+		{
+			_connectorManager.setReceived(request);
+			SipResponse response = new SipResponse(request, status, null);
+			if (response.to().getParameter(SipParams.TAG) == null)
+				response.to().setParameter(SipParams.TAG, ID.newTag());
+			if (retryAfter != -1)
+				response.getFields().setString(SipHeaders.RETRY_AFTER_BUFFER, Integer.toString(retryAfter));
+			_connectorManager.sendResponse(response, request.getConnection());
+		}
+		catch (Exception e)
+		{
+			LOG.debug("Could not send stateless " + status + " response", e);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "IngressQueue[queued=" + getQueued() + ",overloaded=" + isOverloaded() + "]";
+	}
+
+	protected static class Entry
+	{
+		final SipMessage _message;
+		final SipHandler _handler;
+		final int _level;
+		final long _time = System.nanoTime();
+
+		Entry(SipMessage message, SipHandler handler)
+		{
+			_message = message;
+			_handler = handler;
+			_level = getLevel(message);
+		}
+
+		void handle()
+		{
+			try
+			{
+				_handler.handle(_message);
+			}
+			catch (Exception e)
+			{
+				LOG.warn(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.sip.SipURI;
+
+import org.cipango.util.Inet6Util;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Immutable index of the hosts and ports of the connectors, used to find whether a URI designates
+ * this server.
+ * <p>
+ * A connector is identified by its SIP URI host, which is its external host if any, and by its
+ * address. IPv6 literals are compared by value. A connector matches its port and its external port.
+ * When a URI has no port, the first connector matching its host applies: the URI is local unless it
+ * is the address of a connector not listening on the default port, as the URI would then be resolved
+ * with NAPTR and SRV records.
+ * <p>
+ * When a connector listens on the wildcard address, the addresses of the network interfaces are
+ * read once when the index is built, see {@link #isInterfaceAddress(InetAddress)}.
+ * <p>
+ * Lookups neither resolve names nor allocate.
+ */
+public class LocalAddresses
+{
+	private static final Logger LOG = Log.getLogger(LocalAddresses.class);
+	
+	public static final LocalAddresses EMPTY = new LocalAddresses(null);
+
+	private final Map<String, Host> _hosts = new HashMap<String, Host>();
+	private final long[] _ipv6High;
+	private final long[] _ipv6Low;
+	private final Host[] _ipv6Hosts;
+	private final Set<InetAddress> _interfaceAddresses;
+
+	public LocalAddresses(SipConnector[] connectors)
+	{
+		List<Host> ipv6Hosts = new ArrayList<Host>();
+		boolean anyLocal = false;
+
+		if (connectors != null)
+		{
+			for (SipConnector connector : connectors)
+			{
+				InetAddress addr = connector.getAddr();
+				SipURI uri = connector.getSipUri();
+				if (addr != null && addr.isAnyLocalAddress())
+					anyLocal = true;
+				if (addr == null || uri == null)
+					continue;
+
+				int[] ports = { connector.getPort(), uri.getPort() };
+				boolean defaultPort = connector.getPort() == connector.getDefaultPort();
+
+				// Address first, so that a URI host equal to the address is handled as the address.
+				if (addr instanceof Inet6Address)
+					add(ipv6Hosts, Inet6Util.getHigh((Inet6Address) addr), Inet6Util.getLow((Inet6Address) addr),
+							ports, defaultPort);
+				else
+					add(addr.getHostAddress(), ports, defaultPort);
+
+				String host = uri.getHost();
+				if (host.startsWith("[") && Inet6Util.isLiteral(host))
+					add(ipv6Hosts, Inet6Util.getHigh(host), Inet6Util.getLow(host), ports, true);
+				else
+					add(host, ports, true);
+			}
+		}
+
+		_ipv6Hosts = ipv6Hosts.toArray(new Host[ipv6Hosts.size()]);
+		_ipv6High = new long[_ipv6Hosts.length];
+		_ipv6Low = new long[_ipv6Hosts.length];
+		for (int i = 0; i < _ipv6Hosts.length; i++)
+		{
+			_ipv6High[i] = _ipv6Hosts[i]._high;
+			_ipv6Low[i] = _ipv6Hosts[i]._low;
+		}
+		
+		_interfaceAddresses = anyLocal ? getInterfaceAddresses() : Collections.<InetAddress>emptySet();
+	}
+	
+	private static Set<InetAddress> getInterfaceAddresses()
+	{
+		Set<InetAddress> addresses = new HashSet<InetAddress>();
+		try
+		{
+			Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+			while (interfaces != null && interfaces.hasMoreElements())
+			{
+				Enumeration<InetAddress> interfaceAddresses = interfaces.nextElement().getInetAddresses();
+				while (interfaceAddresses.hasMoreElements())
+					addresses.add(interfaceAddresses.nextElement());
+			}
+		}
+		catch (SocketException e)
+		{
+			LOG.warn("Could not list network interfaces", e);
+		}
+		return addresses;
+	}
+	
+	/**
+	 * @return <code>true</code> if <code>address</code> is the address of a network interface and a 
+	 * connector listens on the wildcard address.
+	 */
+	public boolean isInterfaceAddress(InetAddress address)
+	{
+		return _interfaceAddresses.contains(address);
+	}
+
+	private void add(String name, int[] ports, boolean noPortMatch)
+	{
+		Host host = _hosts.get(name);
+		if (host == null)
+		{
+			host = new Host(0, 0, noPortMatch);
+			_hosts.put(name, host);
+		}
+		host.addPorts(ports);
+	}
+
+	private void add(List<Host> ipv6Hosts, long high, long low, int[] ports, boolean noPortMatch)
+	{
+		for (Host host : ipv6Hosts)
+		{
+			if (host._high == high && host._low == low)
+			{
+				host.addPorts(ports);
+				return;
+			}
+		}
+		Host host = new Host(high, low, noPortMatch);
+		host.addPorts(ports);
+		ipv6Hosts.add(host);
+	}
+
+	/**
+	 * @param port the port or <code>-1</code> if none.
+	 * @return <code>true</code> if a connector matches the host and port.
+	 */
+	public boolean isLocal(String host, int port)
+	{
+		Host h = _hosts.get(host);
+		if (h == null && _ipv6Hosts.length > 0 && Inet6Util.isLiteral(host))
+		{
+			try
+			{
+				long high = Inet6Util.getHigh(host);
+				long low = Inet6Util.getLow(host);
+				for (int i = 0; i < _ipv6Hosts.length; i++)
+				{
+					if (_ipv6High[i] == high && _ipv6Low[i] == low)
+					{
+						h = _ipv6Hosts[i];
+						break;
+					}
+				}
+			}
+			catch (IllegalArgumentException e)
+			{
+				return false;
+			}
+		}
+		if (h == null)
+			return false;
+
+		return h.matches(port);
+	}
+
+	static class Host
+	{
+		private final long _high;
+		private final long _low;
+		private final boolean _noPortMatch;
+		private int[] _ports = new int[0];
+
+		Host(long high, long low, boolean noPortMatch)
+		{
+			_high = high;
+			_low = low;
+			_noPortMatch = noPortMatch;
+		}
+
+		void addPorts(int[] ports)
+		{
+			for (int port : ports)
+			{
+				if (!matches(port))
+				{
+					int[] p = new int[_ports.length + 1];
+					System.arraycopy(_ports, 0, p, 0, _ports.length);
+					p[_ports.length] = port;
+					_ports = p;
+				}
+			}
+		}
+
+		public boolean matches(int port)
+		{
+			if (port == -1)
+				return _noPortMatch;
+			for (int i = 0; i < _ports.length; i++)
+			{
+				if (_ports[i] == port)
+					return true;
+			}
+			return false;
+		}
+	}
+}
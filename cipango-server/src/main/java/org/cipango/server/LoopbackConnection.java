@@ -0,0 +1,88 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.eclipse.jetty.io.Buffer;
+
+/**
+ * Connection from a connector to itself, used when a message is routed back to this server, typically
+ * between applications composed by the application router.
+ * <p>
+ * Messages sent on a loopback connection are handed over by the {@link ConnectorManager} to the inbound
+ * processing without being encoded and parsed. As no message can be lost, the connection is considered
+ * as reliable by transactions.
+ */
+public class LoopbackConnection implements SipConnection
+{
+	private final SipConnector _connector;
+	private final InetAddress _address;
+
+	public LoopbackConnection(SipConnector connector, InetAddress address)
+	{
+		_connector = connector;
+		_address = address;
+	}
+
+	public SipConnector getConnector()
+	{
+		return _connector;
+	}
+
+	public InetAddress getLocalAddress()
+	{
+		return _address;
+	}
+
+	public int getLocalPort()
+	{
+		return _connector.getPort();
+	}
+
+	public InetAddress getRemoteAddress()
+	{
+		return _address;
+	}
+
+	public int getRemotePort()
+	{
+		return _connector.getPort();
+	}
+
+	/**
+	 * Writes the encoded message on the connector. Only used if the message has not been handed over
+	 * by the {@link ConnectorManager}.
+	 */
+	public void write(Buffer buffer) throws IOException
+	{
+		SipConnection connection = _connector.getConnection(_address, _connector.getPort());
+		if (connection == null)
+			throw new IOException("Could not find connection to " + this);
+		connection.write(buffer);
+	}
+
+	public boolean isOpen()
+	{
+		return _connector.isRunning();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "loopback/" + _address.getHostAddress() + ":" + _connector.getPort();
+	}
+}
@@ -31,6 +31,7 @@ import org.cipango.log.event.Events;
 import org.cipango.server.ar.ApplicationRouterLoader;
 import org.cipango.server.ar.RouterInfoUtil;
 import org.cipango.server.handler.SipContextHandlerCollection;
+import org.cipango.server.metrics.MetricsRegistry;
 import org.cipango.server.session.SessionManager;
 import org.cipango.server.transaction.TransactionManager;
 import org.cipango.sip.SipURIImpl;
@@ -69,6 +70,9 @@ public class Server extends org.eclipse.jetty.server.Server implements SipHandle
     
     private SessionManager _sessionManager;    
     private SipApplicationRouter _applicationRouter;
+    private StatelessRouter _statelessRouter;
+    private final MetricsRegistry _metricsRegistry = new MetricsRegistry();
+    private final StatelessProxy _statelessProxy = new StatelessProxy(this);
 
     private final AtomicLong _statsStartedAt = new AtomicLong(System.currentTimeMillis());
     
@@ -166,6 +170,25 @@ public class Server extends org.eclipse.jetty.server.Server implements SipHandle
 		return _applicationRouter;
 	}
 	
+	/**
+	 * Sets the router used to select requests forwarded statelessly, without invoking applications.
+	 */
+	public void setStatelessRouter(StatelessRouter statelessRouter)
+	{
+		getContainer().update(this, _statelessRouter, statelessRouter, "statelessRouter");
+		_statelessRouter = statelessRouter;
+	}
+	
+	public StatelessRouter getStatelessRouter()
+	{
+		return _statelessRouter;
+	}
+	
+	public StatelessProxy getStatelessProxy()
+	{
+		return _statelessProxy;
+	}
+	
     public void applicationStarted(SipAppContext context)
     {
     	if (isStarted())
@@ -251,6 +274,8 @@ public class Server extends org.eclipse.jetty.server.Server implements SipHandle
 	public void setTransactionManager(TransactionManager transactionManager) 
 	{
 		getContainer().update(this, _transactionManager, transactionManager, "transactionManager", true);
+		if (_transactionManager != null && _transactionManager != transactionManager)
+			_transactionManager.setServer(null);
 		_transactionManager = transactionManager;
 		_transactionManager.setServer(this);
 	}
@@ -299,6 +324,15 @@ public class Server extends org.eclipse.jetty.server.Server implements SipHandle
 		return _sessionManager;
 	}
 	
+	/**
+	 * Returns the registry holding the metrics of this server. Each server has its own registry
+	 * so that several servers in the same JVM do not share their counters.
+	 */
+	public MetricsRegistry getMetricsRegistry()
+	{
+		return _metricsRegistry;
+	}
+	
 	public void allStatsReset()
 	{
 		_statsStartedAt.set(System.currentTimeMillis());
@@ -112,7 +112,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		if (isCommitted())
 			throw new IllegalStateException("Message is committed");
 		
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (hi.getType() != HeaderInfo.ADDRESS && hi.getOrdinal() != -1)
@@ -142,7 +142,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		if (isCommitted())
 			throw new IllegalStateException("Message is committed");
 		
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (isSystemHeader(hi)) 
@@ -231,7 +231,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 	 */
 	public Address getAddressHeader(String name) throws ServletParseException 
 	{
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (hi.getType() != HeaderInfo.ADDRESS && hi.getOrdinal() != -1)
@@ -260,7 +260,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 	 */
 	public ListIterator<Address> getAddressHeaders(String name) throws ServletParseException 
 	{
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (hi.getType() != HeaderInfo.ADDRESS && hi.getOrdinal() != -1)
@@ -615,7 +615,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		if (isCommitted())
 			throw new IllegalStateException("Message is committed");
 		
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (isSystemHeader(hi)) 
@@ -640,7 +640,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		if (isCommitted())
 			throw new IllegalStateException("Message is committed");
 		
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (isSystemHeader(hi)) 
@@ -789,7 +789,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		if (name == null || value == null)
 			throw new NullPointerException("Null value or name");
 		
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (isSystemHeader(hi)) 
@@ -806,7 +806,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		if (isCommitted())
 			throw new IllegalStateException("Message is committed");
 		
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (isSystemHeader(hi)) 
@@ -823,7 +823,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 	 */
 	public Parameterable getParameterableHeader(String name) throws ServletParseException
 	{
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (hi.getType() != HeaderInfo.PARAMETERABLE && hi.getType() != HeaderInfo.ADDRESS && hi.getOrdinal() != -1)
@@ -842,7 +842,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 	 */
 	public ListIterator<? extends Parameterable> getParameterableHeaders(String name) throws ServletParseException
 	{
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (hi.getType() != HeaderInfo.PARAMETERABLE && hi.getType() != HeaderInfo.ADDRESS && hi.getOrdinal() != -1)
@@ -872,7 +872,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		if (isCommitted())
 			throw new IllegalStateException("Message is committed");
 		
-		Buffer buffer = SipHeaders.CACHE.lookup(name);
+		Buffer buffer = SipHeaders.getName(name);
 		HeaderInfo hi = SipHeaders.getType(buffer);
 		
 		if (isSystemHeader(hi)) 
@@ -954,11 +954,27 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 	}
 	
 	public Object clone() 
+	{
+		return clone(_fields.clone());
+	}
+	
+	/**
+	 * Returns a copy of this message whose header values are shared with this message until either of 
+	 * them modifies them.
+	 * 
+	 * @see SipFields#share()
+	 */
+	public Object cloneShared()
+	{
+		return clone(_fields.share());
+	}
+	
+	protected Object clone(SipFields fields)
 	{
 		try 
 		{
 			SipMessage clone = (SipMessage) super.clone(); 
-			clone._fields = (SipFields) _fields.clone();
+			clone._fields = fields;
 			clone._committed = false;
 			clone._tx = null;
 			clone._attributes = null;
@@ -1029,7 +1045,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 	
 	protected boolean isSystemHeader(String name) 
 	{
-		CachedBuffer buffer = SipHeaders.CACHE.get(name);
+		CachedBuffer buffer = SipHeaders.lookup(name);
 		if (buffer == null) 
 			return false;
 		
@@ -1118,6 +1134,11 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		_content = content;
 	}
 	
+	protected void setFields(SipFields fields)
+	{
+		_fields = fields;
+	}
+	
 	public void setSession(Session session)
 	{
 		_session = session;
@@ -70,6 +70,7 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
     private boolean _recurse = true;
     private boolean _supervised = true;
     private boolean _noCancel = false;
+    private boolean _stateful = true;
         
     private int _proxyTimeout = DEFAULT_TIMEOUT;
     
@@ -258,7 +259,7 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
 	 */
 	public boolean getStateful() 
     {
-		return true;
+		return _stateful;
 	}
 	
 	/**
@@ -383,10 +384,23 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
 	}
 	
 	/**
+	 * When not stateful, the request is forwarded as specified in RFC 3261 §16.11 without client 
+	 * transactions nor timer C, and the server transaction is terminated. Only the first target is 
+	 * forwarded: the other targets given to {@link #proxyTo(List)} or {@link #createProxyBranches(List)}
+	 * are ignored, whether the proxy is parallel or not. 
+	 * Responses are forwarded by the container using only their Via header, so they are not 
+	 * passed to the application. As no state is kept, a CANCEL is not forwarded: stateless proxies 
+	 * that must forward CANCEL requests should use a {@link StatelessRouter} instead.
+	 * 
 	 * @see Proxy#setStateful(boolean)
 	 * @deprecated
 	 */
-	public void setStateful(boolean b) { }
+	public void setStateful(boolean b) 
+	{
+		if (_started)
+			throw new IllegalStateException("Proxy is started");
+		_stateful = b;
+	}
 	
 	/**
 	 * @see Proxy#setSupervised(boolean)
@@ -406,6 +420,12 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
 		if (_tx.isCompleted())
         	throw new IllegalStateException("Transaction has completed");
 		
+		if (!_stateful)
+		{
+			startStateless();
+			return;
+		}
+		
 		if (!_parallel && _actives > 0)
 			return;
 		
@@ -438,6 +458,20 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
     	// End patch 
 	}
 	
+	private void startStateless()
+	{
+		if (LazyList.size(_targets) == 0)
+			return;
+		
+		Branch branch = (Branch) LazyList.get(_targets, 0);
+		if (LazyList.size(_targets) > 1 && LOG.isDebugEnabled())
+			LOG.debug("Stateless proxy only forwards to first target {}", branch.getUri());
+		_targets = null;
+		
+		_tx.terminate();
+		branch.startStateless();
+	}
+	
 	// ----------------------------------------------------------------
 	
 	private SipURI newProxyURI(boolean applicationId)
@@ -636,10 +670,12 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
         
         private Object _recursedBranches;
         
+        private boolean _statelessStarted;
+        
         public Branch(URI uri)
         {
         	_uri = uri;
-        	_request = (SipRequest) ((SipRequest) getOriginalRequest()).clone();
+        	_request = (SipRequest) ((SipRequest) getOriginalRequest()).cloneShared();
         	_request.setProxyImpl(((SipRequest) getOriginalRequest()).getProxyImpl());
         	if (getOriginalRequest().isInitial())
         		_request.setRoutingDirective(SipApplicationRoutingDirective.CONTINUE, getOriginalRequest());
@@ -658,7 +694,7 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
          */
         public void cancel(String[] protocol, int[] reasonCode, String[] reasonText)
         {
-        	if (!_ctx.isCompleted())
+        	if (_ctx != null && !_ctx.isCompleted())
         	{
 	        	stopTimerC();
 	            
@@ -770,7 +806,7 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
 		 */
 		public boolean isStarted() 
 		{
-			return _ctx != null;
+			return _ctx != null || _statelessStarted;
 		}
 		
 		/**
@@ -845,20 +881,7 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
         
 		protected void start()
 		{
-            int mf = _request.getMaxForwards();
-            if (mf == -1)
-                mf = __maxForwards;
-            else
-                mf--;
-            
-			_request.setMaxForwards(mf);
-			_request.setRequestURI(_uri);
-			
-			if (_branchRRUri != null) 
-				_request.addRecordRoute(new NameAddr(_branchRRUri));
-			
-			if (_branchPathUri != null && _request.isRegister())
-				_request.addAddressHeader(SipHeaders.PATH, new NameAddr(_branchPathUri), true);
+			prepare();
 				
 			//_ctx = _request.getCallSession().getServer().sendRequest(_request, this);
 			try
@@ -876,6 +899,42 @@ public class SipProxy implements Proxy, ServerTransactionListener, Serializable
 				// TODO
 			}
 		}
+		
+		protected void startStateless()
+		{
+			StatelessProxy statelessProxy = _tx.getCallSession().getServer().getStatelessProxy();
+			String branch = statelessProxy.getBranch(_request);
+			
+			prepare();
+			
+			try
+			{
+				statelessProxy.send(_request, branch);
+				_statelessStarted = true;
+			}
+			catch (Exception e)
+			{
+				LOG.debug(e);
+			}
+		}
+		
+		private void prepare()
+		{
+            int mf = _request.getMaxForwards();
+            if (mf == -1)
+                mf = __maxForwards;
+            else
+                mf--;
+            
+			_request.setMaxForwards(mf);
+			_request.setRequestURI(_uri);
+			
+			if (_branchRRUri != null) 
+				_request.addRecordRoute(new NameAddr(_branchRRUri));
+			
+			if (_branchPathUri != null && _request.isRegister())
+				_request.addAddressHeader(SipHeaders.PATH, new NameAddr(_branchPathUri), true);
+		}
         
         public void startTimerC()
         {
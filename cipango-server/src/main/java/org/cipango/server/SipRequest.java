@@ -51,6 +51,7 @@ import org.cipango.server.transaction.ClientTransaction;
 import org.cipango.server.transaction.ServerTransaction;
 import org.cipango.sip.NameAddr;
 import org.cipango.sip.RAck;
+import org.cipango.sip.SipFields;
 import org.cipango.sip.SipHeaders;
 import org.cipango.sip.SipMethods;
 import org.cipango.sip.SipParams;
@@ -76,7 +77,7 @@ public class SipRequest extends SipMessage implements SipServletRequest
     
     private Address _poppedRoute;
     private Address _initialPoppedRoute;
-
+
     private Serializable _stateInfo;
     private SipApplicationRouterInfo _nextRouterInfo;
   
@@ -730,9 +731,9 @@ public class SipRequest extends SipMessage implements SipServletRequest
 		_region = region;
 	}
 	
-	public Object clone() 
+	protected Object clone(SipFields fields) 
 	{
-		SipRequest clone = (SipRequest) super.clone(); 
+		SipRequest clone = (SipRequest) super.clone(fields); 
 		clone._region = null;
 		clone._subscriberURI = null;
 		clone._proxy = null;
@@ -487,9 +487,9 @@ public class SipResponse extends SipMessage implements SipServletResponse
 		return _status + " " + _reason;
 	}
 
-	public Object clone()
+	protected Object clone(SipFields fields)
 	{
-		SipResponse clone = (SipResponse) super.clone();
+		SipResponse clone = (SipResponse) super.clone(fields);
 		clone._request = null;
 		clone._proxy = null;
 		return clone;
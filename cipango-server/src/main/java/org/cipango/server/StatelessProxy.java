@@ -0,0 +1,227 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.servlet.sip.Address;
+import javax.servlet.sip.SipServletResponse;
+import javax.servlet.sip.SipURI;
+import javax.servlet.sip.URI;
+
+import org.cipango.server.metrics.Counter;
+import org.cipango.sip.SipParams;
+import org.cipango.sip.SipVersions;
+import org.cipango.sip.Via;
+import org.cipango.util.HexString;
+import org.eclipse.jetty.util.StringUtil;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Stateless proxy as defined in RFC 3261 §16.11.
+ * <p>
+ * No call session nor transaction is created for forwarded requests. The branch of the forwarded
+ * request is computed from the received request, so that retransmissions and the CANCEL or non-2xx ACK
+ * of a request are forwarded with the same branch. Responses are recognized by the branch prefix and
+ * forwarded using only their Via header.
+ */
+public class StatelessProxy
+{
+	private static final Logger LOG = Log.getLogger(StatelessProxy.class);
+
+	public static final String BRANCH_PREFIX = Via.MAGIC_COOKIE + "sl";
+
+	private final Server _server;
+
+	private final Counter _requestsStats = new Counter(
+			"sip_stateless_requests_total", "Requests forwarded statelessly");
+	private final Counter _responsesStats = new Counter(
+			"sip_stateless_responses_total", "Responses forwarded statelessly");
+
+	public StatelessProxy(Server server)
+	{
+		_server = server;
+		server.getMetricsRegistry().register(_requestsStats);
+		server.getMetricsRegistry().register(_responsesStats);
+	}
+
+	/**
+	 * Forwards the received request to <code>target</code>.
+	 */
+	public void forward(SipRequest request, URI target) throws IOException
+	{
+		String branch = getBranch(request);
+		if (!decrementMaxForwards(request))
+			return;
+		request.setRequestURI(target);
+
+		send(request, branch);
+	}
+
+	/**
+	 * Decrements the Max-Forwards of the request or answers with a 483 response if it reached 0.
+	 * @return <code>false</code> if the request must not be forwarded.
+	 */
+	public boolean decrementMaxForwards(SipRequest request) throws IOException
+	{
+		int maxForwards = request.getMaxForwards();
+		if (maxForwards == 0)
+		{
+			if (!request.isAck())
+			{
+				SipResponse response = new SipResponse(request, SipServletResponse.SC_TOO_MANY_HOPS, null);
+				response.to().setParameter(SipParams.TAG, ID.newTag());
+				_server.getConnectorManager().sendResponse(response);
+			}
+			return false;
+		}
+		request.setMaxForwards(maxForwards == -1 ? SipProxy.__maxForwards : maxForwards - 1);
+		return true;
+	}
+
+	/**
+	 * Adds a Via with the given branch on top of the request and sends it to its next hop, that is
+	 * the top Route if any or the request URI.
+	 */
+	public void send(SipRequest request, String branch) throws IOException
+	{
+		Address route = request.getTopRoute();
+		URI uri = route != null ? route.getURI() : request.getRequestURI();
+
+		if (!uri.isSipURI())
+			throw new IOException("Cannot route on URI: " + uri);
+
+		send(request, branch, (SipURI) uri);
+	}
+
+	/**
+	 * Adds a Via with the given branch on top of the request and sends it to <code>target</code>,
+	 * whatever its Route headers and request URI.
+	 */
+	public void send(SipRequest request, String branch, SipURI target) throws IOException
+	{
+		InetAddress address;
+		if (target.getMAddrParam() != null)
+			address = InetAddress.getByName(target.getMAddrParam());
+		else
+			address = InetAddress.getByName(target.getHost());
+
+		int transport = SipConnectors.getOrdinal(target.getTransportParam());
+		if (transport == -1)
+			transport = SipConnectors.UDP_ORDINAL;
+
+		int port = target.getPort();
+		if (port == -1)
+			port = SipConnectors.getDefaultPort(transport);
+
+		Via via = new Via(SipVersions.SIP_2_0, null, null);
+		via.setBranch(branch);
+		request.pushVia(via);
+
+		ConnectorManager connectorManager = _server.getConnectorManager();
+		SipConnection connection = connectorManager.getConnection(request, transport, address, port);
+		connectorManager.send(request, connection);
+		_requestsStats.increment();
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("Forwarded {} statelessly to {}", request.getRequestLine(), connection);
+	}
+
+	/**
+	 * Returns <code>true</code> if the response is for a request forwarded by this proxy, that is if
+	 * its top Via has a branch generated by this proxy and designates one of the connectors. A
+	 * response with a forged branch but a Via of another host is not forwarded.
+	 */
+	public boolean isStateless(SipResponse response)
+	{
+		Via via = response.getTopVia();
+		if (via == null)
+			return false;
+		String branch = via.getBranch();
+		if (branch == null || !branch.startsWith(BRANCH_PREFIX))
+			return false;
+		return _server.getConnectorManager().getLocalAddresses().isLocal(via.getHost(), via.getPort());
+	}
+
+	/**
+	 * Removes the top Via of the response and sends it to the address found in the next one.
+	 */
+	public void forwardResponse(SipResponse response) throws IOException
+	{
+		response.removeTopVia();
+		if (response.getTopVia() == null)
+		{
+			LOG.debug("Dropping response {} with no more Via", response.getRequestLine());
+			return;
+		}
+		_server.getConnectorManager().sendResponse(response, null);
+		_responsesStats.increment();
+	}
+
+	/**
+	 * Computes the branch of the forwarded request. If the request has a RFC 3261 branch, it is used
+	 * with the Request-URI, else the branch is computed from the other transaction identifiers. The To
+	 * tag is not used, so that the ACK of a non-2xx response gets the same branch as the INVITE.
+	 */
+	public String getBranch(SipRequest request)
+	{
+		StringBuilder sb = new StringBuilder(128);
+
+		Via via = request.getTopVia();
+		String branch = via.getBranch();
+		if (branch != null && branch.startsWith(Via.MAGIC_COOKIE))
+		{
+			sb.append(branch);
+		}
+		else
+		{
+			sb.append(via.getHost()).append(':').append(via.getPort());
+			sb.append('|').append(request.from().getParameter(SipParams.TAG));
+			sb.append('|').append(request.getCallId());
+			sb.append('|').append(request.getCSeq().getNumber());
+		}
+		sb.append('|').append(request.getRequestURI());
+
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest(sb.toString().getBytes(StringUtil.__UTF8));
+			return BRANCH_PREFIX + HexString.toHexString(digest, 0, 8);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public long getForwardedRequests()
+	{
+		return _requestsStats.getValue();
+	}
+
+	public long getForwardedResponses()
+	{
+		return _responsesStats.getValue();
+	}
+}
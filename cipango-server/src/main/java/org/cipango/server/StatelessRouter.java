@@ -0,0 +1,42 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.URI;
+
+/**
+ * Container-level routing for requests proxied statelessly.
+ * <p>
+ * The router is invoked for each received request, including CANCEL and ACK, before any application
+ * is selected and after the routes pointing to this server have been removed. Requests for which a
+ * target is returned are forwarded by the {@link StatelessProxy} and no call session, transaction nor
+ * application session is created for them.
+ *
+ * @see Server#setStatelessRouter(StatelessRouter)
+ */
+public interface StatelessRouter
+{
+	/**
+	 * Returns the target of the request. The request URI should be returned if the request should only
+	 * be sent to its next hop, for instance to its top Route. As no state is kept, the same target must
+	 * be returned for a request, its retransmissions and the CANCEL or ACK matching it.
+	 *
+	 * @param request the received request. It must not be modified.
+	 * @return the URI the request should be forwarded to or <code>null</code> if the request should be
+	 *         processed by applications.
+	 */
+	URI route(SipServletRequest request);
+}
@@ -0,0 +1,490 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cipango.server.metrics.Counter;
+import org.cipango.server.metrics.MetricsRegistry;
+import org.cipango.sip.SipMethods;
+import org.cipango.util.TokenBucketSketch;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Limits the rate of the messages received by the connectors, before they use a thread of the SIP
+ * thread pool.
+ * <p>
+ * Messages are limited by token buckets per source address and per source address and port, kept in
+ * {@link TokenBucketSketch}es so that the memory used does not depend on the number of sources, and
+ * by a token bucket per request method, shared by all sources. Trusted addresses, such as the ones of
+ * SBCs, are only limited by method.
+ * <p>
+ * Responses and ACK, BYE and CANCEL requests are not limited per source: they belong to transactions
+ * or dialogs already accepted, and dropping them would only cause retransmissions and hanging calls.
+ * <p>
+ * UDP datagrams are checked before being parsed, the method being read from the first line. Messages
+ * received on stream connections are checked once parsed, and new connections are checked as a message
+ * from their source.
+ * <p>
+ * The sources with the most dropped messages are kept with the Space-Saving algorithm.
+ */
+public class TrafficShaper extends AbstractLifeCycle
+{
+	private static final Logger LOG = Log.getLogger(TrafficShaper.class);
+
+	public static final int DEFAULT_WIDTH = 16384;
+	public static final int DEPTH = 3;
+	public static final int TOP_OFFENDERS = 20;
+
+	private static final byte[] SIP_VERSION = { 'S', 'I', 'P', '/' };
+	private static final byte[][] NOT_LIMITED_BY_SOURCE = { SIP_VERSION, "ACK ".getBytes(), "BYE ".getBytes(), 
+		"CANCEL ".getBytes() };
+
+	private double _addressRate = 2000;
+	private double _addressBurst = 4000;
+	private double _endpointRate = 500;
+	private double _endpointBurst = 1000;
+	private int _width = DEFAULT_WIDTH;
+
+	private TokenBucketSketch _addresses;
+	private TokenBucketSketch _endpoints;
+	private volatile MethodBucket[] _methods = new MethodBucket[0];
+	private volatile Set<InetAddress> _trustedAddresses = Collections.emptySet();
+
+	private final Offenders _offenders = new Offenders(TOP_OFFENDERS);
+	private final AtomicLong _droppedBySource = new AtomicLong();
+	private final AtomicLong _droppedByMethod = new AtomicLong();
+	private ConnectorManager _connectorManager;
+
+	private final Counter _droppedStats = new Counter(
+			"sip_shaper_dropped_total", "Received SIP messages dropped by rate limits");
+
+	public void setConnectorManager(ConnectorManager connectorManager)
+	{
+		_connectorManager = connectorManager;
+	}
+
+	/**
+	 * @return the number of messages allowed per second from a source address.
+	 */
+	public double getAddressRate()
+	{
+		return _addressRate;
+	}
+
+	public void setAddressRate(double addressRate)
+	{
+		checkStopped();
+		_addressRate = addressRate;
+	}
+
+	public double getAddressBurst()
+	{
+		return _addressBurst;
+	}
+
+	public void setAddressBurst(double addressBurst)
+	{
+		checkStopped();
+		_addressBurst = addressBurst;
+	}
+
+	/**
+	 * @return the number of messages allowed per second from a source address and port.
+	 */
+	public double getEndpointRate()
+	{
+		return _endpointRate;
+	}
+
+	public void setEndpointRate(double endpointRate)
+	{
+		checkStopped();
+		_endpointRate = endpointRate;
+	}
+
+	public double getEndpointBurst()
+	{
+		return _endpointBurst;
+	}
+
+	public void setEndpointBurst(double endpointBurst)
+	{
+		checkStopped();
+		_endpointBurst = endpointBurst;
+	}
+
+	/**
+	 * @return the number of buckets per row of the sketches.
+	 */
+	public int getWidth()
+	{
+		return _width;
+	}
+
+	public void setWidth(int width)
+	{
+		checkStopped();
+		_width = width;
+	}
+
+	/**
+	 * Limits the requests of the given method, whatever their source.
+	 * @param rate the number of requests allowed per second, <code>0</code> to remove the limit.
+	 */
+	public synchronized void setMethodRate(String method, double rate, double burst)
+	{
+		List<MethodBucket> methods = new ArrayList<MethodBucket>();
+		for (MethodBucket bucket : _methods)
+		{
+			if (!bucket._method.equals(method))
+				methods.add(bucket);
+		}
+		if (rate > 0)
+			methods.add(new MethodBucket(method, rate, burst));
+		_methods = methods.toArray(new MethodBucket[methods.size()]);
+	}
+
+	public String[] getMethodRates()
+	{
+		MethodBucket[] methods = _methods;
+		String[] rates = new String[methods.length];
+		for (int i = 0; i < methods.length; i++)
+			rates[i] = methods[i]._method + ": " + methods[i]._rate + "/s (burst " + methods[i]._burst + ")";
+		return rates;
+	}
+
+	public String[] getTrustedAddresses()
+	{
+		List<String> addresses = new ArrayList<String>();
+		for (InetAddress address : _trustedAddresses)
+			addresses.add(address.getHostAddress());
+		return addresses.toArray(new String[addresses.size()]);
+	}
+
+	/**
+	 * Sets the addresses which are not limited per source.
+	 */
+	public void setTrustedAddresses(String[] addresses) throws UnknownHostException
+	{
+		Set<InetAddress> trusted = new HashSet<InetAddress>();
+		for (int i = 0; addresses != null && i < addresses.length; i++)
+			trusted.add(InetAddress.getByName(addresses[i].trim()));
+		_trustedAddresses = trusted;
+	}
+
+	/**
+	 * @return the messages dropped by the address and endpoint limits.
+	 */
+	public long getDroppedBySource()
+	{
+		return _droppedBySource.get();
+	}
+
+	/**
+	 * @return the requests dropped by the method limits.
+	 */
+	public long getDroppedByMethod()
+	{
+		return _droppedByMethod.get();
+	}
+
+	/**
+	 * @return the sources with the most dropped messages, with their approximate number of dropped messages.
+	 */
+	public String[] getTopOffenders()
+	{
+		return _offenders.get();
+	}
+
+	public void statsReset()
+	{
+		_droppedBySource.set(0);
+		_droppedByMethod.set(0);
+		_droppedStats.reset();
+		_offenders.clear();
+	}
+
+	private void checkStopped()
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+	}
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		_addresses = _addressRate > 0 ? new TokenBucketSketch(DEPTH, _width, _addressRate, _addressBurst) : null;
+		_endpoints = _endpointRate > 0 ? new TokenBucketSketch(DEPTH, _width, _endpointRate, _endpointBurst) : null;
+		MetricsRegistry registry = getMetricsRegistry();
+		if (registry != null)
+			registry.register(_droppedStats);
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+		_addresses = null;
+		_endpoints = null;
+		MetricsRegistry registry = getMetricsRegistry();
+		if (registry != null)
+			registry.unregister(_droppedStats);
+	}
+
+	private MetricsRegistry getMetricsRegistry()
+	{
+		return _connectorManager == null ? null : _connectorManager.getMetricsRegistry();
+	}
+
+	/**
+	 * Checks a datagram before it is parsed.
+	 * @return <code>true</code> if the message is allowed.
+	 */
+	public boolean accept(InetAddress address, int port, byte[] b, int offset, int length)
+	{
+		long now = System.currentTimeMillis();
+		if (isLimitedBySource(b, offset, length) && !acceptSource(address, port, now))
+			return false;
+
+		MethodBucket[] methods = _methods;
+		if (methods.length == 0 || startsWith(b, offset, length, SIP_VERSION))
+			return true;
+		for (MethodBucket bucket : methods)
+		{
+			if (startsWith(b, offset, length, bucket._name) && length > bucket._name.length
+					&& b[offset + bucket._name.length] == ' ')
+				return acceptMethod(address, bucket, now);
+		}
+		return true;
+	}
+
+	/**
+	 * Checks a parsed message.
+	 * @param method the method of the request or <code>null</code> for a response.
+	 * @return <code>true</code> if the message is allowed.
+	 */
+	public boolean accept(InetAddress address, int port, String method)
+	{
+		long now = System.currentTimeMillis();
+		if (isLimitedBySource(method) && !acceptSource(address, port, now))
+			return false;
+
+		if (method != null)
+		{
+			for (MethodBucket bucket : _methods)
+			{
+				if (bucket._method.equals(method))
+					return acceptMethod(address, bucket, now);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks a new connection, as a message from its source.
+	 * @return <code>true</code> if the connection is allowed.
+	 */
+	public boolean accept(InetAddress address, int port)
+	{
+		return acceptSource(address, port, System.currentTimeMillis());
+	}
+
+	private static boolean isLimitedBySource(String method)
+	{
+		return method != null && !SipMethods.ACK.equals(method) && !SipMethods.BYE.equals(method) 
+			&& !SipMethods.CANCEL.equals(method);
+	}
+
+	private static boolean isLimitedBySource(byte[] b, int offset, int length)
+	{
+		for (byte[] prefix : NOT_LIMITED_BY_SOURCE)
+		{
+			if (startsWith(b, offset, length, prefix))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean acceptSource(InetAddress address, int port, long now)
+	{
+		if (_trustedAddresses.contains(address))
+			return true;
+
+		TokenBucketSketch addresses = _addresses;
+		TokenBucketSketch endpoints = _endpoints;
+		long hash = TokenBucketSketch.hash(address.getAddress(), 0);
+		// The endpoint is checked first so that a flooding port does not use up the rate of its address
+		if ((endpoints == null || endpoints.tryAcquire(hash * 31 + port, now))
+				&& (addresses == null || addresses.tryAcquire(hash, now)))
+			return true;
+
+		_droppedBySource.incrementAndGet();
+		dropped(address, null);
+		return false;
+	}
+
+	private boolean acceptMethod(InetAddress address, MethodBucket bucket, long now)
+	{
+		if (bucket.tryAcquire(now))
+			return true;
+		_droppedByMethod.incrementAndGet();
+		dropped(address, bucket._method);
+		return false;
+	}
+
+	private void dropped(InetAddress address, String method)
+	{
+		_droppedStats.increment();
+		_offenders.add(address);
+		if (LOG.isDebugEnabled())
+			LOG.debug("Dropped message from {} over {} rate", address, method == null ? "source" : method);
+	}
+
+	private static boolean startsWith(byte[] b, int offset, int length, byte[] prefix)
+	{
+		if (length < prefix.length)
+			return false;
+		for (int i = 0; i < prefix.length; i++)
+		{
+			if (b[offset + i] != prefix[i])
+				return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "TrafficShaper[address=" + _addressRate + "/s,endpoint=" + _endpointRate + "/s]";
+	}
+
+	static class MethodBucket
+	{
+		final String _method;
+		final byte[] _name;
+		final double _rate;
+		final double _burst;
+		private double _tokens;
+		private long _time;
+
+		MethodBucket(String method, double rate, double burst)
+		{
+			_method = method;
+			_name = method.getBytes();
+			_rate = rate;
+			_burst = burst;
+			_tokens = burst;
+			_time = System.currentTimeMillis();
+		}
+
+		synchronized boolean tryAcquire(long now)
+		{
+			if (now > _time)
+			{
+				_tokens = Math.min(_burst, _tokens + (now - _time) * _rate / 1000);
+				_time = now;
+			}
+			if (_tokens < 1)
+				return false;
+			_tokens -= 1;
+			return true;
+		}
+	}
+
+	/**
+	 * Keeps the sources with the most drops in a fixed number of counters. When a new source is added
+	 * while all counters are used, it replaces the source with the lowest count, whose count it inherits,
+	 * so that counts are overestimated by at most the count replaced.
+	 */
+	static class Offenders
+	{
+		private final int _capacity;
+		private final Map<InetAddress, long[]> _counts = new HashMap<InetAddress, long[]>();
+
+		Offenders(int capacity)
+		{
+			_capacity = capacity;
+		}
+
+		synchronized void add(InetAddress address)
+		{
+			long[] count = _counts.get(address);
+			if (count != null)
+			{
+				count[0]++;
+				return;
+			}
+			if (_counts.size() < _capacity)
+			{
+				_counts.put(address, new long[] { 1, 0 });
+				return;
+			}
+
+			InetAddress min = null;
+			long minCount = Long.MAX_VALUE;
+			for (Map.Entry<InetAddress, long[]> entry : _counts.entrySet())
+			{
+				if (entry.getValue()[0] < minCount)
+				{
+					min = entry.getKey();
+					minCount = entry.getValue()[0];
+				}
+			}
+			_counts.remove(min);
+			_counts.put(address, new long[] { minCount + 1, minCount });
+		}
+
+		synchronized String[] get()
+		{
+			List<Map.Entry<InetAddress, long[]>> entries = new ArrayList<Map.Entry<InetAddress, long[]>>(_counts.entrySet());
+			Collections.sort(entries, new Comparator<Map.Entry<InetAddress, long[]>>()
+			{
+				public int compare(Map.Entry<InetAddress, long[]> e1, Map.Entry<InetAddress, long[]> e2)
+				{
+					long c1 = e1.getValue()[0];
+					long c2 = e2.getValue()[0];
+					return c1 > c2 ? -1 : c1 < c2 ? 1 : 0;
+				}
+			});
+			String[] offenders = new String[entries.size()];
+			for (int i = 0; i < offenders.length; i++)
+			{
+				long[] count = entries.get(i).getValue();
+				offenders[i] = entries.get(i).getKey().getHostAddress() + ": " + count[0]
+						+ (count[1] > 0 ? " (+/- " + count[1] + ")" : "");
+			}
+			return offenders;
+		}
+
+		synchronized void clear()
+		{
+			_counts.clear();
+		}
+	}
+}
@@ -20,6 +20,10 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.sip.SipURI;
 import javax.servlet.sip.ar.SipApplicationRouterInfo;
@@ -38,6 +42,9 @@ public class RouterInfoUtil
 	private static final String ROUTES = "routes";
 	private static final String ROUTE_MODIFIER = "route-modifier";
 	
+	private static final int MAX_ENCODED = 1024;
+	private static final ConcurrentMap<Object, String> __encoded = new ConcurrentHashMap<Object, String>();
+	
 	public static void encode(SipURI uri, SipApplicationRouterInfo routerInfo) throws IOException
 	{
 		uri.setUser(ROUTER_INFO);
@@ -61,12 +68,49 @@ public class RouterInfoUtil
 	private static void setParameter(SipURI uri, String name, Serializable value) throws IOException
 	{
 		if (value != null)
+			uri.setParameter(name, encode(value));
+	}
+	
+	/**
+	 * Returns the serialized form of the value. The forms of immutable values, such as the regions and 
+	 * state infos of an application router repeating the same decisions, are kept so that they are 
+	 * serialized only once.
+	 */
+	private static String encode(Serializable value) throws IOException
+	{
+		Object key = getKey(value);
+		if (key != null)
+		{
+			String encoded = __encoded.get(key);
+			if (encoded != null)
+				return encoded;
+		}
+		
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bout);
+		out.writeObject(value);
+		String encoded = TypeUtil.toHexString(bout.toByteArray());
+		
+		if (key != null && __encoded.size() < MAX_ENCODED)
 		{
-			ByteArrayOutputStream bout = new ByteArrayOutputStream();
-			ObjectOutputStream out = new ObjectOutputStream(bout);
-			out.writeObject(value);
-			uri.setParameter(name, TypeUtil.toHexString(bout.toByteArray()));
+			if (key instanceof List)
+				key = Arrays.asList(((String[]) value).clone());
+			__encoded.putIfAbsent(key, encoded);
 		}
+		return encoded;
+	}
+	
+	private static Object getKey(Serializable value)
+	{
+		if (value instanceof String || value instanceof Integer || value instanceof Long)
+			return value;
+		if (value instanceof String[])
+			return Arrays.asList((String[]) value);
+		if (value == SipApplicationRoutingRegion.NEUTRAL_REGION
+				|| value == SipApplicationRoutingRegion.ORIGINATING_REGION
+				|| value == SipApplicationRoutingRegion.TERMINATING_REGION)
+			return value;
+		return null;
 	}
 	
 	private static Serializable getSerializable(SipURI uri, String name) throws IOException, ClassNotFoundException
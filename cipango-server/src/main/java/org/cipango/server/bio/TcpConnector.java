@@ -18,12 +18,11 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
+import org.cipango.io.BufferPool;
 import org.cipango.server.AbstractSipConnector;
 import org.cipango.server.SipConnection;
 import org.cipango.server.SipConnector;
@@ -59,7 +58,6 @@ public class TcpConnector extends AbstractSipConnector //implements Buffers
     private int _backlogSize = 50;
     
     private ThreadPool _tcpThreadPool;
-    private List<Buffer> _buffers = new ArrayList<Buffer>();
 		
 	protected void doStart() throws Exception 
 	{
@@ -145,6 +143,11 @@ public class TcpConnector extends AbstractSipConnector //implements Buffers
 	public void accept(int acceptorId) throws IOException, InterruptedException
 	{
 		Socket socket = _serverSocket.accept();
+		if (!isAllowed(socket.getInetAddress(), socket.getPort()))
+		{
+			socket.close();
+			return;
+		}
 		TcpConnection connection = new TcpConnection(socket);
 		addConnection(socket.getInetAddress(), socket.getPort(), connection);
 		connection.dispatch();
@@ -165,24 +168,12 @@ public class TcpConnector extends AbstractSipConnector //implements Buffers
 	
 	public Buffer getBuffer(int size) 
     {
-        synchronized (_buffers)
-        {
-            if (_buffers.size() == 0)
-            {
-                //System.out.println("Creating new buffer");
-                return newBuffer(10);
-            }
-            return (Buffer) _buffers.remove(_buffers.size() - 1);
-        }
+        return BufferPool.getDefault().getBuffer(size);
     }
     
     public void returnBuffer(Buffer buffer)
     {
-        synchronized (_buffers)
-        {
-            buffer.clear();
-            _buffers.add(buffer);
-        }
+        BufferPool.getDefault().returnBuffer(buffer);
     }
     
 	public Buffer newBuffer(int size) 
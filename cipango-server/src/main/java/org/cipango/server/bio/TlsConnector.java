@@ -201,6 +201,11 @@ public class TlsConnector extends TcpConnector
 		try
 		{
 			Socket socket = getServerSocket().accept();
+			if (!isAllowed(socket.getInetAddress(), socket.getPort()))
+			{
+				socket.close();
+				return;
+			}
 
 			TlsConnection connection = new TlsConnection((SSLSocket) socket);
 			addConnection(socket.getInetAddress(), socket.getPort(), connection);
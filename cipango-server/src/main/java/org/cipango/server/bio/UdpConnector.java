@@ -28,6 +28,7 @@ import org.cipango.server.SipConnectors;
 import org.cipango.server.SipMessage;
 import org.cipango.server.SipRequest;
 import org.cipango.server.SipResponse;
+import org.cipango.server.TrafficShaper;
 import org.cipango.sip.SipHeaders;
 import org.cipango.sip.SipParser;
 import org.cipango.sip.URIFactory;
@@ -112,6 +113,10 @@ public class UdpConnector extends AbstractSipConnector
 		int length = p.getLength();
 		if (length == 2 || length == 4) return;
 		
+		TrafficShaper shaper = getTrafficShaper();
+		if (shaper != null && !shaper.accept(p.getAddress(), p.getPort(), p.getData(), p.getOffset(), length))
+			return;
+		
 		byte[] b = new byte[length];
 		System.arraycopy(p.getData(), 0, b, 0, length);
 		
@@ -156,6 +161,15 @@ public class UdpConnector extends AbstractSipConnector
 		
 	}
 	
+	/**
+	 * Datagrams are checked before being parsed.
+	 */
+	@Override
+	protected boolean isAllowed(SipMessage message)
+	{
+		return true;
+	}
+	
 	public SipConnection getConnection(InetAddress address, int port)
 	{
 		return new UdpConnection(address, port);
@@ -289,10 +303,26 @@ public class UdpConnector extends AbstractSipConnector
 		
 		@Override
 		public void header(Buffer name, Buffer value) throws IOException
+		{
+			header(name, value, null);
+		}
+		
+		@Override
+		public void header(Buffer name, Buffer value, Buffer raw) throws IOException
 		{
 			if (_message == null)
 				throw new IOException("no status line");
 			
+			// Keep received line bounds so that the header can be copied as is if not modified.
+			int rawStart = -1;
+			int rawEnd = -1;
+			if (raw != null && raw.array() == value.array() && raw.length() >= 2
+					&& raw.peek(raw.putIndex() - 2) == '\r' && raw.peek(raw.putIndex() - 1) == '\n')
+			{
+				rawStart = raw.getIndex();
+				rawEnd = raw.putIndex();
+			}
+			
 			if (SipHeaders.getType(name).isList())
 	        {
 	            boolean quote = false;
@@ -323,7 +353,8 @@ public class UdpConnector extends AbstractSipConnector
 	                    //byte[] bValue = asArray(b, startValue, endValue - startValue);
 	                    
 	                    Buffer buffer = new View(value, startValue, startValue, endValue, Buffer.READONLY);
-	                    _message.getFields().addBuffer(name, buffer);
+	                    _message.getFields().addBuffer(name, buffer, rawStart, rawEnd);
+	                    rawStart = rawEnd;
 	                    
 	                    //value = new View(value, i + 1, i + 1, end, Buffer.READONLY);
 	                    
@@ -335,13 +366,13 @@ public class UdpConnector extends AbstractSipConnector
 	            value = new View(value, startValue, startValue, end, Buffer.READONLY);
 	            
 	            //byte[] bValue = asArray(b, startValue, end - startValue);
-	            _message.getFields().addBuffer(name, value);
+	            _message.getFields().addBuffer(name, value, rawStart, rawEnd);
 	            
 	            //value = new View(value, startValue, startValue, end, Buffer.READONLY);
 	        }
 	        else
 	        {
-	        	_message.getFields().addBuffer(name, value);
+	        	_message.getFields().addBuffer(name, value, rawStart, rawEnd);
 	        	//msg.getFields().addBuffer(name, new ByteArrayBuffer(value.asArray())); 
 	        }
 		}
@@ -23,6 +23,7 @@ import javax.servlet.sip.ServletParseException;
 import javax.servlet.sip.SipServletMessage;
 import javax.servlet.sip.SipServletResponse;
 import javax.servlet.sip.SipURI;
+import javax.servlet.sip.URI;
 import javax.servlet.sip.ar.SipApplicationRouterInfo;
 import javax.servlet.sip.ar.SipApplicationRoutingDirective;
 import javax.servlet.sip.ar.SipRouteModifier;
@@ -35,6 +36,8 @@ import org.cipango.server.SipHandler;
 import org.cipango.server.SipMessage;
 import org.cipango.server.SipRequest;
 import org.cipango.server.SipResponse;
+import org.cipango.server.StatelessProxy;
+import org.cipango.server.StatelessRouter;
 import org.cipango.server.ar.RouterInfoUtil;
 import org.cipango.server.session.CallSessionHandler;
 import org.cipango.server.session.SipSessionHandler;
@@ -176,12 +179,25 @@ public class SipContextHandlerCollection extends ContextHandlerCollection implem
 	
 	public void handle(SipServletMessage message) throws ServletException, IOException 
     {
+		StatelessProxy statelessProxy = ((Server) getServer()).getStatelessProxy();
+		
 		if (((SipMessage) message).isRequest())
 		{
 			SipRequest request = (SipRequest) message;
 		
 			Address route = popLocalRoute(request); 
 			
+			StatelessRouter statelessRouter = ((Server) getServer()).getStatelessRouter();
+			if (statelessRouter != null)
+			{
+				URI target = statelessRouter.route(request);
+				if (target != null)
+				{
+					statelessProxy.forward(request, target);
+					return;
+				}
+			}
+			
 			if (isInitial(request))
 	        {
 				request.setInitial(true);
@@ -290,7 +306,12 @@ public class SipContextHandlerCollection extends ContextHandlerCollection implem
 				if (route != null)
 					request.setPoppedRoute(route);
 			}
-		}		
+		}
+		else if (statelessProxy.isStateless((SipResponse) message))
+		{
+			statelessProxy.forwardResponse((SipResponse) message);
+			return;
+		}
 		_handler.handle(message);
     }
 	
@@ -0,0 +1,58 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic counter. It only goes back to zero on explicit {@link #reset()}.
+ */
+public class Counter extends Metric
+{
+	private final AtomicLong _value = new AtomicLong();
+
+	public Counter(String name, String help)
+	{
+		super(name, help);
+	}
+
+	public void increment()
+	{
+		_value.incrementAndGet();
+	}
+
+	public void add(long delta)
+	{
+		_value.addAndGet(delta);
+	}
+
+	@Override
+	public long getValue()
+	{
+		return _value.get();
+	}
+
+	@Override
+	public void reset()
+	{
+		_value.set(0);
+	}
+
+	@Override
+	public String getType()
+	{
+		return "counter";
+	}
+}
@@ -0,0 +1,105 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Value that can go up and down, like the number of current call sessions.
+ *
+ * {@link Threshold}s added to the gauge are evaluated on each update.
+ */
+public class Gauge extends Metric
+{
+	private static final Threshold[] NO_THRESHOLDS = new Threshold[0];
+
+	private final AtomicLong _value = new AtomicLong();
+	private volatile Threshold[] _thresholds = NO_THRESHOLDS;
+
+	public Gauge(String name, String help)
+	{
+		super(name, help);
+	}
+
+	public void set(long value)
+	{
+		_value.set(value);
+		updateThresholds(value);
+	}
+
+	public void increment()
+	{
+		updateThresholds(_value.incrementAndGet());
+	}
+
+	public void decrement()
+	{
+		updateThresholds(_value.decrementAndGet());
+	}
+
+	public synchronized void addThreshold(Threshold threshold)
+	{
+		Threshold[] thresholds = new Threshold[_thresholds.length + 1];
+		System.arraycopy(_thresholds, 0, thresholds, 0, _thresholds.length);
+		thresholds[_thresholds.length] = threshold;
+		_thresholds = thresholds;
+		threshold.update(this, getValue());
+	}
+
+	public synchronized void removeThreshold(Threshold threshold)
+	{
+		for (int i = 0; i < _thresholds.length; i++)
+		{
+			if (_thresholds[i] == threshold)
+			{
+				Threshold[] thresholds = new Threshold[_thresholds.length - 1];
+				System.arraycopy(_thresholds, 0, thresholds, 0, i);
+				System.arraycopy(_thresholds, i + 1, thresholds, i, thresholds.length - i);
+				_thresholds = thresholds;
+				return;
+			}
+		}
+	}
+
+	public Threshold[] getThresholds()
+	{
+		return _thresholds;
+	}
+
+	private void updateThresholds(long value)
+	{
+		Threshold[] thresholds = _thresholds;
+		for (int i = 0; i < thresholds.length; i++)
+			thresholds[i].update(this, value);
+	}
+
+	@Override
+	public long getValue()
+	{
+		return _value.get();
+	}
+
+	@Override
+	public void reset()
+	{
+		set(0);
+	}
+
+	@Override
+	public String getType()
+	{
+		return "gauge";
+	}
+}
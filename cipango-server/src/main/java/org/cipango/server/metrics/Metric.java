@@ -0,0 +1,58 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.metrics;
+
+/**
+ * A named value held in a {@link MetricsRegistry}.
+ *
+ * Metrics are updated directly by the server components owning them, so that reading them
+ * is only a volatile read and does not require going through JMX.
+ */
+public abstract class Metric
+{
+	private final String _name;
+	private final String _help;
+
+	protected Metric(String name, String help)
+	{
+		_name = name;
+		_help = help;
+	}
+
+	public String getName()
+	{
+		return _name;
+	}
+
+	public String getHelp()
+	{
+		return _help;
+	}
+
+	/**
+	 * @return the metric type as used in the text exposition format (<code>counter</code> or <code>gauge</code>).
+	 */
+	public abstract String getType();
+
+	public abstract long getValue();
+
+	public abstract void reset();
+
+	@Override
+	public String toString()
+	{
+		return _name + "=" + getValue();
+	}
+}
@@ -0,0 +1,80 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.cipango.server.Server;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * HTTP handler serving the {@link MetricsRegistry} snapshot as plain text.
+ *
+ * It is meant to be scraped by a monitoring system: values are read from the registry
+ * snapshot and no JMX access is done. Unless a registry is set, the registry of the Cipango
+ * {@link Server} the handler belongs to is served. It is typically wrapped in a context handler:
+ * <pre>
+ * &lt;New class="org.eclipse.jetty.server.handler.ContextHandler"&gt;
+ *   &lt;Set name="contextPath"&gt;/metrics&lt;/Set&gt;
+ *   &lt;Set name="handler"&gt;&lt;New class="org.cipango.server.metrics.MetricsHandler"/&gt;&lt;/Set&gt;
+ * &lt;/New&gt;
+ * </pre>
+ */
+public class MetricsHandler extends AbstractHandler
+{
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private MetricsRegistry _registry;
+
+	public void setRegistry(MetricsRegistry registry)
+	{
+		_registry = registry;
+	}
+
+	public MetricsRegistry getRegistry()
+	{
+		if (_registry != null)
+			return _registry;
+		if (getServer() instanceof Server)
+			return ((Server) getServer()).getMetricsRegistry();
+		return MetricsRegistry.getDefault();
+	}
+
+	public void handle(String target, Request baseRequest, HttpServletRequest request,
+			HttpServletResponse response) throws IOException, ServletException
+	{
+		if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod()))
+		{
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			baseRequest.setHandled(true);
+			return;
+		}
+
+		byte[] text = getRegistry().getSnapshot().getText();
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(CONTENT_TYPE);
+		response.setHeader("Cache-Control", "no-cache");
+		response.setContentLength(text.length);
+		if (!"HEAD".equals(request.getMethod()))
+			response.getOutputStream().write(text);
+		baseRequest.setHandled(true);
+	}
+}
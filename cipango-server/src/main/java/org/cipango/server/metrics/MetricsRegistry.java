@@ -0,0 +1,292 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.metrics;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * In-process registry of {@link Metric}s.
+ *
+ * Server components ({@link org.cipango.server.ConnectorManager},
+ * {@link org.cipango.server.transaction.TransactionManager},
+ * {@link org.cipango.server.session.SessionManager}...) own their metrics and register them in the
+ * registry of their {@link org.cipango.server.Server} while they are running, so that several
+ * servers in the same JVM do not share their values. The {@link #getDefault() default} registry
+ * holds the metrics that are not bound to a server, like the buffer pool or Diameter node ones. Readers use {@link #getSnapshot()} which returns
+ * a pre-aggregated view of all values, computed at most once per <code>snapshotInterval</code>
+ * whatever the number of concurrent readers.
+ */
+public class MetricsRegistry
+{
+	public static final long DEFAULT_SNAPSHOT_INTERVAL = 1000;
+
+	private static final MetricsRegistry __default = new MetricsRegistry();
+
+	private final Object _lock = new Object();
+
+	/** Metrics sorted by name, copied on registration. */
+	private volatile Metric[] _metrics = new Metric[0];
+	private volatile Snapshot _snapshot;
+	private long _snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+
+	public static MetricsRegistry getDefault()
+	{
+		return __default;
+	}
+
+	/**
+	 * Returns the counter with the given name, creating it if needed.
+	 * @throws IllegalArgumentException if a metric of another type is registered with this name.
+	 */
+	public Counter counter(String name, String help)
+	{
+		synchronized (_lock)
+		{
+			Metric metric = getMetric(name);
+			if (metric == null)
+				return (Counter) register(new Counter(name, help));
+			if (!(metric instanceof Counter))
+				throw new IllegalArgumentException("Metric " + name + " is not a counter");
+			return (Counter) metric;
+		}
+	}
+
+	/**
+	 * Returns the gauge with the given name, creating it if needed.
+	 * @throws IllegalArgumentException if a metric of another type is registered with this name.
+	 */
+	public Gauge gauge(String name, String help)
+	{
+		synchronized (_lock)
+		{
+			Metric metric = getMetric(name);
+			if (metric == null)
+				return (Gauge) register(new Gauge(name, help));
+			if (!(metric instanceof Gauge))
+				throw new IllegalArgumentException("Metric " + name + " is not a gauge");
+			return (Gauge) metric;
+		}
+	}
+
+	public Metric register(Metric metric)
+	{
+		synchronized (_lock)
+		{
+			Metric[] metrics = _metrics;
+			int index = indexOf(metrics, metric.getName());
+			if (index >= 0)
+				throw new IllegalArgumentException("Metric " + metric.getName() + " already registered");
+
+			index = -index - 1;
+			Metric[] newMetrics = new Metric[metrics.length + 1];
+			System.arraycopy(metrics, 0, newMetrics, 0, index);
+			newMetrics[index] = metric;
+			System.arraycopy(metrics, index, newMetrics, index + 1, metrics.length - index);
+			_metrics = newMetrics;
+			_snapshot = null;
+			return metric;
+		}
+	}
+
+	public void unregister(String name)
+	{
+		synchronized (_lock)
+		{
+			Metric[] metrics = _metrics;
+			int index = indexOf(metrics, name);
+			if (index < 0)
+				return;
+
+			Metric[] newMetrics = new Metric[metrics.length - 1];
+			System.arraycopy(metrics, 0, newMetrics, 0, index);
+			System.arraycopy(metrics, index + 1, newMetrics, index, metrics.length - index - 1);
+			_metrics = newMetrics;
+			_snapshot = null;
+		}
+	}
+
+	/**
+	 * Unregisters the metric if it is the one registered with its name.
+	 */
+	public void unregister(Metric metric)
+	{
+		synchronized (_lock)
+		{
+			if (getMetric(metric.getName()) == metric)
+				unregister(metric.getName());
+		}
+	}
+
+	public Metric getMetric(String name)
+	{
+		Metric[] metrics = _metrics;
+		int index = indexOf(metrics, name);
+		return index >= 0 ? metrics[index] : null;
+	}
+
+	public Metric[] getMetrics()
+	{
+		return _metrics;
+	}
+
+	public void setSnapshotInterval(long snapshotInterval)
+	{
+		_snapshotInterval = snapshotInterval;
+	}
+
+	public long getSnapshotInterval()
+	{
+		return _snapshotInterval;
+	}
+
+	/**
+	 * Returns the last snapshot if it is younger than <code>snapshotInterval</code>, or builds a new one.
+	 */
+	public Snapshot getSnapshot()
+	{
+		long now = System.currentTimeMillis();
+		Snapshot snapshot = _snapshot;
+		if (snapshot != null && now - snapshot.getTimestamp() < _snapshotInterval)
+			return snapshot;
+
+		synchronized (_lock)
+		{
+			snapshot = _snapshot;
+			if (snapshot == null || now - snapshot.getTimestamp() >= _snapshotInterval)
+			{
+				snapshot = new Snapshot(_metrics, now);
+				_snapshot = snapshot;
+			}
+			return snapshot;
+		}
+	}
+
+	public void resetAll()
+	{
+		Metric[] metrics = _metrics;
+		for (int i = 0; i < metrics.length; i++)
+			metrics[i].reset();
+		_snapshot = null;
+	}
+
+	private static int indexOf(Metric[] metrics, String name)
+	{
+		int low = 0;
+		int high = metrics.length - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int cmp = metrics[mid].getName().compareTo(name);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Immutable view of all metrics values at a given time.
+	 */
+	public static class Snapshot
+	{
+		private final long _timestamp;
+		private final Metric[] _metrics;
+		private final long[] _values;
+		private byte[] _text;
+
+		Snapshot(Metric[] metrics, long timestamp)
+		{
+			_timestamp = timestamp;
+			_metrics = metrics;
+			_values = new long[metrics.length];
+			for (int i = 0; i < metrics.length; i++)
+				_values[i] = metrics[i].getValue();
+		}
+
+		public long getTimestamp()
+		{
+			return _timestamp;
+		}
+
+		public int size()
+		{
+			return _metrics.length;
+		}
+
+		public String getName(int index)
+		{
+			return _metrics[index].getName();
+		}
+
+		public long getValue(int index)
+		{
+			return _values[index];
+		}
+
+		/**
+		 * @return the value of the metric or <code>defaultValue</code> if it is not registered.
+		 */
+		public long getValue(String name, long defaultValue)
+		{
+			int index = indexOf(_metrics, name);
+			return index >= 0 ? _values[index] : defaultValue;
+		}
+
+		/**
+		 * Returns the snapshot in plain text exposition format. The text is built once per snapshot.
+		 */
+		public synchronized byte[] getText()
+		{
+			if (_text == null)
+			{
+				StringBuilder sb = new StringBuilder(_metrics.length * 96);
+				for (int i = 0; i < _metrics.length; i++)
+				{
+					Metric metric = _metrics[i];
+					if (metric.getHelp() != null)
+						sb.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+					sb.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+					sb.append(metric.getName()).append(' ').append(_values[i]).append('\n');
+				}
+				try
+				{
+					_text = sb.toString().getBytes("UTF-8");
+				}
+				catch (UnsupportedEncodingException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+			return _text;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append(_timestamp).append('[');
+			for (int i = 0; i < _metrics.length; i++)
+			{
+				if (i > 0)
+					sb.append(", ");
+				sb.append(_metrics[i].getName()).append('=').append(_values[i]);
+			}
+			return sb.append(']').toString();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.metrics;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Edge-triggered threshold on a {@link Gauge}.
+ *
+ * The threshold is evaluated by the gauge on each update, so no polling is needed. The listener is
+ * notified once when the value reaches the <code>raise</code> level and the threshold is only rearmed
+ * when the value goes back to the <code>clear</code> level or below.
+ */
+public class Threshold
+{
+	private final long _raise;
+	private final long _clear;
+	private final Listener _listener;
+	private final AtomicBoolean _raised = new AtomicBoolean();
+
+	/**
+	 * @param raise the value at which the threshold is raised.
+	 * @param clear the value at or below which the threshold is cleared, must be lower than <code>raise</code>.
+	 */
+	public Threshold(long raise, long clear, Listener listener)
+	{
+		if (clear >= raise)
+			throw new IllegalArgumentException("Clear level " + clear + " must be lower than " + raise);
+		_raise = raise;
+		_clear = clear;
+		_listener = listener;
+	}
+
+	public long getRaise()
+	{
+		return _raise;
+	}
+
+	public long getClear()
+	{
+		return _clear;
+	}
+
+	public boolean isRaised()
+	{
+		return _raised.get();
+	}
+
+	protected void update(Gauge gauge, long value)
+	{
+		if (value >= _raise)
+		{
+			if (_raised.compareAndSet(false, true))
+				_listener.thresholdRaised(gauge, value);
+		}
+		else if (value <= _clear)
+		{
+			if (_raised.compareAndSet(true, false))
+				_listener.thresholdCleared(gauge, value);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Threshold[" + _raise + "/" + _clear + (isRaised() ? ",raised]" : "]");
+	}
+
+	public interface Listener
+	{
+		void thresholdRaised(Gauge gauge, long value);
+
+		void thresholdCleared(Gauge gauge, long value);
+	}
+}
@@ -14,6 +14,7 @@
 
 package org.cipango.server.session;
 
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
@@ -28,8 +29,10 @@ import java.util.List;
 import java.util.Map;
 
 import javax.servlet.http.HttpSession;
+import javax.servlet.sip.ServletParseException;
 import javax.servlet.sip.ServletTimer;
 import javax.servlet.sip.SipApplicationSession;
+import javax.servlet.sip.SipApplicationSessionActivationListener;
 import javax.servlet.sip.SipApplicationSessionAttributeListener;
 import javax.servlet.sip.SipApplicationSessionBindingEvent;
 import javax.servlet.sip.SipApplicationSessionBindingListener;
@@ -106,6 +109,7 @@ public class AppSession implements AppSessionIf
     protected SipAppContext _context;
     
     protected Map<String, Object> _attributes;
+    private Map<String, EncodedAttribute> _encodedAttributes;
 
     protected long _created = System.currentTimeMillis();
     protected long _lastAccessed;
@@ -382,6 +386,8 @@ public class AppSession implements AppSessionIf
 			_attributes = new HashMap<String, Object>();
 	
 		Object oldValue = _attributes.put(name, value);
+		if (_encodedAttributes != null)
+			_encodedAttributes.remove(name);
 
 		if (oldValue == null || !value.equals(oldValue))
 		{
@@ -412,6 +418,8 @@ public class AppSession implements AppSessionIf
 			return;
 		
 		Object oldValue = _attributes.remove(name);
+		if (_encodedAttributes != null)
+			_encodedAttributes.remove(name);
 		
 		if (oldValue != null)
 		{
@@ -777,9 +785,298 @@ public class AppSession implements AppSessionIf
     	return this == session;
     }
     
+    /**
+     * Saves the state of this application session, of its sessions and of its persistent timers.
+     * Attributes and timer infos that are not serializable are not saved.
+     */
     public void save(DataOutputStream out)  throws IOException 
     {
     	out.writeUTF(_appId);
+    	out.writeUTF(getApplicationName());
+    	out.writeLong(_created);
+    	out.writeLong(_lastAccessed);
+    	out.writeInt(_expiryDelay);
+    	out.writeLong(_expiryTimer != null ? _expiryTimer.getExecutionTime() : -1);
+    	out.writeBoolean(_invalidateWhenReady);
+    	_encodedAttributes = writeAttributes(out, _attributes, _encodedAttributes);
+    	
+    	out.writeInt(_sessions.size());
+    	for (int i = 0; i < _sessions.size(); i++)
+    		_sessions.get(i).save(out);
+    	
+    	List<Timer> timers = new ArrayList<Timer>();
+    	for (int i = 0; _timers != null && i < _timers.size(); i++)
+    	{
+    		Timer timer = (Timer) _timers.get(i);
+    		if (timer.isPersistent())
+    			timers.add(timer);
+    	}
+    	out.writeInt(timers.size());
+    	for (Timer timer : timers)
+    	{
+    		out.writeUTF(timer._id);
+    		out.writeLong(timer._executionTime);
+    		out.writeLong(timer._period);
+    		writeObject(out, timer._info);
+    	}
+    }
+    
+    /**
+     * Restores the state written by {@link #save(DataOutputStream)}, following the application session ID 
+     * and application name. Timers are rescheduled: those which should have expired while the state was 
+     * not active expire at once.
+     */
+    public void restore(DataInputStream in) throws IOException, ServletParseException
+    {
+    	long now = System.currentTimeMillis();
+    	
+    	_created = in.readLong();
+    	_lastAccessed = in.readLong();
+    	_expiryDelay = in.readInt();
+    	
+    	if (_expiryTimer != null)
+    	{
+    		_callSession.cancel(_expiryTimer);
+    		_expiryTimer = null;
+    	}
+    	long expiryTime = in.readLong();
+    	if (expiryTime != -1)
+    		_expiryTimer = _callSession.schedule(new ExpiryTimeout(), Math.max(0, expiryTime - now));
+    	
+    	_invalidateWhenReady = in.readBoolean();
+    	_encodedAttributes = new HashMap<String, EncodedAttribute>();
+    	_attributes = readAttributes(in, getClassLoader(), _encodedAttributes);
+    	
+    	int nbSessions = in.readInt();
+    	for (int i = 0; i < nbSessions; i++)
+    	{
+    		Session session = new Session(this, in.readUTF());
+    		session.restore(in);
+    		_sessions.add(session);
+    	}
+    	
+    	int nbTimers = in.readInt();
+    	for (int i = 0; i < nbTimers; i++)
+    	{
+    		String id = in.readUTF();
+    		long executionTime = in.readLong();
+    		long period = in.readLong();
+    		Object info = readObject(in, getClassLoader());
+    		new Timer(Math.max(0, executionTime - now), period, false, true, 
+    				info instanceof Serializable ? (Serializable) info : null, id);
+    	}
+    }
+    
+    /**
+     * @return <code>true</code> if {@link #save(DataOutputStream)} would not lose state: all attributes are 
+     * serializable, all timers are persistent and no session has a pending INVITE transaction.
+     */
+    protected boolean isPassivable()
+    {
+    	if (!canEncode(_attributes))
+    		return false;
+    	for (int i = 0; _timers != null && i < _timers.size(); i++)
+    	{
+    		if (!((Timer) _timers.get(i)).isPersistent())
+    			return false;
+    	}
+    	for (int i = 0; i < _sessions.size(); i++)
+    	{
+    		if (!_sessions.get(i).isPassivable())
+    			return false;
+    	}
+    	return true;
+    }
+    
+    static boolean canEncode(Map<String, Object> attributes)
+    {
+    	if (attributes != null)
+    	{
+	    	for (Object value : attributes.values())
+	    	{
+	    		if (!AttributeCodecs.getDefault().canEncode(value))
+	    			return false;
+	    	}
+    	}
+    	return true;
+    }
+    
+    protected void willPassivate()
+    {
+    	if (_attributes != null)
+    	{
+    		SipApplicationSessionEvent event = new SipApplicationSessionEvent(this);
+    		for (Object value : _attributes.values())
+    		{
+    			if (value instanceof SipApplicationSessionActivationListener)
+    				((SipApplicationSessionActivationListener) value).sessionWillPassivate(event);
+    		}
+    	}
+    	for (int i = 0; i < _sessions.size(); i++)
+    		_sessions.get(i).willPassivate();
+    }
+    
+    protected void didActivate()
+    {
+    	if (_attributes != null)
+    	{
+    		SipApplicationSessionEvent event = new SipApplicationSessionEvent(this);
+    		for (Object value : _attributes.values())
+    		{
+    			if (value instanceof SipApplicationSessionActivationListener)
+    				((SipApplicationSessionActivationListener) value).sessionDidActivate(event);
+    		}
+    	}
+    	for (int i = 0; i < _sessions.size(); i++)
+    		_sessions.get(i).didActivate();
+    }
+    
+    protected ClassLoader getClassLoader()
+    {
+    	ClassLoader loader = _context != null ? _context.getClassLoader() : null;
+    	return loader != null ? loader : Thread.currentThread().getContextClassLoader();
+    }
+    
+    static void writeString(DataOutputStream out, String s) throws IOException
+    {
+    	out.writeBoolean(s != null);
+    	if (s != null)
+    		out.writeUTF(s);
+    }
+    
+    static String readString(DataInputStream in) throws IOException
+    {
+    	return in.readBoolean() ? in.readUTF() : null;
+    }
+    
+    /**
+     * Writes the attributes that can be encoded, each one separately so that a value that cannot be 
+     * decoded does not prevent the others from being restored.
+     * <p>
+     * The encoded form of immutable values, strings and boxed primitives, is kept and reused as long 
+     * as the attribute is not set again, so that they are only encoded when changed. Other values, such 
+     * as lists, maps or addresses, may be modified in place so are encoded on each save.
+     * 
+     * @param encoded the attributes encoded by the previous save, may be <code>null</code>.
+     * @return the encoded attributes, to be given to the next save.
+     */
+    static Map<String, EncodedAttribute> writeAttributes(DataOutputStream out, Map<String, Object> attributes, 
+    		Map<String, EncodedAttribute> encoded) throws IOException
+    {
+    	if (attributes == null || attributes.isEmpty())
+    	{
+    		out.writeBoolean(false);
+    		return null;
+    	}
+    	
+    	if (encoded == null)
+    		encoded = new HashMap<String, EncodedAttribute>();
+    	else
+    		encoded.keySet().retainAll(attributes.keySet());
+    	
+    	for (Map.Entry<String, Object> entry : attributes.entrySet())
+    	{
+    		EncodedAttribute attribute = encoded.get(entry.getKey());
+    		if (attribute == null || attribute._value != entry.getValue())
+    		{
+    			encoded.remove(entry.getKey());
+    			byte[] bytes = AttributeCodecs.getDefault().encode(entry.getValue());
+    			if (bytes == null)
+    			{
+    				if (LOG.isDebugEnabled())
+    					LOG.debug("attribute {} is not serializable", entry.getKey());
+    				continue;
+    			}
+    			attribute = new EncodedAttribute(entry.getValue(), bytes);
+    			if (isImmutable(entry.getValue()))
+    				encoded.put(entry.getKey(), attribute);
+    		}
+    		out.writeBoolean(true);
+    		out.writeUTF(entry.getKey());
+    		AttributeCodecs.writeLength(out, attribute._bytes.length);
+    		out.write(attribute._bytes);
+    	}
+    	out.writeBoolean(false);
+    	return encoded;
+    }
+    
+    /**
+     * @return <code>true</code> if the value cannot be modified in place so that its encoded form may
+     * be reused.
+     */
+    static boolean isImmutable(Object value)
+    {
+    	return value instanceof String || value instanceof Boolean || value instanceof Character
+    		|| value instanceof Integer || value instanceof Long || value instanceof Short 
+    		|| value instanceof Byte || value instanceof Double || value instanceof Float;
+    }
+    
+    /**
+     * @param encoded receives the encoded form of the restored immutable attributes.
+     */
+    static Map<String, Object> readAttributes(DataInputStream in, ClassLoader loader, 
+    		Map<String, EncodedAttribute> encoded) throws IOException
+    {
+    	Map<String, Object> attributes = null;
+    	while (in.readBoolean())
+    	{
+    		String name = in.readUTF();
+    		byte[] bytes = new byte[AttributeCodecs.readLength(in)];
+    		in.readFully(bytes);
+    		try
+    		{
+    			Object value = AttributeCodecs.getDefault().decode(bytes, loader);
+    			if (attributes == null)
+    				attributes = new HashMap<String, Object>(3);
+    			attributes.put(name, value);
+    			if (isImmutable(value))
+    				encoded.put(name, new EncodedAttribute(value, bytes));
+    		}
+    		catch (Exception e)
+    		{
+    			LOG.warn("Could not restore attribute " + name, e);
+    		}
+    	}
+    	return attributes;
+    }
+    
+    static void writeObject(DataOutputStream out, Object o) throws IOException
+    {
+    	byte[] b = AttributeCodecs.getDefault().encode(o);
+    	if (b == null)
+    		b = AttributeCodecs.getDefault().encode(null);
+    	AttributeCodecs.writeLength(out, b.length);
+    	out.write(b);
+    }
+    
+    static Object readObject(DataInputStream in, ClassLoader loader) throws IOException
+    {
+    	byte[] b = new byte[AttributeCodecs.readLength(in)];
+    	in.readFully(b);
+    	try
+    	{
+    		return AttributeCodecs.getDefault().decode(b, loader);
+    	}
+    	catch (IOException e)
+    	{
+    		LOG.warn("Could not restore timer info", e);
+    		return null;
+    	}
+    }
+    
+    /**
+     * The encoded form of an attribute value.
+     */
+    static class EncodedAttribute
+    {
+    	final Object _value;
+    	final byte[] _bytes;
+    	
+    	EncodedAttribute(Object value, byte[] bytes)
+    	{
+    		_value = value;
+    		_bytes = bytes;
+    	}
     }
     
     public class ExpiryTimeout implements Runnable
@@ -0,0 +1,33 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes session attributes of a given type, to be registered in {@link AttributeCodecs}.
+ * <p>
+ * A codec must read exactly the bytes it has written. Nested values can be encoded with
+ * {@link AttributeCodecs#encode(Object, DataOutputStream)} and decoded with
+ * {@link AttributeCodecs#decode(DataInputStream, ClassLoader)}.
+ */
+public interface AttributeCodec<T>
+{
+	void encode(T value, DataOutputStream out) throws IOException;
+
+	T decode(DataInputStream in) throws IOException;
+}
@@ -0,0 +1,544 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.servlet.sip.ServletParseException;
+
+import org.cipango.sip.NameAddr;
+import org.cipango.sip.SipURIImpl;
+import org.cipango.sip.TelURLImpl;
+import org.cipango.sip.URIFactory;
+import org.cipango.sip.URIImpl;
+
+/**
+ * Encodes session attributes and timer infos in a compact binary form.
+ * <p>
+ * Each value is written as a one byte tag followed by its encoding. Strings, primitive wrappers,
+ * byte arrays, addresses, URIs and the common collections of such values have a built-in encoding.
+ * Applications may register an {@link AttributeCodec} for their own types, under an identifier that
+ * must be the same on all nodes sharing session states. Other values are encoded with Java
+ * serialization if they are {@link Serializable}.
+ * <p>
+ * Built-in encodings only apply to the exact classes listed, so that decoding never changes the class
+ * of a value: a subclass of <code>ArrayList</code> is, for instance, serialized.
+ */
+public class AttributeCodecs
+{
+	/**
+	 * The largest identifier of an application codec.
+	 */
+	public static final int MAX_ID = 191;
+
+	private static final int NONE = -1;
+	private static final int NULL = 0;
+	private static final int STRING = 1;
+	private static final int INTEGER = 2;
+	private static final int LONG = 3;
+	private static final int BOOLEAN = 4;
+	private static final int SHORT = 5;
+	private static final int BYTE = 6;
+	private static final int CHARACTER = 7;
+	private static final int FLOAT = 8;
+	private static final int DOUBLE = 9;
+	private static final int BYTES = 10;
+	private static final int ADDRESS = 11;
+	private static final int URI = 12;
+	private static final int ARRAY_LIST = 13;
+	private static final int LINKED_LIST = 14;
+	private static final int HASH_SET = 15;
+	private static final int LINKED_HASH_SET = 16;
+	private static final int HASH_MAP = 17;
+	private static final int LINKED_HASH_MAP = 18;
+	private static final int SERIALIZABLE = 63;
+	private static final int APPLICATION = 64;
+
+	private static final Map<Class<?>, Integer> __builtins = new HashMap<Class<?>, Integer>();
+
+	static
+	{
+		__builtins.put(String.class, STRING);
+		__builtins.put(Integer.class, INTEGER);
+		__builtins.put(Long.class, LONG);
+		__builtins.put(Boolean.class, BOOLEAN);
+		__builtins.put(Short.class, SHORT);
+		__builtins.put(Byte.class, BYTE);
+		__builtins.put(Character.class, CHARACTER);
+		__builtins.put(Float.class, FLOAT);
+		__builtins.put(Double.class, DOUBLE);
+		__builtins.put(byte[].class, BYTES);
+		__builtins.put(NameAddr.class, ADDRESS);
+		__builtins.put(SipURIImpl.class, URI);
+		__builtins.put(TelURLImpl.class, URI);
+		__builtins.put(URIImpl.class, URI);
+		__builtins.put(ArrayList.class, ARRAY_LIST);
+		__builtins.put(LinkedList.class, LINKED_LIST);
+		__builtins.put(HashSet.class, HASH_SET);
+		__builtins.put(LinkedHashSet.class, LINKED_HASH_SET);
+		__builtins.put(HashMap.class, HASH_MAP);
+		__builtins.put(LinkedHashMap.class, LINKED_HASH_MAP);
+	}
+
+	private static final AttributeCodecs __default = new AttributeCodecs();
+
+	/**
+	 * @return the codecs used to save session states.
+	 */
+	public static AttributeCodecs getDefault()
+	{
+		return __default;
+	}
+
+	private final AtomicReferenceArray<AttributeCodec<?>> _codecs = new AtomicReferenceArray<AttributeCodec<?>>(256);
+	private final Class<?>[] _types = new Class<?>[256];
+	private final Map<Class<?>, Integer> _tags = new ConcurrentHashMap<Class<?>, Integer>();
+
+	/**
+	 * Registers a codec for the given type and its subclasses. A codec registered for the exact class
+	 * of a value takes precedence over the ones registered for its super types and over the built-in
+	 * encodings.
+	 *
+	 * @param id the identifier of the codec in encoded values, between 0 and {@link #MAX_ID}.
+	 * @throws IllegalStateException if another type is registered with the same identifier.
+	 */
+	public synchronized <T> void register(int id, Class<T> type, AttributeCodec<? super T> codec)
+	{
+		if (id < 0 || id > MAX_ID)
+			throw new IllegalArgumentException("Invalid codec ID " + id);
+		int tag = APPLICATION + id;
+		if (_types[tag] != null && _types[tag] != type)
+			throw new IllegalStateException("Codec ID " + id + " already registered for " + _types[tag].getName());
+		_types[tag] = type;
+		_codecs.set(tag, codec);
+		_tags.clear();
+	}
+
+	/**
+	 * Removes the codec registered with the given identifier, typically when its application is undeployed.
+	 */
+	public synchronized void unregister(int id)
+	{
+		if (id < 0 || id > MAX_ID)
+			throw new IllegalArgumentException("Invalid codec ID " + id);
+		_types[APPLICATION + id] = null;
+		_codecs.set(APPLICATION + id, null);
+		_tags.clear();
+	}
+
+	/**
+	 * @return <code>true</code> if the value and, for collections, all its elements have an encoding.
+	 */
+	public boolean canEncode(Object value)
+	{
+		if (value == null)
+			return true;
+		switch (getTag(value.getClass()))
+		{
+			case NONE:
+				return false;
+			case ARRAY_LIST:
+			case LINKED_LIST:
+			case HASH_SET:
+			case LINKED_HASH_SET:
+				for (Object o : (Collection<?>) value)
+				{
+					if (!canEncode(o))
+						return false;
+				}
+				return true;
+			case HASH_MAP:
+			case LINKED_HASH_MAP:
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+				{
+					if (!canEncode(entry.getKey()) || !canEncode(entry.getValue()))
+						return false;
+				}
+				return true;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * @return the encoded value or <code>null</code> if it cannot be encoded.
+	 */
+	public byte[] encode(Object value) throws IOException
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bout);
+		try
+		{
+			encode(value, out);
+		}
+		catch (NotSerializableException e)
+		{
+			return null;
+		}
+		out.flush();
+		return bout.toByteArray();
+	}
+
+	/**
+	 * @throws NotSerializableException if the value or one of its elements cannot be encoded, in which
+	 *         case part of the value may have been written.
+	 */
+	@SuppressWarnings("unchecked")
+	public void encode(Object value, DataOutputStream out) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeByte(NULL);
+			return;
+		}
+
+		int tag = getTag(value.getClass());
+		if (tag == NONE)
+			throw new NotSerializableException(value.getClass().getName());
+
+		switch (tag)
+		{
+			case STRING:
+				out.writeByte(tag);
+				writeString(out, (String) value);
+				break;
+			case INTEGER:
+				out.writeByte(tag);
+				out.writeInt((Integer) value);
+				break;
+			case LONG:
+				out.writeByte(tag);
+				out.writeLong((Long) value);
+				break;
+			case BOOLEAN:
+				out.writeByte(tag);
+				out.writeBoolean((Boolean) value);
+				break;
+			case SHORT:
+				out.writeByte(tag);
+				out.writeShort((Short) value);
+				break;
+			case BYTE:
+				out.writeByte(tag);
+				out.writeByte((Byte) value);
+				break;
+			case CHARACTER:
+				out.writeByte(tag);
+				out.writeChar((Character) value);
+				break;
+			case FLOAT:
+				out.writeByte(tag);
+				out.writeFloat((Float) value);
+				break;
+			case DOUBLE:
+				out.writeByte(tag);
+				out.writeDouble((Double) value);
+				break;
+			case BYTES:
+				out.writeByte(tag);
+				writeLength(out, ((byte[]) value).length);
+				out.write((byte[]) value);
+				break;
+			case ADDRESS:
+			case URI:
+				out.writeByte(tag);
+				writeString(out, value.toString());
+				break;
+			case ARRAY_LIST:
+			case LINKED_LIST:
+			case HASH_SET:
+			case LINKED_HASH_SET:
+				out.writeByte(tag);
+				Collection<?> collection = (Collection<?>) value;
+				writeLength(out, collection.size());
+				for (Object o : collection)
+					encode(o, out);
+				break;
+			case HASH_MAP:
+			case LINKED_HASH_MAP:
+				out.writeByte(tag);
+				Map<?, ?> map = (Map<?, ?>) value;
+				writeLength(out, map.size());
+				for (Map.Entry<?, ?> entry : map.entrySet())
+				{
+					encode(entry.getKey(), out);
+					encode(entry.getValue(), out);
+				}
+				break;
+			case SERIALIZABLE:
+				byte[] b = serialize(value);
+				out.writeByte(tag);
+				writeLength(out, b.length);
+				out.write(b);
+				break;
+			default:
+				AttributeCodec<Object> codec = (AttributeCodec<Object>) _codecs.get(tag);
+				if (codec == null)
+					throw new NotSerializableException(value.getClass().getName());
+				out.writeByte(tag);
+				codec.encode(value, out);
+				break;
+		}
+	}
+
+	/**
+	 * @param loader the class loader of serialized values.
+	 */
+	public Object decode(byte[] b, ClassLoader loader) throws IOException
+	{
+		return decode(new DataInputStream(new ByteArrayInputStream(b)), loader);
+	}
+
+	/**
+	 * @param loader the class loader of serialized values.
+	 */
+	public Object decode(DataInputStream in, ClassLoader loader) throws IOException
+	{
+		int tag = in.readUnsignedByte();
+		switch (tag)
+		{
+			case NULL:
+				return null;
+			case STRING:
+				return readString(in);
+			case INTEGER:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case BOOLEAN:
+				return in.readBoolean();
+			case SHORT:
+				return in.readShort();
+			case BYTE:
+				return in.readByte();
+			case CHARACTER:
+				return in.readChar();
+			case FLOAT:
+				return in.readFloat();
+			case DOUBLE:
+				return in.readDouble();
+			case BYTES:
+				byte[] b = new byte[readLength(in)];
+				in.readFully(b);
+				return b;
+			case ADDRESS:
+				try
+				{
+					return new NameAddr(readString(in));
+				}
+				catch (ServletParseException e)
+				{
+					throw newIOException(e);
+				}
+			case URI:
+				try
+				{
+					return URIFactory.parseURI(readString(in));
+				}
+				catch (ServletParseException e)
+				{
+					throw newIOException(e);
+				}
+			case ARRAY_LIST:
+				int size = readLength(in);
+				return readCollection(in, loader, new ArrayList<Object>(size), size);
+			case LINKED_LIST:
+				return readCollection(in, loader, new LinkedList<Object>(), readLength(in));
+			case HASH_SET:
+				size = readLength(in);
+				return readCollection(in, loader, new HashSet<Object>(size * 4 / 3 + 1), size);
+			case LINKED_HASH_SET:
+				size = readLength(in);
+				return readCollection(in, loader, new LinkedHashSet<Object>(size * 4 / 3 + 1), size);
+			case HASH_MAP:
+				size = readLength(in);
+				return readMap(in, loader, new HashMap<Object, Object>(size * 4 / 3 + 1), size);
+			case LINKED_HASH_MAP:
+				size = readLength(in);
+				return readMap(in, loader, new LinkedHashMap<Object, Object>(size * 4 / 3 + 1), size);
+			case SERIALIZABLE:
+				b = new byte[readLength(in)];
+				in.readFully(b);
+				try
+				{
+					return deserialize(b, loader);
+				}
+				catch (ClassNotFoundException e)
+				{
+					throw newIOException(e);
+				}
+			default:
+				AttributeCodec<?> codec = tag >= APPLICATION ? _codecs.get(tag) : null;
+				if (codec == null)
+					throw new IOException("No codec for tag " + tag);
+				return codec.decode(in);
+		}
+	}
+
+	private int getTag(Class<?> clazz)
+	{
+		Integer tag = _tags.get(clazz);
+		if (tag == null)
+			tag = resolve(clazz);
+		return tag;
+	}
+
+	private synchronized int resolve(Class<?> clazz)
+	{
+		int tag = NONE;
+		for (int i = APPLICATION; i < _types.length && tag == NONE; i++)
+		{
+			if (_types[i] == clazz)
+				tag = i;
+		}
+		if (tag == NONE && __builtins.containsKey(clazz))
+			tag = __builtins.get(clazz);
+		for (int i = APPLICATION; i < _types.length && tag == NONE; i++)
+		{
+			if (_types[i] != null && _types[i].isAssignableFrom(clazz))
+				tag = i;
+		}
+		if (tag == NONE && Serializable.class.isAssignableFrom(clazz))
+			tag = SERIALIZABLE;
+		_tags.put(clazz, tag);
+		return tag;
+	}
+
+	private Collection<Object> readCollection(DataInputStream in, ClassLoader loader, Collection<Object> collection, int size)
+			throws IOException
+	{
+		for (int i = 0; i < size; i++)
+			collection.add(decode(in, loader));
+		return collection;
+	}
+
+	private Map<Object, Object> readMap(DataInputStream in, ClassLoader loader, Map<Object, Object> map, int size)
+			throws IOException
+	{
+		for (int i = 0; i < size; i++)
+			map.put(decode(in, loader), decode(in, loader));
+		return map;
+	}
+
+	static void writeLength(DataOutputStream out, int length) throws IOException
+	{
+		while ((length & ~0x7f) != 0)
+		{
+			out.writeByte((length & 0x7f) | 0x80);
+			length >>>= 7;
+		}
+		out.writeByte(length);
+	}
+
+	static int readLength(DataInputStream in) throws IOException
+	{
+		int length = 0;
+		for (int shift = 0; shift < 32; shift += 7)
+		{
+			int b = in.readUnsignedByte();
+			length |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return length;
+		}
+		throw new IOException("Invalid length");
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] b = s.getBytes("UTF-8");
+		writeLength(out, b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		byte[] b = new byte[readLength(in)];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	private static IOException newIOException(Exception cause)
+	{
+		IOException e = new IOException(cause.toString());
+		e.initCause(cause);
+		return e;
+	}
+
+	private static byte[] serialize(Object o) throws IOException
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bout);
+		out.writeObject(o);
+		out.close();
+		return bout.toByteArray();
+	}
+
+	private static Object deserialize(byte[] b, ClassLoader loader) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream in = new ClassLoadingObjectInputStream(new ByteArrayInputStream(b), loader);
+		try
+		{
+			return in.readObject();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	static class ClassLoadingObjectInputStream extends ObjectInputStream
+	{
+		private ClassLoader _loader;
+
+		public ClassLoadingObjectInputStream(InputStream in, ClassLoader loader) throws IOException
+		{
+			super(in);
+			_loader = loader;
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+		{
+			try
+			{
+				return Class.forName(desc.getName(), false, _loader);
+			}
+			catch (ClassNotFoundException e)
+			{
+				return super.resolveClass(desc);
+			}
+		}
+	}
+}
@@ -20,12 +20,14 @@ import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.sip.SipServletMessage;
+import javax.servlet.sip.SipServletResponse;
 
 import org.cipango.server.ID;
 import org.cipango.server.Server;
 import org.cipango.server.SipHandler;
 import org.cipango.server.SipMessage;
 import org.cipango.server.SipRequest;
+import org.cipango.server.SipResponse;
 import org.cipango.server.session.SessionManager.SessionScope;
 import org.cipango.sipapp.SipAppContext;
 import org.eclipse.jetty.server.handler.HandlerWrapper;
@@ -169,13 +171,24 @@ public class CallSessionHandler extends HandlerWrapper implements SipHandler
 				
 				while (callSession == null)
 				{	
-					scope = _server.getSessionManager().openScope(_id);
+					try
+					{
+						scope = _server.getSessionManager().openScope(_id);
+					}
+					catch (IllegalStateException e)
+					{
+						LOG.warn(e.getMessage());
+						reject();
+						break;
+					}
 					
 					callSession = scope.getCallSession();
 					
 					if (callSession == null)
 						try { Thread.sleep(20); } catch (InterruptedException e) { } // TODO
 				}
+				if (callSession == null)
+					continue;
 				
 				try
 				{
@@ -201,5 +214,29 @@ public class CallSessionHandler extends HandlerWrapper implements SipHandler
 			}
 			while (!isDone());
 		}
+		
+		/**
+		 * Answers the queued requests with a 503 as their call session is not available. The dialog 
+		 * is kept so that a retransmission or a later request may be handled.
+		 */
+		private void reject()
+		{
+			SipMessage message = null;
+			while ((message = poll()) != null)
+			{
+				if (!message.isRequest() || ((SipRequest) message).isAck())
+					continue;
+				try
+				{
+					SipResponse response = new SipResponse((SipRequest) message, 
+							SipServletResponse.SC_SERVICE_UNAVAILABLE, "Call session not available");
+					_server.getConnectorManager().sendResponse(response);
+				}
+				catch (Exception e)
+				{
+					LOG.ignore(e);
+				}
+			}
+		}
 	}
 }
@@ -14,6 +14,8 @@
 
 package org.cipango.server.session;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -35,6 +37,7 @@ import javax.servlet.sip.SipApplicationSession;
 import javax.servlet.sip.SipServletRequest;
 import javax.servlet.sip.SipServletResponse;
 import javax.servlet.sip.SipSession;
+import javax.servlet.sip.SipSessionActivationListener;
 import javax.servlet.sip.SipSessionAttributeListener;
 import javax.servlet.sip.SipSessionBindingEvent;
 import javax.servlet.sip.SipSessionBindingListener;
@@ -45,6 +48,7 @@ import javax.servlet.sip.TooManyHopsException;
 import javax.servlet.sip.UAMode;
 import javax.servlet.sip.URI;
 import javax.servlet.sip.ar.SipApplicationRoutingRegion;
+import javax.servlet.sip.ar.SipApplicationRoutingRegionType;
 
 import org.cipango.server.ID;
 import org.cipango.server.Server;
@@ -69,6 +73,7 @@ import org.cipango.sip.SipHeaders;
 import org.cipango.sip.SipMethods;
 import org.cipango.sip.SipParams;
 import org.cipango.sip.SipURIImpl;
+import org.cipango.sip.URIFactory;
 import org.cipango.sipapp.SipAppContext;
 import org.cipango.util.ReadOnlyAddress;
 import org.cipango.util.TimerTask;
@@ -95,6 +100,7 @@ public class Session implements SessionIf
 	protected URI _subscriberURI;
 	
 	protected Map<String, Object> _attributes;
+	private Map<String, AppSession.EncodedAttribute> _encodedAttributes;
 	
 	protected String _callId;
 	protected NameAddr _localParty;
@@ -350,6 +356,8 @@ public class Session implements SessionIf
 			return;
 		
 		Object oldValue = _attributes.remove(name);
+		if (_encodedAttributes != null)
+			_encodedAttributes.remove(name);
 		if (oldValue != null)
 		{
 			unbindValue(name, oldValue);
@@ -378,6 +386,8 @@ public class Session implements SessionIf
 			_attributes = newAttributeMap();
 		
 		Object oldValue = _attributes.put(name, value);
+		if (_encodedAttributes != null)
+			_encodedAttributes.remove(name);
 		
 		if (oldValue == null || !value.equals(oldValue))
 		{
@@ -783,6 +793,108 @@ public class Session implements SessionIf
 		return true; // TODO
 	}
 	
+	/**
+	 * Saves the state of this session and of its dialog. Transactions are not saved.
+	 * 
+	 * @see AppSession#save(DataOutputStream)
+	 */
+	public void save(DataOutputStream out) throws IOException
+	{
+		out.writeUTF(_id);
+		out.writeUTF(_state.name());
+		out.writeUTF(_role.name());
+		out.writeBoolean(_invalidateWhenReady);
+		out.writeLong(_created);
+		out.writeLong(_lastAccessed);
+		
+		AppSession.writeString(out, _callId);
+		AppSession.writeString(out, _localParty != null ? _localParty.toString() : null);
+		AppSession.writeString(out, _remoteParty != null ? _remoteParty.toString() : null);
+		AppSession.writeString(out, _handler != null ? _handler.getName() : null);
+		AppSession.writeString(out, _subscriberURI != null ? _subscriberURI.toString() : null);
+		AppSession.writeString(out, _region != null ? _region.getLabel() : null);
+		if (_region != null)
+			out.writeUTF(_region.getType().name());
+		AppSession.writeString(out, _linkedSessionId);
+		_encodedAttributes = AppSession.writeAttributes(out, _attributes, _encodedAttributes);
+		
+		out.writeBoolean(_ua != null);
+		if (_ua != null)
+			_ua.save(out);
+	}
+	
+	protected boolean isPassivable()
+	{
+		return AppSession.canEncode(_attributes) && (_ua == null || _ua.isPassivable());
+	}
+	
+	protected void willPassivate()
+	{
+		if (_attributes != null)
+		{
+			SipSessionEvent event = new SipSessionEvent(this);
+			for (Object value : _attributes.values())
+			{
+				if (value instanceof SipSessionActivationListener)
+					((SipSessionActivationListener) value).sessionWillPassivate(event);
+			}
+		}
+	}
+	
+	protected void didActivate()
+	{
+		if (_attributes != null)
+		{
+			SipSessionEvent event = new SipSessionEvent(this);
+			for (Object value : _attributes.values())
+			{
+				if (value instanceof SipSessionActivationListener)
+					((SipSessionActivationListener) value).sessionDidActivate(event);
+			}
+		}
+	}
+	
+	/**
+	 * Restores the state written by {@link #save(DataOutputStream)}, following the session ID.
+	 */
+	public void restore(DataInputStream in) throws IOException, ServletParseException
+	{
+		_state = State.valueOf(in.readUTF());
+		_role = Role.valueOf(in.readUTF());
+		_invalidateWhenReady = in.readBoolean();
+		_created = in.readLong();
+		_lastAccessed = in.readLong();
+		
+		_callId = AppSession.readString(in);
+		String party = AppSession.readString(in);
+		_localParty = party != null ? new NameAddr(party) : null;
+		party = AppSession.readString(in);
+		_remoteParty = party != null ? new NameAddr(party) : null;
+		
+		String handler = AppSession.readString(in);
+		if (handler != null)
+		{
+			_handler = _appSession.getContext().getSipServletHandler().getHolder(handler);
+			if (_handler == null)
+				LOG.warn("Could not find servlet " + handler + " for session " + _id);
+		}
+		
+		String uri = AppSession.readString(in);
+		_subscriberURI = uri != null ? URIFactory.parseURI(uri) : null;
+		String label = AppSession.readString(in);
+		if (label != null)
+			_region = new SipApplicationRoutingRegion(label, SipApplicationRoutingRegionType.valueOf(in.readUTF()));
+		_linkedSessionId = AppSession.readString(in);
+		_encodedAttributes = new HashMap<String, AppSession.EncodedAttribute>();
+		_attributes = AppSession.readAttributes(in, _appSession.getClassLoader(), _encodedAttributes);
+		
+		if (in.readBoolean())
+		{
+			_ua = new UA();
+			_ua.restore(in);
+		}
+	}
+	
 	public Address getContact()
 	{
 		return getContact(getServer().getConnectorManager().findConnector(SipConnectors.TCP_ORDINAL, null));
@@ -850,9 +962,57 @@ public class Session implements SessionIf
 			_localCSeq = other._localCSeq;
 		}
 		
+		protected void save(DataOutputStream out) throws IOException
+		{
+			out.writeLong(_localCSeq);
+			out.writeLong(_remoteCSeq);
+			AppSession.writeString(out, _remoteTarget != null ? _remoteTarget.toString() : null);
+			out.writeInt(_routeSet != null ? _routeSet.size() : -1);
+			if (_routeSet != null)
+			{
+				for (String route : _routeSet)
+					out.writeUTF(route);
+			}
+			out.writeBoolean(_secure);
+			out.writeLong(_remoteRSeq);
+			out.writeLong(_localRSeq);
+		}
+		
+		/**
+		 * @return <code>false</code> if an INVITE transaction is pending, as its state is not saved.
+		 */
+		protected boolean isPassivable()
+		{
+			return LazyList.size(_serverInvites) == 0 && LazyList.size(_clientInvites) == 0;
+		}
+		
+		protected void restore(DataInputStream in) throws IOException, ServletParseException
+		{
+			_localCSeq = in.readLong();
+			_remoteCSeq = in.readLong();
+			String target = AppSession.readString(in);
+			_remoteTarget = target != null ? URIFactory.parseURI(target) : null;
+			int nbRoutes = in.readInt();
+			if (nbRoutes != -1)
+			{
+				_routeSet = new LinkedList<String>();
+				for (int i = 0; i < nbRoutes; i++)
+					_routeSet.add(in.readUTF());
+			}
+			_secure = in.readBoolean();
+			_remoteRSeq = in.readLong();
+			_localRSeq = in.readLong();
+		}
+		
+		/**
+		 * Creates a request copied from <code>srcRequest</code>, as done by B2BUA helper. Header values 
+		 * are shared with the source request and only copied when either request modifies them.
+		 * 
+		 * @see SipMessage#cloneShared()
+		 */
 		public SipRequest createRequest(SipRequest srcRequest)
 		{
-			SipRequest request = (SipRequest) srcRequest.clone();
+			SipRequest request = (SipRequest) srcRequest.cloneShared();
             
             request.getFields().remove(SipHeaders.RECORD_ROUTE_BUFFER);
             request.getFields().remove(SipHeaders.VIA_BUFFER);
@@ -0,0 +1,812 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Append-only journal of call session states.
+ * <p>
+ * Records are appended to numbered segment files (<code>journal-&lt;n&gt;.log</code>). A record holds
+ * either the last state of a call session or its removal, and is protected by a CRC so that a torn
+ * write at the end of a segment is ignored on recovery. Records are written by a single committer
+ * thread: all records queued while the previous write was being forced to disk are written and forced
+ * together (group commit).
+ * <p>
+ * When a segment is full, a new one is started. Once enough segments are sealed, they are compacted in
+ * the background into a single segment holding only the last state of the live call sessions. A
+ * compacted segment records the lowest segment number it replaces, so that segments left over by an
+ * interrupted compaction are ignored.
+ * <p>
+ * On {@link #open()}, segments are read and parsed in parallel, then merged in order. Segments are read
+ * with plain channel reads rather than mapped, as a mapping is only released by the garbage collector and
+ * compaction deletes the files it has read.
+ */
+public class SessionJournal implements SessionStore
+{
+	private static final Logger LOG = Log.getLogger(SessionJournal.class);
+
+	private static final int MAGIC = 0x434a4e31; // CJN1
+	private static final int HEADER_SIZE = 12;
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".log";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final byte[] REMOVED = new byte[0];
+
+	private final File _dir;
+
+	private long _segmentSize = 16 * 1024 * 1024;
+	private int _compactionThreshold = 4;
+	private long _commitDelay = 2;
+	private boolean _sync = true;
+	private int _recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+	private List<Record> _pending = new ArrayList<Record>();
+	private long _queued;
+	private long _committed;
+	private IOException _failure;
+
+	private FileChannel _channel;
+	private long _sequence;
+	private long _position;
+	private final List<Long> _sealed = new ArrayList<Long>();
+
+	private volatile boolean _running;
+	private Thread _committer;
+	private Thread _compactor;
+	private boolean _compacting;
+	private int _compactionFailed;
+
+	public SessionJournal(File dir)
+	{
+		_dir = dir;
+	}
+
+	public File getDir()
+	{
+		return _dir;
+	}
+
+	public long getSegmentSize()
+	{
+		return _segmentSize;
+	}
+
+	/**
+	 * Sets the size in bytes after which a new segment is started.
+	 */
+	public void setSegmentSize(long segmentSize)
+	{
+		_segmentSize = segmentSize;
+	}
+
+	public int getCompactionThreshold()
+	{
+		return _compactionThreshold;
+	}
+
+	/**
+	 * Sets the number of sealed segments that triggers a compaction.
+	 */
+	public void setCompactionThreshold(int compactionThreshold)
+	{
+		_compactionThreshold = compactionThreshold;
+	}
+
+	public long getCommitDelay()
+	{
+		return _commitDelay;
+	}
+
+	/**
+	 * Sets the time in ms the committer waits for more records before a write. Larger values lead to
+	 * larger batches with fewer disk syncs, at the cost of latency.
+	 */
+	public void setCommitDelay(long commitDelay)
+	{
+		_commitDelay = commitDelay;
+	}
+
+	public boolean isSync()
+	{
+		return _sync;
+	}
+
+	/**
+	 * Sets whether records are forced to the storage device when committed.
+	 */
+	public void setSync(boolean sync)
+	{
+		_sync = sync;
+	}
+
+	public void setRecoveryThreads(int recoveryThreads)
+	{
+		_recoveryThreads = recoveryThreads;
+	}
+
+	/**
+	 * Recovers the journal and starts accepting records.
+	 *
+	 * @return the last state of each call session in the journal, by call session ID, in journal order.
+	 */
+	public Map<String, byte[]> open() throws IOException
+	{
+		if (!_dir.exists() && !_dir.mkdirs())
+			throw new IOException("Could not create journal directory " + _dir.getAbsolutePath());
+
+		Map<String, byte[]> states = recover();
+
+		_channel = newSegment(_sequence, _sequence);
+		_running = true;
+
+		_committer = new Thread(new Committer(), "session-journal");
+		_committer.setDaemon(true);
+		_committer.start();
+
+		_compactor = new Thread(new Compactor(), "session-journal-compactor");
+		_compactor.setDaemon(true);
+		_compactor.start();
+
+		return states;
+	}
+
+	/**
+	 * Commits the queued records and closes the journal.
+	 */
+	public void close() throws IOException
+	{
+		if (!_running)
+			return;
+		flush();
+		_running = false;
+
+		synchronized (this)
+		{
+			notifyAll();
+		}
+		join(_committer);
+		join(_compactor);
+
+		_channel.close();
+		_channel = null;
+	}
+
+	/**
+	 * Queues the last state of a call session.
+	 */
+	public void put(String id, byte[] state)
+	{
+		append(new Record(PUT, id, state));
+	}
+
+	/**
+	 * Queues the removal of a call session.
+	 */
+	public void remove(String id)
+	{
+		append(new Record(REMOVE, id, REMOVED));
+	}
+
+	/**
+	 * Waits until all queued records are committed.
+	 */
+	public void flush() throws IOException
+	{
+		synchronized (this)
+		{
+			long queued = _queued;
+			while (_committed < queued && _failure == null && _running)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+					throw new IOException("Interrupted");
+				}
+			}
+			if (_failure != null)
+				throw _failure;
+		}
+	}
+
+	/**
+	 * @return the numbers of the segments on disk, in order.
+	 */
+	public synchronized List<Long> getSegments()
+	{
+		List<Long> segments = new ArrayList<Long>(_sealed);
+		segments.add(_sequence);
+		return segments;
+	}
+
+	private synchronized void append(Record record)
+	{
+		if (!_running)
+			throw new IllegalStateException("Journal is not open");
+		_pending.add(record);
+		_queued++;
+		if (_pending.size() == 1)
+			notifyAll();
+	}
+
+	private File getFile(long sequence)
+	{
+		return new File(_dir, PREFIX + sequence + SUFFIX);
+	}
+
+	private FileChannel newSegment(long sequence, long base) throws IOException
+	{
+		FileChannel channel = new RandomAccessFile(getFile(sequence), "rw").getChannel();
+		channel.truncate(0);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putLong(base).flip();
+		while (header.hasRemaining())
+			channel.write(header);
+		_position = HEADER_SIZE;
+		return channel;
+	}
+
+	private void join(Thread thread)
+	{
+		try
+		{
+			if (thread != null)
+				thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			LOG.ignore(e);
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	private Map<String, byte[]> recover() throws IOException
+	{
+		File[] files = _dir.listFiles();
+		List<Long> sequences = new ArrayList<Long>();
+
+		for (int i = 0; files != null && i < files.length; i++)
+		{
+			String name = files[i].getName();
+			if (name.startsWith(PREFIX) && name.endsWith(TMP_SUFFIX))
+				files[i].delete();
+			else if (name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+			{
+				try
+				{
+					sequences.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+				}
+				catch (NumberFormatException e)
+				{
+					LOG.warn("Ignoring unknown journal file " + name);
+				}
+			}
+		}
+		Collections.sort(sequences);
+
+		List<Segment> segments = parse(sequences);
+
+		// A compacted segment replaces the segments from its base
+		long floor = Long.MAX_VALUE;
+		for (int i = segments.size(); i-- > 0;)
+		{
+			Segment segment = segments.get(i);
+			if (segment._sequence >= floor || segment._records == null)
+			{
+				getFile(segment._sequence).delete();
+				segments.remove(i);
+			}
+			else
+				floor = Math.min(floor, segment._base);
+		}
+
+		Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
+		for (Segment segment : segments)
+		{
+			for (Map.Entry<String, byte[]> entry : segment._records.entrySet())
+			{
+				if (entry.getValue() == REMOVED)
+					states.remove(entry.getKey());
+				else
+				{
+					states.remove(entry.getKey());
+					states.put(entry.getKey(), entry.getValue());
+				}
+			}
+			_sealed.add(segment._sequence);
+		}
+
+		_sequence = sequences.isEmpty() ? 0 : sequences.get(sequences.size() - 1) + 1;
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("recovered {} call sessions from {} segments", states.size(), segments.size());
+		return states;
+	}
+
+	private List<Segment> parse(List<Long> sequences) throws IOException
+	{
+		List<Segment> segments = new ArrayList<Segment>(sequences.size());
+		if (sequences.size() <= 1 || _recoveryThreads <= 1)
+		{
+			for (Long sequence : sequences)
+				segments.add(parse(sequence));
+			return segments;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(_recoveryThreads, sequences.size()));
+		try
+		{
+			List<Future<Segment>> futures = new ArrayList<Future<Segment>>(sequences.size());
+			for (final Long sequence : sequences)
+			{
+				futures.add(executor.submit(new Callable<Segment>()
+				{
+					public Segment call() throws Exception
+					{
+						return parse(sequence);
+					}
+				}));
+			}
+			for (Future<Segment> future : futures)
+				segments.add(future.get());
+			return segments;
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException("Interrupted");
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Parses a segment up to its last valid record.
+	 */
+	private Segment parse(long sequence) throws IOException
+	{
+		Segment segment = new Segment(sequence);
+		FileInputStream in = new FileInputStream(getFile(sequence));
+		try
+		{
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			buffer.flip();
+			
+			buffer = fill(channel, buffer, HEADER_SIZE);
+			if (buffer == null)
+				return segment;
+			if (buffer.getInt() != MAGIC)
+			{
+				LOG.warn("Ignoring invalid journal segment " + getFile(sequence));
+				return segment;
+			}
+			segment._base = buffer.getLong();
+			segment._records = new LinkedHashMap<String, byte[]>();
+
+			CRC32 crc = new CRC32();
+			byte[] record = new byte[256];
+			while ((buffer = fill(channel, buffer, RECORD_HEADER_SIZE)) != null)
+			{
+				int length = buffer.getInt();
+				int checksum = buffer.getInt();
+				if (length < 3 || length > channel.size() - channel.position() + buffer.remaining())
+					break;
+				
+				buffer = fill(channel, buffer, length);
+				if (buffer == null)
+					break;
+
+				if (record.length < length)
+					record = new byte[Math.max(length, record.length * 2)];
+				buffer.get(record, 0, length);
+
+				crc.reset();
+				crc.update(record, 0, length);
+				if ((int) crc.getValue() != checksum)
+					break;
+
+				byte type = record[0];
+				int idLength = ((record[1] & 0xff) << 8) | (record[2] & 0xff);
+				if (3 + idLength > length)
+					break;
+				String id = new String(record, 3, idLength, "UTF-8");
+
+				byte[] state = REMOVED;
+				if (type == PUT)
+				{
+					state = new byte[length - 3 - idLength];
+					System.arraycopy(record, 3 + idLength, state, 0, state.length);
+				}
+				segment._records.remove(id);
+				segment._records.put(id, state);
+			}
+			return segment;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads from the channel until <code>buffer</code> has at least <code>length</code> bytes remaining.
+	 * 
+	 * @return the buffer, replaced by a larger one if needed, or <code>null</code> if the end of the channel 
+	 * is reached before.
+	 */
+	private static ByteBuffer fill(FileChannel channel, ByteBuffer buffer, int length) throws IOException
+	{
+		if (buffer.remaining() >= length)
+			return buffer;
+		
+		if (buffer.capacity() < length)
+		{
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+			larger.put(buffer);
+			buffer = larger;
+		}
+		else
+			buffer.compact();
+		
+		while (buffer.position() < length)
+		{
+			if (channel.read(buffer) == -1)
+				return null;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	// ------------------------------------------------------------------------
+
+	private void commit(List<Record> records) throws IOException
+	{
+		int size = 0;
+		for (Record record : records)
+			size += record.size();
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (Record record : records)
+			record.writeTo(buffer);
+		buffer.flip();
+
+		while (buffer.hasRemaining())
+			_channel.write(buffer);
+		if (_sync)
+			_channel.force(false);
+		_position += size;
+
+		if (_position >= _segmentSize)
+			roll();
+	}
+
+	private void roll() throws IOException
+	{
+		_channel.close();
+		long sequence;
+		synchronized (this)
+		{
+			_sealed.add(_sequence);
+			sequence = ++_sequence;
+		}
+		_channel = newSegment(sequence, sequence);
+
+		synchronized (this)
+		{
+			if (_sealed.size() >= _compactionThreshold)
+				notifyAll();
+		}
+	}
+
+	/**
+	 * Merges the sealed segments into a single one, replacing the last of them.
+	 */
+	protected void compact() throws IOException
+	{
+		List<Long> sealed;
+		synchronized (this)
+		{
+			if (_sealed.size() < 2)
+				return;
+			sealed = new ArrayList<Long>(_sealed);
+		}
+
+		Map<String, byte[]> states = new LinkedHashMap<String, byte[]>();
+		for (Long sequence : sealed)
+		{
+			Segment segment = parse(sequence);
+			if (segment._records == null)
+				continue;
+			for (Map.Entry<String, byte[]> entry : segment._records.entrySet())
+			{
+				states.remove(entry.getKey());
+				if (entry.getValue() != REMOVED)
+					states.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		long first = sealed.get(0);
+		long last = sealed.get(sealed.size() - 1);
+
+		File tmp = new File(_dir, PREFIX + last + TMP_SUFFIX);
+		RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			channel.truncate(0);
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			buffer.putInt(MAGIC).putLong(first);
+			for (Map.Entry<String, byte[]> entry : states.entrySet())
+			{
+				Record record = new Record(PUT, entry.getKey(), entry.getValue());
+				if (record.size() > buffer.remaining())
+				{
+					buffer.flip();
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+					buffer.clear();
+					if (record.size() > buffer.capacity())
+						buffer = ByteBuffer.allocate(record.size());
+				}
+				record.writeTo(buffer);
+			}
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		}
+		finally
+		{
+			file.close();
+		}
+
+		File target = getFile(last);
+		if (!tmp.renameTo(target))
+		{
+			target.delete();
+			if (!tmp.renameTo(target))
+				throw new IOException("Could not rename " + tmp + " to " + target);
+		}
+
+		for (int i = 0; i < sealed.size() - 1; i++)
+			getFile(sealed.get(i)).delete();
+
+		synchronized (this)
+		{
+			_sealed.removeAll(sealed);
+			_sealed.add(0, last);
+		}
+
+		if (LOG.isDebugEnabled())
+			LOG.debug("compacted journal segments {} to {}: {} call sessions", first, last, states.size());
+	}
+
+	class Committer implements Runnable
+	{
+		public void run()
+		{
+			while (true)
+			{
+				List<Record> records;
+				synchronized (SessionJournal.this)
+				{
+					while (_pending.isEmpty() && _running)
+					{
+						try
+						{
+							SessionJournal.this.wait();
+						}
+						catch (InterruptedException e)
+						{
+							LOG.ignore(e);
+						}
+					}
+					if (_pending.isEmpty())
+						return;
+				}
+
+				if (_commitDelay > 0)
+				{
+					try
+					{
+						Thread.sleep(_commitDelay);
+					}
+					catch (InterruptedException e)
+					{
+						LOG.ignore(e);
+					}
+				}
+
+				synchronized (SessionJournal.this)
+				{
+					records = _pending;
+					_pending = new ArrayList<Record>(records.size());
+				}
+
+				try
+				{
+					commit(records);
+				}
+				catch (IOException e)
+				{
+					LOG.warn("Failed to write session journal", e);
+					synchronized (SessionJournal.this)
+					{
+						_failure = e;
+					}
+				}
+
+				synchronized (SessionJournal.this)
+				{
+					_committed += records.size();
+					SessionJournal.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	class Compactor implements Runnable
+	{
+		public void run()
+		{
+			while (true)
+			{
+				synchronized (SessionJournal.this)
+				{
+					while (_running && (_sealed.size() < _compactionThreshold || _sealed.size() <= _compactionFailed))
+					{
+						try
+						{
+							SessionJournal.this.wait();
+						}
+						catch (InterruptedException e)
+						{
+							LOG.ignore(e);
+						}
+					}
+					if (!_running)
+						return;
+					_compacting = true;
+				}
+				int failed = 0;
+				try
+				{
+					compact();
+				}
+				catch (Throwable t)
+				{
+					LOG.warn("Failed to compact session journal", t);
+					// Do not retry before the next segment
+					failed = getSegments().size() - 1;
+				}
+				finally
+				{
+					synchronized (SessionJournal.this)
+					{
+						_compacting = false;
+						_compactionFailed = failed;
+						SessionJournal.this.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if a compaction is in progress.
+	 */
+	public synchronized boolean isCompacting()
+	{
+		return _compacting;
+	}
+
+	static class Segment
+	{
+		private final long _sequence;
+		private long _base;
+		private Map<String, byte[]> _records;
+
+		Segment(long sequence)
+		{
+			_sequence = sequence;
+			_base = sequence;
+		}
+	}
+
+	/**
+	 * Record layout: length (4), CRC32 of the following bytes (4), type (1), ID length (2), ID in
+	 * UTF-8, state.
+	 */
+	static class Record
+	{
+		private final byte _type;
+		private final byte[] _id;
+		private final byte[] _state;
+
+		Record(byte type, String id, byte[] state)
+		{
+			_type = type;
+			try
+			{
+				_id = id.getBytes("UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new RuntimeException(e);
+			}
+			if (_id.length > 0xffff)
+				throw new IllegalArgumentException("ID too long: " + id);
+			_state = state;
+		}
+
+		int size()
+		{
+			return RECORD_HEADER_SIZE + 3 + _id.length + _state.length;
+		}
+
+		void writeTo(ByteBuffer buffer)
+		{
+			int start = buffer.position();
+			buffer.putInt(size() - RECORD_HEADER_SIZE);
+			buffer.putInt(0);
+			buffer.put(_type);
+			buffer.putShort((short) _id.length);
+			buffer.put(_id);
+			buffer.put(_state);
+
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array(), buffer.arrayOffset() + start + RECORD_HEADER_SIZE, size() - RECORD_HEADER_SIZE);
+			buffer.putInt(start + 4, (int) crc.getValue());
+		}
+	}
+}
@@ -16,17 +16,20 @@ package org.cipango.server.session;
 
 import static java.lang.Math.round;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
+import javax.servlet.sip.ServletParseException;
 import javax.servlet.sip.SipSession;
 
 import org.cipango.log.event.Events;
@@ -34,10 +37,16 @@ import org.cipango.server.ID;
 import org.cipango.server.Server;
 import org.cipango.server.SipRequest;
 import org.cipango.server.SipResponse;
+import org.cipango.server.handler.SipContextHandlerCollection;
+import org.cipango.server.metrics.Counter;
+import org.cipango.server.metrics.Gauge;
+import org.cipango.server.metrics.MetricsRegistry;
+import org.cipango.server.metrics.Threshold;
 import org.cipango.server.transaction.ClientTransaction;
 import org.cipango.server.transaction.ServerTransaction;
 import org.cipango.server.transaction.Transaction;
 import org.cipango.sipapp.SipAppContext;
+import org.cipango.util.OffHeapStore;
 import org.cipango.util.TimerList;
 import org.cipango.util.TimerQueue;
 import org.cipango.util.TimerTask;
@@ -56,6 +65,15 @@ import org.eclipse.jetty.util.statistic.SampleStatistic;
  * 
  * Call session is a container structure (not exposed in Sip Servlets API) used to group all data related to a SIP call.
  * Call sessions are processed in a pseudo-transactional manner to control concurrency and may be scheduled for execution.  
+ * 
+ * If a store directory is set, the state of call sessions is written to a {@link SessionJournal} when their scope is 
+ * closed, if it has changed, and restored on start so that established dialogs survive a restart. If a 
+ * {@link SessionReplicator} is set, the state is also sent to a standby node.
+ * 
+ * If a passivation threshold is set, call sessions idle for longer are passivated: their state is moved to an 
+ * {@link OffHeapStore} and only a small stub is kept on the heap. They are activated on the next access by ID or 
+ * shortly before their next timer expires. As activation creates new session objects, applications should not 
+ * hold references to the sessions of passivated calls.
  */
 public class SessionManager extends AbstractLifeCycle
 {   
@@ -68,13 +86,32 @@ public class SessionManager extends AbstractLifeCycle
     private int _priorityOffset;
     
     private File _storeDir;
+    private SessionJournal _journal;
+    private SessionReplicator _replicator;
     private Server _server;
+    
+    private long _passivationThreshold;
+    private long _passivationInterval = 5000;
+    private OffHeapStore _offHeapStore;
+    private Map<String, Passivated> _passivated = new HashMap<String, Passivated>();
+    private TimerQueue<Passivated> _passivatedQueue = new TimerQueue<Passivated>();
+    private Thread _passivator;
 	
     // statistics 
     private CounterStatistic _sessionsStats = new CounterStatistic();
     private SampleStatistic _sessionTimeStats = new SampleStatistic();
+    private final Gauge _callSessionsGauge = new Gauge(
+    		"sip_call_sessions", "Current call sessions");
+    private final Counter _callSessionsCounter = new Counter(
+    		"sip_call_sessions_total", "Created call sessions");
     
     private int _callsThreshold = 0;
+    private Threshold _callsThresholdTrigger;
+    
+    // maximum lateness of the timers run in the current and previous second
+    private volatile long _latenessStart;
+    private volatile long _lateness;
+    private volatile long _previousLateness;
     	
     public SessionManager()
     { 
@@ -83,15 +120,30 @@ public class SessionManager extends AbstractLifeCycle
     @Override
     protected void doStart() throws Exception
     {
+    	if (_server != null)
+    	{
+    		_server.getMetricsRegistry().register(_callSessionsGauge);
+    		_server.getMetricsRegistry().register(_callSessionsCounter);
+    	}
     	if (_storeDir != null)
         {
             if (!_storeDir.exists())
                 _storeDir.mkdir();
-            
-            restoreSessions();
         }
+    	if (_replicator != null)
+    		_replicator.start();
+    	if (_storeDir != null)
+    		restoreSessions();
     	
         new Thread(new Scheduler()).start();
+        if (_passivationThreshold > 0)
+        {
+        	if (_offHeapStore == null)
+        		_offHeapStore = new OffHeapStore();
+        	_passivator = new Thread(new Passivator(), "session-passivator");
+        	_passivator.setDaemon(true);
+        	_passivator.start();
+        }
         super.doStart();
     }
     
@@ -102,8 +154,27 @@ public class SessionManager extends AbstractLifeCycle
     	
     	if (_scheduler != null)
     		_scheduler.interrupt();
+    	if (_passivator != null)
+    	{
+    		_passivator.interrupt();
+    		_passivator = null;
+    	}
+    	
+    	if (_journal != null)
+    	{
+    		_journal.close();
+    		_journal = null;
+    	}
+    	if (_replicator != null)
+    		_replicator.stop();
     	
     	_sessions.clear();
+    	
+    	if (_server != null)
+    	{
+    		_server.getMetricsRegistry().unregister(_callSessionsGauge);
+    		_server.getMetricsRegistry().unregister(_callSessionsCounter);
+    	}
     }
     
     public void setPriorityOffset(int priorityOffset)
@@ -116,32 +187,139 @@ public class SessionManager extends AbstractLifeCycle
     	_storeDir = storeDir;
     }
     
+    public File getStoreDir()
+    {
+    	return _storeDir;
+    }
+    
+    public SessionJournal getJournal()
+    {
+    	return _journal;
+    }
+    
+    public long getPassivationThreshold()
+    {
+    	return _passivationThreshold;
+    }
+    
+    /**
+     * Sets the time in ms after which an idle call session is passivated, <code>0</code> to disable 
+     * passivation. A call session is idle when its scope is not open. Only call sessions without transactions, 
+     * whose state can be saved without loss, are passivated.
+     */
+    public void setPassivationThreshold(long passivationThreshold)
+    {
+    	_passivationThreshold = passivationThreshold;
+    }
+    
+    public long getPassivationInterval()
+    {
+    	return _passivationInterval;
+    }
+    
+    /**
+     * Sets the interval in ms at which idle call sessions are looked for. Passivated call sessions are 
+     * activated at most this interval before their next timer expires.
+     */
+    public void setPassivationInterval(long passivationInterval)
+    {
+    	_passivationInterval = passivationInterval;
+    }
+    
+    public OffHeapStore getOffHeapStore()
+    {
+    	return _offHeapStore;
+    }
+    
+    public void setOffHeapStore(OffHeapStore offHeapStore)
+    {
+    	_offHeapStore = offHeapStore;
+    }
+    
+    /**
+     * @return the number of passivated call sessions.
+     */
+    public int getPassivatedSessions()
+    {
+    	synchronized (_sessions)
+    	{
+    		return _passivated.size();
+    	}
+    }
+    
+    public SessionReplicator getReplicator()
+    {
+    	return _replicator;
+    }
+    
+    public void setReplicator(SessionReplicator replicator)
+    {
+    	if (isStarted())
+    		throw new IllegalStateException("Started");
+    	_replicator = replicator;
+    }
+    
+    /**
+     * Opens a scope on the call session with the given ID, activating it if passivated or creating it 
+     * if it does not exist. 
+     * 
+     * @return the scope, with no call session if it is locked by another thread.
+     * @throws IllegalStateException if the call session is passivated and could not be activated. Its 
+     * passivated state is kept so that activation is tried again on next access.
+     */
     public SessionScope openScope(String id)
     {
     	CSession callSession = null;
     	
-    	synchronized (_sessions)
+    	while (true)
     	{
-    		callSession =  _sessions.get(id);
+    		callSession = activate(id);
     		if (callSession == null)
     		{
-    			callSession = newSession(id);
-    			
-    			_sessions.put(callSession.getId(), callSession);
-    			
-				_sessionsStats.increment();
-    			
-    			if (_callsThreshold > 0 && getCallSessions() == _callsThreshold)
-    				Events.fire(Events.CALLS_THRESHOLD_READCHED, "Calls threshold reached: " + getCallSessions());
+		    	synchronized (_sessions)
+		    	{
+		    		callSession =  _sessions.get(id);
+		    		if (callSession == null)
+		    		{
+		    			Passivated passivated = _passivated.get(id);
+		    			if (passivated != null)
+		    			{
+		    				// Passivated meanwhile or being activated by another thread
+		    				if (!passivated._failed || passivated._activating)
+		    					continue;
+		    				throw new IllegalStateException("Call session " + id + " could not be activated");
+		    			}
+		    			callSession = newSession(id);
+		    			
+		    			_sessions.put(callSession.getId(), callSession);
+		    			
+						_sessionsStats.increment();
+						_callSessionsGauge.increment();
+						_callSessionsCounter.increment();
+		    		}
+		    	}
     		}
+	    	if (!callSession._lock.tryLock())
+	    		return new SessionScope(null);
+	    	if (!callSession._passivated)
+	    		return new SessionScope(callSession);
+	    	callSession._lock.unlock();
     	}
-    	return new SessionScope(callSession._lock.tryLock() ? callSession : null);
     }
     
     public SessionScope openScope(CallSession callSession)
     {
     	CSession csession = (CSession) callSession;
     	csession._lock.lock();
+    	while (csession._passivated)
+    	{
+    		// Passivated while the lock was awaited
+    		csession._lock.unlock();
+    		csession = activate(csession.getId());
+    		if (csession == null)
+    			throw new IllegalStateException("No call session " + callSession.getId());
+    		csession._lock.lock();
+    	}
     	return new SessionScope(csession);
     }
     
@@ -153,6 +331,7 @@ public class SessionManager extends AbstractLifeCycle
 	    	
 	    	if (holds == 1)
 	    	{
+	    		callSession._accessed = System.currentTimeMillis();
 	    		callSession.invalidateSessionsIfReady();
 	    		
 	    		long time = callSession.nextExecutionTime();
@@ -181,9 +360,17 @@ public class SessionManager extends AbstractLifeCycle
 	        	if (callSession.isDone())
 	        	{
 	        		boolean removed = removeSession(callSession);
+	        		if (removed && callSession._saved != 0)
+	        		{
+	        			if (_journal != null)
+	        				_journal.remove(callSession.getId());
+	        			if (_replicator != null)
+	        				_replicator.remove(callSession.getId());
+	        		}
 	        		if (removed)
 	        		{
 	        			_sessionsStats.decrement();
+	        			_callSessionsGauge.decrement();
 	                    _sessionTimeStats.set(round((System.currentTimeMillis() - callSession.getCreationTime())/1000.0));
 	        		}
 	        	}
@@ -220,15 +407,18 @@ public class SessionManager extends AbstractLifeCycle
     
     public CallSession get(String callId)
     {
-    	synchronized (_sessions)
-    	{
-			return (CallSession) _sessions.get(callId);
-		}
+    	return activate(callId);
     }
     
     private void runTimers(CSession csession)
 	{
     	csession._lock.lock();
+    	if (csession._passivated)
+    	{
+    		// Timers are run when activated
+    		csession._lock.unlock();
+    		return;
+    	}
 		try
 		{
 			csession.runTimers(); // TODO thread pool for app timers at least
@@ -239,28 +429,28 @@ public class SessionManager extends AbstractLifeCycle
 		}
 	}
     
+    /**
+     * Journals and replicates the state of the call session if it changed since it was last saved. As the 
+     * state of a call session is small, the whole state is written rather than its modified fields, and a 
+     * change is detected by comparing a checksum of the encoded state.
+     */
     public void saveSession(CSession session)
     {
-    	if (_storeDir == null || !_storeDir.exists())
-        {
-            return;
-        }
-        
-        if (!_storeDir.canWrite())
-        {
-            LOG.warn ("Unable to save session. Session persistence storage directory " + _storeDir.getAbsolutePath() + " is not writeable");
-            return;
-        }
+    	if (_journal == null && _replicator == null)
+    		return;
         
         try
         {
-            File file = new File(_storeDir, session.getId());
-            if (file.exists())
-                file.delete();
-            file.createNewFile();
-            FileOutputStream fos = new FileOutputStream(file);
-            session.save(fos);
-            fos.close();
+            byte[] state = encode(session);
+            long checksum = checksum(state);
+            if (checksum != session._saved)
+            {
+            	if (_journal != null)
+            		_journal.put(session.getId(), state);
+            	if (_replicator != null)
+            		_replicator.put(session.getId(), state);
+            	session._saved = checksum;
+            }
         }
         catch (Exception e)
         {
@@ -268,6 +458,26 @@ public class SessionManager extends AbstractLifeCycle
         }
     }
     
+    private byte[] encode(CSession session) throws IOException
+    {
+    	ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+    	DataOutputStream out = new DataOutputStream(bout);
+        session.save(out);
+        out.close();
+        return bout.toByteArray();
+    }
+    
+    private static long checksum(byte[] state)
+    {
+    	CRC32 crc = new CRC32();
+    	crc.update(state);
+    	// 0 is kept for call sessions that have not been journaled
+    	return crc.getValue() | (1l << 32);
+    }
+    
+    /**
+     * Opens the journal in the store directory and restores the call sessions it holds.
+     */
     public void restoreSessions() throws Exception
     {
     	if (_storeDir == null || !_storeDir.exists())
@@ -275,40 +485,273 @@ public class SessionManager extends AbstractLifeCycle
     		return;
     	}
     	
-    	if (!_storeDir.canRead())
+    	if (!_storeDir.canRead() || !_storeDir.canWrite())
     	{
-    		LOG.warn("unable to restore sessions: cannot read from store directory " + _storeDir.getAbsolutePath());
+    		LOG.warn("unable to restore sessions: cannot access store directory " + _storeDir.getAbsolutePath());
     		return;
     	}
-    	File[] files = _storeDir.listFiles();
-    	for (int i = 0; files != null && i < files.length; i++)
+    	
+    	_journal = new SessionJournal(_storeDir);
+    	Map<String, byte[]> states = _journal.open();
+    	
+    	int restored = 0;
+    	for (Map.Entry<String, byte[]> entry : states.entrySet())
     	{
-    		try
+    		if (restoreSession(entry.getKey(), entry.getValue()) != null)
+    			restored++;
+    	}
+    	if (!states.isEmpty())
+    		LOG.info("Restored {} call sessions from {}", restored, _storeDir);
+    	
+    	// Records not restored, for instance because their application is not deployed yet, are kept 
+    	// in the journal so that they may be restored on next start
+    	if (restored < states.size())
+    		LOG.warn("Kept {} call sessions that could not be restored in {}", states.size() - restored, _storeDir);
+    }
+    
+    /**
+     * @return the restored call session or <code>null</code> if it could not be restored.
+     */
+    public CallSession restoreSession(String id, byte[] state)
+    {
+    	CSession csession = newSession(id);
+    	csession._lock.lock();
+    	try
+    	{
+    		csession.restore(new DataInputStream(new ByteArrayInputStream(state)));
+    		csession._saved = checksum(state);
+    	}
+    	catch (Exception e)
+    	{
+    		LOG.warn("problem restoring session " + id, e);
+    		csession._lock.unlock();
+    		return null;
+    	}
+    	
+    	synchronized (_sessions)
+    	{
+    		if (_sessions.containsKey(id))
     		{
-    			FileInputStream in = new FileInputStream(files[i]);
-    			CallSession session = restoreSession(in);
-    			in.close();
-    			files[i].delete();
+    			LOG.warn("call session " + id + " already exists, not restored");
+    			csession._lock.unlock();
+    			return null;
     		}
-    		catch (Exception e)
+    		_sessions.put(id, csession);
+    		_sessionsStats.increment();
+			_callSessionsGauge.increment();
+    	}
+    	for (int i = 0; i < csession._appSessions.size(); i++)
+    		csession._appSessions.get(i).getContext().incrementSessions();
+    	if (_replicator != null)
+    		_replicator.put(id, state);
+    	close(csession);
+    	return csession;
+    }
+    
+    /**
+     * Passivates the call sessions idle since <code>time</code>.
+     * 
+     * @return the number of passivated call sessions.
+     */
+    public int passivate(long time)
+    {
+    	if (_offHeapStore == null)
+    		_offHeapStore = new OffHeapStore();
+    	
+    	List<CSession> idle = new ArrayList<CSession>();
+    	synchronized (_sessions)
+    	{
+    		for (CSession csession : _sessions.values())
     		{
-    			LOG.warn("problem restoring session " + files[i].getName(), e);
+    			if (csession._accessed <= time)
+    				idle.add(csession);
     		}
     	}
+    	
+    	int passivated = 0;
+    	for (CSession csession : idle)
+    	{
+    		if (passivate(csession, time))
+    			passivated++;
+    	}
+    	if (LOG.isDebugEnabled())
+    		LOG.debug("passivated {} of {} idle call sessions", passivated, idle.size());
+    	return passivated;
     }
     
-    public CallSession restoreSession(FileInputStream fis) throws Exception
+    protected boolean passivate(CSession csession, long time)
     {
-    	DataInputStream in = new DataInputStream(fis);
-    	String id = in.readUTF();
-    	int nbAppSessions = in.readInt();
+    	if (!csession._lock.tryLock())
+    		return false;
+    	try
+    	{
+    		long next = csession.nextExecutionTime();
+    		if (csession._passivated || csession._accessed > time || !csession.isPassivable()
+    				|| (next > 0 && next < System.currentTimeMillis() + 2 * _passivationInterval))
+    			return false;
+    		
+    		csession.willPassivate();
+    		byte[] state = encode(csession);
+    		long handle = _offHeapStore.put(state);
+    		if (handle == -1)
+    		{
+    			csession.didActivate();
+    			return false;
+    		}
+    		
+    		Passivated passivated = new Passivated(csession.getId(), handle, state.length, csession._saved);
+    		synchronized (_sessions)
+    		{
+    			_sessions.remove(csession.getId());
+    			_passivated.put(csession.getId(), passivated);
+    			csession._passivated = true;
+    		}
+    		synchronized (_queue)
+    		{
+    			_queue.remove(csession);
+    		}
+    		if (next > 0)
+    		{
+    			synchronized (_passivatedQueue)
+    			{
+    				_passivatedQueue.offer(passivated, next);
+    			}
+    		}
+    		return true;
+    	}
+    	catch (Exception e)
+    	{
+    		LOG.warn("Could not passivate call session " + csession.getId(), e);
+    		return false;
+    	}
+    	finally
+    	{
+    		csession._lock.unlock();
+    	}
+    }
+    
+    /**
+     * Returns the call session, activating it if passivated. The passivated stub is claimed with the 
+     * lock on sessions held, but the state is restored without it so that the other call sessions are 
+     * not delayed; threads looking for the same call session meanwhile wait for its activation. 
+     * The passivated state is kept if it cannot be restored, and activation is tried again on next access.
+     * 
+     * @return the call session or <code>null</code> if neither active nor passivated, or if it could 
+     * not be restored.
+     */
+    private CSession activate(String id)
+    {
+    	Passivated passivated;
+    	synchronized (_sessions)
+    	{
+    		while (true)
+    		{
+    			CSession csession = _sessions.get(id);
+    			if (csession != null)
+    				return csession;
+    			passivated = _passivated.get(id);
+    			if (passivated == null)
+    				return null;
+    			if (!passivated._activating)
+    				break;
+    			try
+    			{
+    				_sessions.wait();
+    			}
+    			catch (InterruptedException e)
+    			{
+    				Thread.currentThread().interrupt();
+    				return null;
+    			}
+    		}
+    		passivated._activating = true;
+    	}
+    	
+    	synchronized (_passivatedQueue)
+    	{
+    		_passivatedQueue.remove(passivated);
+    	}
     	
-    	for (int i = 0; i < nbAppSessions; i++)
+    	CSession csession = newSession(id);
+    	csession._lock.lock();
+    	try
     	{
-    		String appId = in.readUTF();
-    		System.out.println("read call: " + id + " / " + appId);
+    		byte[] state = _offHeapStore.get(passivated._handle, passivated._length);
+    		csession.restore(new DataInputStream(new ByteArrayInputStream(state)));
+    		csession._saved = passivated._saved;
+    		csession.didActivate();
+    	}
+    	catch (Exception e)
+    	{
+    		LOG.warn("Could not activate call session " + id, e);
+    		csession._lock.unlock();
+    		synchronized (_sessions)
+    		{
+    			passivated._activating = false;
+    			if (!passivated._failed)
+    			{
+    				passivated._failed = true;
+    				_sessionsStats.decrement();
+    				_callSessionsGauge.decrement();
+    			}
+    			_sessions.notifyAll();
+    		}
+    		return null;
+    	}
+    	
+    	synchronized (_sessions)
+    	{
+    		_passivated.remove(id);
+    		_sessions.put(id, csession);
+    		passivated._activating = false;
+    		if (passivated._failed)
+    		{
+    			_sessionsStats.increment();
+    			_callSessionsGauge.increment();
+    		}
+    		_sessions.notifyAll();
+    	}
+    	_offHeapStore.free(passivated._handle);
+    	close(csession);
+    	return csession;
+    }
+    
+    /**
+     * Activates the passivated call sessions with a timer expiring before <code>time</code>.
+     */
+    protected void activateExpiring(long time)
+    {
+    	while (true)
+    	{
+    		Passivated passivated;
+    		synchronized (_passivatedQueue)
+    		{
+    			passivated = _passivatedQueue.peek();
+    		}
+    		if (passivated == null || passivated.getValue() > time)
+    			return;
+    		
+    		if (activate(passivated._id) == null)
+    		{
+    			synchronized (_passivatedQueue)
+    			{
+    				_passivatedQueue.remove(passivated);
+    			}
+    		}
+    	}
+    }
+    
+    protected SipAppContext getContext(String name)
+    {
+    	if (_server != null && _server.getHandler() instanceof SipContextHandlerCollection)
+    	{
+    		SipAppContext[] contexts = ((SipContextHandlerCollection) _server.getHandler()).getSipContexts();
+    		for (int i = 0; contexts != null && i < contexts.length; i++)
+    		{
+    			if (name.equals(contexts[i].getName()))
+    				return contexts[i];
+    		}
     	}
-    	    	
     	return null;
     }
     
@@ -328,6 +771,7 @@ public class SessionManager extends AbstractLifeCycle
 	{
 		_sessionsStats.reset(getCallSessions());
 		_sessionTimeStats.reset();
+		_callSessionsCounter.reset();
 	}
 	
 	public int getCallSessions()
@@ -350,9 +794,62 @@ public class SessionManager extends AbstractLifeCycle
 		return _callsThreshold;
 	}
 
-	public void setCallsThreshold(int callsThreshold)
+	/**
+	 * Sets the number of call sessions of this manager at which the {@link Events#CALLS_THRESHOLD_READCHED}
+	 * event is fired. The event is fired again only once the number of call sessions went below the threshold.
+	 */
+	public synchronized void setCallsThreshold(int callsThreshold)
 	{
+		if (_callsThresholdTrigger != null)
+			_callSessionsGauge.removeThreshold(_callsThresholdTrigger);
+		
 		_callsThreshold = callsThreshold;
+		_callsThresholdTrigger = null;
+		
+		if (callsThreshold > 0)
+		{
+			_callsThresholdTrigger = new Threshold(callsThreshold, callsThreshold - 1, new CallsThresholdListener());
+			_callSessionsGauge.addThreshold(_callsThresholdTrigger);
+		}
+	}
+	
+	/**
+	 * @return the maximum delay in ms with which session timers were run during the last second, which
+	 * grows when the scheduler thread does not get enough CPU time.
+	 */
+	public long getTimerLateness()
+	{
+		long elapsed = System.currentTimeMillis() - _latenessStart;
+		if (elapsed >= 2000)
+			return 0;
+		if (elapsed >= 1000)
+			return _lateness;
+		return Math.max(_lateness, _previousLateness);
+	}
+	
+	private void timerLate(long lateness, long now)
+	{
+		long elapsed = now - _latenessStart;
+		if (elapsed >= 1000)
+		{
+			_previousLateness = elapsed >= 2000 ? 0 : _lateness;
+			_lateness = 0;
+			_latenessStart = now;
+		}
+		if (lateness > _lateness)
+			_lateness = lateness;
+	}
+	
+	class CallsThresholdListener implements Threshold.Listener
+	{
+		public void thresholdRaised(Gauge gauge, long value)
+		{
+			Events.fire(Events.CALLS_THRESHOLD_READCHED, "Calls threshold reached: " + value);
+		}
+
+		public void thresholdCleared(Gauge gauge, long value)
+		{
+		}
 	}
 	
 	/**
@@ -379,6 +876,49 @@ public class SessionManager extends AbstractLifeCycle
 		}
 	}
 	
+    class Passivator implements Runnable
+    {
+    	public void run()
+    	{
+    		while (isStarting() || isRunning())
+    		{
+    			try
+    			{
+    				Thread.sleep(_passivationInterval);
+    				
+    				long now = System.currentTimeMillis();
+    				activateExpiring(now + _passivationInterval);
+    				passivate(now - _passivationThreshold);
+    			}
+    			catch (InterruptedException e) { continue; }
+    			catch (Throwable t) { LOG.warn(t); }
+    		}
+    	}
+    }
+    
+    /**
+     * On-heap stub of a passivated call session.
+     */
+    static class Passivated extends TimerQueue.Node
+    {
+    	private final String _id;
+    	private final long _handle;
+    	private final int _length;
+    	private final long _saved;
+    	
+    	// guarded by the lock on sessions
+    	private boolean _activating;
+    	private boolean _failed;
+    	
+    	Passivated(String id, long handle, int length, long saved)
+    	{
+    		_id = id;
+    		_handle = handle;
+    		_length = length;
+    		_saved = saved;
+    	}
+    }
+    
     class Scheduler implements Runnable
     {
     	public void run()
@@ -418,6 +958,7 @@ public class SessionManager extends AbstractLifeCycle
 						{
 							if (LOG.isDebugEnabled())
 								LOG.debug("running timers for call session: {}", csession);
+							timerLate(-timeout, System.currentTimeMillis());
 							runTimers(csession);
 						}
     				}
@@ -444,7 +985,10 @@ public class SessionManager extends AbstractLifeCycle
     public class CSession extends TimerQueue.Node implements CallSession
     {
     	protected String _id;
-    	protected final long _created;
+    	protected long _created;
+    	protected long _saved;
+    	protected long _accessed;
+    	protected volatile boolean _passivated;
     	
     	protected TimerList _timers = new TimerList();
     	
@@ -458,6 +1002,7 @@ public class SessionManager extends AbstractLifeCycle
     	{
     		_id = id;
     		_created = System.currentTimeMillis();
+    		_accessed = _created;
     	}
     	
     	public String getId()
@@ -706,8 +1251,65 @@ public class SessionManager extends AbstractLifeCycle
 			}
 		}
 		
-		protected void save(FileOutputStream fos) throws IOException
+		/**
+		 * @return <code>true</code> if the state saved by {@link #save(DataOutputStream)} is complete: 
+		 * there is no transaction and only application session timers.
+		 */
+		protected boolean isPassivable()
 		{
+			if (!_serverTransactions.isEmpty() || !_clientTransactions.isEmpty() || _appSessions.isEmpty())
+				return false;
+			for (TimerTask timer : _timers)
+			{
+				Runnable runnable = timer.getRunnable();
+				if (!(runnable instanceof AppSession.ExpiryTimeout) && !(runnable instanceof AppSession.Timer))
+					return false;
+			}
+			for (int i = 0; i < _appSessions.size(); i++)
+			{
+				if (!_appSessions.get(i).isPassivable())
+					return false;
+			}
+			return true;
+		}
+		
+		protected void willPassivate()
+		{
+			for (int i = 0; i < _appSessions.size(); i++)
+				_appSessions.get(i).willPassivate();
+		}
+		
+		protected void didActivate()
+		{
+			for (int i = 0; i < _appSessions.size(); i++)
+				_appSessions.get(i).didActivate();
+		}
+		
+		protected void save(DataOutputStream out) throws IOException
+		{
+			out.writeLong(_created);
+			out.writeInt(_appSessions.size());
+			for (int i = 0; i < _appSessions.size(); i++)
+				_appSessions.get(i).save(out);
+		}
+		
+		protected void restore(DataInputStream in) throws IOException, ServletParseException
+		{
+			_created = in.readLong();
+			int nbAppSessions = in.readInt();
+			for (int i = 0; i < nbAppSessions; i++)
+			{
+				String appId = in.readUTF();
+				String name = in.readUTF();
+				SipAppContext context = getContext(name);
+				if (context == null)
+					throw new IOException("No application " + name + " for application session " + appId);
+				// Not created: listeners are not notified
+				AppSession appSession = newAppSession(this, appId);
+				appSession._context = context;
+				_appSessions.add(appSession);
+				appSession.restore(in);
+			}
 		}
 		
     	private void assertLocked()
@@ -0,0 +1,297 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Sends the state of call sessions to a {@link SessionStandby} node over a persistent TCP connection.
+ * <p>
+ * States saved by {@link SessionManager} are queued and sent in batches every few milliseconds. Several
+ * updates of the same call session within a batch are coalesced, only the last one being sent. When
+ * the connection is (re)established, the standby is resynchronized with the last state of all live
+ * call sessions, which are kept for that purpose.
+ * <p>
+ * Timer deadlines are sent as absolute times, so the clocks of both nodes should be synchronized.
+ */
+public class SessionReplicator extends AbstractLifeCycle implements SessionStore
+{
+	private static final Logger LOG = Log.getLogger(SessionReplicator.class);
+
+	public static final int DEFAULT_PORT = 5062;
+
+	static final int MAGIC = 0x43525031; // CRP1
+	static final byte PUT = 1;
+	static final byte REMOVE = 2;
+	static final byte RESET = 3;
+	static final byte HEARTBEAT = 4;
+
+	private static final byte[] REMOVED = new byte[0];
+
+	private String _host = "localhost";
+	private int _port = DEFAULT_PORT;
+	private long _batchDelay = 5;
+	private long _reconnectDelay = 1000;
+	private long _heartbeatInterval = 1000;
+	private int _connectTimeout = 5000;
+
+	private final Map<String, byte[]> _states = new HashMap<String, byte[]>();
+	private Map<String, byte[]> _pending = new LinkedHashMap<String, byte[]>();
+
+	private Thread _sender;
+	private volatile Socket _socket;
+	private long _sent;
+
+	public String getHost()
+	{
+		return _host;
+	}
+
+	/**
+	 * Sets the host of the standby node.
+	 */
+	public void setHost(String host)
+	{
+		_host = host;
+	}
+
+	public int getPort()
+	{
+		return _port;
+	}
+
+	public void setPort(int port)
+	{
+		_port = port;
+	}
+
+	public long getBatchDelay()
+	{
+		return _batchDelay;
+	}
+
+	/**
+	 * Sets the time in ms during which states are accumulated before being sent.
+	 */
+	public void setBatchDelay(long batchDelay)
+	{
+		_batchDelay = batchDelay;
+	}
+
+	public long getReconnectDelay()
+	{
+		return _reconnectDelay;
+	}
+
+	public void setReconnectDelay(long reconnectDelay)
+	{
+		_reconnectDelay = reconnectDelay;
+	}
+
+	/**
+	 * @return <code>true</code> if connected to the standby node.
+	 */
+	public boolean isConnected()
+	{
+		return _socket != null;
+	}
+
+	/**
+	 * @return the number of call session states sent.
+	 */
+	public synchronized long getSent()
+	{
+		return _sent;
+	}
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		_sender = new Thread(new Sender(), "session-replicator");
+		_sender.setDaemon(true);
+		_sender.start();
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+		synchronized (this)
+		{
+			notifyAll();
+		}
+		close();
+		if (_sender != null)
+			_sender.join();
+		_sender = null;
+	}
+
+	public synchronized void put(String id, byte[] state)
+	{
+		_states.put(id, state);
+		queue(id, state);
+	}
+
+	public synchronized void remove(String id)
+	{
+		if (_states.remove(id) != null)
+			queue(id, REMOVED);
+	}
+
+	private void queue(String id, byte[] state)
+	{
+		if (_socket == null)
+			return;
+		_pending.remove(id);
+		_pending.put(id, state);
+		if (_pending.size() == 1)
+			notifyAll();
+	}
+
+	private synchronized boolean isEmpty()
+	{
+		return _pending.isEmpty();
+	}
+
+	private void close()
+	{
+		Socket socket = _socket;
+		_socket = null;
+		try
+		{
+			if (socket != null)
+				socket.close();
+		}
+		catch (IOException e)
+		{
+			LOG.ignore(e);
+		}
+	}
+
+	private DataOutputStream connect() throws IOException
+	{
+		Socket socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(_host, _port), _connectTimeout);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeByte(RESET);
+
+		synchronized (this)
+		{
+			// Resynchronize from the current states, later changes are queued
+			_pending = new LinkedHashMap<String, byte[]>(_states);
+			_socket = socket;
+		}
+		LOG.info("Replicating sessions to {}:{}", _host, _port);
+		return out;
+	}
+
+	static void write(DataOutputStream out, String id, byte[] state) throws IOException
+	{
+		if (state == REMOVED)
+		{
+			out.writeByte(REMOVE);
+			out.writeUTF(id);
+		}
+		else
+		{
+			out.writeByte(PUT);
+			out.writeUTF(id);
+			out.writeInt(state.length);
+			out.write(state);
+		}
+	}
+
+	class Sender implements Runnable
+	{
+		public void run()
+		{
+			DataOutputStream out = null;
+			while (isRunning() || isStarting())
+			{
+				try
+				{
+					if (out == null)
+					{
+						try
+						{
+							out = connect();
+						}
+						catch (IOException e)
+						{
+							LOG.debug("Could not connect to {}:{}: {}", _host, _port, e);
+							Thread.sleep(_reconnectDelay);
+							continue;
+						}
+					}
+
+					Map<String, byte[]> batch;
+					synchronized (SessionReplicator.this)
+					{
+						if (_pending.isEmpty() && isRunning())
+							SessionReplicator.this.wait(_heartbeatInterval);
+					}
+					if (isEmpty())
+					{
+						// Detects a lost connection when idle
+						out.writeByte(HEARTBEAT);
+						out.flush();
+						continue;
+					}
+
+					if (_batchDelay > 0)
+						Thread.sleep(_batchDelay);
+
+					synchronized (SessionReplicator.this)
+					{
+						batch = _pending;
+						_pending = new LinkedHashMap<String, byte[]>();
+						_sent += batch.size();
+					}
+
+					for (Map.Entry<String, byte[]> entry : batch.entrySet())
+						write(out, entry.getKey(), entry.getValue());
+					out.flush();
+				}
+				catch (InterruptedException e)
+				{
+					LOG.ignore(e);
+				}
+				catch (IOException e)
+				{
+					if (isRunning())
+						LOG.warn("Lost connection to standby " + _host + ":" + _port + ": " + e);
+					close();
+					out = null;
+				}
+			}
+			close();
+		}
+	}
+}
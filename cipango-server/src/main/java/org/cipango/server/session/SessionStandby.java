@@ -0,0 +1,242 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * Receives the state of call sessions from the {@link SessionReplicator} of an active node.
+ * <p>
+ * The states are kept as received, in their binary form: no call session is created until
+ * {@link #takeover()}, when the states are restored into the {@link SessionManager} of this node.
+ */
+public class SessionStandby extends AbstractLifeCycle
+{
+	private static final Logger LOG = Log.getLogger(SessionStandby.class);
+
+	private String _host;
+	private int _port = SessionReplicator.DEFAULT_PORT;
+	private SessionManager _sessionManager;
+
+	private final Map<String, byte[]> _states = new HashMap<String, byte[]>();
+
+	private ServerSocket _serverSocket;
+	private volatile Socket _socket;
+	private Thread _acceptor;
+
+	public String getHost()
+	{
+		return _host;
+	}
+
+	/**
+	 * Sets the interface to listen on, all interfaces if <code>null</code>.
+	 */
+	public void setHost(String host)
+	{
+		_host = host;
+	}
+
+	/**
+	 * @return the port to listen on or, once started, the port listened on.
+	 */
+	public int getPort()
+	{
+		return _serverSocket != null ? _serverSocket.getLocalPort() : _port;
+	}
+
+	public void setPort(int port)
+	{
+		_port = port;
+	}
+
+	public SessionManager getSessionManager()
+	{
+		return _sessionManager;
+	}
+
+	public void setSessionManager(SessionManager sessionManager)
+	{
+		_sessionManager = sessionManager;
+	}
+
+	/**
+	 * @return the number of call sessions replicated on this node.
+	 */
+	public int getCallSessions()
+	{
+		synchronized (_states)
+		{
+			return _states.size();
+		}
+	}
+
+	/**
+	 * @return the state of the call session or <code>null</code> if none.
+	 */
+	public byte[] getState(String id)
+	{
+		synchronized (_states)
+		{
+			return _states.get(id);
+		}
+	}
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		_serverSocket = new ServerSocket();
+		_serverSocket.setReuseAddress(true);
+		_serverSocket.bind(_host == null ? new InetSocketAddress(_port) : new InetSocketAddress(_host, _port));
+
+		_acceptor = new Thread(new Acceptor(), "session-standby");
+		_acceptor.setDaemon(true);
+		_acceptor.start();
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+		_serverSocket.close();
+		Socket socket = _socket;
+		if (socket != null)
+			socket.close();
+		if (_acceptor != null)
+			_acceptor.join();
+		_acceptor = null;
+		_serverSocket = null;
+	}
+
+	/**
+	 * Stops receiving states and restores the replicated call sessions in the session manager, which
+	 * schedules their timers.
+	 *
+	 * @return the number of restored call sessions.
+	 */
+	public int takeover() throws Exception
+	{
+		stop();
+
+		Map<String, byte[]> states;
+		synchronized (_states)
+		{
+			states = new HashMap<String, byte[]>(_states);
+			_states.clear();
+		}
+
+		int restored = 0;
+		for (Map.Entry<String, byte[]> entry : states.entrySet())
+		{
+			if (_sessionManager.restoreSession(entry.getKey(), entry.getValue()) != null)
+				restored++;
+		}
+		LOG.info("Took over {} of {} call sessions", restored, states.size());
+		return restored;
+	}
+
+	private void receive(Socket socket) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+		if (in.readInt() != SessionReplicator.MAGIC)
+			throw new IOException("Invalid replication stream from " + socket.getRemoteSocketAddress());
+
+		LOG.info("Receiving sessions from {}", socket.getRemoteSocketAddress());
+		while (isRunning())
+		{
+			byte type = in.readByte();
+			switch (type)
+			{
+				case SessionReplicator.PUT:
+					String id = in.readUTF();
+					byte[] state = new byte[in.readInt()];
+					in.readFully(state);
+					synchronized (_states)
+					{
+						_states.put(id, state);
+					}
+					break;
+				case SessionReplicator.REMOVE:
+					id = in.readUTF();
+					synchronized (_states)
+					{
+						_states.remove(id);
+					}
+					break;
+				case SessionReplicator.HEARTBEAT:
+					break;
+				case SessionReplicator.RESET:
+					synchronized (_states)
+					{
+						_states.clear();
+					}
+					break;
+				default:
+					throw new IOException("Unknown record type " + type);
+			}
+		}
+	}
+
+	class Acceptor implements Runnable
+	{
+		public void run()
+		{
+			while (isRunning() || isStarting())
+			{
+				try
+				{
+					_socket = _serverSocket.accept();
+					_socket.setTcpNoDelay(true);
+					receive(_socket);
+				}
+				catch (EOFException e)
+				{
+					LOG.info("Active node closed replication connection");
+				}
+				catch (IOException e)
+				{
+					if (isRunning())
+						LOG.warn("Replication connection failed: " + e);
+				}
+				finally
+				{
+					try
+					{
+						if (_socket != null)
+							_socket.close();
+					}
+					catch (IOException e)
+					{
+						LOG.ignore(e);
+					}
+					_socket = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,33 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+/**
+ * Receives the state of call sessions saved by {@link SessionManager} when it changed.
+ * 
+ * @see SessionManager#saveSession(org.cipango.server.session.SessionManager.CSession)
+ */
+public interface SessionStore
+{
+	/**
+	 * Stores the last state of a call session. Must not block.
+	 */
+	void put(String id, byte[] state);
+	
+	/**
+	 * Removes a call session which is done.
+	 */
+	void remove(String id);
+}
@@ -14,6 +14,7 @@
 
 package org.cipango.server.transaction;
 
+import org.cipango.server.LoopbackConnection;
 import org.cipango.server.Server;
 import org.cipango.server.SipConnection;
 import org.cipango.server.SipRequest;
@@ -156,7 +157,8 @@ public abstract class Transaction
     
     public boolean isTransportReliable()
 	{
-		return getConnection().getConnector().isReliable();
+    	SipConnection connection = getConnection();
+		return connection instanceof LoopbackConnection || connection.getConnector().isReliable();
 	}
     
     public Server getServer() 
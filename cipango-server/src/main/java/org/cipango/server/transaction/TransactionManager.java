@@ -20,27 +20,60 @@ import javax.servlet.ServletException;
 import javax.servlet.sip.SipServletMessage;
 import javax.servlet.sip.SipServletResponse;
 
+import org.cipango.server.Server;
 import org.cipango.server.SipHandler;
 import org.cipango.server.SipMessage;
 import org.cipango.server.SipProxy;
 import org.cipango.server.SipRequest;
 import org.cipango.server.SipResponse;
+import org.cipango.server.metrics.Counter;
+import org.cipango.server.metrics.MetricsRegistry;
 import org.cipango.server.transaction.Transaction.TimersSettings;
 import org.cipango.sip.SipGrammar;
 import org.eclipse.jetty.server.handler.HandlerWrapper;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
-import org.eclipse.jetty.util.statistic.CounterStatistic;
 
 public class TransactionManager extends HandlerWrapper implements SipHandler
 {      
 	private static final Logger LOG = Log.getLogger(TransactionManager.class);
 	
-    private CounterStatistic _retransStats = new CounterStatistic();
-    private CounterStatistic _notFoundStats = new CounterStatistic();
+    private final Counter _retransStats = new Counter(
+    		"sip_retransmissions_total", "Received SIP request retransmissions");
+    private final Counter _notFoundStats = new Counter(
+    		"sip_transactions_not_found_total", "Received SIP responses with no matching client transaction");
+    private final Counter _serverTxStats = new Counter(
+    		"sip_server_transactions_total", "Created SIP server transactions");
+    private final Counter _clientTxStats = new Counter(
+    		"sip_client_transactions_total", "Created SIP client transactions");
 	
     protected TimersSettings _timersSettings = new TimersSettings();
     
+    /**
+     * Moves the transaction metrics to the registry of <code>server</code>.
+     */
+    @Override
+    public void setServer(org.eclipse.jetty.server.Server server)
+    {
+    	if (getServer() instanceof Server)
+    	{
+    		MetricsRegistry registry = ((Server) getServer()).getMetricsRegistry();
+    		registry.unregister(_retransStats);
+    		registry.unregister(_notFoundStats);
+    		registry.unregister(_serverTxStats);
+    		registry.unregister(_clientTxStats);
+    	}
+    	super.setServer(server);
+    	if (server instanceof Server)
+    	{
+    		MetricsRegistry registry = ((Server) server).getMetricsRegistry();
+    		registry.register(_retransStats);
+    		registry.register(_notFoundStats);
+    		registry.register(_serverTxStats);
+    		registry.register(_clientTxStats);
+    	}
+    }
+    
 	public void handle(SipServletMessage message) throws ServletException, IOException 
     {
 		if (((SipMessage) message).isRequest())
@@ -85,6 +118,7 @@ public class TransactionManager extends HandlerWrapper implements SipHandler
 		else
 		{
 			transaction = new ServerTransaction(request);
+			_serverTxStats.increment();
 
 			if (!request.isAck()) 
 				request.getCallSession().addServerTransaction(transaction);
@@ -142,6 +176,7 @@ public class TransactionManager extends HandlerWrapper implements SipHandler
 	public ClientTransaction sendRequest(SipRequest request, ClientTransactionListener listener) 
     {
 		ClientTransaction ctx = new ClientTransaction(request, listener);
+		_clientTxStats.increment();
 		
 		if (!request.isAck())
 			request.getCallSession().addClientTransaction(ctx);
@@ -235,17 +270,19 @@ public class TransactionManager extends HandlerWrapper implements SipHandler
 	
 	public long getRetransmissions()
 	{
-		return _retransStats.getCurrent();
+		return _retransStats.getValue();
 	}
 	
 	public long getNotFoundTransactions()
 	{
-		return _notFoundStats.getCurrent();
+		return _notFoundStats.getValue();
 	}
 	
 	public void statsReset()
     {
         _retransStats.reset();
         _notFoundStats.reset();
+        _serverTxStats.reset();
+        _clientTxStats.reset();
     }
 }
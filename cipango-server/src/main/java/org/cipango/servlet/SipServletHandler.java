@@ -33,6 +33,7 @@ import javax.servlet.sip.SipServletRequest;
 
 import org.cipango.server.SipHandler;
 import org.cipango.server.SipMessage;
+import org.cipango.sipapp.CompiledMappings;
 import org.cipango.sipapp.SipAppContext;
 import org.cipango.sipapp.SipServletMapping;
 import org.eclipse.jetty.server.Request;
@@ -55,6 +56,7 @@ public class SipServletHandler extends ServletHandler implements SipHandler
     private SipServletHolder _mainServlet;
 	private SipServletHolder[] _sipServlets;
 	private SipServletMapping[] _sipServletMappings;
+	private CompiledMappings _compiledMappings;
 	private Map<String, SipServletHolder> _sipServletNameMap;
     
     private SipAppContext _context;
@@ -202,6 +204,17 @@ public class SipServletHandler extends ServletHandler implements SipHandler
             }
             _sipServletNameMap = nm;
         }
+        compileSipMappings();
+	}
+	
+	/**
+	 * Compiles the mappings rules so that they are not interpreted for each initial request. Should be 
+	 * called if a mapping rule is modified after being added.
+	 */
+	public void compileSipMappings()
+	{
+		SipServletMapping[] mappings = _sipServletMappings;
+		_compiledMappings = mappings == null ? null : new CompiledMappings(mappings);
 	}
 	
 	public void initializeSip() throws Exception
@@ -235,14 +248,12 @@ public class SipServletHandler extends ServletHandler implements SipHandler
 		if (_mainServlet != null)
 			return _mainServlet;
 		
-		if (_sipServletMappings != null)
+		CompiledMappings mappings = _compiledMappings;
+		if (mappings != null)
 		{
-			for (int i = 0; i < _sipServletMappings.length; i++)
-			{
-				SipServletMapping mapping = _sipServletMappings[i];
-				if (mapping.getMatchingRule().matches(request))
-					return (SipServletHolder) _sipServletNameMap.get(mapping.getServletName());
-			}
+			SipServletMapping mapping = mappings.match(request);
+			if (mapping != null)
+				return (SipServletHolder) _sipServletNameMap.get(mapping.getServletName());
 		}
 		return null;
 	}
@@ -364,6 +375,7 @@ public class SipServletHandler extends ServletHandler implements SipHandler
             getServer().getContainer().update(this, _sipServletMappings, sipServletMappings, "sipServletMapping", true);
             
         _sipServletMappings = sipServletMappings;
+        compileSipMappings();
     }
 	
 	public void setMainServletName(String name)
@@ -33,7 +33,9 @@ public class NameAddr implements Address, Serializable
 	private String _nameAddr;
 	private String _displayName; 
 	private URI _uri;
-	private HashMap<String, String> _params = new HashMap<String, String>();
+	private HashMap<String, String> _params;
+	private String _paramsSource;
+	private int _paramsStart;
 	private boolean _wildcard;
 
 	public NameAddr(String address) throws ServletParseException 
@@ -61,7 +63,7 @@ public class NameAddr implements Address, Serializable
 	private void parse(String address, boolean parseParam) throws ServletParseException 
 	{
 		String sURI = null;
-		String sParams = null;
+		int indexParams = -1;
 		address = address.trim();
 		if ("*".equals(address)) 
 		{
@@ -86,9 +88,7 @@ public class NameAddr implements Address, Serializable
 				throw new ServletParseException("Missing > in address [" + address + "]");
 			
 			sURI = address.substring(laqIndex + 1, raqIndex);
-			int indexParams = address.indexOf(';', raqIndex + 1);
-			if (indexParams > -1) 
-				sParams = address.substring(indexParams + 1);
+			indexParams = address.indexOf(';', raqIndex + 1);
 			
 		} 
 		else 
@@ -112,26 +112,26 @@ public class NameAddr implements Address, Serializable
 					throw new ServletParseException("Missing > in address [" + address + "]");
 				
 				sURI = address.substring(indexLAQuote + 1, indexRAQuote);
-				int indexParams = address.indexOf(';', indexRAQuote + 1);
-				if (indexParams > -1) 
-					sParams = address.substring(indexParams + 1);
+				indexParams = address.indexOf(';', indexRAQuote + 1);
 				
 			}
 			else
 			{
-				int indexParams = address.indexOf(';');
+				indexParams = address.indexOf(';');
 				if (indexParams > -1) 
-				{
 					sURI = address.substring(0, indexParams);
-					sParams = address.substring(indexParams + 1);
-				} 
 				else 
 					sURI = address;
 			}
 		}
 		_uri = URIFactory.parseURI(sURI);
-		if (sParams != null && parseParam) 
-			parseParams2(sParams);
+		if (indexParams > -1 && parseParam) 
+		{
+			// Parameters are only validated here and put in a map when first accessed.
+			_paramsSource = address;
+			_paramsStart = indexParams + 1;
+			parseParams(VALIDATE, null);
+		}
 	}
 	
 	private static final int PARAM_NAME = 0;
@@ -139,44 +139,48 @@ public class NameAddr implements Address, Serializable
 	private static final int PARAM_VALUE_LEFT_QUOTE = 2;
 	private static final int PARAM_VALUE_RIGHT_QUOTE = 3;
 	
+	private static final int VALIDATE = 0;
+	private static final int BUILD = 1;
+	private static final int FIND = 2;
 	
-	private void parseParams2(String sParams) throws ServletParseException 
+	/**
+	 * Runs once over the parameters from <code>_paramsStart</code> in <code>_paramsSource</code>. 
+	 * Depending on <code>mode</code>, parameters are validated, put in the parameters map, or the value 
+	 * of the parameter <code>name</code> is returned. Strings are only created for the parameters put 
+	 * or returned.
+	 */
+	private String parseParams(int mode, String name) throws ServletParseException 
 	{
+		String s = _paramsSource;
 		int state = PARAM_NAME;
-		String name = null;
-		String value;
-		int pos = 0;
-		for (int i = 0; i < sParams.length(); i++)
+		int nameStart = 0, nameEnd = 0;
+		int pos = _paramsStart;
+		String found = null;
+		
+		for (int i = _paramsStart; i < s.length(); i++)
 		{
-			char c = sParams.charAt(i);
+			char c = s.charAt(i);
 			switch (state)
 			{
 			case PARAM_NAME:
-				if (c == '=')
+				if (c == '=' || c == ';')
 				{
-					name = sParams.substring(pos, i).trim().toLowerCase();
-					if (!SipGrammar.isToken(name)) 
-						throw new ServletParseException("Invalid parameter name [" 
-								+ name + "] in [" + _nameAddr + "]");
-					pos = i + 1;
-					state = PARAM_VALUE;
-				}
-				else if (c == ';')
-				{
-					name = sParams.substring(pos, i).trim().toLowerCase();
-					if (!SipGrammar.isToken(name)) 
-						throw new ServletParseException("Invalid parameter name [" 
-								+ name + "] in [" + _nameAddr + "]");
-					
-					_params.put(name, "");
+					nameStart = trimStart(s, pos, i);
+					nameEnd = trimEnd(s, nameStart, i);
+					if (mode == VALIDATE)
+						checkToken(s, nameStart, nameEnd);
 					pos = i + 1;
+					if (c == '=')
+						state = PARAM_VALUE;
+					else
+						found = param(mode, name, found, nameStart, nameEnd, pos, pos, false);
 				}
 				break;
 			case PARAM_VALUE:
 				if (c == ';')
 				{
-					value = sParams.substring(pos, i).trim();
-					_params.put(name, value);
+					int valueStart = trimStart(s, pos, i);
+					found = param(mode, name, found, nameStart, nameEnd, valueStart, trimEnd(s, valueStart, i), false);
 					pos = i + 1;
 					state = PARAM_NAME;
 				}
@@ -187,10 +191,9 @@ public class NameAddr implements Address, Serializable
 				}
 				break;
 			case PARAM_VALUE_LEFT_QUOTE:
-				if (c == '"' && sParams.charAt(i - 1) != '\\')
+				if (c == '"' && s.charAt(i - 1) != '\\')
 				{
-					value =  SipGrammar.unquote(sParams.substring(pos, i + 1).trim());
-					_params.put(name, value);
+					found = param(mode, name, found, nameStart, nameEnd, pos, i + 1, true);
 					pos = i + 1;
 					state = PARAM_VALUE_RIGHT_QUOTE;
 				}
@@ -209,83 +212,93 @@ public class NameAddr implements Address, Serializable
 		switch (state)
 		{
 		case PARAM_NAME:
-			name = sParams.substring(pos).trim().toLowerCase();
-			if (!SipGrammar.isToken(name)) 
-				throw new ServletParseException("Invalid parameter name [" 
-						+ name + "] in [" + _nameAddr + "]");
-			
-			_params.put(name, "");
+			nameStart = trimStart(s, pos, s.length());
+			nameEnd = trimEnd(s, nameStart, s.length());
+			if (mode == VALIDATE)
+				checkToken(s, nameStart, nameEnd);
+			found = param(mode, name, found, nameStart, nameEnd, nameEnd, nameEnd, false);
 			break;
 		case PARAM_VALUE:
-			value = sParams.substring(pos).trim();
-			_params.put(name, value);
+			int valueStart = trimStart(s, pos, s.length());
+			found = param(mode, name, found, nameStart, nameEnd, valueStart, trimEnd(s, valueStart, s.length()), false);
 			break;
 		case PARAM_VALUE_RIGHT_QUOTE:
 			break;
 		default:
 			throw new ServletParseException("Invalid parameter value [" 
-					+ sParams.substring(pos).trim() + "] in [" + _nameAddr + "]");
+					+ s.substring(pos).trim() + "] in [" + _nameAddr + "]");
+		}
+		return found;
+	}
+	
+	private String param(int mode, String name, String found, int nameStart, int nameEnd, 
+			int valueStart, int valueEnd, boolean quoted)
+	{
+		String s = _paramsSource;
+		if (mode == BUILD)
+		{
+			_params.put(s.substring(nameStart, nameEnd).toLowerCase(), value(valueStart, valueEnd, quoted));
 		}
+		else if (mode == FIND)
+		{
+			if (nameEnd - nameStart == name.length() && s.regionMatches(true, nameStart, name, 0, name.length()))
+				return value(valueStart, valueEnd, quoted);
+		}
+		return found;
+	}
+	
+	private String value(int start, int end, boolean quoted)
+	{
+		String value = _paramsSource.substring(start, end);
+		return quoted ? SipGrammar.unquote(value) : value;
+	}
+	
+	private void checkToken(String s, int start, int end) throws ServletParseException
+	{
+		boolean token = end > start;
+		for (int i = start; token && i < end; i++)
+			token = SipGrammar.__token.contains(s.charAt(i));
+		if (!token)
+			throw new ServletParseException("Invalid parameter name [" 
+					+ s.substring(start, end).toLowerCase() + "] in [" + _nameAddr + "]");
+	}
+	
+	private static int trimStart(String s, int start, int end)
+	{
+		while (start < end && s.charAt(start) <= ' ')
+			start++;
+		return start;
 	}
 	
+	private static int trimEnd(String s, int start, int end)
+	{
+		while (end > start && s.charAt(end - 1) <= ' ')
+			end--;
+		return end;
+	}
 	
-	private void parseParams(String sParams) throws ServletParseException 
+	/**
+	 * @return the parameters, built from the parsed address on first use.
+	 */
+	private HashMap<String, String> params()
 	{
-		int beginIndex = 0;
-		int endIndex;
-		do
+		if (_params == null)
 		{
-			String name;
-			String value;
-			endIndex = sParams.indexOf('=', beginIndex);
-			
-			int indexSemi = sParams.indexOf(';', beginIndex);
-			
-			if (endIndex == -1 || (indexSemi < endIndex && indexSemi != -1))
-				endIndex = indexSemi;
-			
-			if (endIndex == -1)
-			{
-				name = sParams.substring(beginIndex).trim();
-				value = "";
-			}
-			else if (endIndex == indexSemi)
-			{
-				name = sParams.substring(beginIndex, endIndex).trim();
-				value = "";
-			}
-			else
+			_params = new HashMap<String, String>();
+			if (_paramsSource != null)
 			{
-				name = sParams.substring(beginIndex, endIndex).trim();
-				
-				int quoteIndex = sParams.indexOf('"', endIndex);
-				if (quoteIndex != -1 && (quoteIndex < indexSemi || indexSemi == -1))
+				try
 				{
-					beginIndex = quoteIndex + 1;
-					endIndex = sParams.indexOf('"', beginIndex);
-					value = SipGrammar.unquote(sParams.substring(beginIndex, endIndex).trim());
+					parseParams(BUILD, null);
 				}
-				else
+				catch (ServletParseException e)
 				{
-					beginIndex = endIndex + 1;
-					endIndex = indexSemi;
-					if (endIndex == -1)
-						endIndex = sParams.length();
-
-					value = sParams.substring(beginIndex, endIndex);	
+					throw new LazyParsingException(e);
 				}
+				_paramsSource = null;
 			}
-			
-			if (!SipGrammar.isToken(name)) 
-				throw new ServletParseException("Invalid parameter name [" 
-						+ name + "] in [" + _nameAddr + "]");
-			
-			_params.put(name.trim().toLowerCase(), value.trim());
-			
-			beginIndex = endIndex == -1 ? -1 : sParams.indexOf(';', endIndex) + 1;
-			
 		}
-		while (beginIndex > 0);
+		return _params;
 	}
 	
 	private int indexRQuote(String s, int start) 
@@ -312,7 +325,7 @@ public class NameAddr implements Address, Serializable
 	
 	public Iterator<String> getParameterNames() 
 	{
-		return _params.keySet().iterator();
+		return params().keySet().iterator();
 	}
 	
 	public URI getURI() 
@@ -329,7 +342,18 @@ public class NameAddr implements Address, Serializable
 	
 	public String getParameter(String name) 
 	{
-		return (String) _params.get(name.toLowerCase());
+		if (_params == null && _paramsSource != null)
+		{
+			try
+			{
+				return parseParams(FIND, name);
+			}
+			catch (ServletParseException e)
+			{
+				throw new LazyParsingException(e);
+			}
+		}
+		return params().get(name.toLowerCase());
 	}
 	
 	public void setParameter(String name, String value) 
@@ -337,12 +361,12 @@ public class NameAddr implements Address, Serializable
 		if (value == null)
 			removeParameter(name);
 		else
-			_params.put(name.toLowerCase(), value);
+			params().put(name.toLowerCase(), value);
 	}
 	
 	public void removeParameter(String name) 
 	{
-		_params.remove(name.toLowerCase());
+		params().remove(name.toLowerCase());
 	}
 	
 	public boolean isWildcard() {
@@ -369,7 +393,7 @@ public class NameAddr implements Address, Serializable
 	public void setQ(float q) 
 	{
 		if (q == -1.0f) 
-			_params.remove("q");
+			params().remove("q");
 		else 
 		{
 			if (q < 0 || q > 1.0f) 
@@ -465,7 +489,7 @@ public class NameAddr implements Address, Serializable
 		if (!_uri.equals(other.getURI()))
 			return false;
 				
-		for (String key : _params.keySet())
+		for (String key : params().keySet())
 		{
 			String otherValue = other.getParameter(key); 
 			if (otherValue != null && !getParameter(key).equals(otherValue))
@@ -476,7 +500,7 @@ public class NameAddr implements Address, Serializable
 
 	public Set<Entry<String, String>> getParameters()
 	{
-		return _params.entrySet();
+		return params().entrySet();
 	}
 
 	public String getValue()
@@ -173,8 +173,19 @@ public class ParameterableImpl implements Parameterable, Serializable
 		return new ByteArrayBuffer(toString());
 	}
 	
+	@SuppressWarnings("unchecked")
 	public Object clone()
 	{
-		return this;
+		ParameterableImpl clone;
+		try 
+		{
+			clone = (ParameterableImpl) super.clone();
+		} 
+		catch (CloneNotSupportedException _) 
+		{
+			throw new RuntimeException("!cloneable " + this);
+		}
+		clone._parameters = (HashMap<String, String>) _parameters.clone();
+		return clone;
 	}
 }
@@ -15,13 +15,11 @@
 package org.cipango.sip;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Map;
 import java.util.NoSuchElementException;
 
 import javax.servlet.sip.Address;
@@ -32,14 +30,23 @@ import javax.servlet.sip.SipServletMessage.HeaderForm;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.BufferUtil;
 import org.eclipse.jetty.io.View;
-import org.eclipse.jetty.io.BufferCache.CachedBuffer;
 
 import org.eclipse.jetty.util.StringUtil;
 import org.eclipse.jetty.http.HttpFields;
 
+/**
+ * Headers of a SIP message. 
+ * <p>
+ * The first value of each header, its head, is kept in order of insertion, which is the order of 
+ * generation. The heads of the standard headers are also found by their ordinal (see {@link SipHeaders}), 
+ * while extension headers are found by scanning the heads, as they are few.
+ */
 public class SipFields implements Cloneable
 {    
-	private Map<Buffer, Field> _fields = new LinkedHashMap<Buffer, Field>();
+	private Field[] _standard = new Field[SipHeaders.__types.length];
+	private Field[] _heads = new Field[16];
+	private int _size;
+	private Shared _shared;
 	
 	@SuppressWarnings("rawtypes")
 	public static List qualityList(final Iterator it)
@@ -68,7 +75,7 @@ public class SipFields implements Cloneable
     
     public void addAddress(String name, Address value, boolean first)
     {
-    	addAddress(SipHeaders.CACHE.lookup(name), value, first);
+    	addAddress(SipHeaders.getName(name), value, first);
     }
     
     public void addParameterable(Buffer name, Parameterable value, boolean first)
@@ -78,7 +85,7 @@ public class SipFields implements Cloneable
     
     public void addParameterable(String name, Parameterable value, boolean first)
     {
-    	addParameterable(SipHeaders.CACHE.lookup(name), value, first);
+    	addParameterable(SipHeaders.getName(name), value, first);
     }
     
     public void addString(Buffer name, String value)
@@ -88,7 +95,7 @@ public class SipFields implements Cloneable
     
     public void addString(String name, String value)
     {
-    	add(SipHeaders.CACHE.lookup(name), value, false);
+    	add(SipHeaders.getName(name), value, false);
     }
     
     public void addVia(Via via, boolean first)
@@ -98,15 +105,27 @@ public class SipFields implements Cloneable
     
     public void addBuffer(Buffer name, Buffer value)
     {
-    	if (!(name instanceof CachedBuffer))
-    		name = SipHeaders.CACHE.lookup(name);
+    	addBuffer(name, value, -1, -1);
+    }
+    
+    /**
+     * Adds a received header value. <code>rawStart</code> and <code>rawEnd</code> are the bounds in 
+     * <code>value.array()</code> of the header line as received, so that it can be copied as is while 
+     * the value is not modified. When a line holds several values, the first one has the line bounds and 
+     * the next ones an empty range at the end of the line. Use <code>-1</code> if the bounds are unknown.
+     */
+    public void addBuffer(Buffer name, Buffer value, int rawStart, int rawEnd)
+    {
+    	name = SipHeaders.getName(name);
     	
-    	Field field = (Field) _fields.get(name);
+    	Field field = own(name);
     	Field f = new Field(name, value);
+    	f._rawStart = rawStart;
+    	f._rawEnd = rawEnd;
     	
     	if (field == null)
     	{
-    		_fields.put(f.getName(), f);
+    		addHead(f);
     	}
     	else
     	{
@@ -119,22 +138,21 @@ public class SipFields implements Cloneable
     
     protected void add(Buffer name, Object value, boolean first)
     {
-    	if (!(name instanceof CachedBuffer))
-    		name = SipHeaders.CACHE.lookup(name);
+    	name = SipHeaders.getName(name);
     	
-    	Field field = (Field) _fields.get(name);
+    	Field field = own(name);
     	Field f = new Field(name, value, 0); // TODO
     	
     	if (field == null)
     	{
-    		_fields.put(f.getName(), f);
+    		addHead(f);
     	}
     	else
     	{
     		if (first)
     		{
     			f._next = field;
-    			_fields.put(f.getName(), f);
+    			replaceHead(field, f);
     		}
     		else
     		{
@@ -147,12 +165,89 @@ public class SipFields implements Cloneable
     
     protected Field getField(Buffer name)
     {
-    	return _fields.get(name);
+    	int ordinal = SipHeaders.getOrdinal(name);
+    	if (ordinal > 0)
+    		return _standard[ordinal];
+    	
+    	for (int i = 0; i < _size; i++)
+    	{
+    		Field head = _heads[i];
+    		if (head._ordinal <= 0 && head._name.equalsIgnoreCase(name))
+    			return head;
+    	}
+    	return null;
     }
     
-    public Address getAddress(Buffer name)
+    private int indexOf(Field head)
+    {
+    	for (int i = 0; i < _size; i++)
+    	{
+    		if (_heads[i] == head)
+    			return i;
+    	}
+    	return -1;
+    }
+    
+    private void addHead(Field head)
+    {
+    	if (_size == _heads.length)
+    	{
+    		Field[] heads = new Field[_size * 2];
+    		System.arraycopy(_heads, 0, heads, 0, _size);
+    		_heads = heads;
+    	}
+    	_heads[_size++] = head;
+    	if (head._ordinal > 0)
+    		_standard[head._ordinal] = head;
+    }
+    
+    private void replaceHead(Field previous, Field head)
+    {
+    	_heads[indexOf(previous)] = head;
+    	if (head._ordinal > 0)
+    		_standard[head._ordinal] = head;
+    }
+    
+    private void removeHead(Field head)
+    {
+    	int index = indexOf(head);
+    	System.arraycopy(_heads, index + 1, _heads, index, _size - index - 1);
+    	_heads[--_size] = null;
+    	if (head._ordinal > 0)
+    		_standard[head._ordinal] = null;
+    }
+    
+    /**
+     * Sets <code>head</code> as the first value of its header, in place of the current values if any.
+     */
+    private void putHead(Field head)
+    {
+    	Field previous = getField(head._name);
+    	if (previous == null)
+    		addHead(head);
+    	else
+    		replaceHead(previous, head);
+    }
+    
+    /**
+     * Returns the values of the header, after having replaced them by a copy if they are shared, 
+     * so that they can be modified.
+     */
+    protected Field own(Buffer name)
     {
     	Field field = getField(name);
+    	if (field != null && _shared != null && _shared.isShared(field))
+    	{
+    		Field copy = clone(field);
+    		replaceHead(field, copy);
+    		field = copy;
+    	}
+    	return field;
+    }
+    
+    public Address getAddress(Buffer name)
+    {
+    	Field field = own(name);
     	if (field != null)
     		return field.getAddress();
     	return null;
@@ -160,7 +255,7 @@ public class SipFields implements Cloneable
     
     public Address getAddress(String name)
     {
-    	return getAddress(SipHeaders.CACHE.lookup(name));
+    	return getAddress(SipHeaders.getName(name));
     }
     
     public long getLong(Buffer name)
@@ -173,12 +268,12 @@ public class SipFields implements Cloneable
     
     public long getLong(String name)
     {
-    	return getLong(SipHeaders.CACHE.lookup(name));
+    	return getLong(SipHeaders.getName(name));
     }
     
     public Parameterable getParameterable(Buffer name)
     {
-    	Field field = getField(name);
+    	Field field = own(name);
     	if (field != null)
     		return field.getParameterable();
     	return null;
@@ -186,12 +281,12 @@ public class SipFields implements Cloneable
     
     public Parameterable getParameterable(String name)
     {
-    	return getParameterable(SipHeaders.CACHE.lookup(name));
+    	return getParameterable(SipHeaders.getName(name));
     }
     
     public String getString(String name)
     {
-    	return getString(SipHeaders.CACHE.lookup(name));
+    	return getString(SipHeaders.getName(name));
     }
     
     public String getString(Buffer name)
@@ -204,7 +299,7 @@ public class SipFields implements Cloneable
     
     public Via getVia()
     {
-    	Field field = _fields.get(SipHeaders.VIA_BUFFER);
+    	Field field = own(SipHeaders.VIA_BUFFER);
     	if (field != null)
     		return field.getVia();
     	return null;
@@ -212,7 +307,7 @@ public class SipFields implements Cloneable
     
     public CSeq getCSeq() throws ServletParseException
     {
-    	Field field = _fields.get(SipHeaders.CSEQ_BUFFER);
+    	Field field = _standard[SipHeaders.CSEQ_ORDINAL];
     	if (field != null)
     		return new CSeq(field.getString());
     	return null;
@@ -230,12 +325,12 @@ public class SipFields implements Cloneable
     
     public ListIterator<String> getValues(String name)
     {
-    	return getValues(SipHeaders.CACHE.lookup(name));
+    	return getValues(SipHeaders.getName(name));
     }
     
     public ListIterator<Address> getAddressValues(Buffer name)
     {
-    	Field field = getField(name);
+    	Field field = own(name);
     	
     	return new FieldIterator<Address>(field)
     	{
@@ -245,12 +340,12 @@ public class SipFields implements Cloneable
     
     public ListIterator<Address> getAddressValues(String name)
     {
-    	return getAddressValues(SipHeaders.CACHE.lookup(name));
+    	return getAddressValues(SipHeaders.getName(name));
     }
     
     public ListIterator<Parameterable> getParameterableValues(Buffer name)
     {
-    	final Field field = getField(name);
+    	final Field field = own(name);
     	
     	return new FieldIterator<Parameterable>(field)
     	{
@@ -260,12 +355,27 @@ public class SipFields implements Cloneable
     
     public Iterator<Parameterable> getParameterableValues(String name)
     {
-    	return getParameterableValues(SipHeaders.CACHE.lookup(name));
+    	return getParameterableValues(SipHeaders.getName(name));
+    }
+    
+    /**
+     * @return <code>true</code> if all values of the header are the received ones and have not been 
+     * modified or accessed as mutable objects.
+     */
+    public boolean isPristine(Buffer name)
+    {
+    	Field field = getField(name);
+    	return field != null && getRawEnd(field) != -1;
+    }
+    
+    public boolean isPristine(String name)
+    {
+    	return isPristine(SipHeaders.getName(name));
     }
     
     public Iterator<String> getNames()
     {
-    	final Iterator<Buffer> it = _fields.keySet().iterator();
+    	final Iterator<Field> it = getFields();
     	
     	return new Iterator<String>()
     	{
@@ -275,7 +385,7 @@ public class SipFields implements Cloneable
     		}
     		public String next()
     		{
-    			return it.next().toString();
+    			return it.next().getName().toString();
     		}
     		public void remove()
     		{
@@ -286,25 +396,27 @@ public class SipFields implements Cloneable
     
     public void remove(Buffer name)
     {
-    	_fields.remove(name);
+    	Field field = getField(name);
+    	if (field != null)
+    		removeHead(field);
     }
     
     public void remove(String name)
     {
-    	_fields.remove(SipHeaders.CACHE.lookup(name));
+    	remove(SipHeaders.getName(name));
     }
     
     public void removeFirst(Buffer name)
     {
-    	Field f = getField(name);
+    	Field f = own(name);
     	
     	if (f == null) return;
     	
     	Field next = f._next;
     	if (next != null)
-    		_fields.put(next.getName(), next);
+    		replaceHead(f, next);
     	else
-    		_fields.remove(f.getName());
+    		removeHead(f);
     }
     
     public void setAddress(Buffer name, Address value)
@@ -314,7 +426,7 @@ public class SipFields implements Cloneable
     
     public void setAddress(String name, Address value)
     {
-    	set(SipHeaders.CACHE.lookup(name), value);
+    	set(SipHeaders.getName(name), value);
     }
     
     public void setParameterable(Buffer name, Parameterable parameterable)
@@ -324,7 +436,7 @@ public class SipFields implements Cloneable
     
     public void setParameterable(String name, Parameterable parameterable)
     {
-    	set(SipHeaders.CACHE.lookup(name), parameterable);
+    	set(SipHeaders.getName(name), parameterable);
     }
     
     public void setString(Buffer name, String value)
@@ -334,16 +446,15 @@ public class SipFields implements Cloneable
     
     public void setString(String name, String value)
     {
-    	set(SipHeaders.CACHE.lookup(name), value);
+    	set(SipHeaders.getName(name), value);
     }
     
     protected void set(Buffer name, Object value)
     {
-    	if (!(name instanceof CachedBuffer))
-    		name = SipHeaders.CACHE.lookup(name);
+    	name = SipHeaders.getName(name);
     	
     	Field field = new Field(name, value, 0); // TODO
-    	_fields.put(field.getName(), field);
+    	putHead(field);
     }
 
     static class Field
@@ -351,24 +462,28 @@ public class SipFields implements Cloneable
     	private Field _next;
     	
     	private Buffer _name;
+    	private int _ordinal;
     	private Buffer _bvalue;
     	private Object _value;
+    	private int _rawStart = -1;
+    	private int _rawEnd = -1;
     	
     	public Field(Buffer name, Buffer value)
     	{
-    		_name = name;
+    		this(name);
     		_bvalue = value.isReadOnly() ? value : new View(value);
     	}
     	
     	public Field(Buffer name, Object value, int type)
     	{
-    		_name = name;
+    		this(name);
     		_value = value;
     	}
     	
     	private Field(Buffer name)
     	{
     		_name = name;
+    		_ordinal = SipHeaders.getOrdinal(name);
     	}
     	
     	public Buffer getName()
@@ -378,9 +493,28 @@ public class SipFields implements Cloneable
     	
     	public int getNameOrdinal()
     	{
-    		return SipHeaders.CACHE.getOrdinal(_name);
+    		return _ordinal;
     	}	
     	
+    	/**
+    	 * @return <code>true</code> if the value is the received one. Values returned as mutable objects
+    	 * (address, parameterable, via) are no longer pristine as they may have been modified.
+    	 */
+    	public boolean isPristine()
+    	{
+    		return _bvalue != null && _rawStart != -1;
+    	}
+    	
+    	public byte[] getRawArray()
+    	{
+    		return _bvalue.array();
+    	}
+    	
+    	public int getRawStart()
+    	{
+    		return _rawStart;
+    	}
+    	
     	public String getString()
     	{
     		if (_value == null)
@@ -459,24 +593,62 @@ public class SipFields implements Cloneable
     	catch (CloneNotSupportedException _)
     	{
     	}
-    	clone._fields = new HashMap<Buffer, Field>();
+    	clone._standard = new Field[_standard.length];
+    	clone._heads = new Field[_heads.length];
+    	clone._size = 0;
+    	clone._shared = null;
+    	
+    	for (int i = 0; i < _size; i++)
+    		clone.addHead(clone(_heads[i]));
+    	return clone;
+    }
+    
+    /**
+     * Returns a copy of these fields sharing their values. Values are copied only when they are about to 
+     * be modified, by the copy as well as by these fields, so that creating a copy is cheap, for instance 
+     * when forking a request to many branches. The encoding of the shared values is also computed only 
+     * once for all the copies, see {@link SipGenerator}.
+     * <p>
+     * Values already returned as mutable objects (address, parameterable, via) are not shared but copied 
+     * at once, as they may still be modified through the references obtained before.
+     */
+    public SipFields share()
+    {
+    	if (_shared == null || !_shared.isCurrent(this))
+    		_shared = new Shared(this);
+    	
+    	SipFields copy = null;
+    	try
+    	{
+    		copy = (SipFields) super.clone();
+    	}
+    	catch (CloneNotSupportedException _)
+    	{
+    	}
+    	copy._standard = _standard.clone();
+    	copy._heads = _heads.clone();
     	
-    	for (Field field : _fields.values())
+    	for (int i = 0; i < _size; i++)
     	{
-    		Field f = clone(field);
-    		clone._fields.put(f.getName(), f);
+    		if (!_shared.isShared(_heads[i]))
+    			copy.replaceHead(_heads[i], clone(_heads[i]));
     	}
-    	return clone;
+    	return copy;
+    }
+    
+    /**
+     * @return the values shared with other fields or <code>null</code> if not a shared copy.
+     */
+    public Shared getShared()
+    {
+    	return _shared;
     }
     
     public void copy(SipFields other, Buffer name)
     {
     	Field field = other.getField(name);
     	if (field != null)
-    	{
-    		Field f = clone(field);
-    		_fields.put(f._name, f);
-    	}
+    		putHead(clone(field));
     }
     
     private static Field clone(Field field)
@@ -487,7 +659,10 @@ public class SipFields implements Cloneable
     	while (field != null)
     	{
 			Field f = new Field(field._name);
+			f._ordinal = field._ordinal;
 			f._bvalue = field._bvalue;
+			f._rawStart = field._rawStart;
+			f._rawEnd = field._rawEnd;
 			Object value = field._value;
 			if (value != null)
 			{
@@ -514,7 +689,51 @@ public class SipFields implements Cloneable
 		return first;
     }
     
+    /**
+     * Returns the end of the received lines of the header starting with <code>field</code>, 
+     * or <code>-1</code> if the header cannot be copied as received: a value is not pristine or 
+     * the values are not contiguous.
+     */
+    public static int getRawEnd(Field field)
+    {
+    	if (!field.isPristine() || field._rawStart == field._rawEnd)
+    		return -1;
+    	
+    	byte[] array = field._bvalue.array();
+    	int end = field._rawEnd;
+    	
+    	for (Field f = field._next; f != null; f = f._next)
+    	{
+    		if (!f.isPristine() || f._rawStart != end || f._bvalue.array() != array)
+    			return -1;
+    		end = f._rawEnd;
+    	}
+    	return end;
+    }
+    
+    /**
+     * Returns the first value from which all values of the header can be copied as received, 
+     * or <code>null</code> if the last value cannot.
+     */
+    public static Field getRawTail(Field field)
+    {
+    	for (Field f = field; f != null; f = f._next)
+    	{
+    		if (getRawEnd(f) != -1)
+    			return f;
+    	}
+    	return null;
+    }
+    
     public static void put(Field field, Buffer buffer, HeaderForm form, boolean merge)
+    {
+    	put(field, null, buffer, form, merge);
+    }
+    
+    /**
+     * Puts the values of the header from <code>field</code> up to <code>end</code> excluded.
+     */
+    public static void put(Field field, Field end, Buffer buffer, HeaderForm form, boolean merge)
     {
     	Buffer name;
     	switch (form)
@@ -531,7 +750,7 @@ public class SipFields implements Cloneable
 		buffer.put((byte) ' ');
 		
 		boolean first = true;
-		while (field != null)
+		while (field != end)
 		{
     		if (first)
     			first = false;
@@ -562,9 +781,163 @@ public class SipFields implements Cloneable
     	BufferUtil.putCRLF(buffer);
     }
     
+    /**
+     * @return the heads of the headers in order. 
+     */
     public Iterator<Field> getFields()
     {
-    	return _fields.values().iterator();
+    	return new Iterator<Field>()
+    	{
+    		private int _index;
+    		
+    		public boolean hasNext()
+    		{
+    			return _index < _size;
+    		}
+    		
+    		public Field next()
+    		{
+    			if (_index >= _size)
+    				throw new NoSuchElementException();
+    			return _heads[_index++];
+    		}
+    		
+    		public void remove()
+    		{
+    			throw new UnsupportedOperationException();
+    		}
+    	};
+    }
+    
+    /**
+     * Header values shared by copies of fields. Shared values are never modified: the fields holding them 
+     * replace them by their own copy before. Only headers whose values are not parsed into mutable objects 
+     * are shared. The encoding of the shared values is kept so that it is computed only once.
+     */
+    public static class Shared
+    {
+    	private final Field[] _fields;
+    	private final Field[] _heads;
+    	private final Field[] _standard = new Field[SipHeaders.__types.length];
+    	private volatile Encoding _encoding;
+    	
+    	Shared(SipFields fields)
+    	{
+    		_fields = new Field[fields._size];
+    		System.arraycopy(fields._heads, 0, _fields, 0, fields._size);
+    		
+    		List<Field> heads = new ArrayList<Field>(fields._size);
+    		for (int i = 0; i < _fields.length; i++)
+    		{
+    			Field head = _fields[i];
+    			if (!isMutable(head))
+    			{
+    				heads.add(head);
+    				if (head._ordinal > 0)
+    					_standard[head._ordinal] = head;
+    			}
+    		}
+    		_heads = heads.toArray(new Field[heads.size()]);
+    	}
+    	
+    	private static boolean isMutable(Field head)
+    	{
+    		for (Field f = head; f != null; f = f._next)
+    		{
+    			if (f._value != null && !(f._value instanceof String))
+    				return true;
+    		}
+    		return false;
+    	}
+    	
+    	/**
+    	 * @return <code>true</code> if <code>fields</code> still holds the shared headers in the same 
+    	 * order, which is checked by identity only as done for each copy.
+    	 */
+    	boolean isCurrent(SipFields fields)
+    	{
+    		if (fields._size != _fields.length)
+    			return false;
+    		for (int i = 0; i < _fields.length; i++)
+    		{
+    			if (fields._heads[i] != _fields[i])
+    				return false;
+    		}
+    		return true;
+    	}
+    	
+    	/**
+    	 * @return <code>true</code> if the header starting with <code>field</code> is shared.
+    	 */
+    	public boolean isShared(Field field)
+    	{
+    		if (field._ordinal > 0)
+    			return _standard[field._ordinal] == field;
+    		for (int i = 0; i < _heads.length; i++)
+    		{
+    			if (_heads[i] == field)
+    				return true;
+    		}
+    		return false;
+    	}
+    	
+    	/**
+    	 * @return the shared headers in their order.
+    	 */
+    	public Field[] getHeads()
+    	{
+    		return _heads;
+    	}
+    	
+    	/**
+    	 * @return the encoding of all shared headers with the given form or <code>null</code> if 
+    	 * not computed yet. 
+    	 */
+    	public Encoding getEncoding(HeaderForm form)
+    	{
+    		Encoding encoding = _encoding;
+    		if (encoding != null && encoding.getForm() == form)
+    			return encoding;
+    		return null;
+    	}
+    	
+    	public void setEncoding(Encoding encoding)
+    	{
+    		_encoding = encoding;
+    	}
+    }
+    
+    /**
+     * Encoded headers. The header at index <code>i</code> is found in <code>getBytes()</code> from 
+     * <code>getOffset(i)</code> to <code>getOffset(i + 1)</code>.
+     */
+    public static class Encoding
+    {
+    	private final HeaderForm _form;
+    	private final byte[] _bytes;
+    	private final int[] _offsets;
+    	
+    	public Encoding(HeaderForm form, byte[] bytes, int[] offsets)
+    	{
+    		_form = form;
+    		_bytes = bytes;
+    		_offsets = offsets;
+    	}
+    	
+    	public HeaderForm getForm()
+    	{
+    		return _form;
+    	}
+    	
+    	public byte[] getBytes()
+    	{
+    		return _bytes;
+    	}
+    	
+    	public int getOffset(int index)
+    	{
+    		return _offsets[index];
+    	}
     }
     
     abstract class FieldIterator<E> implements ListIterator<E> 
@@ -18,6 +18,7 @@ import java.util.Iterator;
 
 import javax.servlet.sip.SipServletMessage.HeaderForm;
 
+import org.cipango.io.BufferPool;
 import org.cipango.server.SipMessage;
 import org.cipango.server.SipRequest;
 import org.cipango.server.SipResponse;
@@ -113,30 +114,21 @@ public class SipGenerator
 			buffer.put(response.getRawContent());
     }
 	
+    /**
+     * Generates the headers. With the default header form, header values that are still as received are 
+     * copied from the received bytes, consecutive ones being copied at once, and only the modified 
+     * values (e.g. a Via added on top) are serialized.
+     * <p>
+     * If the fields are a shared copy (see {@link SipFields#share()}), the shared values are copied from 
+     * their common encoding, in the order of the headers as for the other values.
+     */
     protected void generateHeader(Buffer buffer, SipFields fields, boolean response, HeaderForm form) 
     {
         long contentLength = -1;
             
         if (fields != null) 
         {
-        	Iterator<SipFields.Field> it = fields.getFields();
-        	while (it.hasNext()) 
-        	{	
-        		SipFields.Field field = it.next();
-        		
-        		switch (field.getNameOrdinal()) 
-        		{
-                case SipHeaders.CONTENT_LENGTH_ORDINAL:
-                    contentLength = field.getLong();
-                    break;
-        		}
-        		
-        		boolean merge = false;
-        		if (field.getNameOrdinal() != -1)
-        			merge = SipHeaders.__types[field.getNameOrdinal()].isMerge();
-        		
-        		SipFields.put(field, buffer, form, merge);
-        	}
+        	contentLength = putFields(buffer, fields, form);
         }
         
         if (contentLength == -1)
@@ -149,5 +141,155 @@ public class SipGenerator
         
         buffer.put(SipGrammar.CRLF);
     }
-
+    
+    /**
+     * Puts the headers and returns the Content-Length value, <code>-1</code> if not found. Headers still 
+     * shared are copied from their common encoding, computed by the first copy generated. Consecutive 
+     * bytes, received or shared, are copied at once.
+     */
+    private long putFields(Buffer buffer, SipFields fields, HeaderForm form)
+    {
+    	long contentLength = -1;
+    	
+    	SipFields.Shared shared = fields.getShared();
+    	SipFields.Encoding encoding = null;
+    	SipFields.Field[] heads = null;
+    	int next = 0;
+    	if (shared != null)
+    	{
+    		encoding = shared.getEncoding(form);
+    		if (encoding == null)
+    		{
+    			encoding = encode(shared, form, buffer.space());
+    			shared.setEncoding(encoding);
+    		}
+    		heads = shared.getHeads();
+    	}
+    	
+    	boolean raw = (form == HeaderForm.DEFAULT);
+    	byte[] rawArray = null;
+    	int rawStart = 0;
+    	int rawEnd = 0;
+    	
+    	Iterator<SipFields.Field> it = fields.getFields();
+    	while (it.hasNext()) 
+    	{	
+    		SipFields.Field field = it.next();
+    		
+    		switch (field.getNameOrdinal()) 
+    		{
+            case SipHeaders.CONTENT_LENGTH_ORDINAL:
+                contentLength = field.getLong();
+                break;
+    		}
+    		
+    		byte[] array;
+    		int start;
+    		int end;
+    		
+    		if (shared != null && shared.isShared(field))
+    		{
+    			// Shared heads are kept in the same order by the copies, so search from the last one
+    			int index = indexOf(heads, field, next);
+    			next = index + 1;
+    			array = encoding.getBytes();
+    			start = encoding.getOffset(index);
+    			end = encoding.getOffset(index + 1);
+    		}
+    		else
+    		{
+    			SipFields.Field tail = raw ? SipFields.getRawTail(field) : null;
+    			
+    			if (tail != field)
+    			{
+    				if (rawArray != null)
+    				{
+    					buffer.put(rawArray, rawStart, rawEnd - rawStart);
+    					rawArray = null;
+    				}
+    				
+    				SipFields.put(field, tail, buffer, form, isMerge(field));
+    			}
+    			
+    			if (tail == null)
+    				continue;
+    			
+    			array = tail.getRawArray();
+    			start = tail.getRawStart();
+    			end = SipFields.getRawEnd(tail);
+    		}
+    		
+    		if (rawArray == array && rawEnd == start)
+    		{
+    			rawEnd = end;
+    		}
+    		else
+    		{
+    			if (rawArray != null)
+    				buffer.put(rawArray, rawStart, rawEnd - rawStart);
+    			rawArray = array;
+    			rawStart = start;
+    			rawEnd = end;
+    		}
+    	}
+    	
+    	if (rawArray != null)
+    		buffer.put(rawArray, rawStart, rawEnd - rawStart);
+    	
+    	return contentLength;
+    }
+    
+    private int indexOf(SipFields.Field[] heads, SipFields.Field field, int from)
+    {
+    	for (int i = from; i < heads.length; i++)
+    	{
+    		if (heads[i] == field)
+    			return i;
+    	}
+    	for (int i = 0; i < from; i++)
+    	{
+    		if (heads[i] == field)
+    			return i;
+    	}
+    	throw new IllegalStateException("Not shared: " + field.getName());
+    }
+    
+    /**
+     * Encodes the shared headers in a pooled buffer, at most as large as the space left for the message, 
+     * and keeps a copy of the exact size.
+     */
+    private SipFields.Encoding encode(SipFields.Shared shared, HeaderForm form, int size)
+    {
+    	SipFields.Field[] heads = shared.getHeads();
+    	int[] offsets = new int[heads.length + 1];
+    	Buffer buffer = BufferPool.getDefault().getBuffer(size);
+    	
+    	try
+    	{
+    		for (int i = 0; i < heads.length; i++)
+    		{
+    			offsets[i] = buffer.length();
+    			
+    			SipFields.Field field = heads[i];
+    			SipFields.Field tail = (form == HeaderForm.DEFAULT) ? SipFields.getRawTail(field) : null;
+    			if (tail != field)
+    				SipFields.put(field, tail, buffer, form, isMerge(field));
+    			if (tail != null)
+    				buffer.put(tail.getRawArray(), tail.getRawStart(), SipFields.getRawEnd(tail) - tail.getRawStart());
+    		}
+    		offsets[heads.length] = buffer.length();
+    		
+    		return new SipFields.Encoding(form, buffer.asArray(), offsets);
+    	}
+    	finally
+    	{
+    		BufferPool.getDefault().returnBuffer(buffer);
+    	}
+    }
+    
+    private boolean isMerge(SipFields.Field field)
+    {
+    	int ordinal = field.getNameOrdinal();
+    	return ordinal != -1 && SipHeaders.__types[ordinal].isMerge();
+    }
 }
@@ -16,7 +16,9 @@ package org.cipango.sip;
 
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.BufferCache;
+import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.io.BufferCache.CachedBuffer;
+import org.eclipse.jetty.util.StringUtil;
 
 public class SipHeaders 
 {
@@ -351,15 +353,170 @@ public class SipHeaders
 	
 	public static CachedBuffer getCachedName(String s)
 	{
-		CachedBuffer name = null;
+		return getName(s);
+	}
+	
+	/*
+	 * Perfect hash table of the standard header names and of the compact forms, which are mapped to 
+	 * their full name. The multiplier of the hash is chosen when the class is loaded so that no two 
+	 * names share a slot: a lookup is a hash of the name, one slot and one comparison ignoring case, 
+	 * without allocation.
+	 */
+	private static final int TABLE_SIZE = 1024;
+	private static final byte[][] __tableNames = new byte[TABLE_SIZE][];
+	private static final CachedBuffer[] __table = new CachedBuffer[TABLE_SIZE];
+	private static final int __multiplier;
+	
+	static
+	{
+		int nb = 0;
+		String[] names = new String[TABLE_SIZE];
+		CachedBuffer[] buffers = new CachedBuffer[TABLE_SIZE];
+		for (int i = 1; CACHE.get(i) != null; i++)
+		{
+			buffers[nb] = CACHE.get(i);
+			names[nb] = buffers[nb].toString().toLowerCase();
+			nb++;
+		}
+		for (char c = 'a'; c <= 'z'; c++)
+		{
+			if (__compact[c] != null)
+			{
+				buffers[nb] = __compact[c];
+				names[nb] = String.valueOf(c);
+				nb++;
+			}
+		}
 		
-		if (s.length() == 1)
-			name = getCompact(s.charAt(0));
+		int multiplier = 31;
+		while (!fill(names, buffers, nb, multiplier))
+		{
+			multiplier += 2;
+			if (multiplier > 0xffff)
+				throw new IllegalStateException("No perfect hash for header names");
+		}
+		__multiplier = multiplier;
+	}
+	
+	private static boolean fill(String[] names, CachedBuffer[] buffers, int nb, int multiplier)
+	{
+		for (int i = 0; i < TABLE_SIZE; i++)
+		{
+			__tableNames[i] = null;
+			__table[i] = null;
+		}
+		for (int i = 0; i < nb; i++)
+		{
+			byte[] name = StringUtil.getBytes(names[i]);
+			int slot = hash(name, 0, name.length, multiplier);
+			if (__table[slot] != null)
+				return false;
+			__tableNames[slot] = name;
+			__table[slot] = buffers[i];
+		}
+		return true;
+	}
+	
+	private static int hash(byte[] bytes, int offset, int length, int multiplier)
+	{
+		int h = length;
+		for (int i = offset; i < offset + length; i++)
+			h = h * multiplier + (bytes[i] | 0x20);
+		return (h ^ (h >>> 10)) & (TABLE_SIZE - 1);
+	}
+	
+	/**
+	 * @return the cached name of the standard header <code>bytes</code>, given in full or compact form 
+	 * and in any case, or <code>null</code> if not a standard header.
+	 */
+	public static CachedBuffer lookup(byte[] bytes, int offset, int length)
+	{
+		int slot = hash(bytes, offset, length, __multiplier);
+		byte[] name = __tableNames[slot];
+		if (name == null || name.length != length)
+			return null;
+		for (int i = 0; i < length; i++)
+		{
+			int b = bytes[offset + i];
+			if (b >= 'A' && b <= 'Z')
+				b += 'a' - 'A';
+			if (b != name[i])
+				return null;
+		}
+		return __table[slot];
+	}
+	
+	/**
+	 * @see #lookup(byte[], int, int)
+	 */
+	public static CachedBuffer lookup(String s)
+	{
+		int length = s.length();
+		int h = length;
+		for (int i = 0; i < length; i++)
+			h = h * __multiplier + (((byte) s.charAt(i)) | 0x20);
+		int slot = (h ^ (h >>> 10)) & (TABLE_SIZE - 1);
+		
+		byte[] name = __tableNames[slot];
+		if (name == null || name.length != length)
+			return null;
+		for (int i = 0; i < length; i++)
+		{
+			int c = s.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			if (c != name[i])
+				return null;
+		}
+		return __table[slot];
+	}
+	
+	/**
+	 * @return the cached name if <code>name</code> is a standard header, or a name comparing ignoring 
+	 * case otherwise.
+	 */
+	public static Buffer getName(Buffer name)
+	{
+		if (name instanceof CachedBuffer)
+			return name;
+		
+		CachedBuffer cached = name.array() != null 
+			? lookup(name.array(), name.getIndex(), name.length()) 
+			: lookup(name.toString());
+		if (cached != null)
+			return cached;
 		
+		if (name instanceof Buffer.CaseInsensitve)
+			return name;
+		return new ByteArrayBuffer.CaseInsensitive(name.asArray(), 0, name.length(), Buffer.IMMUTABLE);
+	}
+	
+	/**
+	 * @return the cached name if <code>name</code> is a standard header, or a cached name with no 
+	 * ordinal otherwise.
+	 */
+	public static CachedBuffer getName(String name)
+	{
+		CachedBuffer cached = lookup(name);
+		if (cached != null)
+			return cached;
+		return new CachedBuffer(name, -1);
+	}
+	
+	/**
+	 * @return the ordinal of the header <code>name</code> or <code>-1</code> if not a standard header.
+	 */
+	public static int getOrdinal(Buffer name)
+	{
+		if (name instanceof CachedBuffer)
+			return ((CachedBuffer) name).getOrdinal();
 		if (name == null)
-			name = (CachedBuffer) CACHE.lookup(s);
+			return -1;
 		
-		return name;
+		CachedBuffer cached = name.array() != null 
+			? lookup(name.array(), name.getIndex(), name.length()) 
+			: lookup(name.toString());
+		return cached == null ? -1 : cached.getOrdinal();
 	}
 	
 	public static final HeaderInfo[] __types = new HeaderInfo[85];
@@ -455,7 +612,7 @@ public class SipHeaders
     
     public static HeaderInfo getType(Buffer name)
     {
-    	int ordinal = CACHE.getOrdinal(name);
+    	int ordinal = getOrdinal(name);
     	if (ordinal > 0)
     		return __types[ordinal];
         return new HeaderInfo(-1, false);
@@ -19,7 +19,6 @@ import java.io.IOException;
 import javax.servlet.sip.SipServletResponse;
 
 import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.BufferCache.CachedBuffer;
 import org.eclipse.jetty.io.BufferUtil;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.io.EndPoint;
@@ -56,8 +55,6 @@ public class SipParser
 	private Buffer _header;
 	private Buffer _body;
 	
-	private CachedBuffer _cached;
-	
 	private EndPoint _endpoint;
 	
 	private int _state = STATE_START;
@@ -67,6 +64,8 @@ public class SipParser
 	
 	private View _token0;
 	private View _token1;
+	private View _raw;
+	private int _headerStart;
 	
 	private View contentView = new View();
 	private int _length;
@@ -90,6 +89,7 @@ public class SipParser
 		{
 			_token0 = new View(buffer);
 			_token1 = new View(buffer);
+			_raw = new View(buffer);
 			_token0.setPutIndex(_token0.getIndex());
 			_token1.setPutIndex(_token1.getIndex());
 		}
@@ -100,6 +100,7 @@ public class SipParser
 		_buffer = buffer;
 		_token0 = new View(_buffer);
 		_token1 = new View(_buffer);
+		_raw = new View(_buffer);
 		_token0.setPutIndex(_token0.getIndex());
 		_token1.setPutIndex(_token1.getIndex());
 		
@@ -202,7 +203,6 @@ public class SipParser
 		}
 		
 		byte b;
-		byte[] array = _buffer.array();
 		
 		while (_state < STATE_END && length --> 0) 
 		{
@@ -218,7 +218,6 @@ public class SipParser
 			{
 			case STATE_START:
 				_contentLength = UNKNOWN_CONTENT;
-				_cached = null;
 				if (b < 0 || b > SipGrammar.SPACE) 
 				{
 					_buffer.mark();
@@ -308,35 +307,15 @@ public class SipParser
 				} 
 				else 
 				{	
-					if (_cached != null || _token0.length() > 0 || _token1.length() > 0 || _multiline != null) // TODO cached
+					if (_token0.length() > 0 || _token1.length() > 0 || _multiline != null)
 					{ 
-                        Buffer name = null;
-                        if (_cached != null)
-                        {
-                        	//System.out.println("Cached: " + _cached);
-                        	name = _cached;
-                        	_cached = null;
-                        }
-                        else 
-                        {
-                        	//System.out.println("Not Cached: " + _token0);
-	                        if (_token0.length() == 1)
-	                        {
-	                            name = SipHeaders.getCompact(_token0.peek());
-	
-	                            if (name == null)
-	                                name = SipHeaders.CACHE.lookup(_token0);
-	                        }
-	                        else 
-	                        {
-	                            name = SipHeaders.CACHE.lookup(_token0);
-	                        }
-                        }
-                        
+						// The complete name is looked up, so that a name starting with a standard one 
+						// (e.g. Contact-Foo) is not taken for it.
+						Buffer name = SipHeaders.getName(_token0);
                         
 						Buffer value = _multiline == null ? (Buffer) _token1 : new ByteArrayBuffer(_multiline); // FIXME UTF8
 						
-						int ho = SipHeaders.CACHE.getOrdinal(name);
+						int ho = SipHeaders.getOrdinal(name);
 						
 						if (ho == SipHeaders.CONTENT_LENGTH_ORDINAL) 
 						{
@@ -345,7 +324,8 @@ public class SipParser
 								_contentLength = NO_CONTENT;					
 						}
 						
-						_handler.header(name, value);
+						_raw.update(_headerStart, _buffer.getIndex() - 1);
+						_handler.header(name, value, _raw);
 						_token0.setPutIndex(_token0.getIndex());
 						_token1.setPutIndex(_token1.getIndex());
 						_multiline = null;
@@ -379,20 +359,9 @@ public class SipParser
 					{
 						
 						_buffer.mark();
+						_headerStart = _buffer.markIndex();
 						_length = 1;
 						_state = STATE_HEADER_NAME;	
-						
-						if (array != null)
-							_cached = SipHeaders.CACHE.getBest(array, _buffer.markIndex(), length + 1);
-						
-						//System.out.println(new String(array, _buffer.markIndex(), length + 1));
-						if (_cached != null)
-						{
-							//System.out.println("Found in cache: " + _cached);
-							_length = _cached.length();
-							_buffer.setGetIndex(_buffer.markIndex() + _length);
-							length = _buffer.length();
-						}
 					}
 				}
 				break;
@@ -543,6 +512,12 @@ public class SipParser
 		
 		_token1.update(_buffer);
 		_token1.update(0, 0);
+		
+		if (_raw == null)
+			_raw = new View(_buffer);
+		
+		_raw.update(_buffer);
+		_raw.update(0, 0);
 	}
 	
 	public static class EventHandler 
@@ -550,6 +525,15 @@ public class SipParser
 		public void startRequest(Buffer method, Buffer uri, Buffer version) throws IOException {}	
 		public void startResponse(Buffer version, int status, Buffer reason) throws IOException {}
 		public void header(Buffer name, Buffer value) throws IOException {}
+		
+		/**
+		 * Called for each header with <code>raw</code> covering the header line(s) as received, 
+		 * including the trailing CRLF. <code>raw</code> is reused by the parser and must not be kept.
+		 */
+		public void header(Buffer name, Buffer value, Buffer raw) throws IOException 
+		{
+			header(name, value);
+		}
 		public void content(Buffer content) throws IOException {}
 	}
 }
@@ -14,16 +14,23 @@
 
 package org.cipango.sip;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 import javax.servlet.sip.ServletParseException;
 import javax.servlet.sip.SipURI;
 import javax.servlet.sip.URI;
 
 
+/**
+ * SIP or SIPS URI.
+ * <p>
+ * A parsed URI is validated in a single pass which only records where its components are. The user, 
+ * password, host, parameters and headers are converted to strings when first read, and parameters 
+ * are looked up in the URI until all of them are needed. Until modified, the URI is written as parsed.
+ */
 public class SipURIImpl extends URIImpl implements SipURI 
 {	
 	static final long serialVersionUID = 5118485527934946592L;
@@ -35,6 +42,8 @@ public class SipURIImpl extends URIImpl implements SipURI
 	public static final String USER_PARAM = "user";
 	public static final String LR_PARAM = "lr";
 	
+	private static final int USER = 1, HOST = 2, PARAMS = 4, HEADERS = 8, ALL = 15;
+	
 	private String _user;
 	private String _password;
 	private String _host;
@@ -42,13 +51,27 @@ public class SipURIImpl extends URIImpl implements SipURI
 	private String _uri;
 	private int _port;
 	
-	private HashMap<String, String> _params = new HashMap<String, String>();
-	private HashMap<String, String> _headers = new HashMap<String, String>();
+	private HashMap<String, String> _params;
+	private HashMap<String, String> _headers;
+	
+	/** Components read from _uri, others are only known by their offsets */
+	private int _parsed = ALL;
+	/** Whether the URI may differ from _uri */
+	private boolean _modified;
+	/** Whether _uri is written as toString() would build it, so that it may be returned as is */
+	private boolean _canonical = true;
+	
+	private int _userStart = -1, _userEnd;
+	private int _passwordStart = -1, _passwordEnd;
+	private int _hostStart, _hostEnd;
+	private int _paramsStart = -1, _paramsEnd;
+	private int _headersStart = -1;
 	
 	public SipURIImpl(String uri) throws ServletParseException 
 	{
 		_uri = uri;
 		parse();
+		_parsed = 0;
 	}
 
 	public SipURIImpl(String user, String host, int port) 
@@ -59,69 +82,81 @@ public class SipURIImpl extends URIImpl implements SipURI
 		setHost(host);
 		_port = port;
 		_scheme = "sip";
+		_params = new HashMap<String, String>();
+		_headers = new HashMap<String, String>();
+		_modified = true;
 	}
 	
 	public Map<String, String> getParameters() 
 	{
+		parseParams();
+		_modified = true;
 		return _params;
 	}
 
 	private void parse() throws ServletParseException 
 	{
-		int indexScheme = _uri.indexOf(':');
+		String uri = _uri;
+		int length = uri.length();
+		
+		int indexScheme = uri.indexOf(':');
 		if (indexScheme < 0) 
-			throw new ServletParseException("Missing SIP scheme. URI=[" + _uri + "]");
+			throw new ServletParseException("Missing SIP scheme. URI=[" + uri + "]");
 		
-		_scheme = _uri.substring(0, indexScheme);
-		if (!_scheme.equals("sip") && !_scheme.equals("sips")) 
-			throw new ServletParseException("Invalid SIP scheme. URI=[" + _uri + "]");
+		if (indexScheme == 3 && uri.startsWith("sip"))
+			_scheme = "sip";
+		else if (indexScheme == 4 && uri.startsWith("sips"))
+			_scheme = "sips";
+		else
+			throw new ServletParseException("Invalid SIP scheme. URI=[" + uri + "]");
 		
-		int indexUser = _uri.indexOf('@', indexScheme + 1);
+		int indexUser = uri.indexOf('@', indexScheme + 1);
 		int indexHost;
 		
 		if (indexUser >= 0) 
 		{
-			int indexPassword = _uri.indexOf(':', indexScheme + 1);
-			String sUser;
+			int indexPassword = uri.indexOf(':', indexScheme + 1);
+			int endUser = indexUser;
 			if (indexPassword >= 0 && indexPassword < indexUser) 
 			{
-				sUser = _uri.substring(indexScheme + 1, indexPassword);
-				String sPassword = _uri.substring(indexPassword + 1, indexUser);
-				if (!SipGrammar.__passwd.containsAll(sPassword)) 
-					throw new ServletParseException("Invalid password [" + sPassword
-							+ "] in URI [" + _uri + "]");
-				
-				_password = SipGrammar.unescape(sPassword);
+				if (!containsAll(SipGrammar.__passwd, indexPassword + 1, indexUser)) 
+					throw new ServletParseException("Invalid password [" + uri.substring(indexPassword + 1, indexUser)
+							+ "] in URI [" + uri + "]");
+				checkEscaped(indexPassword + 1, indexUser);
+				_passwordStart = indexPassword + 1;
+				_passwordEnd = indexUser;
+				endUser = indexPassword;
 			}
-			else 
-			{
-				sUser = _uri.substring(indexScheme + 1, indexUser);
-			}
-			if (!SipGrammar.__user.containsAll(sUser)) 
-				throw new ServletParseException("Invalid user [" + sUser + "] in URI [" + _uri + "]");
-			
-			_user = SipGrammar.unescape(sUser);
+			if (!containsAll(SipGrammar.__user, indexScheme + 1, endUser)) 
+				throw new ServletParseException("Invalid user [" + uri.substring(indexScheme + 1, endUser) 
+						+ "] in URI [" + uri + "]");
+			checkEscaped(indexScheme + 1, endUser);
+			_userStart = indexScheme + 1;
+			_userEnd = endUser;
 			indexHost = indexUser + 1;
 		} 
 		else 
 		{
 			indexHost = indexScheme + 1;
 		}
+		if (indexHost >= length)
+			throw new ServletParseException("Missing host in URI [" + uri + "]");
+		
 		int indexPort = -1;
 		
-		if (_uri.charAt(indexHost) == '[')
+		if (uri.charAt(indexHost) == '[')
 		{
-			int i = _uri.indexOf(']', indexHost);
+			int i = uri.indexOf(']', indexHost);
         	if (i < 0)
-        		throw new ServletParseException("Invalid IPv6 in " + _uri);
-        	indexPort = _uri.indexOf(':', i);
+        		throw new ServletParseException("Invalid IPv6 in " + uri);
+        	indexPort = uri.indexOf(':', i);
 		}
 		else
 		{
-			indexPort = _uri.indexOf(':', indexHost);
+			indexPort = uri.indexOf(':', indexHost);
 		}
-		int indexParams = _uri.indexOf(';', indexHost);
-		int indexHeaders = _uri.indexOf('?', indexHost);
+		int indexParams = uri.indexOf(';', indexHost);
+		int indexHeaders = uri.indexOf('?', indexHost);
 		
 		if ((indexPort > indexParams && indexParams > -1)
 				|| (indexPort > indexHeaders && indexHeaders > -1))
@@ -130,19 +165,16 @@ public class SipURIImpl extends URIImpl implements SipURI
 		int endHost = indexPort;
 		if (endHost < 0) 
 			endHost = indexParams;
-		
 		if (endHost < 0) 
 			endHost = indexHeaders;
+		if (endHost < 0)
+			endHost = length;
 		
-		String host;
-		if (endHost < 0) 
-			host = _uri.substring(indexHost);
-		else
-			host = _uri.substring(indexHost, endHost);
-		host = host.trim();
-		if (!SipGrammar.__host.containsAll(host)) 
-			throw new ServletParseException("Invalid host [" + host + "] in URI [" + _uri + "]");
-		setHost(host);
+		_hostStart = trimStart(indexHost, endHost);
+		_hostEnd = trimEnd(_hostStart, endHost);
+		if (!containsAll(SipGrammar.__host, _hostStart, _hostEnd)) 
+			throw new ServletParseException("Invalid host [" + uri.substring(_hostStart, _hostEnd) 
+					+ "] in URI [" + uri + "]");
 	
 		if (indexPort < 0) 
 		{
@@ -153,96 +185,304 @@ public class SipURIImpl extends URIImpl implements SipURI
 			int endPort = indexParams;
 			if (endPort < 0) 
 				endPort = indexHeaders;
+			if (endPort < 0)
+				endPort = length;
 			
-			String sPort; 
-			if (endPort < 0) 
-				sPort = _uri.substring(indexPort + 1);
-			else
-				sPort = _uri.substring(indexPort + 1, endPort);
-			try 
-			{
-				_port = Integer.parseInt(sPort);
-			} 
-			catch (NumberFormatException _) 
-			{
-				throw new ServletParseException("Invalid port number [" + sPort + "] in [" + _uri + "]");
-			}
+			_port = parsePort(indexPort + 1, endPort);
+			if (endPort - indexPort - 1 != String.valueOf(_port).length())
+				_canonical = false;
 		}
 		if (indexParams >= 0) 
 		{
-			String params;
-			if (indexHeaders < 0) 
-				params = _uri.substring(indexParams + 1);
-			else
-				params = _uri.substring(indexParams + 1, indexHeaders);
-			parseParams(params);
+			_paramsStart = indexParams + 1;
+			_paramsEnd = indexHeaders < 0 ? length : indexHeaders;
+			parseParams(false);
 		}
 		if (indexHeaders >= 0) 
 		{
-			String headers = _uri.substring(indexHeaders + 1);
-			parseHeaders(headers);
+			_headersStart = indexHeaders + 1;
+			parseHeaders(false);
+		}
+		
+		if (_canonical)
+		{
+			for (int i = 0; i < length; i++)
+			{
+				char c = uri.charAt(i);
+				if (c <= ' ' || c == '%')
+				{
+					_canonical = false;
+					break;
+				}
+			}
+		}
+	}
+	
+	private int parsePort(int start, int end) throws ServletParseException
+	{
+		int port = 0;
+		if (end == start || end - start > 9)
+			throw new ServletParseException("Invalid port number [" + _uri.substring(start, end) + "] in [" + _uri + "]");
+		for (int i = start; i < end; i++)
+		{
+			char c = _uri.charAt(i);
+			if (c < '0' || c > '9')
+				throw new ServletParseException("Invalid port number [" + _uri.substring(start, end) + "] in [" + _uri + "]");
+			port = port * 10 + c - '0';
+		}
+		return port;
+	}
+	
+	private boolean containsAll(SipCharset charset, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (!charset.contains(_uri.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks that escaped chars are valid, so that unescaping them later does not fail.
+	 */
+	private void checkEscaped(int start, int end)
+	{
+		for (int i = _uri.indexOf('%', start); i != -1 && i < end; i = _uri.indexOf('%', i + 1))
+		{
+			if (i + 2 >= end 
+					|| Character.digit(_uri.charAt(i + 1), 16) == -1 
+					|| Character.digit(_uri.charAt(i + 2), 16) == -1)
+				throw new IllegalArgumentException("Invalid escaped char at " + (i - start) + "in [" 
+						+ _uri.substring(start, end) + "]");
 		}
 	}
 	
-	private void parseParams(String sParams) throws ServletParseException 
+	private int trimStart(int start, int end)
+	{
+		while (start < end && _uri.charAt(start) <= ' ')
+			start++;
+		return start;
+	}
+	
+	private int trimEnd(int start, int end)
+	{
+		while (end > start && _uri.charAt(end - 1) <= ' ')
+			end--;
+		return end;
+	}
+	
+	private String unescape(int start, int end)
+	{
+		return SipGrammar.unescape(_uri.substring(start, end));
+	}
+	
+	/**
+	 * Validates the parameters and, if <code>build</code>, puts them in the parameters map.
+	 */
+	private void parseParams(boolean build) throws ServletParseException 
 	{
-		StringTokenizer st = new StringTokenizer(sParams, ";");
-		while (st.hasMoreTokens()) 
+		int start = _paramsStart;
+		if (start == _paramsEnd)
+			_canonical = false;
+		while (start < _paramsEnd)
 		{
-			String param = st.nextToken();
-			String name;
-			String value;
-			int index = param.indexOf('=');
+			int end = _uri.indexOf(';', start);
+			if (end == -1 || end > _paramsEnd)
+				end = _paramsEnd;
 			
-			if (index < 0) 
+			if (end > start)
 			{
-				name  = param.trim();
-				value = "";
-			} 
-			else 
+				int index = _uri.indexOf('=', start);
+				if (index == -1 || index > end)
+					index = end;
+				
+				int nameStart = trimStart(start, index);
+				int nameEnd = trimEnd(nameStart, index);
+				int valueStart = index < end ? trimStart(index + 1, end) : end;
+				int valueEnd = trimEnd(valueStart, end);
+				
+				if (build)
+				{
+					_params.put(SipGrammar.unescape(_uri.substring(nameStart, nameEnd).toLowerCase()), 
+							unescape(valueStart, valueEnd));
+				}
+				else
+				{
+					if (!containsAll(SipGrammar.__param, nameStart, nameEnd)) 
+						throw new ServletParseException("Invalid parameter name [" 
+								+ _uri.substring(nameStart, nameEnd) + "] in [" + _uri + "]");
+					
+					if (!containsAll(SipGrammar.__param, valueStart, valueEnd)) 
+						throw new ServletParseException("Invalid parameter value [" 
+								+ _uri.substring(valueStart, valueEnd) + "] in [" + _uri + "]");
+					checkEscaped(nameStart, nameEnd);
+					checkEscaped(valueStart, valueEnd);
+					
+					// Names are lower-cased and empty values written without '=' by toString()
+					if (index < end && valueStart == valueEnd)
+						_canonical = false;
+					for (int i = nameStart; _canonical && i < nameEnd; i++)
+					{
+						char c = _uri.charAt(i);
+						if (c >= 'A' && c <= 'Z')
+							_canonical = false;
+					}
+				}
+			}
+			else
 			{
-				name  = param.substring(0, index).trim();
-				value = param.substring(index + 1).trim();
+				_canonical = false;
 			}
-			if (!SipGrammar.__param.containsAll(name)) 
-				throw new ServletParseException("Invalid parameter name [" 
-						+ name + "] in [" + _uri + "]");
-			
-			if (!SipGrammar.__param.containsAll(value)) 
-				throw new ServletParseException("Invalid parameter value [" 
-						+ value + "] in [" + _uri + "]");
-			
-			_params.put(SipGrammar.unescape(name.toLowerCase()), SipGrammar.unescape(value));
+			start = end + 1;
 		}
 	}
 	
-	private void parseHeaders(String sHeaders) throws ServletParseException 
+	private void parseHeaders(boolean build) throws ServletParseException 
 	{
-		StringTokenizer st = new StringTokenizer(sHeaders, "&");
-		while (st.hasMoreTokens()) 
+		int length = _uri.length();
+		int start = _headersStart;
+		if (start == length)
+			_canonical = false;
+		while (start < length)
 		{
-			String header = st.nextToken();
-			String name;
-			String value;
-			int index = header.indexOf('=');
+			int end = _uri.indexOf('&', start);
+			if (end == -1)
+				end = length;
 			
-			if (index < 0) 
-				throw new ServletParseException("Missing value in header [" 
-						+ header + "] in uri [" + _uri + "]");
+			if (end == start)
+				_canonical = false;
+			else
+			{
+				int index = _uri.indexOf('=', start);
+				if (index == -1 || index > end) 
+					throw new ServletParseException("Missing value in header [" 
+							+ _uri.substring(start, end) + "] in uri [" + _uri + "]");
+				
+				int nameStart = trimStart(start, index);
+				int nameEnd = trimEnd(nameStart, index);
+				int valueStart = trimStart(index + 1, end);
+				int valueEnd = trimEnd(valueStart, end);
+				
+				if (build)
+				{
+					_headers.put(unescape(nameStart, nameEnd), unescape(valueStart, valueEnd));
+				}
+				else
+				{
+					if (!containsAll(SipGrammar.__header, nameStart, nameEnd)) 
+						throw new ServletParseException("Invalid header name [" 
+								+ _uri.substring(nameStart, nameEnd) + "] in [" + _uri + "]");
+					
+					if (!containsAll(SipGrammar.__header, valueStart, valueEnd)) 
+						throw new ServletParseException("Invalid header value [" 
+								+ _uri.substring(valueStart, valueEnd) + "] in [" + _uri + "]");
+					checkEscaped(nameStart, nameEnd);
+					checkEscaped(valueStart, valueEnd);
+				}
+			}
+			start = end + 1;
+		}
+	}
+	
+	private void parseUser()
+	{
+		if ((_parsed & USER) == 0)
+		{
+			if (_userStart != -1)
+				_user = unescape(_userStart, _userEnd);
+			if (_passwordStart != -1)
+				_password = unescape(_passwordStart, _passwordEnd);
+			_parsed |= USER;
+		}
+	}
+	
+	private void parseHost()
+	{
+		if ((_parsed & HOST) == 0)
+		{
+			setHost(_uri.substring(_hostStart, _hostEnd));
+			_parsed |= HOST;
+		}
+	}
+	
+	private void parseParams()
+	{
+		if ((_parsed & PARAMS) == 0)
+		{
+			_params = new HashMap<String, String>();
+			if (_paramsStart != -1)
+			{
+				try
+				{
+					parseParams(true);
+				}
+				catch (ServletParseException e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+			_parsed |= PARAMS;
+		}
+	}
+	
+	private void parseHeaders()
+	{
+		if ((_parsed & HEADERS) == 0)
+		{
+			_headers = new HashMap<String, String>();
+			if (_headersStart != -1)
+			{
+				try
+				{
+					parseHeaders(true);
+				}
+				catch (ServletParseException e)
+				{
+					throw new IllegalStateException(e);
+				}
+			}
+			_parsed |= HEADERS;
+		}
+	}
+	
+	/**
+	 * Returns the value of the parameter from the URI, without building the parameters map.
+	 */
+	private String findParameter(String name)
+	{
+		if (_paramsStart == -1)
+			return null;
+		
+		String value = null;
+		int start = _paramsStart;
+		while (start < _paramsEnd)
+		{
+			int end = _uri.indexOf(';', start);
+			if (end == -1 || end > _paramsEnd)
+				end = _paramsEnd;
 			
-			name  = header.substring(0, index).trim();
-			value = header.substring(index + 1).trim();
+			int index = _uri.indexOf('=', start);
+			if (index == -1 || index > end)
+				index = end;
 			
-			if (!SipGrammar.__header.containsAll(name)) 
-				throw new ServletParseException("Invalid header name [" 
-						+ name + "] in [" + _uri + "]");
+			int nameStart = trimStart(start, index);
+			int nameEnd = trimEnd(nameStart, index);
 			
-			if (!SipGrammar.__header.containsAll(value)) 
-				throw new ServletParseException("Invalid header value [" 
-						+ value + "] in [" + _uri + "]");
-		
-			_headers.put(SipGrammar.unescape(name), SipGrammar.unescape(value));
+			if (nameEnd - nameStart == name.length() && _uri.regionMatches(true, nameStart, name, 0, name.length()))
+			{
+				int valueStart = index < end ? trimStart(index + 1, end) : end;
+				value = unescape(valueStart, trimEnd(valueStart, end));
+			}
+			else if (_uri.lastIndexOf('%', nameEnd - 1) >= nameStart)
+			{
+				// Escaped name
+				parseParams();
+				return _params.get(name);
+			}
+			start = end + 1;
 		}
+		return value;
 	}
 	
 	public boolean isSipURI() 
@@ -266,30 +506,38 @@ public class SipURIImpl extends URIImpl implements SipURI
 			_scheme = "sips";
 		else 
 			_scheme = "sip";
+		_modified = true;
 	}
 	
 	public String getUser() 
 	{
+		parseUser();
 		return _user;
 	}
 	
 	public void setUser(String user) 
 	{
+		parseUser();
 		_user = user;
+		_modified = true;
 	}
 	
 	public String getUserPassword() 
 	{
+		parseUser();
 		return _password;
 	}
 	
 	public void setUserPassword(String password) 
 	{
+		parseUser();
 		_password = password;
+		_modified = true;
 	}
 
 	public String getHost() 
 	{
+		parseHost();
 		return _host;
 	}
 	
@@ -299,6 +547,8 @@ public class SipURIImpl extends URIImpl implements SipURI
     		_host = "[" + host + "]";
     	else
             _host = host;
+		_parsed |= HOST;
+		_modified = true;
 	}
 
 	public int getPort() 
@@ -312,10 +562,13 @@ public class SipURIImpl extends URIImpl implements SipURI
 			_port = -1;
 		else
 			_port = port;
+		_modified = true;
 	}
 	
 	public String getParameter(String name) 
 	{
+		if ((_parsed & PARAMS) == 0)
+			return findParameter(name.toLowerCase());
 		return (String) _params.get(name.toLowerCase());
 	}
 	
@@ -323,17 +576,22 @@ public class SipURIImpl extends URIImpl implements SipURI
 	{
 		if (name == null || value == null)
 			throw new NullPointerException("Null value or name");
+		parseParams();
 		_params.put(name.toLowerCase(), value);
+		_modified = true;
 	}
 	
 	public void removeParameter(String name) 
 	{
+		parseParams();
 		_params.remove(name.toLowerCase());
+		_modified = true;
 	}
 	
 	public synchronized Iterator<String> getParameterNames() 
 	{
-		return _params.keySet().iterator();
+		parseParams();
+		return Collections.unmodifiableSet(_params.keySet()).iterator();
 	}
 	
 	public String getTransportParam() 
@@ -413,28 +671,40 @@ public class SipURIImpl extends URIImpl implements SipURI
 	
 	public synchronized Iterator<String> getHeaderNames() 
 	{
-		return _headers.keySet().iterator();
+		parseHeaders();
+		return Collections.unmodifiableSet(_headers.keySet()).iterator();
 	}
 	
 	public String getHeader(String name) 
 	{
 		if (name == null)
 			throw new NullPointerException("Name is null");
+		parseHeaders();
 		return (String) _headers.get(name);
 	}
 	
 	public void setHeader(String name, String value) 
 	{
+		parseHeaders();
 		_headers.put(name, value);
+		_modified = true;
 	}
 	
 	public void clearHeaders() 
 	{
 		_headers = new HashMap<String, String>();
+		_parsed |= HEADERS;
+		_modified = true;
 	}
 	
 	public String toString() 
 	{
+		if (!_modified && _canonical)
+			return _uri;
+		
+		parseUser();
+		parseHost();
+		
 		StringBuffer sb = new StringBuffer(64);
 		
 		sb.append(_scheme);
@@ -498,8 +768,10 @@ public class SipURIImpl extends URIImpl implements SipURI
 		SipURIImpl other;
 		other = (SipURIImpl) super.clone();
 		
-		other._params = (HashMap<String, String>) _params.clone();
-		other._headers = (HashMap<String, String>) _headers.clone();
+		if (_params != null)
+			other._params = (HashMap<String, String>) _params.clone();
+		if (_headers != null)
+			other._headers = (HashMap<String, String>) _headers.clone();
 		return other;
 	}
 	
@@ -512,17 +784,39 @@ public class SipURIImpl extends URIImpl implements SipURI
 		if (!_scheme.equals(other.getScheme())) 
 			return false;
 		
-		if (!equalsUser(other))
-			return false;
-		
-		if (!equalsPassword(other)) 
+		if (_port != other.getPort())
 			return false;
 		
-		if (!_host.equalsIgnoreCase(other.getHost()))
-			return false;
+		if (o instanceof SipURIImpl)
+		{
+			SipURIImpl uri = (SipURIImpl) o;
+			if (!_modified && !uri._modified && _uri.equals(uri._uri))
+				return true;
+			
+			if (!equalsHost(uri))
+				return false;
+			
+			if (!equalsUser(uri))
+				return false;
+			
+			if (_paramsStart == -1 && _headersStart == -1 && uri._paramsStart == -1 && uri._headersStart == -1
+					&& (_parsed & (PARAMS | HEADERS)) == 0 && (uri._parsed & (PARAMS | HEADERS)) == 0)
+				return true;
+		}
+		else
+		{
+			if (!equalsUser(other))
+				return false;
+			
+			if (!equalsPassword(other)) 
+				return false;
+			
+			if (!getHost().equalsIgnoreCase(other.getHost()))
+				return false;
+		}
 		
-		if (_port != other.getPort())
-			return false;
+		parseParams();
+		parseHeaders();
 		
 		Map<String, String> otherParams = new HashMap<String, String>();
 		Iterator<String> it = other.getParameterNames();
@@ -544,24 +838,99 @@ public class SipURIImpl extends URIImpl implements SipURI
 		return true;
 	}
 	
+	/**
+	 * Hashes only the components compared by {@link #equals(Object)} whatever their form: the scheme, 
+	 * the user, the host and the port and the parameters that must be present in both URIs to be equal 
+	 * (RFC 3261 §19.1.4).
+	 */
+	@Override
+	public int hashCode()
+	{
+		int hash = _scheme.hashCode();
+		String user = getUser();
+		if (user != null)
+			hash = 31 * hash + user.hashCode();
+		hash = 31 * hash + getHost().toLowerCase().hashCode();
+		hash = 31 * hash + _port;
+		hash = 31 * hash + hashParameter(USER_PARAM);
+		hash = 31 * hash + hashParameter(TTL_PARAM);
+		hash = 31 * hash + hashParameter(METHOD_PARAM);
+		hash = 31 * hash + hashParameter(MADDR_PARAM);
+		hash = 31 * hash + hashParameter(TRANSPORT_PARAM);
+		return hash;
+	}
+	
+	private int hashParameter(String name)
+	{
+		String value = getParameter(name);
+		return value == null ? 0 : value.toLowerCase().hashCode();
+	}
+	
+	/**
+	 * Compares hosts, in the URIs if neither has been modified. 
+	 */
+	private boolean equalsHost(SipURIImpl other)
+	{
+		if ((_parsed & HOST) == 0 && (other._parsed & HOST) == 0)
+		{
+			int length = _hostEnd - _hostStart;
+			return length == other._hostEnd - other._hostStart 
+				&& _uri.regionMatches(true, _hostStart, other._uri, other._hostStart, length);
+		}
+		return getHost().equalsIgnoreCase(other.getHost());
+	}
+	
+	/**
+	 * Compares users and passwords, in the URIs if not modified nor escaped. 
+	 */
+	private boolean equalsUser(SipURIImpl other)
+	{
+		if ((_parsed & USER) == 0 && (other._parsed & USER) == 0 
+				&& !isEscaped(_userStart, _passwordStart == -1 ? _userEnd : _passwordEnd)
+				&& !other.isEscaped(other._userStart, other._passwordStart == -1 ? other._userEnd : other._passwordEnd))
+		{
+			return equalsRegion(_userStart, _userEnd, other, other._userStart, other._userEnd)
+				&& equalsRegion(_passwordStart, _passwordEnd, other, other._passwordStart, other._passwordEnd);
+		}
+		return equalsUser((SipURI) other) && equalsPassword(other);
+	}
+	
+	private boolean isEscaped(int start, int end)
+	{
+		if (start == -1)
+			return false;
+		int i = _uri.indexOf('%', start);
+		return i != -1 && i < end;
+	}
+	
+	private boolean equalsRegion(int start, int end, SipURIImpl other, int otherStart, int otherEnd)
+	{
+		if (start == -1 || otherStart == -1)
+			return start == otherStart;
+		return end - start == otherEnd - otherStart 
+			&& _uri.regionMatches(start, other._uri, otherStart, end - start);
+	}
+	
 	private boolean equalsUser(SipURI other) 
 	{
-		if (_user == null && other.getUser() == null) 
+		String user = getUser();
+		if (user == null && other.getUser() == null) 
 			return true;
 		
-		if (_user != null && other.getUser() != null) 
-			return _user.equals(other.getUser());
+		if (user != null && other.getUser() != null) 
+			return user.equals(other.getUser());
 		
 		return false;
 	}
 	
 	private boolean equalsPassword(SipURI other) 
 	{
-		if (_password == null && other.getUserPassword() == null) 
+		String password = getUserPassword();
+		if (password == null && other.getUserPassword() == null) 
 			return true;
 		
-		if (_password != null && other.getUserPassword() != null) 
-			return _password.equals(other.getUserPassword());
+		if (password != null && other.getUserPassword() != null) 
+			return password.equals(other.getUserPassword());
 	
 		return false;
 	}
@@ -649,6 +1018,8 @@ public class SipURIImpl extends URIImpl implements SipURI
 
 	public void removeHeader(String name)
 	{
+		parseHeaders();
 		_headers.remove(name);		
+		_modified = true;
 	}
 }
@@ -0,0 +1,481 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.sipapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.sip.SipServletRequest;
+
+import org.cipango.sipapp.rules.AndRule;
+import org.cipango.sipapp.rules.ContainsRule;
+import org.cipango.sipapp.rules.EqualsRule;
+import org.cipango.sipapp.rules.ExistsRule;
+import org.cipango.sipapp.rules.MatchingRule;
+import org.cipango.sipapp.rules.NotRule;
+import org.cipango.sipapp.rules.OrRule;
+import org.cipango.sipapp.rules.RequestRule;
+import org.cipango.sipapp.rules.SubdomainRule;
+import org.cipango.sipapp.rules.request.Extractor;
+
+/**
+ * Servlet mappings compiled to select the servlet handling an initial request.
+ * <p>
+ * Mappings are indexed by the methods they can match, so only the mappings that may apply to a
+ * request are evaluated, in declaration order. The first matching mapping is returned, as when rules
+ * are evaluated in turn. Variables sharing a prefix (e.g. <code>request.uri.user</code> and
+ * <code>request.uri.host</code>) share its extraction, and each extraction is done at most once per
+ * request. Values compared ignoring case are lower-cased at most once per request. Rules of unknown
+ * types are evaluated as is.
+ */
+public class CompiledMappings
+{
+	private static final String METHOD_VAR = "request.method";
+
+	private final Map<String, Entry[]> _byMethod = new HashMap<String, Entry[]>();
+	private final Entry[] _anyMethod;
+	private final List<Slot> _slots = new ArrayList<Slot>();
+	private final Map<String, Integer> _slotIndexes = new HashMap<String, Integer>();
+
+	public CompiledMappings(SipServletMapping[] mappings)
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		Set<String> methods = new LinkedHashSet<String>();
+
+		for (int i = 0; i < mappings.length; i++)
+		{
+			MatchingRule rule = mappings[i].getMatchingRule();
+			Entry entry = new Entry(mappings[i], compile(rule), getMethods(rule));
+			entries.add(entry);
+			if (entry._methods != null)
+				methods.addAll(entry._methods);
+		}
+
+		for (String method : methods)
+			_byMethod.put(method, select(entries, method));
+		_anyMethod = select(entries, null);
+	}
+
+	/**
+	 * @return the first mapping matching the request or <code>null</code> if none.
+	 */
+	public SipServletMapping match(SipServletRequest request)
+	{
+		Entry[] entries = _byMethod.get(request.getMethod());
+		if (entries == null)
+			entries = _anyMethod;
+
+		if (entries.length == 0)
+			return null;
+
+		Values values = new Values(request);
+		for (int i = 0; i < entries.length; i++)
+		{
+			if (entries[i]._node.matches(values))
+				return entries[i]._mapping;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the number of distinct extractions done for all rules.
+	 */
+	public int getExtractions()
+	{
+		return _slots.size();
+	}
+
+	private Entry[] select(List<Entry> entries, String method)
+	{
+		List<Entry> selected = new ArrayList<Entry>();
+		for (Entry entry : entries)
+		{
+			if (entry._methods == null || (method != null && entry._methods.contains(method)))
+				selected.add(entry);
+		}
+		return selected.toArray(new Entry[selected.size()]);
+	}
+
+	/**
+	 * Returns the methods of the requests the rule can match or <code>null</code> if it may match any
+	 * method.
+	 */
+	protected Set<String> getMethods(MatchingRule rule)
+	{
+		if (rule instanceof EqualsRule)
+		{
+			EqualsRule equals = (EqualsRule) rule;
+			if (METHOD_VAR.equals(equals.getVarName()) && !equals.isIgnoreCase())
+			{
+				Set<String> methods = new HashSet<String>();
+				methods.add(equals.getValue());
+				return methods;
+			}
+		}
+		else if (rule instanceof AndRule)
+		{
+			Set<String> methods = null;
+			for (MatchingRule criterion : ((AndRule) rule).getCriteria())
+			{
+				Set<String> m = getMethods(criterion);
+				if (m == null)
+					continue;
+				if (methods == null)
+					methods = m;
+				else
+					methods.retainAll(m);
+			}
+			return methods;
+		}
+		else if (rule instanceof OrRule)
+		{
+			Set<String> methods = new HashSet<String>();
+			for (MatchingRule criterion : ((OrRule) rule).getCriteria())
+			{
+				Set<String> m = getMethods(criterion);
+				if (m == null)
+					return null;
+				methods.addAll(m);
+			}
+			return methods;
+		}
+		return null;
+	}
+
+	protected Node compile(MatchingRule rule)
+	{
+		if (rule instanceof AndRule)
+			return new And(compile(((AndRule) rule).getCriteria()));
+		else if (rule instanceof OrRule)
+			return new Or(compile(((OrRule) rule).getCriteria()));
+		else if (rule instanceof NotRule)
+			return new Not(compile(((NotRule) rule).getCriterion()));
+		else if (rule instanceof EqualsRule)
+		{
+			EqualsRule equals = (EqualsRule) rule;
+			return new Equals(getSlot(equals), equals.getValue(), equals.isIgnoreCase());
+		}
+		else if (rule instanceof ContainsRule)
+		{
+			ContainsRule contains = (ContainsRule) rule;
+			return new Contains(getSlot(contains), contains.getValue(), contains.isIgnoreCase());
+		}
+		else if (rule instanceof SubdomainRule)
+		{
+			SubdomainRule subdomain = (SubdomainRule) rule;
+			return new Subdomain(getSlot(subdomain), subdomain.getValue());
+		}
+		else if (rule instanceof ExistsRule)
+			return new Exists(getSlot((ExistsRule) rule));
+		else
+			return new Rule(rule);
+	}
+
+	private Node[] compile(List<MatchingRule> rules)
+	{
+		Node[] nodes = new Node[rules.size()];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = compile(rules.get(i));
+		return nodes;
+	}
+
+	/**
+	 * Returns the slot holding the value of the rule variable. A slot is created for each prefix of the
+	 * variable, that is for each extractor, unless already created for another rule.
+	 */
+	private int getSlot(RequestRule rule)
+	{
+		List<Extractor> extractors = rule.getExtractors();
+		String[] tokens = rule.getVarName().split("\\.");
+
+		int parent = -1;
+		StringBuilder key = new StringBuilder(tokens[0]);
+		for (int i = 0; i < extractors.size(); i++)
+		{
+			if (i == extractors.size() - 1)
+			{
+				key.setLength(0);
+				key.append(rule.getVarName());
+			}
+			else
+				key.append('.').append(tokens[i + 1]);
+
+			Integer index = _slotIndexes.get(key.toString());
+			if (index == null)
+			{
+				index = _slots.size();
+				_slots.add(new Slot(parent, extractors.get(i)));
+				_slotIndexes.put(key.toString(), index);
+			}
+			parent = index;
+		}
+		return parent;
+	}
+
+	static class Entry
+	{
+		private final SipServletMapping _mapping;
+		private final Node _node;
+		private final Set<String> _methods;
+
+		Entry(SipServletMapping mapping, Node node, Set<String> methods)
+		{
+			_mapping = mapping;
+			_node = node;
+			_methods = methods;
+		}
+	}
+
+	static class Slot
+	{
+		private final int _parent;
+		private final Extractor _extractor;
+
+		Slot(int parent, Extractor extractor)
+		{
+			_parent = parent;
+			_extractor = extractor;
+		}
+	}
+
+	/**
+	 * Values extracted from a request, computed on first use.
+	 */
+	class Values
+	{
+		private final SipServletRequest _request;
+		private Object[] _objects;
+		private String[] _strings;
+		private String[] _lowerCases;
+		private boolean[] _extracted;
+
+		Values(SipServletRequest request)
+		{
+			_request = request;
+		}
+
+		public SipServletRequest getRequest()
+		{
+			return _request;
+		}
+
+		public Object getObject(int slot)
+		{
+			if (slot == -1)
+				return _request;
+
+			if (_extracted == null)
+			{
+				int size = _slots.size();
+				_objects = new Object[size];
+				_strings = new String[size];
+				_lowerCases = new String[size];
+				_extracted = new boolean[size];
+			}
+
+			if (!_extracted[slot])
+			{
+				Slot s = _slots.get(slot);
+				Object input = getObject(s._parent);
+				if (input != null)
+					_objects[slot] = s._extractor.extract(input);
+				_extracted[slot] = true;
+			}
+			return _objects[slot];
+		}
+
+		public String getString(int slot)
+		{
+			Object o = getObject(slot);
+			if (o == null)
+				return null;
+			if (slot == -1)
+				return o.toString();
+			if (_strings[slot] == null)
+				_strings[slot] = o.toString();
+			return _strings[slot];
+		}
+
+		public String getLowerCase(int slot)
+		{
+			String s = getString(slot);
+			if (s == null)
+				return null;
+			if (slot == -1)
+				return s.toLowerCase();
+			if (_lowerCases[slot] == null)
+				_lowerCases[slot] = s.toLowerCase();
+			return _lowerCases[slot];
+		}
+	}
+
+	interface Node
+	{
+		boolean matches(Values values);
+	}
+
+	static class And implements Node
+	{
+		private final Node[] _nodes;
+
+		And(Node[] nodes)
+		{
+			_nodes = nodes;
+		}
+
+		public boolean matches(Values values)
+		{
+			for (int i = 0; i < _nodes.length; i++)
+			{
+				if (!_nodes[i].matches(values))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	static class Or implements Node
+	{
+		private final Node[] _nodes;
+
+		Or(Node[] nodes)
+		{
+			_nodes = nodes;
+		}
+
+		public boolean matches(Values values)
+		{
+			for (int i = 0; i < _nodes.length; i++)
+			{
+				if (_nodes[i].matches(values))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	static class Not implements Node
+	{
+		private final Node _node;
+
+		Not(Node node)
+		{
+			_node = node;
+		}
+
+		public boolean matches(Values values)
+		{
+			return !_node.matches(values);
+		}
+	}
+
+	static class Equals implements Node
+	{
+		private final int _slot;
+		private final String _value;
+		private final boolean _ignoreCase;
+
+		Equals(int slot, String value, boolean ignoreCase)
+		{
+			_slot = slot;
+			_value = value;
+			_ignoreCase = ignoreCase;
+		}
+
+		public boolean matches(Values values)
+		{
+			if (_ignoreCase)
+				return _value.equalsIgnoreCase(values.getString(_slot));
+			return _value.equals(values.getString(_slot));
+		}
+	}
+
+	static class Contains implements Node
+	{
+		private final int _slot;
+		private final String _value;
+		private final boolean _ignoreCase;
+
+		Contains(int slot, String value, boolean ignoreCase)
+		{
+			_slot = slot;
+			_value = ignoreCase ? value.toLowerCase() : value;
+			_ignoreCase = ignoreCase;
+		}
+
+		public boolean matches(Values values)
+		{
+			String value = _ignoreCase ? values.getLowerCase(_slot) : values.getString(_slot);
+			return value != null && value.indexOf(_value) != -1;
+		}
+	}
+
+	static class Subdomain implements Node
+	{
+		private final int _slot;
+		private final String _value;
+
+		Subdomain(int slot, String value)
+		{
+			_slot = slot;
+			_value = value;
+		}
+
+		public boolean matches(Values values)
+		{
+			String value = values.getString(_slot);
+			if (value == null || !value.endsWith(_value))
+				return false;
+
+			int length = value.length();
+			return length == _value.length() || value.charAt(length - _value.length() - 1) == '.';
+		}
+	}
+
+	static class Exists implements Node
+	{
+		private final int _slot;
+
+		Exists(int slot)
+		{
+			_slot = slot;
+		}
+
+		public boolean matches(Values values)
+		{
+			return values.getObject(_slot) != null;
+		}
+	}
+
+	static class Rule implements Node
+	{
+		private final MatchingRule _rule;
+
+		Rule(MatchingRule rule)
+		{
+			_rule = rule;
+		}
+
+		public boolean matches(Values values)
+		{
+			return _rule.matches(values.getRequest());
+		}
+	}
+}
@@ -118,6 +118,11 @@ public class SipAppContext extends WebAppContext implements SipHandler
 	};
 	
 	public static final String EXTERNAL_INTERFACES = "org.cipango.externalOutboundInterfaces";
+	
+	/**
+	 * Context attribute holding the {@link org.cipango.server.metrics.MetricsRegistry} of the server.
+	 */
+	public static final String METRICS_REGISTRY = "org.cipango.metricsRegistry";
     
     /*
     public final CLFireEvent<SipErrorListener, SipErrorEvent> _noAck = new CLFireEvent<SipErrorListener, SipErrorEvent>()
@@ -420,6 +425,8 @@ public class SipAppContext extends WebAppContext implements SipHandler
 		setAttribute(SipServlet.SIP_SESSIONS_UTIL, getSipSessionsUtil());
 		setAttribute(SipServlet.SUPPORTED, Collections.unmodifiableList(Arrays.asList(EXTENSIONS)));
 		setAttribute(SipServlet.SUPPORTED_RFCs, Collections.unmodifiableList(Arrays.asList(SUPPORTED_RFC)));
+		if (getServer() != null)
+			setAttribute(METRICS_REGISTRY, getServer().getMetricsRegistry());
 		
 		
 		super.startContext();
@@ -15,6 +15,7 @@
 package org.cipango.sipapp.rules;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.sip.SipServletRequest;
 
@@ -29,6 +30,11 @@ public class AndRule implements MatchingRule
        _criteria.add(c); 
     }
     
+    public List<MatchingRule> getCriteria()
+    {
+    	return _criteria;
+    }
+    
     public boolean matches(SipServletRequest request) 
     {
         for (int i = 0; i < _criteria.size(); i++) 
@@ -19,14 +19,14 @@ import javax.servlet.sip.SipServletRequest;
 public class ContainsRule extends RequestRule implements MatchingRule 
 {    
     private String _value;
+    private String _match;
     private boolean _ignoreCase;
     
     public ContainsRule(String var, String value, boolean ignoreCase) 
     {
         super(var);
         _value = value;
-        if (ignoreCase) 
-        	value = value.toLowerCase();
+        _match = ignoreCase ? value.toLowerCase() : value;
         _ignoreCase = ignoreCase;
     }
     
@@ -37,7 +37,17 @@ public class ContainsRule extends RequestRule implements MatchingRule
     		return false;
         if (_ignoreCase) 
             requestValue = requestValue.toLowerCase();
-        return (requestValue.indexOf(_value) != -1);
+        return (requestValue.indexOf(_match) != -1);
+    }
+    
+    public String getValue()
+    {
+    	return _value;
+    }
+    
+    public boolean isIgnoreCase()
+    {
+    	return _ignoreCase;
     }
 
     public String getExpression() 
@@ -36,6 +36,16 @@ public class EqualsRule extends RequestRule implements MatchingRule
 		return _value.equalsIgnoreCase(getValue(request));
 	}
 
+	public String getValue()
+	{
+		return _value;
+	}
+	
+	public boolean isIgnoreCase()
+	{
+		return _ignoreCase;
+	}
+
 	public String getExpression()
 	{
 		return "(" + getVarName() + " == " + _value + ")";
@@ -27,6 +27,11 @@ public class NotRule implements MatchingRule
     	 _criterion = c;
     }
     
+    public MatchingRule getCriterion()
+    {
+    	return _criterion;
+    }
+    
     public boolean matches(SipServletRequest request) 
     {
         return !_criterion.matches(request);
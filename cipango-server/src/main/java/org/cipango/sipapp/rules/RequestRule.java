@@ -91,6 +91,14 @@ public abstract class RequestRule implements MatchingRule
 		return o.toString();
     }
     
+    /**
+     * @return the extractors applied in turn to the request to get the value of the variable.
+     */
+    public List<Extractor> getExtractors()
+    {
+    	return _extractors;
+    }
+    
     public String getVarName() 
     {
     	return _varName;
@@ -41,6 +41,11 @@ public class SubdomainRule extends RequestRule implements MatchingRule
     	return false;
     }
 
+    public String getValue()
+    {
+    	return _value;
+    }
+    
     public String getExpression() 
     {
         return "(" + getVarName() + " subdomainOf " + _value + ")";
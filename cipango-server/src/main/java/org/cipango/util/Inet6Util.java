@@ -0,0 +1,233 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.util;
+
+import java.net.Inet6Address;
+
+/**
+ * IPv6 address literals, as found in SIP URIs and Via headers, compared by value.
+ * <p>
+ * As an IPv6 address has multiple representations (e.g. <code>[2000::1]</code> and
+ * <code>2000:0:0:0:0:0:0:1</code>), literals are parsed to their 128 bits, as the high and low
+ * <code>long</code> values. Parsing does not allocate and never resolves names, unlike
+ * <code>InetAddress.getByName()</code>.
+ */
+public class Inet6Util
+{
+	/**
+	 * @return <code>true</code> if <code>host</code> may be an IPv6 literal, with or without brackets.
+	 */
+	public static boolean isLiteral(String host)
+	{
+		return host.indexOf(':') != -1;
+	}
+
+	/**
+	 * @return the 64 high bits of the IPv6 literal.
+	 * @throws IllegalArgumentException if <code>host</code> is not a valid IPv6 literal.
+	 */
+	public static long getHigh(String host)
+	{
+		return parse(host, true);
+	}
+
+	/**
+	 * @return the 64 low bits of the IPv6 literal.
+	 * @throws IllegalArgumentException if <code>host</code> is not a valid IPv6 literal.
+	 */
+	public static long getLow(String host)
+	{
+		return parse(host, false);
+	}
+
+	public static long getHigh(Inet6Address address)
+	{
+		return toLong(address.getAddress(), 0);
+	}
+
+	public static long getLow(Inet6Address address)
+	{
+		return toLong(address.getAddress(), 8);
+	}
+
+	/**
+	 * @return <code>true</code> if both hosts are IPv6 literals of the same address.
+	 */
+	public static boolean equals(String host1, String host2)
+	{
+		if (!isLiteral(host1) || !isLiteral(host2))
+			return false;
+		try
+		{
+			return parse(host1, true) == parse(host2, true) && parse(host1, false) == parse(host2, false);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+	}
+
+	private static long toLong(byte[] b, int offset)
+	{
+		long l = 0;
+		for (int i = offset; i < offset + 8; i++)
+			l = (l << 8) | (b[i] & 0xff);
+		return l;
+	}
+
+	private static long parse(String host, boolean high)
+	{
+		int start = 0;
+		int end = host.length();
+		if (end > 0 && host.charAt(0) == '[')
+		{
+			if (host.charAt(end - 1) != ']')
+				throw new IllegalArgumentException(host);
+			start++;
+			end--;
+		}
+		int zone = host.indexOf('%', start);
+		if (zone != -1 && zone < end)
+			end = zone;
+
+		// Groups before "::" are accumulated in head, after in tail
+		long headHigh = 0, headLow = 0, tailHigh = 0, tailLow = 0;
+		int headGroups = 0, tailGroups = 0;
+		boolean compressed = false;
+
+		int i = start;
+		if (end - start >= 2 && host.charAt(i) == ':' && host.charAt(i + 1) == ':')
+		{
+			compressed = true;
+			i += 2;
+		}
+
+		while (i < end)
+		{
+			int tokenEnd = i;
+			boolean dotted = false;
+			while (tokenEnd < end && host.charAt(tokenEnd) != ':')
+			{
+				if (host.charAt(tokenEnd) == '.')
+					dotted = true;
+				tokenEnd++;
+			}
+
+			int groups;
+			long value;
+			if (dotted)
+			{
+				if (tokenEnd != end)
+					throw new IllegalArgumentException(host);
+				value = parseIPv4(host, i, tokenEnd);
+				groups = 2;
+			}
+			else
+			{
+				value = parseGroup(host, i, tokenEnd);
+				groups = 1;
+			}
+
+			for (int g = groups; g-- > 0;)
+			{
+				long group = (value >>> (16 * g)) & 0xffff;
+				if (compressed)
+				{
+					tailHigh = (tailHigh << 16) | (tailLow >>> 48);
+					tailLow = (tailLow << 16) | group;
+					tailGroups++;
+				}
+				else
+				{
+					headHigh = (headHigh << 16) | (headLow >>> 48);
+					headLow = (headLow << 16) | group;
+					headGroups++;
+				}
+			}
+
+			i = tokenEnd;
+			if (i < end)
+			{
+				i++;
+				if (i < end && host.charAt(i) == ':')
+				{
+					if (compressed)
+						throw new IllegalArgumentException(host);
+					compressed = true;
+					i++;
+				}
+				else if (i == end)
+					throw new IllegalArgumentException(host);
+			}
+		}
+
+		if (compressed ? headGroups + tailGroups > 7 : headGroups != 8)
+			throw new IllegalArgumentException(host);
+
+		// Shift head groups to their position, tail groups being the lowest ones
+		for (int g = headGroups; g < 8; g++)
+		{
+			headHigh = (headHigh << 16) | (headLow >>> 48);
+			headLow = headLow << 16;
+		}
+
+		return high ? headHigh | tailHigh : headLow | tailLow;
+	}
+
+	private static int parseGroup(String host, int start, int end)
+	{
+		if (end == start || end - start > 4)
+			throw new IllegalArgumentException(host);
+		int value = 0;
+		for (int i = start; i < end; i++)
+		{
+			int digit = Character.digit(host.charAt(i), 16);
+			if (digit == -1)
+				throw new IllegalArgumentException(host);
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	private static long parseIPv4(String host, int start, int end)
+	{
+		long value = 0;
+		int octets = 0;
+		int octet = -1;
+		for (int i = start; i <= end; i++)
+		{
+			char c = i < end ? host.charAt(i) : '.';
+			if (c == '.')
+			{
+				if (octet == -1)
+					throw new IllegalArgumentException(host);
+				value = (value << 8) | octet;
+				octets++;
+				octet = -1;
+			}
+			else if (c >= '0' && c <= '9')
+			{
+				octet = (octet == -1 ? 0 : octet * 10) + c - '0';
+				if (octet > 255)
+					throw new IllegalArgumentException(host);
+			}
+			else
+				throw new IllegalArgumentException(host);
+		}
+		if (octets != 4)
+			throw new IllegalArgumentException(host);
+		return value;
+	}
+}
@@ -0,0 +1,198 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores byte arrays outside of the Java heap, in direct buffers.
+ * <p>
+ * Memory is allocated by slabs, each slab being divided in chunks of a single size class. Size classes
+ * grow by about a quarter, so that at most a fifth of a chunk is wasted. Freed chunks are reused first,
+ * then chunks are taken in order from the last slab of their class. Slabs are never released.
+ * <p>
+ * An entry is designated by a <code>long</code> handle, holding its slab and offset.
+ */
+public class OffHeapStore
+{
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+	public static final int MIN_CHUNK_SIZE = 64;
+
+	private final int _slabSize;
+	private final int[] _classes;
+	private final long _maxSize;
+
+	private final List<ByteBuffer> _slabs = new ArrayList<ByteBuffer>();
+	private final List<Integer> _slabClasses = new ArrayList<Integer>();
+	private final long[][] _free;
+	private final int[] _nbFree;
+	private final int[] _lastSlab;
+	private final int[] _lastOffset;
+
+	private long _used;
+
+	public OffHeapStore()
+	{
+		this(DEFAULT_SLAB_SIZE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param slabSize the size of a slab, which is the maximum size of an entry.
+	 * @param maxSize the maximum off-heap memory allocated.
+	 */
+	public OffHeapStore(int slabSize, long maxSize)
+	{
+		_slabSize = slabSize;
+		_maxSize = maxSize;
+
+		List<Integer> classes = new ArrayList<Integer>();
+		int size = MIN_CHUNK_SIZE;
+		while (size < slabSize)
+		{
+			classes.add(size);
+			size += Math.max(16, Integer.highestOneBit(size) / 4);
+		}
+		classes.add(slabSize);
+
+		_classes = new int[classes.size()];
+		for (int i = 0; i < _classes.length; i++)
+			_classes[i] = classes.get(i);
+		_free = new long[_classes.length][];
+		_nbFree = new int[_classes.length];
+		_lastSlab = new int[_classes.length];
+		_lastOffset = new int[_classes.length];
+		for (int i = 0; i < _classes.length; i++)
+			_lastSlab[i] = -1;
+	}
+
+	/**
+	 * @return the handle of the stored entry or <code>-1</code> if it is larger than a slab or if the
+	 *         maximum size would be exceeded.
+	 */
+	public synchronized long put(byte[] b)
+	{
+		int sizeClass = getSizeClass(b.length);
+		if (sizeClass == -1)
+			return -1;
+
+		long handle = allocate(sizeClass);
+		if (handle == -1)
+			return -1;
+
+		ByteBuffer slab = _slabs.get(getSlab(handle));
+		slab.position(getOffset(handle));
+		slab.put(b);
+
+		_used += _classes[sizeClass];
+		return handle;
+	}
+
+	/**
+	 * @param length the length of the entry.
+	 */
+	public synchronized byte[] get(long handle, int length)
+	{
+		byte[] b = new byte[length];
+		ByteBuffer slab = _slabs.get(getSlab(handle));
+		slab.position(getOffset(handle));
+		slab.get(b);
+		return b;
+	}
+
+	public synchronized void free(long handle)
+	{
+		int sizeClass = _slabClasses.get(getSlab(handle));
+		push(sizeClass, handle);
+		_used -= _classes[sizeClass];
+	}
+
+	/**
+	 * @return the size of the allocated chunks.
+	 */
+	public synchronized long getUsed()
+	{
+		return _used;
+	}
+
+	/**
+	 * @return the off-heap memory allocated.
+	 */
+	public synchronized long getCapacity()
+	{
+		return (long) _slabs.size() * _slabSize;
+	}
+
+	private int getSizeClass(int length)
+	{
+		int low = 0;
+		int high = _classes.length - 1;
+		if (length > _classes[high])
+			return -1;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (_classes[mid] < length)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private long allocate(int sizeClass)
+	{
+		if (_nbFree[sizeClass] > 0)
+			return _free[sizeClass][--_nbFree[sizeClass]];
+
+		int chunkSize = _classes[sizeClass];
+		if (_lastSlab[sizeClass] == -1 || _lastOffset[sizeClass] + chunkSize > _slabSize)
+		{
+			if (getCapacity() + _slabSize > _maxSize)
+				return -1;
+			_lastSlab[sizeClass] = _slabs.size();
+			_lastOffset[sizeClass] = 0;
+			_slabs.add(ByteBuffer.allocateDirect(_slabSize));
+			_slabClasses.add(sizeClass);
+		}
+		long handle = ((long) _lastSlab[sizeClass] << 32) | _lastOffset[sizeClass];
+		_lastOffset[sizeClass] += chunkSize;
+		return handle;
+	}
+
+	private void push(int sizeClass, long handle)
+	{
+		long[] free = _free[sizeClass];
+		if (free == null || _nbFree[sizeClass] == free.length)
+		{
+			long[] f = new long[free == null ? 64 : free.length * 2];
+			if (free != null)
+				System.arraycopy(free, 0, f, 0, free.length);
+			_free[sizeClass] = free = f;
+		}
+		free[_nbFree[sizeClass]++] = handle;
+	}
+
+	private static int getSlab(long handle)
+	{
+		return (int) (handle >>> 32);
+	}
+
+	private static int getOffset(long handle)
+	{
+		return (int) handle;
+	}
+}
@@ -0,0 +1,130 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.util;
+
+import java.util.Arrays;
+
+/**
+ * Token buckets for an unbounded number of keys in a fixed amount of memory.
+ * <p>
+ * As in a count-min sketch, the buckets are arranged in rows and a key is mapped to one bucket per row
+ * by a different hash function. A key is allowed when all its buckets have a token, which is then taken
+ * from each of them. Keys sharing a bucket share its rate, so that a collision can only limit a key
+ * earlier than configured, never later, and a key is limited by mistake only if it collides in all rows
+ * with keys that use up the rate.
+ */
+public class TokenBucketSketch
+{
+	private static final long[] SEEDS = {
+		0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L };
+
+	private final int _depth;
+	private final int _mask;
+	private final double _rate;
+	private final double _burst;
+
+	private final double[] _tokens;
+	private final long[] _times;
+
+	/**
+	 * @param depth the number of rows, at most 4.
+	 * @param width the number of buckets per row, rounded up to a power of 2.
+	 * @param rate the number of tokens added to a bucket per second.
+	 * @param burst the maximum number of tokens of a bucket.
+	 */
+	public TokenBucketSketch(int depth, int width, double rate, double burst)
+	{
+		if (depth < 1 || depth > SEEDS.length)
+			throw new IllegalArgumentException("Invalid depth " + depth);
+		int w = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+		_depth = depth;
+		_mask = w - 1;
+		_rate = rate;
+		_burst = burst;
+		_tokens = new double[depth * w];
+		_times = new long[depth * w];
+		Arrays.fill(_tokens, burst);
+	}
+
+	public double getRate()
+	{
+		return _rate;
+	}
+
+	public double getBurst()
+	{
+		return _burst;
+	}
+
+	/**
+	 * @return the memory used by the buckets, in bytes.
+	 */
+	public long getSize()
+	{
+		return (long) _tokens.length * 16;
+	}
+
+	/**
+	 * Takes a token for the key if all its buckets have one.
+	 *
+	 * @param hash the hash of the key.
+	 * @param now the current time in milliseconds.
+	 * @return <code>true</code> if the key is allowed.
+	 */
+	public synchronized boolean tryAcquire(long hash, long now)
+	{
+		double min = Double.MAX_VALUE;
+		for (int i = 0; i < _depth; i++)
+		{
+			int index = index(hash, i);
+			long elapsed = now - _times[index];
+			if (elapsed > 0)
+			{
+				_tokens[index] = Math.min(_burst, _tokens[index] + elapsed * _rate / 1000);
+				_times[index] = now;
+			}
+			min = Math.min(min, _tokens[index]);
+		}
+		if (min < 1)
+			return false;
+
+		for (int i = 0; i < _depth; i++)
+			_tokens[index(hash, i)] -= 1;
+		return true;
+	}
+
+	private int index(long hash, int row)
+	{
+		long h = (hash ^ (hash >>> 29)) * SEEDS[row];
+		return row * (_mask + 1) + ((int) (h >>> 32) & _mask);
+	}
+
+	/**
+	 * @return a well mixed hash of the given bytes.
+	 */
+	public static long hash(byte[] b, long seed)
+	{
+		long h = seed ^ 0xCBF29CE484222325L;
+		for (int i = 0; i < b.length; i++)
+		{
+			h ^= b[i] & 0xff;
+			h *= 0x100000001B3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
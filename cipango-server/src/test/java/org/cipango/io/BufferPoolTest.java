@@ -0,0 +1,136 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.io;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.junit.Test;
+
+public class BufferPoolTest
+{
+	@Test
+	public void testSizeClasses()
+	{
+		BufferPool pool = new BufferPool(new int[] { 100, 1000 }, false, 10000);
+		assertEquals(100, pool.getBuffer(1).capacity());
+		assertEquals(100, pool.getBuffer(100).capacity());
+		assertEquals(1000, pool.getBuffer(101).capacity());
+		assertEquals(5000, pool.getBuffer(5000).capacity());
+		assertEquals(4, pool.getMisses());
+	}
+
+	@Test
+	public void testReuse()
+	{
+		BufferPool pool = new BufferPool(new int[] { 100, 1000 }, false, 10000);
+		Buffer buffer = pool.getBuffer(50);
+		buffer.put((byte) 'a');
+		pool.returnBuffer(buffer);
+
+		Buffer reused = pool.getBuffer(80);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.length());
+		assertNotSame(buffer, pool.getBuffer(80));
+
+		assertEquals(1, pool.getHits());
+		assertEquals(2, pool.getMisses());
+		assertEquals(1 / 3d, pool.getHitRatio(), 0.001);
+
+		// Not a size class
+		pool.returnBuffer(new ByteArrayBuffer(500));
+		assertEquals(1000, pool.getBuffer(500).capacity());
+		assertEquals(1, pool.getHits());
+	}
+
+	@Test
+	public void testMaxRetained()
+	{
+		BufferPool pool = new BufferPool(new int[] { 100 }, false, 250);
+		Buffer[] buffers = new Buffer[BufferPool.DEFAULT_THREAD_CACHE_SIZE + 3];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = pool.getBuffer(100);
+		for (int i = 0; i < buffers.length; i++)
+			pool.returnBuffer(buffers[i]);
+
+		// Thread cache is full, then only two buffers fit in the shared queue
+		assertEquals(200, pool.getRetained());
+
+		for (int i = 0; i < buffers.length; i++)
+			pool.getBuffer(100);
+		assertEquals(0, pool.getRetained());
+		assertEquals(BufferPool.DEFAULT_THREAD_CACHE_SIZE + 2, pool.getHits());
+	}
+
+	@Test
+	public void testLargeNotThreadCached()
+	{
+		int large = BufferPool.MAX_THREAD_CACHED_SIZE * 4;
+		BufferPool pool = new BufferPool(new int[] { 100, large }, false, 2 * large);
+		Buffer[] buffers = new Buffer[3];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = pool.getBuffer(large);
+		for (int i = 0; i < buffers.length; i++)
+			pool.returnBuffer(buffers[i]);
+
+		// Large buffers all go to the shared queue, bounded by the max retained
+		assertEquals(2 * large, pool.getRetained());
+		pool.getBuffer(large);
+		pool.getBuffer(large);
+		assertEquals(0, pool.getRetained());
+		assertEquals(2, pool.getHits());
+	}
+
+	@Test
+	public void testSharedQueue() throws Exception
+	{
+		final BufferPool pool = new BufferPool(new int[] { 100 }, false, 10000);
+		final Buffer[] buffers = new Buffer[BufferPool.DEFAULT_THREAD_CACHE_SIZE + 1];
+		Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				for (int i = 0; i < buffers.length; i++)
+					buffers[i] = pool.getBuffer(100);
+				for (int i = 0; i < buffers.length; i++)
+					pool.returnBuffer(buffers[i]);
+			}
+		};
+		thread.start();
+		thread.join();
+
+		// Buffers cached by the other thread are not visible, the overflow is
+		assertSame(buffers[buffers.length - 1], pool.getBuffer(100));
+	}
+
+	@Test
+	public void testDirect()
+	{
+		BufferPool pool = new BufferPool(new int[] { 100 }, true, 10000);
+		Buffer buffer = pool.getBuffer(10);
+		assertTrue(buffer instanceof DirectNIOBuffer);
+		pool.returnBuffer(buffer);
+		assertSame(buffer, pool.getBuffer(10));
+
+		pool.returnBuffer(new ByteArrayBuffer(100));
+		assertTrue(pool.getBuffer(10) instanceof DirectNIOBuffer);
+	}
+}
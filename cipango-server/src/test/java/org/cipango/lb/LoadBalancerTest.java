@@ -0,0 +1,358 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.lb;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.sip.SipServletMessage;
+
+import org.cipango.server.ID;
+import org.cipango.server.Server;
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipResponse;
+import org.cipango.server.StatelessProxy;
+import org.cipango.server.bio.UdpConnector;
+import org.cipango.sip.SipParams;
+import org.cipango.sip.SipParser;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoadBalancerTest
+{
+	private static final int LB_PORT = 15260;
+	private static final int BACKEND_PORT = 15261;
+
+	private LoadBalancer _loadBalancer;
+	private TestBackend[] _backends = new TestBackend[3];
+	private DatagramSocket _client;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		for (int i = 0; i < _backends.length; i++)
+		{
+			_backends[i] = new TestBackend(BACKEND_PORT + i);
+			_backends[i].start();
+		}
+
+		_loadBalancer = new LoadBalancer();
+		UdpConnector connector = new UdpConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(LB_PORT);
+		_loadBalancer.getConnectorManager().addConnector(connector);
+		for (int i = 0; i < _backends.length; i++)
+			_loadBalancer.addBackend("sip:127.0.0.1:" + (BACKEND_PORT + i));
+
+		_client = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		_client.setSoTimeout(2000);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_client.close();
+		_loadBalancer.stop();
+		for (TestBackend backend : _backends)
+			backend.stop();
+	}
+
+	private String invite(String callId, String branch)
+	{
+		return "INVITE sip:bob@cipango.org SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 127.0.0.1:" + _client.getLocalPort() + ";branch=z9hG4bK" + branch + "\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "To: <sip:bob@cipango.org>\r\n"
+			+ "From: <sip:alice@cipango.org>;tag=1928301774\r\n"
+			+ "Call-ID: " + callId + "\r\n"
+			+ "CSeq: 1 INVITE\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+	}
+
+	/**
+	 * Sends an INVITE to the load balancer and returns the index of the backend which answered it.
+	 */
+	private int call(String callId) throws Exception
+	{
+		for (TestBackend backend : _backends)
+			backend._callIds.clear();
+
+		String branch = ID.newID(4);
+		byte[] b = invite(callId, branch).getBytes();
+		_client.send(new DatagramPacket(b, b.length, InetAddress.getByName("127.0.0.1"), LB_PORT));
+
+		DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+		_client.receive(packet);
+		SipResponse response = (SipResponse) parse(new String(packet.getData(), 0, packet.getLength()));
+		assertEquals(200, response.getStatus());
+		assertEquals("z9hG4bK" + branch, response.getTopVia().getBranch());
+		ListIterator<String> vias = response.getFields().getValues("Via");
+		vias.next();
+		assertFalse(vias.hasNext());
+
+		for (int i = 0; i < _backends.length; i++)
+		{
+			if (_backends[i]._callIds.contains(callId))
+				return i;
+		}
+		throw new AssertionError("No backend for " + callId);
+	}
+
+	private static Object parse(String message) throws Exception
+	{
+		UdpConnector.EventHandler handler = new UdpConnector.EventHandler();
+		new SipParser(new ByteArrayBuffer(message.getBytes()), handler).parse();
+		return handler.getMessage();
+	}
+
+	@Test
+	public void testRing() throws Exception
+	{
+		List<Backend> backends = new ArrayList<Backend>();
+		for (int i = 0; i < 4; i++)
+			backends.add(new Backend("sip:10.0.0." + i));
+		HashRing ring = new HashRing(backends, HashRing.DEFAULT_REPLICAS);
+
+		Map<String, Backend> keys = new HashMap<String, Backend>();
+		Map<Backend, Integer> counts = new HashMap<Backend, Integer>();
+		for (int i = 0; i < 10000; i++)
+		{
+			Backend backend = ring.get("key" + i);
+			keys.put("key" + i, backend);
+			counts.put(backend, counts.containsKey(backend) ? counts.get(backend) + 1 : 1);
+		}
+		for (Backend backend : backends)
+			assertTrue(counts.get(backend) > 1800 && counts.get(backend) < 3200);
+
+		// Only the keys of the removed backend are moved
+		Backend removed = backends.remove(2);
+		ring = new HashRing(backends, HashRing.DEFAULT_REPLICAS);
+		for (Map.Entry<String, Backend> entry : keys.entrySet())
+		{
+			Backend backend = ring.get(entry.getKey());
+			if (entry.getValue() == removed)
+				assertTrue(backend != removed);
+			else
+				assertTrue(backend == entry.getValue());
+		}
+	}
+
+	@Test
+	public void testForward() throws Exception
+	{
+		_loadBalancer.setCheckInterval(0);
+		_loadBalancer.start();
+
+		int[] counts = new int[_backends.length];
+		for (int i = 0; i < 30; i++)
+		{
+			String callId = "call-" + i + "@127.0.0.1";
+			int backend = call(callId);
+			counts[backend]++;
+			// Retransmissions reach the same backend
+			assertEquals(backend, call(callId));
+		}
+		for (int count : counts)
+			assertTrue(count > 0);
+
+		SipRequest request = _backends[0]._requests.get(0);
+		assertEquals("sip:bob@cipango.org", request.getRequestURI().toString());
+		assertEquals(69, request.getMaxForwards());
+		assertTrue(request.getTopVia().getBranch().startsWith(StatelessProxy.BRANCH_PREFIX));
+		assertEquals(LB_PORT, request.getTopVia().getPort());
+	}
+
+	@Test
+	public void testFailover() throws Exception
+	{
+		// Several missed checks are required so that a late check response does not mark a backend down
+		_loadBalancer.setCheckInterval(100);
+		_loadBalancer.setMaxMissed(3);
+		_loadBalancer.start();
+		waitForBackends(3);
+
+		Map<String, Integer> calls = new HashMap<String, Integer>();
+		for (int i = 0; i < 30; i++)
+			calls.put("call-" + i + "@127.0.0.1", call("call-" + i + "@127.0.0.1"));
+		assertTrue(calls.containsValue(1));
+
+		_backends[1].stop();
+		waitForBackends(2);
+
+		for (Map.Entry<String, Integer> entry : calls.entrySet())
+		{
+			int backend = call(entry.getKey());
+			if (entry.getValue() == 1)
+				assertTrue(backend != 1);
+			else
+				assertEquals(entry.getValue().intValue(), backend);
+		}
+
+		_backends[1] = new TestBackend(BACKEND_PORT + 1);
+		_backends[1].start();
+		waitForBackends(3);
+		for (Map.Entry<String, Integer> entry : calls.entrySet())
+			assertEquals(entry.getValue().intValue(), call(entry.getKey()));
+	}
+
+	/**
+	 * Waits until <code>up</code> backends are up and stay up during several check intervals, so that
+	 * the ring does not change while affinity is asserted.
+	 */
+	private void waitForBackends(int up) throws InterruptedException
+	{
+		long stableTime = 5 * _loadBalancer.getCheckInterval();
+		long stableSince = -1;
+		for (int i = 0; i < 500; i++)
+		{
+			int n = 0;
+			for (String backend : _loadBalancer.getBackends())
+			{
+				if (!backend.contains("(down)"))
+					n++;
+			}
+			long now = System.currentTimeMillis();
+			if (n != up)
+				stableSince = -1;
+			else if (stableSince == -1)
+				stableSince = now;
+			else if (now - stableSince >= stableTime)
+				return;
+			Thread.sleep(20);
+		}
+		throw new AssertionError("Backends not updated: " + _loadBalancer);
+	}
+
+	@Test
+	public void testFromBackend() throws Exception
+	{
+		_loadBalancer.setCheckInterval(0);
+		_loadBalancer.start();
+
+		// Request from backend 1 to the client, sent through the load balancer
+		String request = "MESSAGE sip:alice@127.0.0.1:" + _client.getLocalPort() + " SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 127.0.0.1:" + (BACKEND_PORT + 1) + ";branch=z9hG4bK1234;rport\r\n"
+			+ "Route: <sip:127.0.0.1:" + LB_PORT + ";lr>\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "To: <sip:alice@cipango.org>\r\n"
+			+ "From: <sip:bob@cipango.org>;tag=1\r\n"
+			+ "Call-ID: from-backend@127.0.0.1\r\n"
+			+ "CSeq: 1 MESSAGE\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+		byte[] b = request.getBytes();
+		_client.send(new DatagramPacket(b, b.length, InetAddress.getByName("127.0.0.1"), LB_PORT));
+
+		DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+		_client.receive(packet);
+		SipRequest forwarded = (SipRequest) parse(new String(packet.getData(), 0, packet.getLength()));
+		assertEquals("MESSAGE", forwarded.getMethod());
+		assertEquals(69, forwarded.getMaxForwards());
+		assertEquals(LB_PORT, forwarded.getTopVia().getPort());
+		assertEquals(null, forwarded.getTopRoute());
+		for (TestBackend backend : _backends)
+			assertTrue(backend._requests.isEmpty());
+
+		// Request from a backend to the load balancer itself is not hashed back to a backend
+		b = request.replace("Route: <sip:127.0.0.1:" + LB_PORT + ";lr>\r\n", "")
+			.replace("sip:alice@127.0.0.1:" + _client.getLocalPort(), "sip:alice@127.0.0.1:" + LB_PORT).getBytes();
+		_client.send(new DatagramPacket(b, b.length, InetAddress.getByName("127.0.0.1"), LB_PORT));
+		_client.receive(packet);
+		SipResponse response = (SipResponse) parse(new String(packet.getData(), 0, packet.getLength()));
+		assertEquals(482, response.getStatus());
+		for (TestBackend backend : _backends)
+			assertTrue(backend._requests.isEmpty());
+	}
+
+	/**
+	 * Node answering all requests with a 200 response.
+	 */
+	class TestBackend implements SipHandler
+	{
+		Server _server = new Server();
+		QueuedThreadPool _threadPool = new QueuedThreadPool();
+		List<String> _callIds = Collections.synchronizedList(new ArrayList<String>());
+		List<SipRequest> _requests = Collections.synchronizedList(new ArrayList<SipRequest>());
+		int _port;
+
+		TestBackend(int port)
+		{
+			_port = port;
+		}
+
+		void start() throws Exception
+		{
+			_threadPool.start();
+			_server.setSipThreadPool(_threadPool);
+			UdpConnector connector = new UdpConnector();
+			connector.setHost("127.0.0.1");
+			connector.setPort(_port);
+			_server.getConnectorManager().addConnector(connector);
+			_server.getConnectorManager().start();
+			connector.setHandler(this);
+		}
+
+		void stop() throws Exception
+		{
+			if (_server.getConnectorManager().isRunning())
+			{
+				_server.getConnectorManager().stop();
+				_threadPool.stop();
+			}
+		}
+
+		public void handle(SipServletMessage message) throws IOException, ServletException
+		{
+			SipRequest request = (SipRequest) message;
+			if (!request.isOptions())
+			{
+				_requests.add(request);
+				_callIds.add(request.getCallId());
+			}
+			SipResponse response = new SipResponse(request, 200, null);
+			response.to().setParameter(SipParams.TAG, ID.newTag());
+			assertNotNull(request.getConnection());
+			_server.getConnectorManager().sendResponse(response);
+		}
+
+		public void setServer(org.eclipse.jetty.server.Server server)
+		{
+		}
+
+		public org.eclipse.jetty.server.Server getServer()
+		{
+			return _server;
+		}
+	}
+}
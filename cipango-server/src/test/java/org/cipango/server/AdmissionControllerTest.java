@@ -0,0 +1,172 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.cipango.log.event.EventDispatcher;
+import org.cipango.log.event.Events;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdmissionControllerTest
+{
+	private EventDispatcher _dispatcher;
+	private List<Integer> _events = new ArrayList<Integer>();
+
+	@Before
+	public void setUp()
+	{
+		_dispatcher = Events.getDispatcher();
+		Events.setDispatcher(new EventDispatcher()
+		{
+			public void dispatch(int eventType, String message)
+			{
+				_events.add(eventType);
+			}
+		});
+	}
+
+	@After
+	public void tearDown()
+	{
+		Events.setDispatcher(_dispatcher);
+	}
+
+	@Test
+	public void testAimd()
+	{
+		TestController controller = new TestController();
+		controller.update(0);
+
+		// 500 requests per second without overload
+		long now = 0;
+		for (int i = 0; i < 50; i++)
+			assertTrue(controller.admit(now += 2));
+		controller.update(100);
+		assertFalse(controller.isLimited());
+
+		controller._reason = "test";
+		for (int i = 0; i < 50; i++)
+			controller.admit(now += 2);
+		controller.update(200);
+		assertTrue(controller.isLimited());
+		assertEquals(400.0, controller.getLimit(), 0.1);
+		assertEquals(Events.OVERLOAD, _events.get(0).intValue());
+
+		// Requests over the limit are rejected
+		int admitted = 0;
+		for (int i = 0; i < 50; i++)
+		{
+			if (controller.admit(now += 2))
+				admitted++;
+		}
+		assertEquals(40, admitted, 1);
+		assertEquals(50 - admitted, controller.getRejected());
+
+		controller.update(300);
+		assertEquals(320.0, controller.getLimit(), 10);
+
+		// Additive increase until the limit is well above the offered rate of 500 requests per second
+		controller._reason = null;
+		int updates = 0;
+		while (controller.isLimited())
+		{
+			for (int i = 0; i < 50; i++)
+				controller.admit(now += 2);
+			controller.update(now);
+			updates++;
+		}
+		assertEquals(36, updates);
+		assertEquals(2, _events.size());
+		assertEquals(Events.OVERLOAD_CLEARED, _events.get(1).intValue());
+
+		controller._reason = "test";
+		controller.update(now + 100);
+		assertEquals(controller.getMinRate(), controller.getLimit());
+	}
+
+	/**
+	 * Offers three times the capacity of a simulated server, which handles its queue in FIFO order and
+	 * whose requests are lost when they wait more than 2 s, and checks that the throughput of requests
+	 * handled in time stays close to the capacity.
+	 */
+	@Test
+	public void testSaturation()
+	{
+		assertTrue(simulate(1000, 3000, true) > 800);
+		assertTrue(simulate(1000, 3000, false) < 100);
+		assertTrue(simulate(1000, 500, true) > 495);
+	}
+
+	/**
+	 * @return the number of requests per second handled in time during the last 10 s of 20 s.
+	 */
+	static double simulate(int capacity, int offered, boolean controlled)
+	{
+		final LinkedList<Long> queue = new LinkedList<Long>();
+		TestController controller = new TestController()
+		{
+			@Override
+			protected String getOverloadReason(long now)
+			{
+				return queue.size() > getMaxQueued() ? "queued " + queue.size() : null;
+			}
+		};
+		controller.setMaxQueued(200);
+		controller.update(0);
+
+		double arrivals = 0;
+		double departures = 0;
+		long handled = 0;
+		for (long now = 1; now <= 20000; now++)
+		{
+			for (arrivals += offered / 1000.0; arrivals >= 1; arrivals--)
+			{
+				if (!controlled || controller.admit(now))
+					queue.add(now);
+			}
+			for (departures += capacity / 1000.0; departures >= 1 && !queue.isEmpty(); departures--)
+			{
+				long time = queue.removeFirst();
+				if (now > 10000 && now - time <= 2000)
+					handled++;
+			}
+			if (queue.isEmpty())
+				departures = 0;
+			if (now % controller.getInterval() == 0)
+				controller.update(now);
+		}
+		return handled / 10.0;
+	}
+
+	static class TestController extends AdmissionController
+	{
+		String _reason;
+
+		@Override
+		protected String getOverloadReason(long now)
+		{
+			return _reason;
+		}
+	}
+}
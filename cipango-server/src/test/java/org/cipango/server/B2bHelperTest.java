@@ -14,6 +14,8 @@
 package org.cipango.server;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.fail;
 
 import java.util.Arrays;
@@ -23,12 +25,117 @@ import java.util.List;
 import java.util.Map;
 
 import javax.servlet.sip.Address;
+import javax.servlet.sip.Parameterable;
+import javax.servlet.sip.UAMode;
 
+import org.cipango.server.session.Session;
 import org.cipango.sip.NameAddr;
+import org.cipango.sip.SipFields;
+import org.cipango.sip.SipGenerator;
+import org.cipango.sip.SipHeaders;
+import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.junit.Test;
 
 public class B2bHelperTest
 {
+	static final String MESSAGE = "MESSAGE sip:alice@biloxi.example.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP client.biloxi.example.com:5061;branch=z9hG4bKnashds7\r\n"
+		+ "Record-Route: <sip:proxy.biloxi.example.com;lr>\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "From: Bob <sip:bob@biloxi.example.com>;tag=a73kszlfl\r\n"
+		+ "To: Alice <sip:alice@biloxi.example.com>\r\n"
+		+ "Call-ID: 1j9FpLxk3uxtm8tn@biloxi.example.com\r\n"
+		+ "CSeq: 1 MESSAGE\r\n"
+		+ "Contact: <sip:127.0.0.1:5060;transport=TCP>\r\n"
+		+ "Accept: text/plain;level=1\r\n"
+		+ "P-Asserted-Identity: <sip:bob@biloxi.example.com>\r\n"
+		+ "User-Agent: Cipango\r\n"
+		+ "Content-Length: 0\r\n\r\n";
+	
+	private static Session newUacSession() throws Exception
+	{
+		Session session = new Session(null, "1", "b2b@cipango.org", 
+				new NameAddr("<sip:b2b@cipango.org>;tag=1"), new NameAddr("<sip:alice@biloxi.example.com>"));
+		session.createUA(UAMode.UAC);
+		return session;
+	}
+	
+	@Test
+	public void testCreateRequestShared() throws Exception
+	{
+		SipRequest src = (SipRequest) SipRequestTest.getMessage(MESSAGE);
+		SipRequest request = newUacSession().getUA().createRequest(src);
+		
+		assertNotNull(request.getFields().getShared());
+		assertNull(request.getTopVia());
+		assertNull(request.getHeader("Record-Route"));
+		assertNull(request.getHeader("Contact"));
+		assertEquals("b2b@cipango.org", request.getCallId());
+		assertEquals("<sip:b2b@cipango.org>;tag=1", request.getFrom().toString());
+		assertEquals("text/plain;level=1", request.getHeader("Accept"));
+		
+		// Modifications on either leg are not seen by the other one
+		Parameterable accept = request.getParameterableHeader("Accept");
+		accept.setParameter("level", "2");
+		request.addHeader("User-Agent", "B2B");
+		src.getParameterableHeader("P-Asserted-Identity").setParameter("p", "1");
+		
+		assertEquals("text/plain;level=1", src.getHeader("Accept"));
+		assertEquals("text/plain;level=2", request.getHeader("Accept"));
+		assertEquals("Cipango", src.getHeader("User-Agent"));
+		assertEquals(1, count(src.getHeaders("User-Agent")));
+		assertEquals("<sip:bob@biloxi.example.com>;p=1", src.getHeader("P-Asserted-Identity"));
+		assertEquals("<sip:bob@biloxi.example.com>", request.getHeader("P-Asserted-Identity"));
+		assertEquals("client.biloxi.example.com", src.getTopVia().getHost());
+		
+		SipRequest generated = (SipRequest) SipRequestTest.getMessage(generate(request));
+		assertEquals("text/plain;level=2", generated.getHeader("Accept"));
+		assertEquals("<sip:bob@biloxi.example.com>", generated.getHeader("P-Asserted-Identity"));
+		assertNull(generated.getHeader("Record-Route"));
+		assertEquals(2, count(generated.getHeaders("User-Agent")));
+	}
+	
+	@Test
+	public void testCreateRequestParsedBefore() throws Exception
+	{
+		SipRequest src = (SipRequest) SipRequestTest.getMessage(MESSAGE);
+		Address pai = src.getAddressHeader("P-Asserted-Identity");
+		Parameterable accept = src.getParameterableHeader("Accept");
+		
+		SipRequest request = newUacSession().getUA().createRequest(src);
+		
+		// Values obtained before the copy are modified without being owned again
+		pai.setParameter("x", "leak");
+		accept.setParameter("level", "2");
+		
+		assertEquals("<sip:bob@biloxi.example.com>;x=leak", src.getHeader("P-Asserted-Identity"));
+		assertEquals("<sip:bob@biloxi.example.com>", request.getHeader("P-Asserted-Identity"));
+		assertEquals("text/plain;level=2", src.getHeader("Accept"));
+		assertEquals("text/plain;level=1", request.getHeader("Accept"));
+		
+		SipRequest generated = (SipRequest) SipRequestTest.getMessage(generate(request));
+		assertEquals("<sip:bob@biloxi.example.com>", generated.getHeader("P-Asserted-Identity"));
+		assertEquals("text/plain;level=1", generated.getHeader("Accept"));
+	}
+	
+	private static int count(Iterator<?> it)
+	{
+		int count = 0;
+		while (it.hasNext())
+		{
+			it.next();
+			count++;
+		}
+		return count;
+	}
+	
+	private static String generate(SipRequest request)
+	{
+		ByteArrayBuffer buffer = new ByteArrayBuffer(4096);
+		new SipGenerator().generate(buffer, request);
+		return buffer.toString();
+	}
+	
 	@Test
 	public void testMergeContact() throws Exception
 	{ 
@@ -81,4 +188,21 @@ public class B2bHelperTest
 		}
 		catch (IllegalArgumentException e) {}
 	}
+	
+	/**
+	 * Same header changes as done by the UAC session on the outgoing leg.
+	 */
+	static String leg(SipRequest request, Address from, Address to)
+	{
+		SipFields fields = request.getFields();
+		fields.remove(SipHeaders.RECORD_ROUTE_BUFFER);
+		fields.remove(SipHeaders.VIA_BUFFER);
+		fields.remove(SipHeaders.CONTACT_BUFFER);
+		fields.setAddress(SipHeaders.FROM_BUFFER, from);
+		fields.setAddress(SipHeaders.TO_BUFFER, to);
+		fields.setString(SipHeaders.CALL_ID_BUFFER, "b2b@cipango.org");
+		fields.setString(SipHeaders.CSEQ_BUFFER, "1 MESSAGE");
+		fields.setString(SipHeaders.MAX_FORWARDS_BUFFER, "70");
+		return generate(request);
+	}
 }
@@ -12,14 +12,28 @@
 // limitations under the License.
 // ========================================================================
 package org.cipango.server;
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
 import static junit.framework.Assert.assertTrue;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.sip.SipServletMessage;
+
+import org.cipango.server.bio.UdpConnector;
+import org.cipango.sip.SipParser;
 import org.cipango.sip.SipURIImpl;
+import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.junit.Before;
 import org.junit.Test;
@@ -98,6 +112,151 @@ public class ConnectionManagerTest
 		_connectorManager.stop();
 	}
 	
+	@Test
+	public void testIsLocalUriWithExternalPort() throws Exception
+	{
+		TestConnector connector = new TestConnector("intern.cipango.org", "[2000::1]", 5060);
+		connector.setExternalHost("[2000:0:0::2]");
+		connector.setExternalPort(5080);
+		_connectorManager.addConnector(connector);
+		assertFalse(_connectorManager.isLocalUri(new SipURIImpl("sip:[2000::2]:5080;lr")));
+		_connectorManager.start();
+		
+		assertTrue(_connectorManager.isLocalUri(new SipURIImpl("sip:[2000::2]:5080;lr")));
+		assertTrue(_connectorManager.isLocalUri(new SipURIImpl("sip:[2000::2]:5060;lr")));
+		assertTrue(_connectorManager.isLocalUri(new SipURIImpl("sip:[2000::2];lr")));
+		assertTrue(_connectorManager.isLocalUri(new SipURIImpl("sip:[2000::1]:5080;lr")));
+		assertFalse(_connectorManager.isLocalUri(new SipURIImpl("sip:[2000::2]:5070;lr")));
+		assertFalse(_connectorManager.isLocalUri(new SipURIImpl("sip:[2000::3]:5080;lr")));
+		assertFalse(_connectorManager.isLocalUri(new SipURIImpl("sip:[2000:::2]:5080;lr")));
+		
+		_connectorManager.stop();
+	}
+	
+	@Test
+	public void testLoopback() throws Exception
+	{
+		final BlockingQueue<SipMessage> received = new LinkedBlockingQueue<SipMessage>();
+		_connectorManager = new ConnectorManager()
+		{
+			@Override
+			public void handle(SipServletMessage message)
+			{
+				received.add((SipMessage) message);
+			}
+		};
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.start();
+		Server server = new Server();
+		server.setSipThreadPool(threadPool);
+		_connectorManager.setServer(server);
+		
+		TestConnector connector = new TestConnector("cipango.org", "192.168.1.1", 5060);
+		_connectorManager.addConnector(connector);
+		_connectorManager.start();
+		
+		InetAddress address = InetAddress.getByName("192.168.1.1");
+		assertTrue(_connectorManager.isLocal(connector, address, 5060));
+		assertFalse(_connectorManager.isLocal(connector, address, 5070));
+		assertFalse(_connectorManager.isLocal(connector, InetAddress.getByName("192.168.1.2"), 5060));
+		
+		SipRequest request = newMessage();
+		SipConnection connection = _connectorManager.getConnection(request, 0, address, 5060);
+		assertTrue(connection instanceof LoopbackConnection);
+		assertEquals(connection, _connectorManager.send(request, connection));
+		
+		SipRequest loopback = (SipRequest) received.poll(5, TimeUnit.SECONDS);
+		assertNotSame(request, loopback);
+		assertEquals(connection, loopback.getConnection());
+		assertEquals("MESSAGE", loopback.getMethod());
+		assertEquals(request.getRequestURI(), loopback.getRequestURI());
+		assertEquals("1@cipango.org", loopback.getCallId());
+		assertEquals("hello", new String(loopback.getRawContent()));
+		
+		loopback.removeTopRoute();
+		loopback.getTopVia().setReceived("192.168.1.2");
+		assertEquals("<sip:cipango.org:5060;lr>", request.getTopRoute().toString());
+		assertEquals(null, request.getTopVia().getReceived());
+		
+		_connectorManager.stop();
+		threadPool.stop();
+	}
+	
+	@Test
+	public void testIsLocalWildcard() throws Exception
+	{
+		TestConnector connector = new TestConnector("cipango.org", "0.0.0.0", 5060);
+		_connectorManager.addConnector(connector);
+		_connectorManager.updateLocalAddresses();
+		
+		assertTrue(_connectorManager.isLocal(connector, InetAddress.getByName("127.0.0.1"), 5060));
+		assertFalse(_connectorManager.isLocal(connector, InetAddress.getByName("192.0.2.1"), 5060));
+		
+		Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+		while (interfaces.hasMoreElements())
+		{
+			Enumeration<InetAddress> addresses = interfaces.nextElement().getInetAddresses();
+			while (addresses.hasMoreElements())
+			{
+				InetAddress address = addresses.nextElement();
+				assertTrue(address.toString(), _connectorManager.isLocal(connector, address, 5060));
+				assertFalse(_connectorManager.isLocal(connector, address, 5070));
+			}
+		}
+	}
+	
+	private SipRequest newMessage() throws Exception
+	{
+		String msg = "MESSAGE sip:alice@cipango.org SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 192.168.1.1:5060;branch=z9hG4bK1\r\n"
+			+ "Route: <sip:cipango.org:5060;lr>\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "To: <sip:alice@cipango.org>\r\n"
+			+ "From: <sip:bob@cipango.org>;tag=1\r\n"
+			+ "Call-ID: 1@cipango.org\r\n"
+			+ "CSeq: 1 MESSAGE\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "Content-Length: 5\r\n"
+			+ "\r\n"
+			+ "hello";
+		UdpConnector.EventHandler handler = new UdpConnector.EventHandler();
+		new SipParser(new ByteArrayBuffer(msg.getBytes()), handler).parse();
+		return (SipRequest) handler.getMessage();
+	}
+	
+	@Test
+	public void testLoopbackQueued() throws Exception
+	{
+		final List<SipMessage> queued = new ArrayList<SipMessage>();
+		_connectorManager.setIngressQueue(new IngressQueue()
+		{
+			@Override
+			public void add(SipMessage message, SipHandler handler)
+			{
+				queued.add(message);
+			}
+		});
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.start();
+		Server server = new Server();
+		server.setSipThreadPool(threadPool);
+		_connectorManager.setServer(server);
+		_connectorManager.addConnector(new TestConnector("cipango.org", "192.168.1.1", 5060));
+		_connectorManager.start();
+		
+		SipRequest request = newMessage();
+		SipConnection connection = _connectorManager.getConnection(request, 0, InetAddress.getByName("192.168.1.1"), 5060);
+		assertTrue(connection instanceof LoopbackConnection);
+		_connectorManager.send(request, connection);
+		
+		assertEquals(1, queued.size());
+		assertNotSame(request, queued.get(0));
+		assertEquals(connection, queued.get(0).getConnection());
+		
+		_connectorManager.stop();
+		threadPool.stop();
+	}
+	
 	class TestConnector extends AbstractSipConnector
 	{
 		private InetAddress _addr;
@@ -1,7 +1,13 @@
 package org.cipango.server;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cipango.util.HexString;
 import org.junit.Test;
 
 public class IDTest
@@ -9,19 +15,59 @@ public class IDTest
 	@Test
 	public void testCallId()
 	{
-		String[] cids = 
-		{ 
+		String[] cids =
+		{
 		  "f81d4fae-7dec-11d0-a765-00a0c91e6bf6@foo.bar.com",
-		  "*%@localhost"
+		  "*%@localhost",
+		  "a%b@c",
+		  "user@",
+		  "nohost"
 		};
-		
+
 		for (int i = 0; i < cids.length; i++)
-		{	
+		{
 			String callId = ID.newCallId(cids[i]);
 			String callId2 = ID.newCallId(callId);
-			
+
 			assertEquals(cids[i], ID.getCallSessionId(callId));
 			assertEquals(cids[i], ID.getCallSessionId(callId2));
+			assertFalse(callId.equals(callId2));
+			assertEquals(callId.length(), callId2.length());
+		}
+		assertEquals("a@b", ID.getCallSessionId("a@b"));
+	}
+
+	@Test
+	public void testNewID()
+	{
+		Set<String> ids = new HashSet<String>();
+		for (int i = 0; i < 1000; i++)
+		{
+			String id = ID.newID(4);
+			assertEquals(8, id.length());
+			HexString.fromHexString(id);
+			assertTrue(ids.add(id));
+		}
+		assertEquals(40, ID.newID(20).length());
+		assertTrue(ID.newBranch().startsWith("z9hG4bK"));
+
+		int cseq = ID.newCSeq();
+		assertTrue(cseq >= 0 && cseq < ID.MAX_CSEQ);
+	}
+
+	@Test
+	public void testSecure()
+	{
+		assertFalse(ID.isSecure());
+		try
+		{
+			ID.setSecure(true);
+			assertEquals(8, ID.newTag().length());
+			assertFalse(ID.newTag().equals(ID.newTag()));
+		}
+		finally
+		{
+			ID.setSecure(false);
 		}
 	}
 }
@@ -0,0 +1,414 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.sip.SipServletMessage;
+
+import org.cipango.server.bio.UdpConnector;
+import org.cipango.sip.SipParams;
+import org.cipango.sip.SipParser;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IngressQueueTest
+{
+	private static final String INVITE =
+		"INVITE sip:bob@cipango.org SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.2:5070;branch=z9hG4bK776asdhds\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "To: <sip:bob@cipango.org>\r\n"
+		+ "From: <sip:alice@cipango.org>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@10.0.0.2\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Content-Length: 0\r\n"
+		+ "\r\n";
+
+	private static final String BYE = INVITE.replaceAll("INVITE", "BYE")
+		.replace("To: <sip:bob@cipango.org>", "To: <sip:bob@cipango.org>;tag=1");
+
+	private static final String REINVITE = INVITE
+		.replace("To: <sip:bob@cipango.org>", "To: <sip:bob@cipango.org>;tag=1");
+
+	private static final String RESPONSE = "SIP/2.0 200 OK\r\n"
+		+ "Via: SIP/2.0/UDP 192.168.1.1:5060;branch=z9hG4bK1234\r\n"
+		+ "To: <sip:bob@cipango.org>;tag=1\r\n"
+		+ "From: <sip:alice@cipango.org>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@10.0.0.2\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Content-Length: 0\r\n"
+		+ "\r\n";
+
+	private Server _server;
+	private TestThreadPool _threadPool = new TestThreadPool();
+	private TestConnector _connector;
+	private IngressQueue _queue;
+	private List<SipMessage> _handled = new ArrayList<SipMessage>();
+	private List<SipResponse> _sent = new ArrayList<SipResponse>();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_server = new Server();
+		_server.setSipThreadPool(_threadPool);
+		_connector = new TestConnector();
+		_server.getConnectorManager().setIngressQueue(new IngressQueue());
+		_server.getConnectorManager().addConnector(_connector);
+		_server.getConnectorManager().start();
+		_connector.setHandler(new SipHandler()
+		{
+			public void handle(SipServletMessage message) throws IOException, ServletException
+			{
+				_handled.add((SipMessage) message);
+			}
+
+			public void setServer(org.eclipse.jetty.server.Server server)
+			{
+			}
+
+			public org.eclipse.jetty.server.Server getServer()
+			{
+				return _server;
+			}
+		});
+		_queue = _server.getConnectorManager().getIngressQueue();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_server.getConnectorManager().stop();
+	}
+
+	private SipMessage receive(String message) throws Exception
+	{
+		UdpConnector.EventHandler handler = new UdpConnector.EventHandler();
+		new SipParser(new ByteArrayBuffer(message.getBytes()), handler).parse();
+		SipMessage msg = handler.getMessage();
+		msg.setConnection(new TestConnection(InetAddress.getByName("10.0.0.2"), 5070));
+		_connector.process(msg);
+		return msg;
+	}
+
+	@Test
+	public void testPriority() throws Exception
+	{
+		SipMessage invite = receive(INVITE);
+		SipMessage reinvite = receive(REINVITE);
+		SipMessage bye = receive(BYE);
+		SipMessage response = receive(RESPONSE);
+		assertEquals(4, _queue.getQueued());
+
+		_threadPool.runAll();
+		assertEquals(0, _queue.getQueued());
+		assertEquals(4, _handled.size());
+		assertTrue(bye == _handled.get(0));
+		assertTrue(response == _handled.get(1));
+		assertTrue(reinvite == _handled.get(2));
+		assertTrue(invite == _handled.get(3));
+	}
+
+	@Test
+	public void testOverload() throws Exception
+	{
+		_queue.setTargetDelay(10);
+		_queue.setInterval(200);
+
+		for (int i = 0; i < 3; i++)
+			receive(INVITE.replace("CSeq: 314159", "CSeq: " + i));
+		Thread.sleep(30);
+		_threadPool.runOne();
+		assertFalse(_queue.isOverloaded());
+		assertEquals(1, _handled.size());
+
+		// Delay above target for a whole interval: late requests are rejected
+		Thread.sleep(250);
+		_threadPool.runOne();
+		assertTrue(_queue.isOverloaded());
+		assertEquals(1, _handled.size());
+		assertEquals(2, _sent.size());
+
+		// New initial requests are rejected at once without any state
+		receive(INVITE);
+		assertEquals(3, _sent.size());
+		SipResponse response = _sent.get(2);
+		assertEquals(503, response.getStatus());
+		assertEquals("5", response.getHeader("Retry-After"));
+		assertNotNull(response.to().getParameter(SipParams.TAG));
+
+		// Established calls are still served
+		SipMessage bye = receive(BYE);
+		_threadPool.runOne();
+		assertTrue(bye == _handled.get(1));
+
+		assertEquals(3, _queue.getRejected());
+
+		// Initial requests are admitted again after an interval
+		Thread.sleep(250);
+		assertFalse(_queue.isOverloaded());
+		receive(INVITE);
+		_threadPool.runAll();
+		assertEquals(3, _handled.size());
+	}
+
+	@Test
+	public void testFull() throws Exception
+	{
+		_queue.setMaxQueued(2);
+		receive(INVITE);
+		receive(INVITE.replace("CSeq: 314159", "CSeq: 1"));
+		SipMessage bye = receive(BYE);
+		assertEquals(1, _sent.size());
+		assertEquals(1, _sent.get(0).getCSeq().getNumber());
+
+		receive(BYE.replace("CSeq: 314159", "CSeq: 2"));
+		receive(BYE.replace("CSeq: 314159", "CSeq: 3"));
+		assertEquals(3, _sent.size());
+		assertEquals(3, _sent.get(2).getCSeq().getNumber());
+		receive(RESPONSE);
+		assertEquals(3, _sent.size());
+		assertEquals(1, _queue.getDropped());
+
+		_threadPool.runAll();
+		assertEquals(2, _handled.size());
+		assertTrue(bye == _handled.get(0));
+	}
+
+	@Test
+	public void testAdmission() throws Exception
+	{
+		final int[] admitted = { 0 };
+		_server.getConnectorManager().stop();
+		_server.getConnectorManager().setAdmissionController(new AdmissionController()
+		{
+			@Override
+			public boolean admit()
+			{
+				admitted[0]++;
+				return super.admit();
+			}
+		});
+		_server.getConnectorManager().start();
+		_queue.setMaxQueued(1);
+
+		receive(INVITE);
+		assertEquals(1, admitted[0]);
+
+		// Requests rejected by the queue do not take admission tokens
+		receive(INVITE.replace("CSeq: 314159", "CSeq: 1"));
+		assertEquals(1, _sent.size());
+		assertEquals(1, admitted[0]);
+		_threadPool.runAll();
+
+		_queue.setMaxQueued(IngressQueue.DEFAULT_MAX_QUEUED);
+		_queue.setTargetDelay(10);
+		_queue.setInterval(200);
+		for (int i = 2; i < 5; i++)
+			receive(INVITE.replace("CSeq: 314159", "CSeq: " + i));
+		assertEquals(4, admitted[0]);
+		Thread.sleep(30);
+		_threadPool.runOne();
+		Thread.sleep(250);
+		_threadPool.runOne();
+		assertTrue(_queue.isOverloaded());
+		receive(INVITE);
+		assertEquals(4, admitted[0]);
+	}
+
+	@Test
+	public void testCancel() throws Exception
+	{
+		receive(INVITE);
+		receive(INVITE.replaceAll("INVITE", "CANCEL"));
+		assertEquals(0, _queue.getQueued());
+		assertEquals(2, _sent.size());
+		assertEquals(487, _sent.get(0).getStatus());
+		assertEquals(200, _sent.get(1).getStatus());
+		assertEquals("CANCEL", _sent.get(1).getMethod());
+
+		_threadPool.runAll();
+		assertTrue(_handled.isEmpty());
+	}
+
+	class TestThreadPool implements ThreadPool
+	{
+		private List<Runnable> _tasks = new ArrayList<Runnable>();
+
+		public boolean dispatch(Runnable job)
+		{
+			_tasks.add(job);
+			return true;
+		}
+
+		public void runOne()
+		{
+			_tasks.remove(0).run();
+		}
+
+		public void runAll()
+		{
+			while (!_tasks.isEmpty())
+				runOne();
+		}
+
+		public void join() throws InterruptedException
+		{
+		}
+
+		public int getThreads()
+		{
+			return 1;
+		}
+
+		public int getIdleThreads()
+		{
+			return 0;
+		}
+
+		public boolean isLowOnThreads()
+		{
+			return false;
+		}
+	}
+
+	class TestConnection implements SipConnection
+	{
+		private InetAddress _address;
+		private int _port;
+
+		public TestConnection(InetAddress address, int port)
+		{
+			_address = address;
+			_port = port;
+		}
+
+		public SipConnector getConnector()
+		{
+			return _connector;
+		}
+
+		public InetAddress getLocalAddress()
+		{
+			return _connector.getAddr();
+		}
+
+		public int getLocalPort()
+		{
+			return _connector.getPort();
+		}
+
+		public InetAddress getRemoteAddress()
+		{
+			return _address;
+		}
+
+		public int getRemotePort()
+		{
+			return _port;
+		}
+
+		public void write(Buffer buffer) throws IOException
+		{
+			UdpConnector.EventHandler handler = new UdpConnector.EventHandler();
+			new SipParser(new ByteArrayBuffer(buffer.asArray()), handler).parse();
+			_sent.add((SipResponse) handler.getMessage());
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+	}
+
+	class TestConnector extends AbstractSipConnector
+	{
+		private InetAddress _addr;
+
+		public TestConnector() throws IOException
+		{
+			_addr = InetAddress.getByName("192.168.1.1");
+			setHost("192.168.1.1");
+			setPort(5060);
+			setAcceptors(0);
+		}
+
+		public void open() throws IOException
+		{
+		}
+
+		public void close() throws IOException
+		{
+		}
+
+		public InetAddress getAddr()
+		{
+			return _addr;
+		}
+
+		public int getDefaultPort()
+		{
+			return 5060;
+		}
+
+		public int getTransportOrdinal()
+		{
+			return SipConnectors.UDP_ORDINAL;
+		}
+
+		public boolean isReliable()
+		{
+			return false;
+		}
+
+		public boolean isSecure()
+		{
+			return false;
+		}
+
+		@Override
+		public void accept(int acceptorID) throws IOException, InterruptedException
+		{
+		}
+
+		public SipConnection getConnection(InetAddress address, int port)
+		{
+			return new TestConnection(address, port);
+		}
+
+		public Object getConnection()
+		{
+			return null;
+		}
+
+		public int getLocalPort()
+		{
+			return getPort();
+		}
+	}
+}
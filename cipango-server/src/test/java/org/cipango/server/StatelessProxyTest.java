@@ -0,0 +1,288 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cipango.server.bio.UdpConnector;
+import org.cipango.sip.SipParser;
+import org.cipango.sip.SipURIImpl;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatelessProxyTest
+{
+	private static final String INVITE =
+		"INVITE sip:bob@cipango.org SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.2:5070;branch=z9hG4bK776asdhds\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "To: <sip:bob@cipango.org>\r\n"
+		+ "From: <sip:alice@cipango.org>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@10.0.0.2\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Content-Length: 0\r\n"
+		+ "\r\n";
+
+	private Server _server;
+	private List<Sent> _sent = new ArrayList<Sent>();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_server = new Server();
+		_server.setSipThreadPool(new QueuedThreadPool());
+		_server.getConnectorManager().addConnector(new TestConnector());
+		_server.getConnectorManager().start();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_server.getConnectorManager().stop();
+	}
+
+	private SipMessage parse(String message) throws Exception
+	{
+		UdpConnector.EventHandler handler = new UdpConnector.EventHandler();
+		new SipParser(new ByteArrayBuffer(message.getBytes()), handler).parse();
+		return handler.getMessage();
+	}
+
+	@Test
+	public void testBranch() throws Exception
+	{
+		StatelessProxy proxy = _server.getStatelessProxy();
+
+		SipRequest invite = (SipRequest) parse(INVITE);
+		SipRequest cancel = (SipRequest) parse(INVITE.replaceAll("INVITE", "CANCEL"));
+		SipRequest other = (SipRequest) parse(INVITE.replace("sip:bob@cipango.org SIP", "sip:carol@cipango.org SIP"));
+
+		String branch = proxy.getBranch(invite);
+		assertTrue(branch.startsWith(StatelessProxy.BRANCH_PREFIX));
+		assertEquals(branch, proxy.getBranch((SipRequest) parse(INVITE)));
+		assertEquals(branch, proxy.getBranch(cancel));
+		assertFalse(branch.equals(proxy.getBranch(other)));
+
+		// Not RFC 3261 branch: ACK to non-2xx response has a To tag
+		String invite2543 = INVITE.replace(";branch=z9hG4bK776asdhds", "");
+		SipRequest ack = (SipRequest) parse(invite2543.replaceAll("INVITE", "ACK")
+				.replace("To: <sip:bob@cipango.org>", "To: <sip:bob@cipango.org>;tag=2"));
+		assertEquals(proxy.getBranch((SipRequest) parse(invite2543)), proxy.getBranch(ack));
+	}
+
+	@Test
+	public void testForward() throws Exception
+	{
+		StatelessProxy proxy = _server.getStatelessProxy();
+		SipRequest invite = (SipRequest) parse(INVITE);
+		String branch = proxy.getBranch(invite);
+
+		proxy.forward(invite, new SipURIImpl("sip:bob@10.0.0.1:5080"));
+
+		assertEquals(1, _sent.size());
+		Sent sent = _sent.get(0);
+		assertEquals("10.0.0.1", sent.address.getHostAddress());
+		assertEquals(5080, sent.port);
+
+		SipRequest request = (SipRequest) parse(sent.message);
+		assertEquals("sip:bob@10.0.0.1:5080", request.getRequestURI().toString());
+		assertEquals(69, request.getMaxForwards());
+		assertEquals(branch, request.getTopVia().getBranch());
+		assertEquals("192.168.1.1", request.getTopVia().getHost());
+	}
+
+	@Test
+	public void testTooManyHops() throws Exception
+	{
+		SipRequest invite = (SipRequest) parse(INVITE.replace("Max-Forwards: 70", "Max-Forwards: 0"));
+		invite.setConnection(new TestConnection(InetAddress.getByName("10.0.0.2"), 5070));
+		_server.getStatelessProxy().forward(invite, invite.getRequestURI());
+
+		assertEquals(1, _sent.size());
+		SipResponse response = (SipResponse) parse(_sent.get(0).message);
+		assertEquals(483, response.getStatus());
+	}
+
+	@Test
+	public void testForwardResponse() throws Exception
+	{
+		StatelessProxy proxy = _server.getStatelessProxy();
+		String response = "SIP/2.0 180 Ringing\r\n"
+			+ "Via: SIP/2.0/UDP 192.168.1.1:5060;branch=" + StatelessProxy.BRANCH_PREFIX + "1234\r\n"
+			+ "Via: SIP/2.0/UDP 10.0.0.2:5070;branch=z9hG4bK776asdhds;received=10.0.0.3\r\n"
+			+ "To: <sip:bob@cipango.org>;tag=1\r\n"
+			+ "From: <sip:alice@cipango.org>;tag=1928301774\r\n"
+			+ "Call-ID: a84b4c76e66710@10.0.0.2\r\n"
+			+ "CSeq: 314159 INVITE\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+
+		assertFalse(proxy.isStateless((SipResponse) parse(response.replace(StatelessProxy.BRANCH_PREFIX, "z9hG4bK"))));
+		// Branch prefix in a Via that is not ours
+		assertFalse(proxy.isStateless((SipResponse) parse(response.replace("192.168.1.1:5060", "10.0.0.9:5060"))));
+		assertFalse(proxy.isStateless((SipResponse) parse(response.replace("192.168.1.1:5060", "192.168.1.1:5070"))));
+
+		SipResponse ringing = (SipResponse) parse(response);
+		assertTrue(proxy.isStateless(ringing));
+		proxy.forwardResponse(ringing);
+
+		assertEquals(1, _sent.size());
+		Sent sent = _sent.get(0);
+		assertEquals("10.0.0.3", sent.address.getHostAddress());
+		assertEquals(5070, sent.port);
+		SipResponse forwarded = (SipResponse) parse(sent.message);
+		assertEquals("z9hG4bK776asdhds", forwarded.getTopVia().getBranch());
+
+		// No more Via
+		_sent.clear();
+		proxy.forwardResponse((SipResponse) parse(sent.message));
+		assertTrue(_sent.isEmpty());
+	}
+
+	static class Sent
+	{
+		InetAddress address;
+		int port;
+		String message;
+	}
+
+	class TestConnection implements SipConnection
+	{
+		private InetAddress _address;
+		private int _port;
+
+		public TestConnection(InetAddress address, int port)
+		{
+			_address = address;
+			_port = port;
+		}
+
+		public SipConnector getConnector()
+		{
+			return _server.getConnectorManager().getDefaultConnector();
+		}
+
+		public InetAddress getLocalAddress()
+		{
+			return getConnector().getAddr();
+		}
+
+		public int getLocalPort()
+		{
+			return getConnector().getPort();
+		}
+
+		public InetAddress getRemoteAddress()
+		{
+			return _address;
+		}
+
+		public int getRemotePort()
+		{
+			return _port;
+		}
+
+		public void write(Buffer buffer) throws IOException
+		{
+			Sent sent = new Sent();
+			sent.address = _address;
+			sent.port = _port;
+			sent.message = buffer.toString();
+			_sent.add(sent);
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+	}
+
+	class TestConnector extends AbstractSipConnector
+	{
+		private InetAddress _addr;
+
+		public TestConnector() throws IOException
+		{
+			_addr = InetAddress.getByName("192.168.1.1");
+			setHost("192.168.1.1");
+			setPort(5060);
+			setAcceptors(0);
+		}
+
+		public void open() throws IOException
+		{
+		}
+
+		public void close() throws IOException
+		{
+		}
+
+		public InetAddress getAddr()
+		{
+			return _addr;
+		}
+
+		public int getDefaultPort()
+		{
+			return 5060;
+		}
+
+		public int getTransportOrdinal()
+		{
+			return SipConnectors.UDP_ORDINAL;
+		}
+
+		public boolean isReliable()
+		{
+			return false;
+		}
+
+		public boolean isSecure()
+		{
+			return false;
+		}
+
+		@Override
+		public void accept(int acceptorID) throws IOException, InterruptedException
+		{
+		}
+
+		public SipConnection getConnection(InetAddress address, int port)
+		{
+			return new TestConnection(address, port);
+		}
+
+		public Object getConnection()
+		{
+			return null;
+		}
+
+		public int getLocalPort()
+		{
+			return getPort();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TrafficShaperTest
+{
+	private static final byte[] INVITE = ("INVITE sip:bob@cipango.org SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 10.0.0.2:5070;branch=z9hG4bK776asdhds\r\n"
+			+ "\r\n").getBytes();
+
+	private static final byte[] INFO = ("INFO sip:bob@cipango.org SIP/2.0\r\n"
+			+ "\r\n").getBytes();
+
+	private static final byte[] RESPONSE = "SIP/2.0 200 OK\r\n\r\n".getBytes();
+
+	private TrafficShaper _shaper = new TrafficShaper();
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_shaper.stop();
+	}
+
+	@Test
+	public void testSources() throws Exception
+	{
+		_shaper.setAddressRate(1);
+		_shaper.setAddressBurst(10);
+		_shaper.setEndpointRate(1);
+		_shaper.setEndpointBurst(5);
+		_shaper.setTrustedAddresses(new String[] { "10.0.0.9" });
+		_shaper.start();
+
+		InetAddress flooder = InetAddress.getByName("10.0.0.1");
+		for (int i = 0; i < 5; i++)
+			assertTrue(_shaper.accept(flooder, 5060, INVITE, 0, INVITE.length));
+		assertFalse(_shaper.accept(flooder, 5060, INVITE, 0, INVITE.length));
+
+		// Other ports of the same address until the address rate is reached
+		for (int i = 0; i < 5; i++)
+			assertTrue(_shaper.accept(flooder, 5061 + i, "INVITE"));
+		assertFalse(_shaper.accept(flooder, 5070, "INVITE"));
+
+		assertTrue(_shaper.accept(InetAddress.getByName("10.0.0.2"), 5060, INVITE, 0, INVITE.length));
+		for (int i = 0; i < 100; i++)
+			assertTrue(_shaper.accept(InetAddress.getByName("10.0.0.9"), 5060, INVITE, 0, INVITE.length));
+
+		assertEquals(2, _shaper.getDroppedBySource());
+		assertEquals(0, _shaper.getDroppedByMethod());
+	}
+
+	@Test
+	public void testInDialogNotLimitedBySource() throws Exception
+	{
+		byte[] bye = "BYE sip:bob@cipango.org SIP/2.0\r\n\r\n".getBytes();
+		_shaper.setAddressRate(1);
+		_shaper.setAddressBurst(1);
+		_shaper.start();
+
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		assertTrue(_shaper.accept(address, 5060, INVITE, 0, INVITE.length));
+		assertFalse(_shaper.accept(address, 5060, INVITE, 0, INVITE.length));
+		assertFalse(_shaper.accept(address, 5060, "INFO"));
+		assertFalse(_shaper.accept(address, 5060));
+
+		for (int i = 0; i < 10; i++)
+		{
+			assertTrue(_shaper.accept(address, 5060, RESPONSE, 0, RESPONSE.length));
+			assertTrue(_shaper.accept(address, 5060, bye, 0, bye.length));
+			assertTrue(_shaper.accept(address, 5060, (String) null));
+			assertTrue(_shaper.accept(address, 5060, "ACK"));
+			assertTrue(_shaper.accept(address, 5060, "CANCEL"));
+		}
+		assertEquals(3, _shaper.getDroppedBySource());
+	}
+
+	@Test
+	public void testMethods() throws Exception
+	{
+		_shaper.setMethodRate("INVITE", 1, 2);
+		_shaper.setMethodRate("INFO", 1, 1);
+		_shaper.start();
+
+		InetAddress address = InetAddress.getByName("10.0.0.1");
+		assertTrue(_shaper.accept(address, 5060, INVITE, 0, INVITE.length));
+		assertTrue(_shaper.accept(address, 5060, "INVITE"));
+		assertFalse(_shaper.accept(address, 5060, INVITE, 0, INVITE.length));
+		assertFalse(_shaper.accept(address, 5060, "INVITE"));
+
+		assertTrue(_shaper.accept(address, 5060, INFO, 0, INFO.length));
+		assertFalse(_shaper.accept(address, 5060, INFO, 0, INFO.length));
+
+		// Responses and other methods are not limited
+		for (int i = 0; i < 10; i++)
+		{
+			assertTrue(_shaper.accept(address, 5060, RESPONSE, 0, RESPONSE.length));
+			assertTrue(_shaper.accept(address, 5060, "BYE"));
+		}
+		assertEquals(3, _shaper.getDroppedByMethod());
+
+		_shaper.setMethodRate("INVITE", 0, 0);
+		assertTrue(_shaper.accept(address, 5060, "INVITE"));
+		assertEquals(1, _shaper.getMethodRates().length);
+	}
+
+	@Test
+	public void testTopOffenders() throws Exception
+	{
+		_shaper.setAddressRate(1);
+		_shaper.setAddressBurst(1);
+		_shaper.start();
+
+		for (int i = 0; i < 100; i++)
+		{
+			for (int j = 0; j <= i % 3; j++)
+				_shaper.accept(InetAddress.getByName("10.0.1." + j), 5060, "INVITE");
+			// Single drops from many sources do not hide the top offenders
+			_shaper.accept(InetAddress.getByName("10.0.2." + i), 5060, "INVITE");
+			_shaper.accept(InetAddress.getByName("10.0.2." + i), 5060, "INVITE");
+		}
+
+		String[] offenders = _shaper.getTopOffenders();
+		assertEquals(TrafficShaper.TOP_OFFENDERS, offenders.length);
+		assertTrue(offenders[0], offenders[0].startsWith("10.0.1.0: "));
+		assertTrue(offenders[1], offenders[1].startsWith("10.0.1.1: "));
+		assertTrue(offenders[2], offenders[2].startsWith("10.0.1.2: "));
+
+		_shaper.statsReset();
+		assertEquals(0, _shaper.getTopOffenders().length);
+		assertEquals(0, _shaper.getDroppedBySource());
+	}
+}
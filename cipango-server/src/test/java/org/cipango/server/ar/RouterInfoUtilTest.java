@@ -64,6 +64,26 @@ public class RouterInfoUtilTest
 		Assert.assertEquals(orig.getStateInfo(), actual.getStateInfo());
 	}
 
+	@Test
+	public void testEncodeTwice() throws Exception
+	{
+		String[] routes = new String[] { "sip:as1.cipango.voip" };
+		SipApplicationRouterInfo routerInfo = new SipApplicationRouterInfo("kaleo", 
+				SipApplicationRoutingRegion.ORIGINATING_REGION, "sip:alice@cipango.voip", routes, 
+				SipRouteModifier.ROUTE, 2);
+		
+		SipURI uri1 = new SipURIImpl(null, "localhost", 5060);
+		RouterInfoUtil.encode(uri1, routerInfo);
+		routes[0] = "sip:as2.cipango.voip";
+		SipURI uri2 = new SipURIImpl(null, "localhost", 5060);
+		RouterInfoUtil.encode(uri2, routerInfo);
+		
+		Assert.assertFalse(uri1.toString().equals(uri2.toString()));
+		testRouterInfo(routerInfo);
+		Assert.assertEquals("sip:as2.cipango.voip", 
+				RouterInfoUtil.decode(new SipURIImpl(uri2.toString())).getRoutes()[0]);
+	}
+
 	@Test
 	public void testDecodeNull() throws Exception
 	{
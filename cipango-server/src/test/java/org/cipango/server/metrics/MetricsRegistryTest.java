@@ -0,0 +1,173 @@
+package org.cipango.server.metrics;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import org.cipango.server.Server;
+import org.cipango.server.metrics.MetricsRegistry.Snapshot;
+import org.cipango.server.session.SessionManager;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MetricsRegistryTest
+{
+	private MetricsRegistry _registry;
+
+	@Before
+	public void setUp()
+	{
+		_registry = new MetricsRegistry();
+		_registry.setSnapshotInterval(0);
+	}
+
+	@Test
+	public void testRegister()
+	{
+		Counter counter = _registry.counter("b_total", "B");
+		assertSame(counter, _registry.counter("b_total", "B"));
+		Gauge gauge = _registry.gauge("a", "A");
+		_registry.counter("c_total", null);
+
+		Metric[] metrics = _registry.getMetrics();
+		assertEquals(3, metrics.length);
+		assertEquals("a", metrics[0].getName());
+		assertEquals("b_total", metrics[1].getName());
+		assertEquals("c_total", metrics[2].getName());
+		assertSame(gauge, _registry.getMetric("a"));
+
+		try
+		{
+			_registry.gauge("b_total", "B");
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+
+		_registry.unregister("b_total");
+		assertEquals(2, _registry.getMetrics().length);
+		assertEquals(null, _registry.getMetric("b_total"));
+
+		_registry.unregister(new Gauge("a", "A"));
+		assertSame(gauge, _registry.getMetric("a"));
+		_registry.unregister(gauge);
+		assertNull(_registry.getMetric("a"));
+	}
+
+	@Test
+	public void testServers() throws Exception
+	{
+		Server server1 = new Server();
+		Server server2 = new Server();
+
+		Metric retransmissions = server1.getMetricsRegistry().getMetric("sip_retransmissions_total");
+		assertNotNull(retransmissions);
+		assertNotSame(retransmissions, server2.getMetricsRegistry().getMetric("sip_retransmissions_total"));
+		assertNull(MetricsRegistry.getDefault().getMetric("sip_retransmissions_total"));
+
+		((Counter) retransmissions).increment();
+		server2.getTransactionManager().statsReset();
+		assertEquals(1, server1.getTransactionManager().getRetransmissions());
+		assertEquals(0, server2.getTransactionManager().getRetransmissions());
+
+		SessionManager sessionManager = new SessionManager();
+		server1.setSessionManager(sessionManager);
+		sessionManager.start();
+		try
+		{
+			assertNotNull(server1.getMetricsRegistry().getMetric("sip_call_sessions"));
+			assertNull(server2.getMetricsRegistry().getMetric("sip_call_sessions"));
+		}
+		finally
+		{
+			sessionManager.stop();
+		}
+		assertNull(server1.getMetricsRegistry().getMetric("sip_call_sessions"));
+	}
+
+	@Test
+	public void testSnapshot()
+	{
+		Counter counter = _registry.counter("messages_total", "Messages");
+		Gauge gauge = _registry.gauge("calls", "Calls");
+
+		counter.add(5);
+		gauge.increment();
+		gauge.increment();
+		gauge.decrement();
+
+		Snapshot snapshot = _registry.getSnapshot();
+		assertEquals(5, snapshot.getValue("messages_total", -1));
+		assertEquals(1, snapshot.getValue("calls", -1));
+		assertEquals(-1, snapshot.getValue("unknown", -1));
+
+		counter.increment();
+		assertEquals(5, snapshot.getValue("messages_total", -1));
+		assertEquals(6, _registry.getSnapshot().getValue("messages_total", -1));
+
+		String text = new String(snapshot.getText());
+		assertTrue(text.contains("# TYPE messages_total counter\n"));
+		assertTrue(text.contains("# HELP calls Calls\n"));
+		assertTrue(text.contains("\nmessages_total 5\n"));
+		assertTrue(text.indexOf("calls 1") < text.indexOf("messages_total 5"));
+	}
+
+	@Test
+	public void testSnapshotInterval()
+	{
+		_registry.setSnapshotInterval(60000);
+		Counter counter = _registry.counter("messages_total", "Messages");
+		Snapshot snapshot = _registry.getSnapshot();
+		counter.increment();
+		assertSame(snapshot, _registry.getSnapshot());
+
+		_registry.counter("other_total", "Other");
+		assertNotSame(snapshot, _registry.getSnapshot());
+	}
+
+	@Test
+	public void testThreshold()
+	{
+		Gauge gauge = _registry.gauge("calls", "Calls");
+		final int[] events = new int[2];
+		Threshold threshold = new Threshold(3, 1, new Threshold.Listener()
+		{
+			public void thresholdRaised(Gauge g, long value)
+			{
+				events[0]++;
+			}
+
+			public void thresholdCleared(Gauge g, long value)
+			{
+				events[1]++;
+			}
+		});
+		gauge.addThreshold(threshold);
+
+		gauge.increment();
+		gauge.increment();
+		assertEquals(0, events[0]);
+		gauge.increment();
+		assertEquals(1, events[0]);
+		assertTrue(threshold.isRaised());
+
+		gauge.decrement();
+		gauge.increment();
+		gauge.increment();
+		assertEquals(1, events[0]);
+
+		gauge.set(1);
+		assertEquals(1, events[1]);
+		gauge.set(5);
+		assertEquals(2, events[0]);
+
+		gauge.removeThreshold(threshold);
+		gauge.set(0);
+		assertEquals(1, events[1]);
+	}
+}
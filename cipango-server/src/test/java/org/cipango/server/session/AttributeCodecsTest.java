@@ -0,0 +1,263 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.cipango.server.session.AppSession.EncodedAttribute;
+import org.cipango.sip.NameAddr;
+import org.cipango.sip.SipURIImpl;
+import org.cipango.sip.TelURLImpl;
+import org.junit.After;
+import org.junit.Test;
+
+public class AttributeCodecsTest
+{
+	private AttributeCodecs _codecs = AttributeCodecs.getDefault();
+
+	@After
+	public void tearDown()
+	{
+		_codecs.unregister(0);
+	}
+
+	private Object roundTrip(Object value) throws IOException
+	{
+		return _codecs.decode(_codecs.encode(value), getClass().getClassLoader());
+	}
+
+	@Test
+	public void testBuiltins() throws Exception
+	{
+		Object[] values = { null, "value", "\u00e9t\u00e9", 3, 4L, true, (short) 5, (byte) 6, 'c', 1.5f, 2.5d,
+				new NameAddr("\"Alice\" <sip:alice@cipango.org>;tag=1234"),
+				new SipURIImpl("sip:bob@cipango.org;transport=tcp"),
+				new TelURLImpl("tel:+33123456789") };
+		for (Object value : values)
+		{
+			Object decoded = roundTrip(value);
+			assertEquals(value == null ? null : value.toString(), decoded == null ? null : decoded.toString());
+			if (value != null)
+				assertSame(value.getClass(), decoded.getClass());
+		}
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) roundTrip(new byte[] { 1, 2, 3 })));
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 30000; i++)
+			sb.append("\u00e9");
+		assertEquals(sb.toString(), roundTrip(sb.toString()));
+	}
+
+	@Test
+	public void testCollections() throws Exception
+	{
+		Map<String, Object> map = new HashMap<String, Object>();
+		List<Object> list = new ArrayList<Object>();
+		list.add("a");
+		list.add(null);
+		list.add(new LinkedHashSet<Integer>(Arrays.asList(3, 1, 2)));
+		map.put("list", list);
+		map.put("count", 4);
+
+		assertEquals(map, roundTrip(map));
+		assertEquals(Arrays.asList(3, 1, 2), new ArrayList<Object>((LinkedHashSet<?>) ((List<?>) ((Map<?, ?>) roundTrip(map)).get("list")).get(2)));
+
+		assertTrue(_codecs.canEncode(map));
+		list.add(new Object());
+		assertFalse(_codecs.canEncode(map));
+		assertNull(_codecs.encode(map));
+	}
+
+	@Test
+	public void testSerializable() throws Exception
+	{
+		Point point = new Point(1, 2);
+		assertEquals(point, roundTrip(point));
+		assertTrue(_codecs.encode(point).length > 20);
+	}
+
+	@Test
+	public void testApplicationCodec() throws Exception
+	{
+		PointCodec codec = new PointCodec();
+		_codecs.register(0, Point.class, codec);
+
+		byte[] b = _codecs.encode(new Point(1, 2));
+		assertEquals(9, b.length);
+		assertEquals(new Point(1, 2), _codecs.decode(b, null));
+		assertEquals(1, codec._encoded);
+
+		try
+		{
+			_codecs.register(0, String.class, new AttributeCodec<String>()
+			{
+				public void encode(String value, DataOutputStream out) { }
+				public String decode(DataInputStream in) { return null; }
+			});
+			assertTrue(false);
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+
+	@Test
+	public void testDirtyTracking() throws Exception
+	{
+		PointCodec codec = new PointCodec();
+		_codecs.register(0, Point.class, codec);
+
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("a", new Point(1, 2));
+		attributes.put("b", "value");
+		attributes.put("c", new Object());
+		attributes.put("d", "removed");
+
+		Map<String, EncodedAttribute> encoded = AppSession.writeAttributes(new DataOutputStream(new ByteArrayOutputStream()), attributes, null);
+		assertEquals(1, codec._encoded);
+		assertEquals(2, encoded.size());
+		byte[] bytes = encoded.get("b")._bytes;
+
+		// Unchanged immutable attributes are not encoded again, mutable ones may have been modified in place
+		((Point) attributes.get("a"))._x = 7;
+		attributes.remove("d");
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		encoded = AppSession.writeAttributes(new DataOutputStream(bout), attributes, encoded);
+		assertEquals(2, codec._encoded);
+		assertEquals(1, encoded.size());
+		assertSame(bytes, encoded.get("b")._bytes);
+
+		Map<String, EncodedAttribute> restored = new HashMap<String, EncodedAttribute>();
+		attributes = AppSession.readAttributes(new DataInputStream(new ByteArrayInputStream(bout.toByteArray())), null, restored);
+		assertEquals(2, attributes.size());
+		assertEquals(new Point(7, 2), attributes.get("a"));
+		assertEquals("value", attributes.get("b"));
+		assertEquals(1, restored.size());
+
+		// Restored immutable attributes are not encoded again
+		((Point) attributes.get("a"))._y = 8;
+		bout = new ByteArrayOutputStream();
+		AppSession.writeAttributes(new DataOutputStream(bout), attributes, restored);
+		assertEquals(3, codec._encoded);
+		assertSame(attributes.get("b"), restored.get("b")._value);
+
+		attributes = AppSession.readAttributes(new DataInputStream(new ByteArrayInputStream(bout.toByteArray())), null, new HashMap<String, EncodedAttribute>());
+		assertEquals(new Point(7, 8), attributes.get("a"));
+	}
+
+	static class Point implements java.io.Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		int _x;
+		int _y;
+
+		Point(int x, int y)
+		{
+			_x = x;
+			_y = y;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof Point && ((Point) o)._x == _x && ((Point) o)._y == _y;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return _x * 31 + _y;
+		}
+	}
+
+	static class PointCodec implements AttributeCodec<Point>
+	{
+		int _encoded;
+
+		public void encode(Point value, DataOutputStream out) throws IOException
+		{
+			_encoded++;
+			out.writeInt(value._x);
+			out.writeInt(value._y);
+		}
+
+		public Point decode(DataInputStream in) throws IOException
+		{
+			return new Point(in.readInt(), in.readInt());
+		}
+	}
+
+	private static byte[] serialize(Object o) throws IOException
+	{
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bout);
+		out.writeObject(o);
+		out.close();
+		return bout.toByteArray();
+	}
+
+	/**
+	 * Compares the size and speed of the codecs with Java serialization on typical attributes.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int nb = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		AttributeCodecs codecs = AttributeCodecs.getDefault();
+
+		Map<String, Object> attribute = new HashMap<String, Object>();
+		attribute.put("caller", new NameAddr("\"Alice\" <sip:alice@cipango.org>;tag=1234"));
+		attribute.put("callee", new SipURIImpl("sip:bob@cipango.org"));
+		attribute.put("state", "ringing");
+		attribute.put("count", 3);
+		attribute.put("start", System.currentTimeMillis());
+
+		System.out.println("codecs: " + codecs.encode(attribute).length + " bytes, serialization: "
+				+ serialize(attribute).length + " bytes");
+
+		for (int round = 0; round < 3; round++)
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < nb; i++)
+				codecs.decode(codecs.encode(attribute), null);
+			long codec = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < nb; i++)
+				new ObjectInputStream(new ByteArrayInputStream(serialize(attribute))).readObject();
+			long serialization = System.nanoTime() - start;
+
+			System.out.println("codecs: " + codec / nb + " ns, serialization: " + serialization / nb + " ns");
+		}
+	}
+}
@@ -0,0 +1,234 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.sip.UAMode;
+
+import org.cipango.server.session.SessionManager.CSession;
+import org.cipango.server.session.SessionManager.SessionScope;
+import org.cipango.sip.NameAddr;
+import org.cipango.sipapp.SipAppContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionJournalTest
+{
+	private File _dir;
+	private SessionJournal _journal;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_dir = File.createTempFile("journal", "");
+		_dir.delete();
+		_dir.mkdir();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		if (_journal != null)
+			_journal.close();
+		File[] files = _dir.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+			files[i].delete();
+		_dir.delete();
+	}
+
+	private Map<String, byte[]> open(long segmentSize) throws Exception
+	{
+		if (_journal != null)
+			_journal.close();
+		_journal = new SessionJournal(_dir);
+		_journal.setSegmentSize(segmentSize);
+		_journal.setCompactionThreshold(3);
+		_journal.setSync(false);
+		return _journal.open();
+	}
+
+	@Test
+	public void testRecover() throws Exception
+	{
+		assertTrue(open(1024).isEmpty());
+		_journal.put("a", "a1".getBytes());
+		_journal.put("b", "b1".getBytes());
+		_journal.put("c", "c1".getBytes());
+		_journal.remove("a");
+		_journal.put("b", "b2".getBytes());
+
+		Map<String, byte[]> states = open(1024);
+		assertEquals(2, states.size());
+		assertNull(states.get("a"));
+		assertEquals("b2", new String(states.get("b")));
+		assertEquals("c1", new String(states.get("c")));
+	}
+
+	@Test
+	public void testTornRecord() throws Exception
+	{
+		open(1024);
+		_journal.put("a", "a1".getBytes());
+		_journal.put("b", "b1".getBytes());
+		_journal.close();
+
+		// Truncated record written during a crash
+		long last = _journal.getSegments().get(_journal.getSegments().size() - 1);
+		FileOutputStream out = new FileOutputStream(new File(_dir, "journal-" + last + ".log"), true);
+		out.write(new byte[] { 0, 0, 0, 20, 1, 2, 3, 4, 1, 0 });
+		out.close();
+		_journal = null;
+
+		Map<String, byte[]> states = open(1024);
+		assertEquals(2, states.size());
+		assertEquals("b1", new String(states.get("b")));
+	}
+
+	@Test
+	public void testCompaction() throws Exception
+	{
+		open(256);
+		Map<String, String> expected = new HashMap<String, String>();
+		for (int i = 0; i < 1000; i++)
+		{
+			String id = "call-" + (i % 20);
+			if (i % 7 == 0)
+			{
+				_journal.remove(id);
+				expected.remove(id);
+			}
+			else
+			{
+				_journal.put(id, ("state-" + i).getBytes());
+				expected.put(id, "state-" + i);
+			}
+			if (i % 10 == 0)
+				_journal.flush();
+		}
+		_journal.flush();
+
+		long end = System.currentTimeMillis() + 5000;
+		while ((_journal.getSegments().size() > 4 || _journal.isCompacting()) && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertTrue(_journal.getSegments().toString(), _journal.getSegments().size() <= 4);
+
+		Map<String, byte[]> states = open(256);
+		assertEquals(expected.size(), states.size());
+		for (Map.Entry<String, String> entry : expected.entrySet())
+			assertEquals(entry.getValue(), new String(states.get(entry.getKey())));
+	}
+
+	@Test
+	public void testLargeRecords() throws Exception
+	{
+		open(1024 * 1024);
+		byte[] large = new byte[200 * 1024];
+		for (int i = 0; i < large.length; i++)
+			large[i] = (byte) i;
+		for (int i = 0; i < 100; i++)
+			_journal.put("call-" + i, ("state-" + i).getBytes());
+		_journal.put("large", large);
+		_journal.put("last", "last".getBytes());
+
+		Map<String, byte[]> states = open(1024 * 1024);
+		assertEquals(102, states.size());
+		assertEquals("state-99", new String(states.get("call-99")));
+		assertTrue(Arrays.equals(large, states.get("large")));
+		assertEquals("last", new String(states.get("last")));
+	}
+
+	private SessionManager newSessionManager(final boolean deployed) throws Exception
+	{
+		final SipAppContext context = new SipAppContext();
+		context.setName("app");
+		SessionManager manager = new SessionManager()
+		{
+			@Override
+			protected SipAppContext getContext(String name)
+			{
+				return deployed && context.getName().equals(name) ? context : null;
+			}
+		};
+		manager.setStoreDir(_dir);
+		manager.start();
+		return manager;
+	}
+
+	@Test
+	public void testRestoreNotDeployed() throws Exception
+	{
+		SessionManager manager = newSessionManager(true);
+		SessionScope scope = manager.openScope("call-1");
+		scope.getCallSession().createAppSession(manager.getContext("app"), "app-1");
+		scope.close();
+		manager.stop();
+
+		// Kept in the journal while the application is not deployed
+		manager = newSessionManager(false);
+		assertEquals(0, manager.getCallSessions());
+		manager.stop();
+
+		manager = newSessionManager(true);
+		assertEquals(1, manager.getCallSessions());
+		assertNotNull(((CSession) manager.get("call-1")).getAppSession("app-1"));
+		manager.stop();
+	}
+
+	@Test
+	public void testSessionState() throws Exception
+	{
+		AppSession appSession = new AppSession(null, "app");
+		Session session = new Session(appSession, "1", "call@cipango.org",
+				new NameAddr("<sip:alice@cipango.org>;tag=1"), new NameAddr("<sip:bob@cipango.org>;tag=2"));
+		session.createUA(UAMode.UAC);
+		session.getUA()._localCSeq = 12;
+		session.getUA()._remoteTarget = new NameAddr("<sip:bob@192.168.1.1:5070>").getURI();
+		session._attributes = new HashMap<String, Object>();
+		session._attributes.put("serializable", "value");
+		session._attributes.put("other", new Object());
+
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		session.save(new DataOutputStream(bout));
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+		Session restored = new Session(appSession, in.readUTF());
+		restored.restore(in);
+
+		assertEquals("1", restored.getId());
+		assertEquals("call@cipango.org", restored.getCallId());
+		assertEquals("<sip:alice@cipango.org>;tag=1", restored.getLocalParty().toString());
+		assertEquals("<sip:bob@cipango.org>;tag=2", restored.getRemoteParty().toString());
+		assertTrue(restored.isUA());
+		assertEquals(12, restored.getUA()._localCSeq);
+		assertEquals("sip:bob@192.168.1.1:5070", restored.getUA()._remoteTarget.toString());
+		assertEquals(1, restored._attributes.size());
+		assertEquals("value", restored._attributes.get("serializable"));
+	}
+}
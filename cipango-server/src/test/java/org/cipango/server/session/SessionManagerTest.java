@@ -0,0 +1,90 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import static junit.framework.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cipango.log.event.EventDispatcher;
+import org.cipango.log.event.Events;
+import org.cipango.server.Server;
+import org.cipango.server.session.SessionManager.SessionScope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionManagerTest
+{
+	private SessionManager _manager1;
+	private SessionManager _manager2;
+	private EventDispatcher _dispatcher;
+	private final List<String> _events = new ArrayList<String>();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_dispatcher = Events.getDispatcher();
+		Events.setDispatcher(new EventDispatcher()
+		{
+			public void dispatch(int eventType, String message)
+			{
+				if (eventType == Events.CALLS_THRESHOLD_READCHED)
+					_events.add(message);
+			}
+		});
+
+		_manager1 = new SessionManager();
+		new Server().setSessionManager(_manager1);
+		_manager1.start();
+		_manager2 = new SessionManager();
+		new Server().setSessionManager(_manager2);
+		_manager2.start();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_manager1.stop();
+		_manager2.stop();
+		Events.setDispatcher(_dispatcher);
+	}
+
+	@Test
+	public void testCallsThreshold() throws Exception
+	{
+		_manager1.setCallsThreshold(2);
+		List<SessionScope> scopes = new ArrayList<SessionScope>();
+		try
+		{
+			for (int i = 0; i < 3; i++)
+				scopes.add(_manager2.openScope("call-" + i));
+			assertEquals(3, _manager2.getCallSessions());
+			assertEquals(0, _events.size());
+
+			scopes.add(_manager1.openScope("call-1"));
+			assertEquals(0, _events.size());
+			scopes.add(_manager1.openScope("call-2"));
+			assertEquals(1, _events.size());
+			assertEquals("Calls threshold reached: 2", _events.get(0));
+		}
+		finally
+		{
+			for (SessionScope scope : scopes)
+				scope.close();
+		}
+	}
+}
@@ -0,0 +1,238 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.servlet.sip.UAMode;
+
+import org.cipango.server.session.SessionManager.CSession;
+import org.cipango.server.session.SessionManager.SessionScope;
+import org.cipango.sip.NameAddr;
+import org.cipango.sipapp.SipAppContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionPassivationTest
+{
+	private SessionManager _manager;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_manager = newSessionManager();
+		_manager.start();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_manager.stop();
+	}
+
+	static SessionManager newSessionManager()
+	{
+		final SipAppContext context = new SipAppContext();
+		context.setName("app");
+		context.setSessionTimeout(3);
+		return new SessionManager()
+		{
+			@Override
+			protected SipAppContext getContext(String name)
+			{
+				return context.getName().equals(name) ? context : null;
+			}
+		};
+	}
+
+	static void createDialog(SessionManager manager, int i, Object attribute) throws Exception
+	{
+		SessionScope scope = manager.openScope("call-" + i);
+		CSession csession = (CSession) scope.getCallSession();
+		AppSession appSession = csession.createAppSession(manager.getContext("app"), "app-" + i);
+		appSession._attributes = new HashMap<String, Object>();
+		appSession._attributes.put("attribute", attribute);
+
+		Session session = new Session(appSession, "session-" + i, "call-" + i + "@cipango.org",
+				new NameAddr("<sip:alice@cipango.org>;tag=" + i), new NameAddr("<sip:bob@cipango.org>;tag=b" + i));
+		session.createUA(UAMode.UAS);
+		session.getUA()._remoteCSeq = i;
+		session.getUA()._remoteTarget = new NameAddr("<sip:bob@192.168.1.1:5070>").getURI();
+		appSession._sessions.add(session);
+		scope.close();
+	}
+
+	@Test
+	public void testPassivation() throws Exception
+	{
+		for (int i = 0; i < 10; i++)
+			createDialog(_manager, i, i);
+		createDialog(_manager, 10, new Object());
+
+		CSession before = (CSession) _manager.get("call-3");
+		assertEquals(10, _manager.passivate(System.currentTimeMillis()));
+		assertEquals(10, _manager.getPassivatedSessions());
+		assertEquals(11, _manager.getCallSessions());
+
+		// Activated on next message
+		SessionScope scope = _manager.openScope("call-3");
+		CSession csession = (CSession) scope.getCallSession();
+		assertNotNull(csession);
+		assertNotSame(before, csession);
+		AppSession appSession = csession.getAppSession("app-3");
+		assertEquals(3, appSession._attributes.get("attribute"));
+		Session session = appSession._sessions.get(0);
+		assertEquals("<sip:alice@cipango.org>;tag=3", session.getLocalParty().toString());
+		assertEquals(3, session.getUA()._remoteCSeq);
+		assertNotNull(appSession._expiryTimer);
+		scope.close();
+		assertEquals(9, _manager.getPassivatedSessions());
+
+		// Scope opened on a passivated call session is redirected to the active one
+		before = (CSession) _manager.get("call-3");
+		_manager.passivate(System.currentTimeMillis());
+		scope = _manager.openScope(before);
+		assertNotSame(before, scope.getCallSession());
+		assertEquals("app-3", ((CSession) scope.getCallSession()).getAppSession("app-3").getAppId());
+		scope.close();
+
+		// Activated before timer expiry
+		_manager.activateExpiring(Long.MAX_VALUE);
+		assertEquals(0, _manager.getPassivatedSessions());
+		assertEquals(11, _manager.getCallSessions());
+		assertEquals(0, _manager.getOffHeapStore().getUsed());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testModifiedInPlace() throws Exception
+	{
+		createDialog(_manager, 1, new ArrayList<String>(Arrays.asList("a")));
+		SessionScope scope = _manager.openScope("call-1");
+		Session session = ((CSession) scope.getCallSession()).getAppSession("app-1")._sessions.get(0);
+		session._attributes = new HashMap<String, Object>();
+		session._attributes.put("attribute", new ArrayList<String>(Arrays.asList("a")));
+		scope.close();
+		assertEquals(1, _manager.passivate(System.currentTimeMillis()));
+
+		// Lists restored on activation are modified without being set again
+		scope = _manager.openScope("call-1");
+		AppSession appSession = ((CSession) scope.getCallSession()).getAppSession("app-1");
+		((List<String>) appSession._attributes.get("attribute")).add("b");
+		((List<String>) appSession._sessions.get(0)._attributes.get("attribute")).add("c");
+		scope.close();
+		assertEquals(1, _manager.passivate(System.currentTimeMillis()));
+
+		scope = _manager.openScope("call-1");
+		appSession = ((CSession) scope.getCallSession()).getAppSession("app-1");
+		assertEquals(Arrays.asList("a", "b"), appSession._attributes.get("attribute"));
+		assertEquals(Arrays.asList("a", "c"), appSession._sessions.get(0)._attributes.get("attribute"));
+		scope.close();
+	}
+
+	@Test
+	public void testConcurrentActivation() throws Exception
+	{
+		for (int i = 0; i < 10; i++)
+			createDialog(_manager, i, i);
+		assertEquals(10, _manager.passivate(System.currentTimeMillis()));
+
+		final CallSession[] activated = new CallSession[8];
+		Thread[] threads = new Thread[activated.length];
+		for (int i = 0; i < threads.length; i++)
+		{
+			final int index = i;
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					activated[index] = _manager.get("call-5");
+				}
+			};
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+
+		for (int i = 0; i < activated.length; i++)
+			assertSame(activated[0], activated[i]);
+		assertNotNull(((CSession) activated[0]).getAppSession("app-5"));
+		assertEquals(9, _manager.getPassivatedSessions());
+		assertEquals(10, _manager.getCallSessions());
+	}
+
+	@Test
+	public void testActivationFailure() throws Exception
+	{
+		final boolean[] deployed = { true };
+		final SipAppContext context = new SipAppContext();
+		context.setName("app");
+		context.setSessionTimeout(3);
+		SessionManager manager = new SessionManager()
+		{
+			@Override
+			protected SipAppContext getContext(String name)
+			{
+				return deployed[0] && context.getName().equals(name) ? context : null;
+			}
+		};
+		manager.start();
+		try
+		{
+			createDialog(manager, 1, 1);
+			assertEquals(1, manager.passivate(System.currentTimeMillis()));
+			long used = manager.getOffHeapStore().getUsed();
+
+			// The state is kept while the application is not deployed
+			deployed[0] = false;
+			assertNull(manager.get("call-1"));
+			assertEquals(1, manager.getPassivatedSessions());
+			assertEquals(0, manager.getCallSessions());
+			assertEquals(used, manager.getOffHeapStore().getUsed());
+
+			// A message for the call does not replace it with an empty call session
+			for (int i = 0; i < 2; i++)
+			{
+				try { manager.openScope("call-1"); fail(); } catch (IllegalStateException e) {}
+				assertEquals(1, manager.getPassivatedSessions());
+				assertEquals(0, manager.getCallSessions());
+				assertEquals(used, manager.getOffHeapStore().getUsed());
+			}
+
+			deployed[0] = true;
+			CSession csession = (CSession) manager.get("call-1");
+			assertNotNull(csession.getAppSession("app-1"));
+			assertEquals(0, manager.getPassivatedSessions());
+			assertEquals(1, manager.getCallSessions());
+			assertEquals(0, manager.getOffHeapStore().getUsed());
+		}
+		finally
+		{
+			manager.stop();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+import org.cipango.server.session.SessionManager.CSession;
+import org.cipango.server.session.SessionManager.SessionScope;
+import org.cipango.util.TimerTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionReplicatorTest
+{
+	private SessionManager _active;
+	private SessionManager _standbyManager;
+	private SessionStandby _standby;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_standbyManager = new SessionManager();
+		_standbyManager.start();
+		_standby = new SessionStandby();
+		_standby.setHost("127.0.0.1");
+		_standby.setPort(0);
+		_standby.setSessionManager(_standbyManager);
+		_standby.start();
+
+		SessionReplicator replicator = new SessionReplicator();
+		replicator.setHost("127.0.0.1");
+		replicator.setPort(_standby.getPort());
+		replicator.setReconnectDelay(50);
+		_active = new SessionManager();
+		_active.setReplicator(replicator);
+		_active.start();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_active.stop();
+		_standby.stop();
+		_standbyManager.stop();
+	}
+
+	private void waitFor(int nbSessions) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 5000;
+		while (_standby.getCallSessions() != nbSessions && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertEquals(nbSessions, _standby.getCallSessions());
+	}
+
+	@Test
+	public void testReplication() throws Exception
+	{
+		TimerTask[] timers = new TimerTask[10];
+		for (int i = 0; i < timers.length; i++)
+		{
+			SessionScope scope = _active.openScope("call-" + i);
+			timers[i] = ((CSession) scope.getCallSession()).schedule(new Runnable() { public void run() { } }, 60000);
+			scope.close();
+		}
+		waitFor(10);
+		assertNotNull(_standby.getState("call-3"));
+
+		// Done call sessions are removed from the standby
+		SessionScope scope = _active.openScope("call-3");
+		((CSession) scope.getCallSession()).cancel(timers[3]);
+		scope.close();
+		waitFor(9);
+		assertNull(_standby.getState("call-3"));
+
+		// A new standby is resynchronized after a reconnection
+		int port = _standby.getPort();
+		_standby.stop();
+		_standby = new SessionStandby();
+		_standby.setHost("127.0.0.1");
+		_standby.setPort(port);
+		_standby.setSessionManager(_standbyManager);
+		_standby.start();
+		waitFor(9);
+
+		assertEquals(9, _standby.takeover());
+		assertEquals(9, _standbyManager.getCallSessionsTotal());
+	}
+}
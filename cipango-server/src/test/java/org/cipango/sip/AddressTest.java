@@ -120,6 +120,30 @@ public class AddressTest
 		assertEquals("<sip:user@192.168.1.1>;param1=\"foo \\\" bar\"",a1.toString());
 	}
 	
+	@Test
+	public void testLazyParam() throws ServletParseException
+	{
+		String s = "\"Alice\" <sip:alice@cipango.org> ; Tag = 1234;q=0.5;lr;tag=5678; foo = \"a;b\"";
+		Address a1 = new NameAddr(s);
+		assertEquals("5678", a1.getParameter("TAG"));
+		assertEquals(0.5f, a1.getQ());
+		assertEquals("", a1.getParameter("lr"));
+		assertEquals("a;b", a1.getParameter("foo"));
+		assertNull(a1.getParameter("expires"));
+		
+		Address a2 = new NameAddr(s);
+		a2.setExpires(60);
+		assertEquals("5678", a2.getParameter("tag"));
+		assertEquals("a;b", a2.getParameter("foo"));
+		assertEquals(60, a2.getExpires());
+		assertEquals(a1, a2);
+		
+		Address clone = (Address) a1.clone();
+		clone.setParameter("tag", "0");
+		assertEquals("5678", a1.getParameter("tag"));
+		assertEquals("0", clone.getParameter("tag"));
+	}
+	
 	@Test (expected = ServletParseException.class)
 	public void testInvalidParam() throws ServletParseException
 	{
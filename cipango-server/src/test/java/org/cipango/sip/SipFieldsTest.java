@@ -237,6 +237,41 @@ public class SipFieldsTest
 		//_fields.removeLast("route");
 	}
 
+	@Test
+	public void testOrder() throws Exception
+	{
+		_fields.addString("Via", "SIP/2.0/UDP host");
+		_fields.addString("X-Foo", "1");
+		_fields.addAddress("From", new NameAddr("<sip:from>"), false);
+		_fields.addString("x-bar", "2");
+		_fields.addAddress("To", new NameAddr("<sip:to>"), false);
+		_fields.addString("Call-ID", "foo");
+		
+		_fields.setString("x-foo", "3");
+		_fields.addAddress("f", new NameAddr("<sip:from2>"), true);
+		_fields.remove("X-BAR");
+		_fields.addString("X-Bar", "4");
+		_fields.removeFirst(SipHeaders.VIA_BUFFER);
+		_fields.addString("v", "SIP/2.0/UDP host2");
+		
+		assertEquals("3", _fields.getString("X-FOO"));
+		assertEquals("<sip:from2>", _fields.getString("From"));
+		assertEquals("foo", _fields.getString("i"));
+		
+		String[] order = { "X-Foo", "From", "To", "Call-ID", "X-Bar", "Via" };
+		assertOrder(order, _fields);
+		assertOrder(order, _fields.clone());
+		assertOrder(order, _fields.share());
+	}
+	
+	private void assertOrder(String[] order, SipFields fields)
+	{
+		Iterator<String> it = fields.getNames();
+		for (String name : order)
+			assertTrue(name, it.next().equalsIgnoreCase(name));
+		assertFalse(it.hasNext());
+	}
+
 	@Test
 	public void testCopy() throws Exception
 	{
@@ -308,4 +343,72 @@ public class SipFieldsTest
 		assertSame(_fields.getString("from"), clone.getString("from"));
 		assertNotSame(_fields.getAddress("from"), clone.getAddress("from"));
 	}
+	
+	@Test
+	public void testShare() throws Exception
+	{
+		_fields.addString("route", "<sip:route1>");
+		_fields.addString("route", "<sip:route2>");
+		_fields.addString("contact", "<sip:contact>");
+		_fields.addString("call-id", "foo");
+		
+		SipFields copy1 = _fields.share();
+		SipFields copy2 = _fields.share();
+		assertSame(copy1.getShared(), copy2.getShared());
+		
+		copy1.getAddress("contact").setParameter("expires", "60");
+		copy1.addAddress("route", new NameAddr("sip:route3"), false);
+		copy2.removeFirst(SipHeaders.ROUTE_BUFFER);
+		copy2.setString("call-id", "bar");
+		
+		assertEquals("<sip:contact>", _fields.getString("contact"));
+		assertEquals("<sip:contact>;expires=60", copy1.getString("contact"));
+		assertEquals("<sip:contact>", copy2.getString("contact"));
+		
+		assertEquals(2, count(_fields.getValues("route")));
+		assertEquals(3, count(copy1.getValues("route")));
+		assertEquals(1, count(copy2.getValues("route")));
+		assertEquals("<sip:route2>", copy2.getString("route"));
+		
+		assertEquals("foo", copy1.getString("call-id"));
+		assertEquals("bar", copy2.getString("call-id"));
+		
+		// Original modified after sharing
+		_fields.getAddress("route").setParameter("lr", "");
+		assertEquals("<sip:route1>", copy1.getString("route"));
+		
+		// New copy do not share modified values
+		SipFields copy3 = _fields.share();
+		assertNotSame(copy1.getShared(), copy3.getShared());
+		assertEquals("<sip:route1>;lr", copy3.getString("route"));
+		
+		assertEquals(null, _fields.clone().getShared());
+	}
+	
+	@Test
+	public void testShareParsed() throws Exception
+	{
+		_fields.addString("p-asserted-identity", "<sip:bob@cipango.org>");
+		_fields.addString("accept", "text/plain");
+		Address pai = _fields.getAddress("p-asserted-identity");
+		
+		SipFields copy = _fields.share();
+		assertFalse(copy.getShared().isShared(copy.getField(SipHeaders.getName("p-asserted-identity"))));
+		assertTrue(copy.getShared().isShared(copy.getField(SipHeaders.getName("accept"))));
+		
+		pai.setParameter("x", "leak");
+		assertEquals("<sip:bob@cipango.org>;x=leak", _fields.getString("p-asserted-identity"));
+		assertEquals("<sip:bob@cipango.org>", copy.getString("p-asserted-identity"));
+	}
+	
+	private int count(Iterator<?> it)
+	{
+		int count = 0;
+		while (it.hasNext())
+		{
+			it.next();
+			count++;
+		}
+		return count;
+	}
 }
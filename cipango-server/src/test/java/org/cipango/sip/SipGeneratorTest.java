@@ -0,0 +1,196 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.sip;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import javax.servlet.sip.Address;
+import javax.servlet.sip.SipServletMessage.HeaderForm;
+
+import org.cipango.server.SipMessage;
+import org.cipango.server.SipRequest;
+import org.cipango.server.bio.UdpConnector;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.StringUtil;
+import org.junit.Test;
+
+public class SipGeneratorTest
+{
+	private static final String INVITE =
+		"INVITE sip:bob@biloxi.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bK776asdhds, SIP/2.0/UDP 10.0.0.1;branch=z9hG4bK1\r\n"
+		+ "Via: SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "Route: <sip:p1.atlanta.com;lr>\r\n"
+		+ "Route: <sip:p2.atlanta.com;lr>\r\n"
+		+ "To: Bob <sip:bob@biloxi.com>\r\n"
+		+ "From: Alice <sip:alice@atlanta.com>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.atlanta.com\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Contact: <sip:alice@pc33.atlanta.com>\r\n"
+		+ "Content-Length: 0\r\n"
+		+ "\r\n";
+
+	private SipMessage parse(String message) throws Exception
+	{
+		UdpConnector.EventHandler handler = new UdpConnector.EventHandler();
+		SipParser parser = new SipParser(new ByteArrayBuffer(message.getBytes(StringUtil.__UTF8)), handler);
+		parser.parse();
+		return handler.getMessage();
+	}
+
+	private String generate(SipMessage message) throws Exception
+	{
+		Buffer buffer = new ByteArrayBuffer(2048);
+		new SipGenerator().generate(buffer, message);
+		return buffer.toString();
+	}
+
+	@Test
+	public void testPristine() throws Exception
+	{
+		SipMessage message = parse(INVITE);
+		assertTrue(message.getFields().isPristine("Via"));
+		assertTrue(message.getFields().isPristine("Call-ID"));
+		assertEquals(INVITE, generate(message));
+
+		assertEquals("a84b4c76e66710@pc33.atlanta.com", message.getCallId());
+		assertTrue(message.getFields().isPristine("Call-ID"));
+		assertEquals(INVITE, generate(message));
+	}
+
+	@Test
+	public void testProxied() throws Exception
+	{
+		SipRequest request = (SipRequest) parse(INVITE);
+
+		request.pushVia(new Via("SIP/2.0/UDP proxy.biloxi.com;branch=z9hG4bK3"));
+		request.removeTopRoute();
+		request.setMaxForwards(69);
+
+		assertFalse(request.getFields().isPristine("Via"));
+		assertTrue(request.getFields().isPristine("Route"));
+
+		String expected =
+			"INVITE sip:bob@biloxi.com SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP proxy.biloxi.com;branch=z9hG4bK3\r\n"
+			+ "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bK776asdhds, SIP/2.0/UDP 10.0.0.1;branch=z9hG4bK1\r\n"
+			+ "Via: SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"
+			+ "Max-Forwards: 69\r\n"
+			+ "Route: <sip:p2.atlanta.com;lr>\r\n"
+			+ "To: Bob <sip:bob@biloxi.com>\r\n"
+			+ "From: Alice <sip:alice@atlanta.com>;tag=1928301774\r\n"
+			+ "Call-ID: a84b4c76e66710@pc33.atlanta.com\r\n"
+			+ "CSeq: 314159 INVITE\r\n"
+			+ "Contact: <sip:alice@pc33.atlanta.com>\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+		assertEquals(expected, generate(request));
+	}
+
+	@Test
+	public void testResponseVia() throws Exception
+	{
+		SipRequest request = (SipRequest) parse(INVITE);
+		request.getFields().removeFirst(SipHeaders.VIA_BUFFER);
+
+		// Second value of a line can not be copied as is but next line can
+		assertFalse(request.getFields().isPristine("Via"));
+		String generated = generate(request);
+		assertTrue(generated.contains("\r\nVia: SIP/2.0/UDP 10.0.0.1;branch=z9hG4bK1\r\n"
+				+ "Via: SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"));
+		assertFalse(generated.contains("pc33.atlanta.com;branch"));
+	}
+
+	@Test
+	public void testModified() throws Exception
+	{
+		SipMessage message = parse(INVITE);
+		message.getFields().getAddress("Contact").setParameter("expires", "60");
+		assertFalse(message.getFields().isPristine("Contact"));
+
+		String generated = generate(message);
+		assertTrue(generated.contains("\r\nContact: <sip:alice@pc33.atlanta.com>;expires=60\r\n"));
+		assertTrue(generated.contains("\r\nTo: Bob <sip:bob@biloxi.com>\r\n"));
+
+		message.setHeaderForm(HeaderForm.COMPACT);
+		generated = generate(message);
+		assertTrue(generated.contains("\r\ni: a84b4c76e66710@pc33.atlanta.com\r\n"));
+	}
+
+	@Test
+	public void testShared() throws Exception
+	{
+		SipRequest request = (SipRequest) parse(INVITE);
+
+		SipRequest branch1 = (SipRequest) request.cloneShared();
+		SipRequest branch2 = (SipRequest) request.cloneShared();
+
+		branch1.pushVia(new Via("SIP/2.0/UDP proxy.biloxi.com;branch=z9hG4bK3"));
+		branch1.setMaxForwards(69);
+		branch2.pushVia(new Via("SIP/2.0/UDP proxy.biloxi.com;branch=z9hG4bK4"));
+		branch2.setMaxForwards(69);
+		branch2.getFields().getAddress("Contact").setParameter("expires", "60");
+
+		String expected =
+			"INVITE sip:bob@biloxi.com SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP proxy.biloxi.com;branch=z9hG4bK3\r\n"
+			+ "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bK776asdhds, SIP/2.0/UDP 10.0.0.1;branch=z9hG4bK1\r\n"
+			+ "Via: SIP/2.0/UDP 10.0.0.2;branch=z9hG4bK2\r\n"
+			+ "Max-Forwards: 69\r\n"
+			+ "Route: <sip:p1.atlanta.com;lr>\r\n"
+			+ "Route: <sip:p2.atlanta.com;lr>\r\n"
+			+ "To: Bob <sip:bob@biloxi.com>\r\n"
+			+ "From: Alice <sip:alice@atlanta.com>;tag=1928301774\r\n"
+			+ "Call-ID: a84b4c76e66710@pc33.atlanta.com\r\n"
+			+ "CSeq: 314159 INVITE\r\n"
+			+ "Contact: <sip:alice@pc33.atlanta.com>\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+		assertEquals(expected, generate(branch1));
+
+		SipFields.Encoding encoding = branch1.getFields().getShared().getEncoding(HeaderForm.DEFAULT);
+		assertNotNull(encoding);
+
+		// Headers are generated in their order, whether owned or shared
+		String generated = generate(branch2);
+		assertEquals(expected.replace("z9hG4bK3", "z9hG4bK4").replace("<sip:alice@pc33.atlanta.com>", 
+				"<sip:alice@pc33.atlanta.com>;expires=60"), generated);
+		assertSame(encoding, branch2.getFields().getShared().getEncoding(HeaderForm.DEFAULT));
+
+		assertEquals(INVITE, generate(request));
+	}
+
+	@Test
+	public void testSharedParsedBefore() throws Exception
+	{
+		SipRequest request = (SipRequest) parse(INVITE);
+		Address contact = request.getFields().getAddress("Contact");
+
+		SipRequest branch1 = (SipRequest) request.cloneShared();
+		SipRequest branch2 = (SipRequest) request.cloneShared();
+		contact.setParameter("x", "leak");
+		branch2.getFields().getAddress("Contact").setParameter("expires", "60");
+
+		assertTrue(generate(request).contains("\r\nContact: <sip:alice@pc33.atlanta.com>;x=leak\r\n"));
+		assertTrue(generate(branch1).contains("\r\nContact: <sip:alice@pc33.atlanta.com>\r\n"));
+		assertTrue(generate(branch2).contains("\r\nContact: <sip:alice@pc33.atlanta.com>;expires=60\r\n"));
+	}
+}
@@ -15,6 +15,8 @@
 package org.cipango.sip;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.fail;
 
 import javax.servlet.sip.Address;
@@ -22,6 +24,10 @@ import javax.servlet.sip.SipURI;
 
 import org.cipango.server.SipRequest;
 import org.cipango.util.ReadOnlyAddress;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.BufferCache.CachedBuffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.StringUtil;
 import org.junit.Test;
 
 public class SipHeaderTest
@@ -58,4 +64,69 @@ public class SipHeaderTest
 		request.setAddressHeader("bar", new ReadOnlyAddress(address));
 		assertEquals("foo", ((SipURI) request.getAddressHeader("Bar").getURI()).getHost()); 
 	}
+	
+	@Test
+	public void testLookup() throws Exception
+	{
+		for (int i = 1; i < SipHeaders.__types.length; i++)
+		{
+			CachedBuffer buffer = SipHeaders.CACHE.get(i);
+			String name = buffer.toString();
+			assertSame(name, buffer, SipHeaders.lookup(name));
+			assertSame(name, buffer, SipHeaders.lookup(name.toUpperCase()));
+			byte[] b = StringUtil.getBytes("X" + name.toLowerCase() + "X");
+			assertSame(name, buffer, SipHeaders.lookup(b, 1, b.length - 2));
+			assertEquals(i, SipHeaders.getOrdinal(new ByteArrayBuffer(name)));
+		}
+		
+		assertSame(SipHeaders.FROM_BUFFER, SipHeaders.lookup("f"));
+		assertSame(SipHeaders.VIA_BUFFER, SipHeaders.lookup("V"));
+		assertSame(SipHeaders.CONTENT_LENGTH_BUFFER, SipHeaders.getName(new ByteArrayBuffer("l")));
+		
+		String[] unknown = { "", "g", "Contact-Foo", "Tol", "Fro", "X-Via", "Call-ID ", "CSeq2" };
+		for (String name : unknown)
+		{
+			assertNull(name, SipHeaders.lookup(name));
+			assertEquals(name, -1, SipHeaders.getName(name).getOrdinal());
+			Buffer buffer = SipHeaders.getName(new ByteArrayBuffer(name));
+			assertEquals(name, -1, SipHeaders.getOrdinal(buffer));
+			assertEquals(name, buffer.toString());
+		}
+	}
+	
+	/**
+	 * Compares the lookup of header names in the perfect hash table with the {@link SipHeaders#CACHE}.
+	 */
+	public static void main(String[] args)
+	{
+		String[] names = { "Via", "From", "To", "Call-ID", "CSeq", "Contact", "Route", "Record-Route", 
+				"Max-Forwards", "Content-Length", "via", "call-id", "X-Foo" };
+		Buffer[] buffers = new Buffer[names.length];
+		for (int i = 0; i < names.length; i++)
+			buffers[i] = new ByteArrayBuffer(names[i]);
+		
+		int nb = 2000000;
+		for (int run = 0; run < 5; run++)
+		{
+			long start = System.nanoTime();
+			int ordinals = 0;
+			for (int i = 0; i < nb; i++)
+			{
+				ordinals += SipHeaders.CACHE.getOrdinal(SipHeaders.CACHE.lookup(names[i % names.length]));
+				ordinals += SipHeaders.CACHE.getOrdinal(buffers[i % buffers.length]);
+			}
+			long cache = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for (int i = 0; i < nb; i++)
+			{
+				ordinals -= SipHeaders.getName(names[i % names.length]).getOrdinal();
+				ordinals -= SipHeaders.getOrdinal(buffers[i % buffers.length]);
+			}
+			long table = System.nanoTime() - start;
+			
+			System.out.println("cache: " + (cache / nb) + " ns, perfect hash: " + (table / nb) 
+					+ " ns (" + ordinals + ")");
+		}
+	}
 }
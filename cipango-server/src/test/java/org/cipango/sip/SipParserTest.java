@@ -95,6 +95,28 @@ public class SipParserTest
         assertEquals(3, _h);
 	}
 
+	@Test
+	public void testHeaderNames() throws Exception
+	{
+		ByteArrayBuffer buffer = new ByteArrayBuffer(
+				("INVITE sip:foo.org SIP/2.0\015\012"
+					+ "Contact-Foo: value1\015\012"
+					+ "Tol: value2\015\012"
+					+ "contact: value3\015\012"
+					+ "f: value4\015\012"
+					+ "g: value5\015\012"
+					+ "\015\012").getBytes(StringUtil.__UTF8));	
+		SipParser parser = new SipParser(buffer, new Handler());
+		parser.parse();
+		
+		assertEquals("Contact-Foo", _hdr[0]);
+		assertEquals("Tol", _hdr[1]);
+		assertEquals("Contact", _hdr[2]);
+		assertEquals("From", _hdr[3]);
+		assertEquals("g", _hdr[4]);
+		assertEquals("value5", _val[4]);
+	}
+
 	@Test
 	public void testopid()
 	{
@@ -16,6 +16,7 @@ package org.cipango.sip;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
@@ -233,6 +234,61 @@ public class SipURITest
 
 	}
 
+	@Test
+	public void testLazy() throws Exception
+	{
+		String s = "sip:Alice@EXAMPLE.com;transport=TCP;lr;maddr=1.2.3.4?Subject=hi";
+		SipURI uri = sipURI(s);
+		assertEquals("TCP", uri.getTransportParam());
+		assertEquals("", uri.getParameter("lr"));
+		assertNull(uri.getParameter("ttl"));
+		assertEquals("hi", uri.getHeader("Subject"));
+		assertTrue(uri.getParameterNames().hasNext());
+		assertEquals(s, uri.toString());
+		assertEquals(sipURI("sip:Alice@example.COM;lr;maddr=1.2.3.4;transport=tcp?Subject=hi"), uri);
+		assertFalse(sipURI("sip:alice@example.com;transport=tcp;lr;maddr=1.2.3.4?Subject=hi").equals(uri));
+		
+		uri.setTransportParam("udp");
+		assertEquals("udp", uri.getTransportParam());
+		assertTrue(uri.getLrParam());
+		assertFalse(s.equals(uri.toString()));
+		assertEquals(uri, sipURI(uri.toString()));
+	}
+
+	@Test
+	public void testHashCode() throws Exception
+	{
+		for (int i = 0; i < __equal.length; i++) 
+		{
+			SipURI uri1 = sipURI(__equal[i][0]);
+			SipURI uri2 = sipURI(__equal[i][1]);
+			assertEquals(__equal[i][0], uri1.hashCode(), uri2.hashCode());
+		}
+		assertEquals(sipURI("sip:a@b;x=1;y=2"), sipURI("sip:a@b;y=2;x=1"));
+		assertEquals(sipURI("sip:a@b;x=1;y=2").hashCode(), sipURI("sip:a@b;y=2;x=1").hashCode());
+		
+		SipURI uri = sipURI("sip:a@b;transport=tcp");
+		int hash = uri.hashCode();
+		uri.setParameter("foo", "bar");
+		assertEquals(hash, uri.hashCode());
+		uri.setTransportParam("TCP");
+		assertEquals(hash, uri.hashCode());
+		assertEquals(hash, sipURI("sip:a@B;Transport=tcp").hashCode());
+	}
+	
+	@Test
+	public void testCanonical() throws Exception
+	{
+		assertEquals("sip:a@b;lr", sipURI("sip:a@b ;lr").toString());
+		assertEquals("sip:a@b;lr", sipURI("sip:a@b;lr=").toString());
+		assertEquals("sip:a@b;lr", sipURI("sip:a@b;LR").toString());
+		assertEquals("sip:a@b:5060", sipURI("sip:a@b:05060").toString());
+		assertEquals("sip:a@b", sipURI("sip:a@b;").toString());
+		
+		String s = "sip:a@b:5060;transport=TCP;lr?Subject=hi";
+		assertSame(s, sipURI(s).toString());
+	}
+	
 	@Test
 	public void testNew() throws Exception
 	{
@@ -0,0 +1,175 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.sipapp;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+
+import javax.servlet.sip.SipServletRequest;
+
+import org.cipango.server.bio.UdpConnector;
+import org.cipango.sip.SipParser;
+import org.cipango.sipapp.rules.AndRule;
+import org.cipango.sipapp.rules.ContainsRule;
+import org.cipango.sipapp.rules.EqualsRule;
+import org.cipango.sipapp.rules.ExistsRule;
+import org.cipango.sipapp.rules.MatchingRule;
+import org.cipango.sipapp.rules.NotRule;
+import org.cipango.sipapp.rules.OrRule;
+import org.cipango.sipapp.rules.SubdomainRule;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.junit.Test;
+
+public class CompiledMappingsTest
+{
+	static SipServletRequest request(String method, String uri, String to) throws Exception
+	{
+		String message = method + " " + uri + " SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 10.0.0.2:5070;branch=z9hG4bK776asdhds\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "To: " + to + "\r\n"
+			+ "From: <sip:alice@cipango.org;foo=bar>;tag=1928301774\r\n"
+			+ "Call-ID: a84b4c76e66710@10.0.0.2\r\n"
+			+ "CSeq: 1 " + method + "\r\n"
+			+ "Content-Length: 0\r\n"
+			+ "\r\n";
+		UdpConnector.EventHandler handler = new UdpConnector.EventHandler();
+		new SipParser(new ByteArrayBuffer(message.getBytes()), handler).parse();
+		return (SipServletRequest) handler.getMessage();
+	}
+
+	static SipServletMapping mapping(String name, MatchingRule rule)
+	{
+		SipServletMapping mapping = new SipServletMapping();
+		mapping.setServletName(name);
+		mapping.setMatchingRule(rule);
+		return mapping;
+	}
+
+	static MatchingRule and(MatchingRule... rules)
+	{
+		AndRule and = new AndRule();
+		for (MatchingRule rule : rules)
+			and.addCriterion(rule);
+		return and;
+	}
+
+	private static MatchingRule or(MatchingRule... rules)
+	{
+		OrRule or = new OrRule();
+		for (MatchingRule rule : rules)
+			or.addCriterion(rule);
+		return or;
+	}
+
+	private static MatchingRule not(MatchingRule rule)
+	{
+		NotRule not = new NotRule();
+		not.setCriterion(rule);
+		return not;
+	}
+
+	static MatchingRule method(String method)
+	{
+		return new EqualsRule("request.method", method, false);
+	}
+
+	private static SipServletMapping[] getMappings()
+	{
+		return new SipServletMapping[] {
+			mapping("invite", and(method("INVITE"), new ContainsRule("request.uri.user", "ALICE", true))),
+			mapping("register", method("REGISTER")),
+			mapping("message", and(or(method("MESSAGE"), method("OPTIONS")),
+					new EqualsRule("request.to.display-name", "bob", true))),
+			mapping("subdomain", and(not(method("BYE")), new SubdomainRule("request.uri.host", "cipango.org"))),
+			mapping("param", new ExistsRule("request.from.uri.param.foo"))
+		};
+	}
+
+	static SipServletMapping interpret(SipServletMapping[] mappings, SipServletRequest request)
+	{
+		for (int i = 0; i < mappings.length; i++)
+		{
+			if (mappings[i].getMatchingRule().matches(request))
+				return mappings[i];
+		}
+		return null;
+	}
+
+	@Test
+	public void testMatch() throws Exception
+	{
+		SipServletMapping[] mappings = getMappings();
+		CompiledMappings compiled = new CompiledMappings(mappings);
+
+		assertSame(mappings[0], compiled.match(request("INVITE", "sip:Alice@example.com", "<sip:bob@cipango.org>")));
+		assertSame(mappings[3], compiled.match(request("INVITE", "sip:bob@sip.cipango.org", "<sip:bob@cipango.org>")));
+		assertSame(mappings[4], compiled.match(request("INVITE", "sip:bob@example.com", "<sip:bob@cipango.org>")));
+		assertSame(mappings[1], compiled.match(request("REGISTER", "sip:cipango.org", "<sip:bob@cipango.org>")));
+		assertSame(mappings[2], compiled.match(request("OPTIONS", "sip:bob@cipango.org", "Bob <sip:bob@cipango.org>")));
+		assertSame(mappings[3], compiled.match(request("MESSAGE", "sip:bob@cipango.org", "Alice <sip:bob@cipango.org>")));
+		assertSame(mappings[4], compiled.match(request("BYE", "sip:bob@cipango.org", "<sip:bob@cipango.org>")));
+		assertSame(mappings[4], compiled.match(request("SUBSCRIBE", "tel:+3312345678", "<sip:bob@cipango.org>")));
+	}
+
+	@Test
+	public void testFirstMatch() throws Exception
+	{
+		SipServletMapping[] mappings = getMappings();
+		CompiledMappings compiled = new CompiledMappings(mappings);
+
+		String[] methods = { "INVITE", "REGISTER", "MESSAGE", "OPTIONS", "BYE", "SUBSCRIBE", "invite" };
+		String[] uris = { "sip:alice@cipango.org", "sip:bob@cipango.org", "sip:bob@cipango.com", "tel:+331234" };
+		String[] tos = { "<sip:bob@cipango.org>", "BOB <sip:bob@cipango.org>" };
+
+		for (String method : methods)
+			for (String uri : uris)
+				for (String to : tos)
+				{
+					SipServletRequest request = request(method, uri, to);
+					assertSame(method + " " + uri + " " + to, interpret(mappings, request), compiled.match(request));
+				}
+	}
+
+	@Test
+	public void testNoMatch() throws Exception
+	{
+		CompiledMappings compiled = new CompiledMappings(new SipServletMapping[] {
+				mapping("invite", method("INVITE")),
+				mapping("never", and(method("INVITE"), method("BYE")))
+		});
+		assertNull(compiled.match(request("BYE", "sip:bob@cipango.org", "<sip:bob@cipango.org>")));
+		assertNull(new CompiledMappings(new SipServletMapping[0]).match(
+				request("BYE", "sip:bob@cipango.org", "<sip:bob@cipango.org>")));
+	}
+
+	@Test
+	public void testSharedExtractions() throws Exception
+	{
+		CompiledMappings compiled = new CompiledMappings(getMappings());
+		// request.method, request.uri, request.uri.user, request.to, request.to.display-name,
+		// request.uri.host, request.from, request.from.uri, request.from.uri.param.foo
+		assertEquals(9, compiled.getExtractions());
+	}
+
+	@Test
+	public void testContainsIgnoreCase() throws Exception
+	{
+		SipServletRequest request = request("INVITE", "sip:alice@cipango.org", "<sip:bob@cipango.org>");
+		assertEquals(true, new ContainsRule("request.uri.user", "LIC", true).matches(request));
+		assertEquals(false, new ContainsRule("request.uri.user", "LIC", false).matches(request));
+	}
+}
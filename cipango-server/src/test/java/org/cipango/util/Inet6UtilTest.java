@@ -0,0 +1,88 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class Inet6UtilTest
+{
+	private static final String[] LITERALS =
+	{
+		"[1fff:0:a88:85a3::ac1f:8001]",
+		"1fff:0:a88:85a3:0:0:ac1f:8001",
+		"::",
+		"::1",
+		"2000::",
+		"[1:2:3:4:5:6:192.168.1.1]",
+		"1:2:3:4:5:6:7:8",
+		"fe80::1%eth0"
+	};
+
+	private static final String[] INVALID =
+	{
+		"1:2:3:4:5:6:7",
+		"1:2:3:4:5:6:7:8:9",
+		"1::2::3",
+		"1:",
+		":1",
+		"[::1",
+		"12345::",
+		"::1.2.3",
+		"::256.1.1.1",
+		"g::"
+	};
+
+	@Test
+	public void testParse() throws Exception
+	{
+		for (String literal : LITERALS)
+		{
+			Inet6Address address = (Inet6Address) InetAddress.getByName(literal.startsWith("[")
+					? literal : "[" + literal + "]");
+			assertEquals(literal, Inet6Util.getHigh(address), Inet6Util.getHigh(literal));
+			assertEquals(literal, Inet6Util.getLow(address), Inet6Util.getLow(literal));
+		}
+
+		for (String literal : INVALID)
+		{
+			try
+			{
+				Inet6Util.getHigh(literal);
+				fail(literal);
+			}
+			catch (IllegalArgumentException e)
+			{
+			}
+		}
+	}
+
+	@Test
+	public void testEquals()
+	{
+		assertTrue(Inet6Util.equals("[1fff:0:a88:85a3::172.31.128.1]", "1fff:0:a88:85a3:0:0:ac1f:8001"));
+		assertTrue(Inet6Util.equals("[2000::1]", "2000:0:0:0:0:0:0:1"));
+		assertFalse(Inet6Util.equals("[2000::1]", "2000:0:0:0:0:0:0:2"));
+		assertFalse(Inet6Util.equals("192.168.1.1", "192.168.1.1"));
+		assertFalse(Inet6Util.equals("[2000::1]", "[2000:::1]"));
+	}
+}
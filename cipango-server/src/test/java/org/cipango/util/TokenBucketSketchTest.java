@@ -0,0 +1,67 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.util;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketSketchTest
+{
+	@Test
+	public void testRate()
+	{
+		TokenBucketSketch sketch = new TokenBucketSketch(3, 1000, 10, 5);
+		assertEquals(3 * 1024 * 16, sketch.getSize());
+
+		long key = TokenBucketSketch.hash(new byte[] { 10, 0, 0, 1 }, 0);
+		long now = 1000;
+		for (int i = 0; i < 5; i++)
+			assertTrue(sketch.tryAcquire(key, now));
+		assertFalse(sketch.tryAcquire(key, now));
+
+		// 10 tokens per second
+		assertFalse(sketch.tryAcquire(key, now + 50));
+		assertTrue(sketch.tryAcquire(key, now + 100));
+		assertFalse(sketch.tryAcquire(key, now + 100));
+
+		// Refill is capped by the burst
+		for (int i = 0; i < 5; i++)
+			assertTrue(sketch.tryAcquire(key, now + 10000));
+		assertFalse(sketch.tryAcquire(key, now + 10000));
+	}
+
+	@Test
+	public void testKeys()
+	{
+		TokenBucketSketch sketch = new TokenBucketSketch(3, 4096, 1, 10);
+		long now = 1000;
+		long flooder = TokenBucketSketch.hash(new byte[] { 10, 0, 0, 1 }, 0);
+		for (int i = 0; i < 100; i++)
+			sketch.tryAcquire(flooder, now);
+
+		// Other keys are not affected by the flooder unless colliding in all rows
+		int allowed = 0;
+		for (int i = 0; i < 1000; i++)
+		{
+			long key = TokenBucketSketch.hash(new byte[] { 10, 0, (byte) (i >> 8), (byte) i, 1 }, 0);
+			if (sketch.tryAcquire(key, now))
+				allowed++;
+		}
+		assertTrue(allowed > 995);
+	}
+}
@@ -0,0 +1,35 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import static org.cipango.server.AdmissionControllerTest.simulate;
+
+import org.junit.Test;
+
+/**
+ * Prints the throughput of a simulated server with and without admission control for increasing
+ * offered loads.
+ */
+public class AdmissionControllerBenchmark
+{
+	@Test
+	public void throughput()
+	{
+		int capacity = 1000;
+		System.out.println("offered\tuncontrolled\tcontrolled");
+		for (int offered = 500; offered <= 5000; offered += 500)
+			System.out.println(offered + "\t" + simulate(capacity, offered, false) + "\t" + simulate(capacity, offered, true));
+	}
+}
@@ -0,0 +1,63 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import static org.cipango.server.B2bHelperTest.MESSAGE;
+import static org.cipango.server.B2bHelperTest.leg;
+
+import javax.servlet.sip.Address;
+
+import org.cipango.sip.NameAddr;
+import org.junit.Test;
+
+/**
+ * Compares the creation and encoding of the outgoing leg of a B2BUA when headers are copied and
+ * when they are shared with the incoming leg.
+ */
+public class B2bHelperBenchmark
+{
+	@Test
+	public void createLeg() throws Exception
+	{
+		SipRequest src = (SipRequest) SipRequestTest.getMessage(MESSAGE);
+		// Headers parsed when the incoming request has been processed
+		src.getTopVia();
+		src.getFrom();
+		src.getTo();
+		src.getAddressHeader("Contact");
+		src.getAddressHeader("P-Asserted-Identity");
+		src.getParameterableHeader("Accept");
+
+		Address from = new NameAddr("<sip:b2b@cipango.org>;tag=1");
+		Address to = new NameAddr("<sip:alice@biloxi.example.com>");
+		int nb = 200000;
+
+		for (int run = 0; run < 10; run++)
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < nb; i++)
+				leg((SipRequest) src.clone(), from, to);
+			long copied = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < nb; i++)
+				leg((SipRequest) src.cloneShared(), from, to);
+			long shared = System.nanoTime() - start;
+
+			System.out.println("Copied: " + (nb * 1000000000L / copied) + " legs/s, shared: "
+					+ (nb * 1000000000L / shared) + " legs/s");
+		}
+	}
+}
@@ -0,0 +1,82 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import java.util.Random;
+
+import org.cipango.util.HexString;
+import org.junit.Test;
+
+/**
+ * Compares tag generation from a shared {@link Random} with {@link ID#newTag()} on several threads.
+ */
+public class IDBenchmark
+{
+	@Test
+	public void newTag() throws Exception
+	{
+		final int nb = 1000000;
+		final Random random = new Random();
+
+		for (int threads = 1; threads <= 8; threads *= 2)
+		{
+			for (int run = 0; run < 3; run++)
+			{
+				long shared = run(threads, new Runnable()
+				{
+					public void run()
+					{
+						for (int i = 0; i < nb; i++)
+							newID(random, 4);
+					}
+				});
+				long perThread = run(threads, new Runnable()
+				{
+					public void run()
+					{
+						for (int i = 0; i < nb; i++)
+							ID.newTag();
+					}
+				});
+				System.out.println(threads + " threads: shared random: " + (shared / nb)
+						+ " ns/ID, per thread: " + (perThread / nb) + " ns/ID");
+			}
+		}
+	}
+
+	private static String newID(Random random, int length)
+	{
+		byte[] b = new byte[length];
+		synchronized (random)
+		{
+			random.nextBytes(b);
+		}
+		return HexString.toHexString(b);
+	}
+
+	private static long run(int nbThreads, Runnable runnable) throws InterruptedException
+	{
+		Thread[] threads = new Thread[nbThreads];
+		for (int i = 0; i < threads.length; i++)
+			threads[i] = new Thread(runnable);
+
+		long start = System.nanoTime();
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		return System.nanoTime() - start;
+	}
+}
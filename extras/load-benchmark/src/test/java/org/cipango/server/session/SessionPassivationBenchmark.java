@@ -0,0 +1,73 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import static org.cipango.server.session.SessionPassivationTest.createDialog;
+import static org.cipango.server.session.SessionPassivationTest.newSessionManager;
+
+import org.cipango.util.OffHeapStore;
+import org.junit.Test;
+
+/**
+ * Reports the heap and off-heap bytes per dialog, before and after passivation. The number of
+ * dialogs is given by the <code>benchmark.dialogs</code> system property.
+ */
+public class SessionPassivationBenchmark
+{
+	@Test
+	public void passivate() throws Exception
+	{
+		int nb = Integer.getInteger("benchmark.dialogs", 100000);
+
+		SessionManager manager = newSessionManager();
+		manager.setOffHeapStore(new OffHeapStore());
+		manager.start();
+
+		long base = usedMemory();
+		for (int i = 0; i < nb; i++)
+			createDialog(manager, i, "attribute-" + i);
+		long active = usedMemory() - base;
+
+		long start = System.nanoTime();
+		int passivated = manager.passivate(System.currentTimeMillis());
+		long passivation = System.nanoTime() - start;
+		long heap = usedMemory() - base;
+		long offHeap = manager.getOffHeapStore().getUsed();
+
+		start = System.nanoTime();
+		for (int i = 0; i < nb; i++)
+			manager.get("call-" + i);
+		long activation = System.nanoTime() - start;
+
+		System.out.println(nb + " dialogs, " + passivated + " passivated");
+		System.out.println("active: " + active / nb + " heap bytes/dialog");
+		System.out.println("passivated: " + heap / nb + " heap bytes/dialog + " + offHeap / nb
+				+ " off-heap bytes/dialog (" + manager.getOffHeapStore().getCapacity() / nb + " allocated)");
+		System.out.println("passivation: " + passivation / nb + " ns/dialog, activation: "
+				+ activation / nb + " ns/dialog");
+		manager.stop();
+	}
+
+	private static long usedMemory() throws InterruptedException
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++)
+		{
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,74 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.sipapp;
+
+import static org.cipango.sipapp.CompiledMappingsTest.and;
+import static org.cipango.sipapp.CompiledMappingsTest.interpret;
+import static org.cipango.sipapp.CompiledMappingsTest.mapping;
+import static org.cipango.sipapp.CompiledMappingsTest.method;
+import static org.cipango.sipapp.CompiledMappingsTest.request;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.sip.SipServletRequest;
+
+import org.cipango.sipapp.rules.ContainsRule;
+import org.cipango.sipapp.rules.EqualsRule;
+import org.cipango.sipapp.rules.SubdomainRule;
+import org.junit.Test;
+
+/**
+ * Compares the servlet selection of {@link CompiledMappings} with the evaluation of the mappings
+ * one after the other, on 21 mappings of which only the last one matches.
+ */
+public class CompiledMappingsBenchmark
+{
+	@Test
+	public void match() throws Exception
+	{
+		List<SipServletMapping> list = new ArrayList<SipServletMapping>();
+		String[] methods = { "MESSAGE", "SUBSCRIBE", "PUBLISH", "REGISTER", "OPTIONS" };
+		for (int i = 0; i < 20; i++)
+		{
+			list.add(mapping("servlet" + i, and(
+					method(methods[i % methods.length]),
+					new ContainsRule("request.uri.user", "USER" + i, true),
+					new SubdomainRule("request.uri.host", "domain" + i + ".org"))));
+		}
+		list.add(mapping("invite", and(method("INVITE"), new EqualsRule("request.to.uri.host", "cipango.org", true))));
+		SipServletMapping[] mappings = list.toArray(new SipServletMapping[list.size()]);
+
+		CompiledMappings compiled = new CompiledMappings(mappings);
+		SipServletRequest request = request("INVITE", "sip:alice@cipango.org", "<sip:bob@Cipango.org>");
+		int nb = 1000000;
+
+		for (int run = 0; run < 3; run++)
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < nb; i++)
+				interpret(mappings, request);
+			long interpreted = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < nb; i++)
+				compiled.match(request);
+			long time = System.nanoTime() - start;
+
+			System.out.println("Interpreted: " + (interpreted / nb) + " ns/request, compiled: "
+					+ (time / nb) + " ns/request");
+		}
+	}
+}
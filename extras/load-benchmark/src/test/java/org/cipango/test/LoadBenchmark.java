@@ -0,0 +1,346 @@
+// ========================================================================
+// Copyright 2012 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.test;
+
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import javax.servlet.sip.SipServlet;
+import javax.servlet.sip.SipURI;
+
+import org.cipango.client.SipClient;
+import org.cipango.client.load.LatencyHistogram;
+import org.cipango.client.load.LoadGenerator;
+import org.cipango.client.load.Scenario;
+import org.cipango.embedded.EmbeddedServer;
+import org.cipango.server.AbstractSipConnector;
+import org.cipango.server.bio.TcpConnector;
+import org.cipango.server.bio.UdpConnector;
+import org.cipango.sip.SipMethods;
+import org.cipango.sip.SipURIImpl;
+import org.cipango.sipapp.SipAppContext;
+import org.junit.Test;
+
+/**
+ * End-to-end throughput benchmark of the load-sipapp servlets.
+ * <p>
+ * Each servlet is deployed alone on an embedded server, driven over loopback by a
+ * {@link LoadGenerator} playing INVITE/200/ACK/BYE calls at increasing rates. The proxy and
+ * B2BUA servlets forward calls to a second generator answering them. Each rate is played for a
+ * fixed duration after a warm-up at the lowest rate, and the ramp stops at the first rate which
+ * is not sustained, that is with failed calls, with calls not completed in time or with a 99th
+ * percentile of call setup latency over the maximum latency.
+ * <p>
+ * For each rate, the report gives the call setup latency percentiles, the bytes allocated and
+ * the GC time per call. The generators run in the same JVM as the server, so that allocation and
+ * GC figures include theirs: they are meant to be compared between builds, not as absolute cost.
+ * Allocation is measured with the HotSpot thread allocation counters if available.
+ * <p>
+ * Parameters are given by system properties, fixed by the <code>benchmark</code> profile:
+ * <ul>
+ * <li><code>benchmark.rates</code>: comma separated rates in calls per second.</li>
+ * <li><code>benchmark.warmup</code> and <code>benchmark.duration</code>: in seconds.</li>
+ * <li><code>benchmark.holdTime</code>: time in ms between ACK and BYE.</li>
+ * <li><code>benchmark.maxLatency</code>: highest sustainable 99th percentile of setup latency in ms.</li>
+ * <li><code>benchmark.minRate</code>: lowest maximum sustainable rate, under which the benchmark fails.</li>
+ * <li><code>benchmark.directory</code>: directory of the reports.</li>
+ * </ul>
+ */
+public class LoadBenchmark
+{
+	private static final String HOST = "127.0.0.1";
+	private static final int SERVER_PORT = 15300;
+	private static final int UAC_PORT = 15301;
+	private static final int UAS_PORT = 15302;
+
+	private static final String HEADER = String.format("%-10s %8s %8s %8s %8s %10s %10s %10s %12s %10s",
+			"Test", "Offered", "Achieved", "Calls", "Failed", "50% ms", "99% ms", "99.9% ms", "Bytes/call", "GC ms/call");
+
+	private String[] _rates = System.getProperty("benchmark.rates", "50,100").split(",");
+	private long _warmup = Long.getLong("benchmark.warmup", 1);
+	private long _duration = Long.getLong("benchmark.duration", 2);
+	private long _holdTime = Long.getLong("benchmark.holdTime", 0);
+	private long _maxLatency = Long.getLong("benchmark.maxLatency", 200);
+	private double _minRate = Double.parseDouble(System.getProperty("benchmark.minRate", "0"));
+	private File _directory = new File(System.getProperty("benchmark.directory", "target/benchmark"));
+
+	@Test
+	public void uasUdp() throws Exception
+	{
+		benchmark("uas", new UasServlet(), "udp");
+	}
+
+	@Test
+	public void uasTcp() throws Exception
+	{
+		benchmark("uas", new UasServlet(), "tcp");
+	}
+
+	@Test
+	public void proxyUdp() throws Exception
+	{
+		benchmark("proxy", new ProxyServlet(), "udp");
+	}
+
+	@Test
+	public void proxyTcp() throws Exception
+	{
+		benchmark("proxy", new ProxyServlet(), "tcp");
+	}
+
+	@Test
+	public void b2bUdp() throws Exception
+	{
+		benchmark("b2b", new B2bServlet(), "udp");
+	}
+
+	@Test
+	public void b2bTcp() throws Exception
+	{
+		benchmark("b2b", new B2bServlet(), "tcp");
+	}
+
+	protected void benchmark(String name, SipServlet servlet, String transport) throws Exception
+	{
+		String test = name + "-" + transport;
+		boolean forward = !(servlet instanceof UasServlet);
+
+		EmbeddedServer server = createServer(servlet, transport);
+		SipClient uacClient = createClient(UAC_PORT, transport);
+		SipClient uasClient = forward ? createClient(UAS_PORT, transport) : null;
+		LoadGenerator uas = null;
+
+		StringBuilder results = new StringBuilder();
+		double maxRate = 0;
+		try
+		{
+			server.start();
+			uacClient.start();
+			if (forward)
+			{
+				uasClient.start();
+				uas = new LoadGenerator(Scenario.answer());
+				uas.addClient(uasClient);
+				uas.start();
+			}
+
+			SipURI serverUri = new SipURIImpl(null, HOST, SERVER_PORT);
+			serverUri.setTransportParam(transport);
+
+			run(uacClient, serverUri, forward, Double.parseDouble(_rates[0]), _warmup);
+
+			for (String r : _rates)
+			{
+				double rate = Double.parseDouble(r.trim());
+				if (uas != null)
+					uas.statsReset();
+
+				Step step = run(uacClient, serverUri, forward, rate, _duration);
+				String line = step.toString(test, rate);
+				if (step._generator.getLastFailure() != null)
+					line += "\n  last failure at " + step._generator.getLastFailure();
+				System.out.println(line);
+				results.append(line).append("\n");
+				step._generator.writeReport(new File(_directory, test + "/" + (long) rate));
+
+				if (!step.isSustained())
+					break;
+				maxRate = rate;
+			}
+		}
+		finally
+		{
+			if (uas != null)
+				uas.stop();
+			uacClient.stop();
+			if (uasClient != null)
+				uasClient.stop();
+			server.stop();
+		}
+
+		results.append(String.format("%s: max sustainable rate %.0f calls/s\n", test, maxRate));
+		write(test, results.toString());
+		assertTrue(test + " sustained " + maxRate + " calls/s", maxRate >= _minRate);
+	}
+
+	protected EmbeddedServer createServer(SipServlet servlet, String transport) throws Exception
+	{
+		EmbeddedServer server = new EmbeddedServer();
+
+		AbstractSipConnector connector = "tcp".equals(transport) ? new TcpConnector() : new UdpConnector();
+		connector.setHost(HOST);
+		connector.setPort(SERVER_PORT);
+		// so that the whole dialog uses the transport
+		connector.setTransportParam(true);
+		server.addConnector(connector);
+
+		SipAppContext sipapp = server.addSipServlet("load", servlet);
+		sipapp.setSessionTimeout(4);
+		sipapp.setProxyTimeout(180);
+
+		server.getApplicationRouter().setRouteOutgoingRequests(false);
+		return server;
+	}
+
+	protected SipClient createClient(int port, String transport)
+	{
+		SipClient client = new SipClient(HOST, port);
+		if ("tcp".equals(transport))
+		{
+			TcpConnector connector = new TcpConnector();
+			connector.setHost(HOST);
+			connector.setPort(port);
+			connector.setTransportParam(true);
+			client.addConnector(connector);
+		}
+		return client;
+	}
+
+	/**
+	 * Plays calls at the given rate for the given duration in seconds.
+	 */
+	protected Step run(SipClient client, SipURI serverUri, boolean forward, double rate, long duration) throws Exception
+	{
+		LoadGenerator generator = new LoadGenerator(Scenario.call(_holdTime));
+		generator.addClient(client);
+		if (forward)
+		{
+			SipURI target = new SipURIImpl(null, HOST, UAS_PORT);
+			target.setTransportParam(serverUri.getTransportParam());
+			generator.setTarget(target);
+			SipURI proxy = (SipURI) serverUri.clone();
+			proxy.setLrParam(true);
+			generator.setOutboundProxy(proxy);
+		}
+		else
+		{
+			generator.setTarget(serverUri);
+		}
+		generator.setRate(rate);
+		long calls = (long) (rate * duration);
+		generator.setMaxCalls(calls);
+		generator.setCallTimeout(10000);
+
+		System.gc();
+		long allocated = getAllocatedBytes();
+		long gcTime = getGcTime();
+		long start = System.nanoTime();
+
+		generator.start();
+		boolean ended = generator.waitForCalls(calls, duration * 1000 + generator.getCallTimeout());
+		Step step = new Step(generator, ended, (System.nanoTime() - start) / 1e9,
+				allocated == -1 ? -1 : getAllocatedBytes() - allocated, getGcTime() - gcTime);
+		generator.stop();
+		return step;
+	}
+
+	private void write(String test, String results) throws IOException
+	{
+		_directory.mkdirs();
+		FileWriter writer = new FileWriter(new File(_directory, test + ".txt"));
+		try
+		{
+			writer.write(HEADER + "\n" + results);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the bytes allocated by all live threads or <code>-1</code> if not supported.
+	 */
+	private static long getAllocatedBytes()
+	{
+		try
+		{
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long[].class);
+			long[] allocated = (long[]) method.invoke(bean, bean.getAllThreadIds());
+			long total = 0;
+			for (long bytes : allocated)
+			{
+				if (bytes > 0)
+					total += bytes;
+			}
+			return total;
+		}
+		catch (Exception e)
+		{
+			return -1;
+		}
+	}
+
+	private static long getGcTime()
+	{
+		long time = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(0, bean.getCollectionTime());
+		return time;
+	}
+
+	class Step
+	{
+		LoadGenerator _generator;
+		boolean _ended;
+		double _elapsed;
+		long _allocated;
+		long _gcTime;
+
+		Step(LoadGenerator generator, boolean ended, double elapsed, long allocated, long gcTime)
+		{
+			_generator = generator;
+			_ended = ended;
+			_elapsed = elapsed;
+			_allocated = allocated;
+			_gcTime = gcTime;
+		}
+
+		LatencyHistogram getSetupLatency()
+		{
+			LoadGenerator.Statistics statistics = _generator.getStatistics(SipMethods.INVITE);
+			return statistics == null ? new LatencyHistogram(1) : statistics.getHistogram();
+		}
+
+		boolean isSustained()
+		{
+			return _ended && _generator.getCallsFailed() == 0
+				&& getSetupLatency().getValueAtPercentile(99) <= _maxLatency * 1000;
+		}
+
+		String toString(String test, double rate)
+		{
+			long calls = Math.max(1, _generator.getCallsEnded());
+			LatencyHistogram latency = getSetupLatency();
+			return String.format("%-10s %8.0f %8.0f %8d %8d %10.3f %10.3f %10.3f %12d %10.3f%s",
+					test, rate, _generator.getCallsSucceeded() / _elapsed,
+					_generator.getCallsEnded(), _generator.getCallsFailed(),
+					latency.getValueAtPercentile(50) / 1000.0,
+					latency.getValueAtPercentile(99) / 1000.0,
+					latency.getValueAtPercentile(99.9) / 1000.0,
+					_allocated == -1 ? -1 : _allocated / calls,
+					(double) _gcTime / calls,
+					isSustained() ? "" : " (not sustained)");
+		}
+	}
+}
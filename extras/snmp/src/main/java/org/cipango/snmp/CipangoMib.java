@@ -18,6 +18,8 @@ import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.management.MBeanServerConnection;
 import javax.management.Notification;
@@ -25,22 +27,31 @@ import javax.management.NotificationListener;
 import javax.management.ObjectName;
 
 import org.cipango.log.event.Events;
+import org.cipango.server.Server;
+import org.cipango.server.metrics.Metric;
+import org.cipango.server.metrics.MetricsRegistry;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 import org.snmp4j.agent.DuplicateRegistrationException;
 import org.snmp4j.agent.MOAccess;
 import org.snmp4j.agent.MOServer;
 import org.snmp4j.agent.mo.MOAccessImpl;
-import org.snmp4j.agent.mo.MOFactory;
 import org.snmp4j.agent.mo.MOScalar;
-import org.snmp4j.agent.mo.jmx.JMXDefaultMOFactory;
-import org.snmp4j.agent.mo.jmx.MBeanAttributeMOScalarSupport;
 import org.snmp4j.mp.SnmpConstants;
 import org.snmp4j.smi.Counter32;
+import org.snmp4j.smi.Gauge32;
 import org.snmp4j.smi.OID;
 import org.snmp4j.smi.OctetString;
+import org.snmp4j.smi.Variable;
 import org.snmp4j.smi.VariableBinding;
 
+/**
+ * Cipango MIB.
+ * <p>
+ * Exported values are read from the snapshot of the server {@link MetricsRegistry} on a single schedule
+ * (see {@link #setRefreshInterval(long)}) and GET/GETNEXT/GETBULK requests are served from the
+ * last refreshed values, so the number of pollers does not change the cost of collecting them.
+ */
 public class CipangoMib implements Mib, NotificationListener
 {
 	private static final Logger LOG = Log.getLogger(CipangoMib.class);
@@ -55,55 +66,51 @@ public class CipangoMib implements Mib, NotificationListener
 
 	
 	public static final ObjectName 
-		CONNECTOR_MANAGER = ObjectNameFactory.create("org.cipango.server:type=connectormanager,id=0"),
-		SERVER = ObjectNameFactory.create("org.cipango.server:type=server,id=0"),
 		JMX_EVENT_LOGGER = ObjectNameFactory.create("org.cipango.log:type=jmxeventlogger,id=0");
-	
-	private static final Object[][] CONNECTOR_MANAGER_ATTR =
-	{
-		{ OID_MESSAGES_RECEIVED, "messagesReceived", Long.class },
-		{ OID_MESSAGES_SENT, "messagesSent", Long.class }
-	};
-	
-	private static final Object[][] SERVER_ATTR =
+
+	private static final int COUNTER = 0, GAUGE = 1;
+
+	/**
+	 * Exported metrics: OID, metric name in {@link MetricsRegistry}, SMI type.
+	 */
+	private static final Object[][] METRICS =
 	{
-		{ OID_SIP_VERSION, "sipVersion", String.class },
+		{ OID_MESSAGES_RECEIVED, "sip_messages_received_total", COUNTER },
+		{ OID_MESSAGES_SENT, "sip_messages_sent_total", COUNTER },
+		{ OID_NB_SESSIONS, "sip_call_sessions", GAUGE }
 	};
 
 	private List<MOScalar> _scalars = new ArrayList<MOScalar>();
 	private SnmpAgent _agent;
+	private final MetricsRegistry _registry;
+
+	private long _refreshInterval = MetricsRegistry.DEFAULT_SNAPSHOT_INTERVAL;
+	private volatile Variable[] _values;
+	private Timer _timer;
 
-	public CipangoMib()
+	public CipangoMib(MetricsRegistry registry)
 	{
 		super();
-		addJvmManagementMibInstrumentaton();
+		_registry = registry;
+		refresh();
+		createMO();
+		addEventListener();
 	}
 
-	protected void createMO(MOFactory moFactory)
+	protected void createMO()
 	{
-		MOAccess readOnly = moFactory.createAccess(MOAccessImpl.ACCESSIBLE_FOR_READ_ONLY);
-		_scalars.add(moFactory.createScalar(OID_MESSAGES_RECEIVED, readOnly, new Counter32()));
-		_scalars.add(moFactory.createScalar(OID_MESSAGES_SENT, readOnly, new Counter32()));
-		_scalars.add(moFactory.createScalar(OID_SIP_VERSION, readOnly, new OctetString()));
+		MOAccess readOnly = MOAccessImpl.ACCESS_READ_ONLY;
+		for (int i = 0; i < METRICS.length; i++)
+			_scalars.add(new CachedScalar((OID) METRICS[i][0], readOnly, i));
+		_scalars.add(new MOScalar(OID_SIP_VERSION, readOnly, new OctetString(Server.getSipVersion())));
 	}
-	
-	
-	
-	private void addJvmManagementMibInstrumentaton()
+
+	private void addEventListener()
 	{
 		try
 		{
 			MBeanServerConnection server = ManagementFactory.getPlatformMBeanServer();
-			MBeanAttributeMOScalarSupport scalarSupport = new MBeanAttributeMOScalarSupport(server);
-			JMXDefaultMOFactory jmxFactory = new JMXDefaultMOFactory(server, scalarSupport);
-
-			createMO(jmxFactory);
-			
-			scalarSupport.addAll(CONNECTOR_MANAGER, CONNECTOR_MANAGER_ATTR);
-			scalarSupport.addAll(SERVER, SERVER_ATTR);
-					
 			server.addNotificationListener(JMX_EVENT_LOGGER, this, null, JMX_EVENT_LOGGER);
-					
 		}
 		catch (Exception e)
 		{
@@ -111,16 +118,65 @@ public class CipangoMib implements Mib, NotificationListener
 		}
 	}
 
+	/**
+	 * Reads all exported values from the metrics registry snapshot. Values are replaced as a whole
+	 * so that a walk never sees values from two different refreshes.
+	 */
+	public void refresh()
+	{
+		MetricsRegistry.Snapshot snapshot = _registry.getSnapshot();
+		Variable[] values = new Variable[METRICS.length];
+		for (int i = 0; i < METRICS.length; i++)
+		{
+			long value = snapshot.getValue((String) METRICS[i][1], 0);
+			if (((Integer) METRICS[i][2]).intValue() == COUNTER)
+				values[i] = new Counter32(value & 0xFFFFFFFFL);
+			else
+				values[i] = new Gauge32(Math.max(0, Math.min(value, 0xFFFFFFFFL)));
+		}
+		_values = values;
+	}
+
+	public long getRefreshInterval()
+	{
+		return _refreshInterval;
+	}
+
+	/**
+	 * Sets the interval in milliseconds at which exported values are refreshed.
+	 */
+	public void setRefreshInterval(long refreshInterval)
+	{
+		_refreshInterval = refreshInterval;
+	}
 
 	public void registerMOs(MOServer server, OctetString context) throws DuplicateRegistrationException
 	{
 		Iterator<MOScalar> it = _scalars.iterator();
 		while (it.hasNext())
 			server.register(it.next(), context);
+
+		synchronized (this)
+		{
+			if (_timer == null)
+			{
+				_timer = new Timer("SNMP MIB refresh", true);
+				_timer.schedule(new RefreshTask(), _refreshInterval, _refreshInterval);
+			}
+		}
 	}
 
 	public void unregisterMOs(MOServer server, OctetString context)
 	{
+		synchronized (this)
+		{
+			if (_timer != null)
+			{
+				_timer.cancel();
+				_timer = null;
+			}
+		}
+
 		Iterator<MOScalar> it = _scalars.iterator();
 		while (it.hasNext())
 			server.unregister(it.next(), context);
@@ -138,11 +194,15 @@ public class CipangoMib implements Mib, NotificationListener
 	                     new VariableBinding[0]);
 				break;
 			case Events.DEPLOY_FAIL:
-	
+
 				break;
 			case Events.CALLS_THRESHOLD_READCHED:
-				 _agent.getNotificationOriginator().notify(new OctetString(), OID_THRESHOLD_SESSIONS,
-	                      new VariableBinding[0]);
+				// The threshold is evaluated by the session manager on each new call, so the
+				// number of sessions is read from the gauge rather than from the cached value.
+				Metric metric = _registry.getMetric("sip_call_sessions");
+				long sessions = metric == null ? 0 : metric.getValue();
+				_agent.getNotificationOriginator().notify(new OctetString(), OID_THRESHOLD_SESSIONS,
+	                      new VariableBinding[] { new VariableBinding(OID_NB_SESSIONS, new Gauge32(sessions)) });
 				break;
 			default:
 				break;
@@ -155,4 +215,37 @@ public class CipangoMib implements Mib, NotificationListener
 		_agent = agent;
 	}
 
+	class CachedScalar extends MOScalar
+	{
+		private int _index;
+
+		public CachedScalar(OID id, MOAccess access, int index)
+		{
+			super(id, access, _values[index]);
+			_index = index;
+		}
+
+		@Override
+		public Variable getValue()
+		{
+			return _values[_index];
+		}
+	}
+
+	class RefreshTask extends TimerTask
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				refresh();
+			}
+			catch (Exception e)
+			{
+				LOG.warn("Failed to refresh SNMP values", e);
+			}
+		}
+	}
+
 }
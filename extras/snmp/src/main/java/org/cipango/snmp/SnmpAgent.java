@@ -20,6 +20,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import org.cipango.server.Server;
+import org.cipango.server.metrics.MetricsRegistry;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.component.AggregateLifeCycle;
 import org.eclipse.jetty.util.component.Dumpable;
@@ -376,7 +377,7 @@ public class SnmpAgent extends AbstractLifeCycle implements Dumpable
 			super.registerSnmpMIBs();
 			try
 			{
-				addMib(new CipangoMib());
+				addMib(new CipangoMib(_server != null ? _server.getMetricsRegistry() : MetricsRegistry.getDefault()));
 				addMib(new JvmManagementMibInst(notificationOriginator));
 
 				for (MOGroup mib : _mibs)